@@ -17,11 +17,18 @@ import com.facebook.imagepipeline.animated.base.AnimatedDrawableBackend
 import com.facebook.imagepipeline.animated.impl.AnimatedImageCompositor
 import com.facebook.imagepipeline.animated.impl.AnimatedImageCompositor.Callback
 
-/** [BitmapFrameRenderer] that wraps around an [AnimatedDrawableBackend]. */
-class AnimatedDrawableBackendFrameRenderer(
+/**
+ * [BitmapFrameRenderer] that wraps around an [AnimatedDrawableBackend].
+ *
+ * @param snapshotInterval see [AnimatedImageCompositor], 0 to keep no snapshot of composited frames
+ */
+class AnimatedDrawableBackendFrameRenderer
+@JvmOverloads
+constructor(
     private val bitmapFrameCache: BitmapFrameCache,
     private var animatedDrawableBackend: AnimatedDrawableBackend,
     private val isNewRenderImplementation: Boolean,
+    private val snapshotInterval: Int = 0,
 ) : BitmapFrameRenderer {
 
   private var animatedImageCompositor: AnimatedImageCompositor
@@ -40,8 +47,14 @@ class AnimatedDrawableBackendFrameRenderer(
     val newBackend = animatedDrawableBackend.forNewBounds(bounds)
     if (newBackend !== animatedDrawableBackend) {
       animatedDrawableBackend = newBackend
+      animatedImageCompositor.clearSnapshots()
       animatedImageCompositor =
-          AnimatedImageCompositor(animatedDrawableBackend, isNewRenderImplementation, callback)
+          AnimatedImageCompositor(
+              animatedDrawableBackend,
+              isNewRenderImplementation,
+              callback,
+              snapshotInterval,
+          )
     }
   }
 
@@ -57,6 +70,7 @@ class AnimatedDrawableBackendFrameRenderer(
             this@AnimatedDrawableBackendFrameRenderer.animatedDrawableBackend,
             isNewRenderImplementation,
             callback,
+            snapshotInterval,
         )
   }
 
@@ -70,6 +84,10 @@ class AnimatedDrawableBackendFrameRenderer(
     return true
   }
 
+  override fun clear() {
+    animatedImageCompositor.clearSnapshots()
+  }
+
   companion object {
     private val TAG: Class<*> = AnimatedDrawableBackendFrameRenderer::class.java
   }
@@ -58,6 +58,7 @@ constructor(
     private val animatedImagePerfLoggingListener: AnimatedImagePerfLoggingListener? = null,
     private val enableUnusedFrameLoaderCleanupSync: Boolean = false,
     private val enableUnusedFrameLoaderCleanupSyncAndClear: Boolean = false,
+    private val enableSharedAnimationFrames: Boolean = false,
 ) : AnimatedFactory {
 
   private var animatedDrawableBackendProvider: AnimatedDrawableBackendProvider? = null
@@ -103,6 +104,7 @@ constructor(
         enableSingleFrameRendering,
         enableUnusedFrameLoaderCleanupSync,
         enableUnusedFrameLoaderCleanupSyncAndClear,
+        enableSharedAnimationFrames,
     )
   }
 
@@ -32,6 +32,7 @@ import com.facebook.fresco.animation.bitmap.preparation.FixedNumberBitmapFramePr
 import com.facebook.fresco.animation.bitmap.preparation.FrameLoaderStrategy
 import com.facebook.fresco.animation.bitmap.preparation.ondemandanimation.FrameLoaderFactory
 import com.facebook.fresco.animation.bitmap.preparation.ondemandanimation.FrameLoaderListener
+import com.facebook.fresco.animation.bitmap.preparation.ondemandanimation.SharedAnimationFrameStore
 import com.facebook.fresco.animation.bitmap.wrapper.AnimatedDrawableBackendAnimationInformation
 import com.facebook.fresco.animation.bitmap.wrapper.AnimatedDrawableBackendFrameRenderer
 import com.facebook.fresco.animation.drawable.AnimatedDrawable2
@@ -49,6 +50,8 @@ import com.facebook.imagepipeline.cache.CountingMemoryCache
 import com.facebook.imagepipeline.drawable.DrawableFactory
 import com.facebook.imagepipeline.image.CloseableAnimatedImage
 import com.facebook.imagepipeline.image.CloseableImage
+import java.util.Collections
+import java.util.WeakHashMap
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.ScheduledExecutorService
 
@@ -73,11 +76,20 @@ class DefaultBitmapAnimationDrawableFactory(
     private val enableSingleFrameRendering: Boolean = false,
     private val enableUnusedFrameLoaderCleanupSync: Boolean = false,
     private val enableUnusedFrameLoaderCleanupSyncAndClear: Boolean = false,
+    private val enableSharedAnimationFrames: Boolean = false,
+    private val animationSnapshotInterval: Int = 0,
 ) : DrawableFactory, ImageOptionsDrawableFactory {
 
   // Change the value to true to use KAnimatedDrawable2.kt
   private val useRendererAnimatedDrawable: Supplier<Boolean> = Suppliers.BOOLEAN_FALSE
 
+  private val sharedAnimationFrameStore: SharedAnimationFrameStore? =
+      if (enableSharedAnimationFrames) SharedAnimationFrameStore() else null
+
+  // One key per animated image, so that all its drawables share their frames
+  private val sharedAnimationKeys: MutableMap<AnimatedImageResult, AnimationFrameCacheKey> =
+      Collections.synchronizedMap(WeakHashMap())
+
   override fun supportsImageType(image: CloseableImage): Boolean {
     return image is CloseableAnimatedImage
   }
@@ -174,6 +186,7 @@ class DefaultBitmapAnimationDrawableFactory(
         bitmapFrameCache,
         animatedDrawableBackend,
         useNewBitmapRender.get(),
+        animationSnapshotInterval,
     )
 
     val numberOfFramesToPrefetch = numberOfFramesToPrepareSupplier.get()
@@ -206,8 +219,10 @@ class DefaultBitmapAnimationDrawableFactory(
                   enableUnusedFrameLoaderCleanupSyncAndClear,
                   shouldRoundUpFractionalFrameBudget =
                       imageOptions?.shouldRoundUpFractionalFrameBudget == true,
+                  sharedFrameStore = sharedAnimationFrameStore,
               ),
               downscaleFrameToDrawableDimensions.get(),
+              sharedAnimationFrameStore?.let { getSharedAnimationKey(animatedImageResult) },
           )
     }
 
@@ -265,6 +280,11 @@ class DefaultBitmapAnimationDrawableFactory(
     }
   }
 
+  private fun getSharedAnimationKey(animatedImageResult: AnimatedImageResult): CacheKey =
+      sharedAnimationKeys.getOrPut(animatedImageResult) {
+        AnimationFrameCacheKey(animatedImageResult.hashCode())
+      }
+
   private fun createAnimatedFrameCache(
       animatedImageResult: AnimatedImageResult,
   ): AnimatedFrameCache {
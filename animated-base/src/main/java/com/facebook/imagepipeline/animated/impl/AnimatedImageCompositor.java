@@ -13,6 +13,7 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import androidx.annotation.VisibleForTesting;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.animated.base.AnimatedDrawableBackend;
 import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo;
@@ -22,7 +23,11 @@ import com.facebook.imagepipeline.animated.base.AnimatedImage;
 import com.facebook.imagepipeline.animated.base.AnimatedImageResult;
 import com.facebook.imagepipeline.transformation.BitmapTransformation;
 import com.facebook.infer.annotation.Nullsafe;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Contains the logic for compositing the frames of an {@link AnimatedImage}. Animated image formats
@@ -61,24 +66,65 @@ public class AnimatedImageCompositor {
     CloseableReference<Bitmap> getCachedBitmap(int frameNumber);
   }
 
+  // Snapshots kept at most, dropping the least recently used first
+  private static final int MAX_SNAPSHOT_COUNT = 16;
+
   private final AnimatedDrawableBackend mAnimatedDrawableBackend;
   private final Callback mCallback;
   private final Paint mTransparentFillPaint;
   private final boolean mIsNewRenderImplementation;
+  private final int mSnapshotInterval;
+
+  @Nullable private AnimatedImageKeyframeIndex mKeyframeIndex;
+  // Composited frames kept every mSnapshotInterval frames, by frame number, in access order
+  @GuardedBy("mSnapshots")
+  private final LinkedHashMap<Integer, Bitmap> mSnapshots = new LinkedHashMap<>(16, 0.75f, true);
 
   public AnimatedImageCompositor(
       AnimatedDrawableBackend animatedDrawableBackend,
       boolean isNewRenderImplementation,
       Callback callback) {
+    this(animatedDrawableBackend, isNewRenderImplementation, callback, 0);
+  }
+
+  /**
+   * @param snapshotInterval if positive, a copy of every composited frame whose number is a
+   *     multiple of it is kept, so that rendering a frame composites at most about that many frames
+   *     when the callback has no cached frame to start from. At most 16 copies are kept, until
+   *     {@link #clearSnapshots} is called.
+   */
+  public AnimatedImageCompositor(
+      AnimatedDrawableBackend animatedDrawableBackend,
+      boolean isNewRenderImplementation,
+      Callback callback,
+      int snapshotInterval) {
     mAnimatedDrawableBackend = animatedDrawableBackend;
     mCallback = callback;
     mIsNewRenderImplementation = isNewRenderImplementation;
+    mSnapshotInterval = snapshotInterval;
     mTransparentFillPaint = new Paint();
     mTransparentFillPaint.setColor(Color.TRANSPARENT);
     mTransparentFillPaint.setStyle(Paint.Style.FILL);
     mTransparentFillPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
   }
 
+  /** Recycles the snapshots of composited frames, e.g. when trimming memory or when closed. */
+  public void clearSnapshots() {
+    synchronized (mSnapshots) {
+      for (Bitmap snapshot : mSnapshots.values()) {
+        snapshot.recycle();
+      }
+      mSnapshots.clear();
+    }
+  }
+
+  @VisibleForTesting
+  int getSnapshotCount() {
+    synchronized (mSnapshots) {
+      return mSnapshots.size();
+    }
+  }
+
   public void renderDeltas(int frameNumber, Bitmap baseBitmap) {
     Canvas canvas = new Canvas(baseBitmap);
     mAnimatedDrawableBackend.renderDeltas(frameNumber, canvas);
@@ -96,14 +142,15 @@ public class AnimatedImageCompositor {
       return;
     }
 
+    AnimatedImageKeyframeIndex keyframeIndex = getKeyframeIndex(frameNumber);
     Canvas canvas = new Canvas(bitmap);
     canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.SRC);
 
     // If blending is required, prepare the canvas with the nearest cached frame.
     int nextIndex;
-    if (!isKeyFrame(frameNumber)) {
+    if (!keyframeIndex.isKeyFrame(frameNumber)) {
       // Blending is required. nextIndex points to the next index to render onto the canvas.
-      nextIndex = prepareCanvasWithClosestCachedFrame(frameNumber - 1, canvas);
+      nextIndex = prepareCanvasWithClosestCachedFrame(frameNumber, canvas);
     } else {
       // Blending isn't required. Start at the frame we're trying to render.
       nextIndex = frameNumber;
@@ -112,7 +159,7 @@ public class AnimatedImageCompositor {
     // Iterate from nextIndex to the frame number just preceding the one we're trying to render
     // and composite them in order according to the Disposal Method.
     for (int index = nextIndex; index < frameNumber; index++) {
-      AnimatedDrawableFrameInfo frameInfo = mAnimatedDrawableBackend.getFrameInfo(index);
+      AnimatedDrawableFrameInfo frameInfo = keyframeIndex.getFrameInfo(index);
       DisposalMethod disposalMethod = frameInfo.disposalMethod;
       if (disposalMethod == DisposalMethod.DISPOSE_TO_PREVIOUS) {
         continue;
@@ -122,141 +169,129 @@ public class AnimatedImageCompositor {
       }
       mAnimatedDrawableBackend.renderFrame(index, canvas);
       mCallback.onIntermediateResult(index, bitmap);
+      maybeKeepSnapshot(index, bitmap);
       if (disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND) {
         disposeToBackground(canvas, frameInfo);
       }
     }
 
-    AnimatedDrawableFrameInfo frameInfo = mAnimatedDrawableBackend.getFrameInfo(frameNumber);
+    AnimatedDrawableFrameInfo frameInfo = keyframeIndex.getFrameInfo(frameNumber);
     if (frameInfo.blendOperation == BlendOperation.NO_BLEND) {
       disposeToBackground(canvas, frameInfo);
     }
     // Finally, we render the current frame. We don't dispose it.
     mAnimatedDrawableBackend.renderFrame(frameNumber, canvas);
+    maybeKeepSnapshot(frameNumber, bitmap);
     maybeApplyTransformation(bitmap);
   }
 
-  /** Return value for {@link #isFrameNeededForRendering} used in the compositing logic. */
-  private enum FrameNeededResult {
-    /** The frame is required to render the next frame */
-    REQUIRED,
-
-    /** The frame is not required to render the next frame. */
-    NOT_REQUIRED,
-
-    /** Skip this frame and keep going. Used for GIF's DISPOSE_TO_PREVIOUS */
-    SKIP,
-
-    /** Stop processing at this frame. This means the image didn't specify the disposal method */
-    ABORT
+  /** Returns the keyframe index, built the first time a frame is rendered. */
+  private AnimatedImageKeyframeIndex getKeyframeIndex(int frameNumber) {
+    AnimatedImageKeyframeIndex keyframeIndex = mKeyframeIndex;
+    if (keyframeIndex == null || frameNumber >= keyframeIndex.getFrameCount()) {
+      keyframeIndex =
+          new AnimatedImageKeyframeIndex(
+              mAnimatedDrawableBackend,
+              Math.max(mAnimatedDrawableBackend.getFrameCount(), frameNumber + 1));
+      mKeyframeIndex = keyframeIndex;
+    }
+    return keyframeIndex;
   }
 
   /**
-   * Given a frame number, prepares the canvas to render based on the nearest cached frame at or
-   * before the frame. On return the canvas will be prepared as if the nearest cached frame had been
+   * Given a frame number, prepares the canvas to render based on the nearest cached frame before
+   * the frame. On return the canvas will be prepared as if the nearest cached frame had been
    * rendered and disposed. The returned index is the next frame that needs to be composited onto
    * the canvas.
    *
-   * @param previousFrameNumber the frame number that is ones less than the one we're rendering
+   * <p>Only the frames from the render start of the frame in the keyframe index can be used, as
+   * compositing never needs to go further back.
+   *
+   * @param frameNumber the frame number we're rendering
    * @param canvas the canvas to prepare
    * @return the index of the the next frame to process
    */
-  private int prepareCanvasWithClosestCachedFrame(int previousFrameNumber, Canvas canvas) {
-    for (int index = previousFrameNumber; index >= 0; index--) {
-      FrameNeededResult neededResult = isFrameNeededForRendering(index);
-      switch (neededResult) {
-        case REQUIRED:
-          AnimatedDrawableFrameInfo frameInfo = mAnimatedDrawableBackend.getFrameInfo(index);
-          CloseableReference<Bitmap> startBitmap = mCallback.getCachedBitmap(index);
-          if (startBitmap != null) {
-            try {
-              canvas.drawBitmap(startBitmap.get(), 0, 0, null);
-              if (frameInfo.disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND) {
-                disposeToBackground(canvas, frameInfo);
-              }
-              return index + 1;
-            } finally {
-              if (!mIsNewRenderImplementation) {
-                startBitmap.close();
-              }
-            }
-          } else {
-            if (isKeyFrame(index)) {
-              return index;
-            } else {
-              // Keep going.
-              break;
-            }
-          }
-        case NOT_REQUIRED:
-          return index + 1;
-        case ABORT:
-          return index;
-        case SKIP:
-        default:
-          // Keep going.
+  private int prepareCanvasWithClosestCachedFrame(int frameNumber, Canvas canvas) {
+    AnimatedImageKeyframeIndex keyframeIndex = getKeyframeIndex(frameNumber);
+    int renderStart = keyframeIndex.getRenderStart(frameNumber);
+    for (int index = frameNumber - 1; index >= renderStart; index--) {
+      if (keyframeIndex.getFrameNeededResult(index)
+          != AnimatedImageKeyframeIndex.FrameNeededResult.REQUIRED) {
+        continue;
+      }
+      if (drawCachedFrame(index, canvas)) {
+        AnimatedDrawableFrameInfo frameInfo = keyframeIndex.getFrameInfo(index);
+        if (frameInfo.disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND) {
+          disposeToBackground(canvas, frameInfo);
+        }
+        return index + 1;
       }
     }
-    return 0;
+    return renderStart;
   }
 
-  private void disposeToBackground(Canvas canvas, AnimatedDrawableFrameInfo frameInfo) {
-    canvas.drawRect(
-        frameInfo.xOffset,
-        frameInfo.yOffset,
-        frameInfo.xOffset + frameInfo.width,
-        frameInfo.yOffset + frameInfo.height,
-        mTransparentFillPaint);
-  }
-
-  /**
-   * Returns whether the specified frame is needed for rendering the next frame. This is part of the
-   * compositing logic. See {@link FrameNeededResult} for more info about the results.
-   *
-   * @param index the frame to check
-   * @return whether the frame is required taking into account special conditions
-   */
-  private FrameNeededResult isFrameNeededForRendering(int index) {
-    AnimatedDrawableFrameInfo frameInfo = mAnimatedDrawableBackend.getFrameInfo(index);
-    DisposalMethod disposalMethod = frameInfo.disposalMethod;
-    if (disposalMethod == DisposalMethod.DISPOSE_DO_NOT) {
-      // Need this frame so keep going.
-      return FrameNeededResult.REQUIRED;
-    } else if (disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND) {
-      if (isFullFrame(frameInfo)) {
-        // The frame covered the whole image and we're disposing to background,
-        // so we don't even need to draw this frame.
-        return FrameNeededResult.NOT_REQUIRED;
-      } else {
-        // We need to draw the image. Then erase the part the previous frame covered.
-        // So keep going.
-        return FrameNeededResult.REQUIRED;
+  /** Draws the frame from the callback cache or from a snapshot, if either has it. */
+  private boolean drawCachedFrame(int frameNumber, Canvas canvas) {
+    CloseableReference<Bitmap> startBitmap = mCallback.getCachedBitmap(frameNumber);
+    if (startBitmap != null) {
+      try {
+        canvas.drawBitmap(startBitmap.get(), 0, 0, null);
+        return true;
+      } finally {
+        startBitmap.close();
       }
-    } else if (disposalMethod == DisposalMethod.DISPOSE_TO_PREVIOUS) {
-      return FrameNeededResult.SKIP;
-    } else {
-      return FrameNeededResult.ABORT;
+    }
+    // Drawn under the lock, so that the snapshot is not recycled meanwhile
+    synchronized (mSnapshots) {
+      Bitmap snapshot = mSnapshots.get(frameNumber);
+      if (snapshot != null
+          && snapshot.getWidth() == canvas.getWidth()
+          && snapshot.getHeight() == canvas.getHeight()) {
+        canvas.drawBitmap(snapshot, 0, 0, null);
+        return true;
+      }
+      return false;
     }
   }
 
-  private boolean isKeyFrame(int index) {
-    if (index == 0) {
-      return true;
+  private void maybeKeepSnapshot(int frameNumber, Bitmap bitmap) {
+    if (mSnapshotInterval <= 0
+        || frameNumber % mSnapshotInterval != 0
+        || getKeyframeIndex(frameNumber).getFrameNeededResult(frameNumber)
+            != AnimatedImageKeyframeIndex.FrameNeededResult.REQUIRED) {
+      return;
+    }
+    synchronized (mSnapshots) {
+      Bitmap snapshot = mSnapshots.get(frameNumber);
+      if (snapshot != null
+          && snapshot.getWidth() == bitmap.getWidth()
+          && snapshot.getHeight() == bitmap.getHeight()) {
+        return;
+      }
+      Bitmap copy = bitmap.copy(bitmap.getConfig(), false);
+      if (copy == null) {
+        return;
+      }
+      Bitmap replaced = mSnapshots.put(frameNumber, copy);
+      if (replaced != null) {
+        replaced.recycle();
+      }
+      Iterator<Map.Entry<Integer, Bitmap>> iterator = mSnapshots.entrySet().iterator();
+      while (mSnapshots.size() > MAX_SNAPSHOT_COUNT && iterator.hasNext()) {
+        Bitmap eldest = iterator.next().getValue();
+        iterator.remove();
+        eldest.recycle();
+      }
     }
-    AnimatedDrawableFrameInfo currFrameInfo = mAnimatedDrawableBackend.getFrameInfo(index);
-    AnimatedDrawableFrameInfo prevFrameInfo = mAnimatedDrawableBackend.getFrameInfo(index - 1);
-    if (currFrameInfo.blendOperation == BlendOperation.NO_BLEND && isFullFrame(currFrameInfo)) {
-      return true;
-    } else
-      return prevFrameInfo.disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND
-          && isFullFrame(prevFrameInfo);
   }
 
-  private boolean isFullFrame(AnimatedDrawableFrameInfo frameInfo) {
-    return frameInfo.xOffset == 0
-        && frameInfo.yOffset == 0
-        && frameInfo.width == mAnimatedDrawableBackend.getRenderedWidth()
-        && frameInfo.height == mAnimatedDrawableBackend.getRenderedHeight();
+  private void disposeToBackground(Canvas canvas, AnimatedDrawableFrameInfo frameInfo) {
+    canvas.drawRect(
+        frameInfo.xOffset,
+        frameInfo.yOffset,
+        frameInfo.xOffset + frameInfo.width,
+        frameInfo.yOffset + frameInfo.height,
+        mTransparentFillPaint);
   }
 
   private void maybeApplyTransformation(Bitmap bitmap) {
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.animated.impl;
+
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableBackend;
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo;
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.BlendOperation;
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.DisposalMethod;
+import com.facebook.infer.annotation.Nullsafe;
+
+/**
+ * Precomputed compositing information of the frames of an {@link AnimatedDrawableBackend}, so that
+ * {@link AnimatedImageCompositor} does not read the frame infos and walk back over the frames each
+ * time it renders one.
+ *
+ * <p>Key frames are frames that can be rendered without any previous frame: the first frame, the
+ * frames that are not blended and cover the whole canvas, and the frames following a full frame
+ * disposed to background. For each frame, the index also keeps the frame that compositing has to
+ * start from when no previous frame is cached.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class AnimatedImageKeyframeIndex {
+
+  /** Whether a frame is needed for rendering the next frames. */
+  enum FrameNeededResult {
+    /** The frame is required to render the next frame */
+    REQUIRED,
+
+    /** The frame is not required to render the next frame. */
+    NOT_REQUIRED,
+
+    /** Skip this frame and keep going. Used for GIF's DISPOSE_TO_PREVIOUS */
+    SKIP,
+
+    /** Stop processing at this frame. This means the image didn't specify the disposal method */
+    ABORT
+  }
+
+  private final AnimatedDrawableFrameInfo[] mFrameInfos;
+  private final FrameNeededResult[] mFrameNeededResults;
+  private final boolean[] mKeyFrames;
+  private final int[] mRenderStarts;
+
+  public AnimatedImageKeyframeIndex(AnimatedDrawableBackend animatedDrawableBackend) {
+    this(animatedDrawableBackend, animatedDrawableBackend.getFrameCount());
+  }
+
+  /** Creates the index of the first frameCount frames of the backend. */
+  public AnimatedImageKeyframeIndex(
+      AnimatedDrawableBackend animatedDrawableBackend, int frameCount) {
+    int renderedWidth = animatedDrawableBackend.getRenderedWidth();
+    int renderedHeight = animatedDrawableBackend.getRenderedHeight();
+    mFrameInfos = new AnimatedDrawableFrameInfo[frameCount];
+    mFrameNeededResults = new FrameNeededResult[frameCount];
+    mKeyFrames = new boolean[frameCount];
+    mRenderStarts = new int[frameCount];
+    // Where walking back from the previous frame stops if no frame is cached
+    int walkStart = 0;
+    for (int index = 0; index < frameCount; index++) {
+      AnimatedDrawableFrameInfo frameInfo = animatedDrawableBackend.getFrameInfo(index);
+      mFrameInfos[index] = frameInfo;
+      mFrameNeededResults[index] =
+          computeFrameNeededResult(frameInfo, renderedWidth, renderedHeight);
+      mKeyFrames[index] =
+          index == 0
+              || (frameInfo.blendOperation == BlendOperation.NO_BLEND
+                  && isFullFrame(frameInfo, renderedWidth, renderedHeight))
+              || (mFrameInfos[index - 1].disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND
+                  && isFullFrame(mFrameInfos[index - 1], renderedWidth, renderedHeight));
+      mRenderStarts[index] = mKeyFrames[index] ? index : walkStart;
+      walkStart = walkBackFrom(index, walkStart);
+    }
+  }
+
+  public int getFrameCount() {
+    return mFrameInfos.length;
+  }
+
+  public AnimatedDrawableFrameInfo getFrameInfo(int frameNumber) {
+    return mFrameInfos[frameNumber];
+  }
+
+  public boolean isKeyFrame(int frameNumber) {
+    return mKeyFrames[frameNumber];
+  }
+
+  /**
+   * Returns the first frame to composite to render the given frame when none of the previous
+   * frames is cached. Only the frames from there to the given frame can be used as a starting
+   * point.
+   */
+  public int getRenderStart(int frameNumber) {
+    return mRenderStarts[frameNumber];
+  }
+
+  FrameNeededResult getFrameNeededResult(int frameNumber) {
+    return mFrameNeededResults[frameNumber];
+  }
+
+  /**
+   * Returns where walking back from the given frame stops if no frame is cached, given where
+   * walking back from the frame before it stops.
+   */
+  private int walkBackFrom(int index, int previousWalkStart) {
+    switch (mFrameNeededResults[index]) {
+      case REQUIRED:
+        return mKeyFrames[index] ? index : previousWalkStart;
+      case NOT_REQUIRED:
+        return index + 1;
+      case ABORT:
+        return index;
+      case SKIP:
+      default:
+        return previousWalkStart;
+    }
+  }
+
+  private static FrameNeededResult computeFrameNeededResult(
+      AnimatedDrawableFrameInfo frameInfo, int renderedWidth, int renderedHeight) {
+    DisposalMethod disposalMethod = frameInfo.disposalMethod;
+    if (disposalMethod == DisposalMethod.DISPOSE_DO_NOT) {
+      // Need this frame so keep going.
+      return FrameNeededResult.REQUIRED;
+    } else if (disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND) {
+      if (isFullFrame(frameInfo, renderedWidth, renderedHeight)) {
+        // The frame covered the whole image and we're disposing to background,
+        // so we don't even need to draw this frame.
+        return FrameNeededResult.NOT_REQUIRED;
+      } else {
+        // We need to draw the image. Then erase the part the previous frame covered.
+        // So keep going.
+        return FrameNeededResult.REQUIRED;
+      }
+    } else if (disposalMethod == DisposalMethod.DISPOSE_TO_PREVIOUS) {
+      return FrameNeededResult.SKIP;
+    } else {
+      return FrameNeededResult.ABORT;
+    }
+  }
+
+  private static boolean isFullFrame(
+      AnimatedDrawableFrameInfo frameInfo, int renderedWidth, int renderedHeight) {
+    return frameInfo.xOffset == 0
+        && frameInfo.yOffset == 0
+        && frameInfo.width == renderedWidth
+        && frameInfo.height == renderedHeight;
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.animated.impl
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableBackend
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.BlendOperation
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.DisposalMethod
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.spy
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class AnimatedImageCompositorTest {
+
+  private val renderedFrames = ArrayList<Int>()
+
+  @Test
+  fun testKeyframeIndex() {
+    val backend =
+        mockBackend(
+            fullFrame(BlendOperation.NO_BLEND, DisposalMethod.DISPOSE_DO_NOT),
+            partialFrame(DisposalMethod.DISPOSE_DO_NOT),
+            fullFrame(BlendOperation.BLEND_WITH_PREVIOUS, DisposalMethod.DISPOSE_TO_BACKGROUND),
+            partialFrame(DisposalMethod.DISPOSE_DO_NOT),
+            partialFrame(DisposalMethod.DISPOSE_TO_PREVIOUS),
+            partialFrame(DisposalMethod.DISPOSE_DO_NOT),
+            fullFrame(BlendOperation.NO_BLEND, DisposalMethod.DISPOSE_DO_NOT),
+        )
+
+    val index = AnimatedImageKeyframeIndex(backend)
+
+    assertThat((0 until index.frameCount).filter { index.isKeyFrame(it) })
+        .containsExactly(0, 3, 6)
+    assertThat((0 until index.frameCount).map { index.getRenderStart(it) })
+        .containsExactly(0, 0, 0, 3, 3, 3, 6)
+  }
+
+  @Test
+  fun testReadsFrameInfosOnce() {
+    val backend = mockBackend(*longAnimation(10))
+    val compositor = AnimatedImageCompositor(backend, false, NO_CACHE)
+    val bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888)
+
+    for (frameNumber in 9 downTo 0) {
+      compositor.renderFrame(frameNumber, bitmap)
+    }
+
+    for (frameNumber in 0 until 10) {
+      verify(backend, times(1)).getFrameInfo(frameNumber)
+    }
+  }
+
+  @Test
+  fun testStartsFromCachedFrame() {
+    val backend = mockBackend(*longAnimation(10))
+    val cachedBitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888)
+    val compositor =
+        AnimatedImageCompositor(
+            backend,
+            false,
+            object : AnimatedImageCompositor.Callback {
+              override fun onIntermediateResult(frameNumber: Int, bitmap: Bitmap) = Unit
+
+              override fun getCachedBitmap(frameNumber: Int): CloseableReference<Bitmap>? =
+                  if (frameNumber == 6) CloseableReference.of(cachedBitmap) {} else null
+            },
+        )
+
+    compositor.renderFrame(9, Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888))
+
+    assertThat(renderedFrames).containsExactly(7, 8, 9)
+  }
+
+  /**
+   * Plays a long animation with only its first frame covering the canvas once, then renders every
+   * frame in the order of a seek back through the animation, where no cached frame helps. The
+   * worst case is the number of frames composited to render one frame.
+   */
+  @Test
+  fun testWorstCaseRenderWithSnapshots() {
+    val frameCount = 120
+    val withoutSnapshots = renderSeekingBack(frameCount, snapshotInterval = 0)
+    val withSnapshots = renderSeekingBack(frameCount, snapshotInterval = 8)
+
+    assertThat(withoutSnapshots).isEqualTo(frameCount)
+    assertThat(withSnapshots).isLessThanOrEqualTo(8)
+  }
+
+  @Test
+  fun testRecyclesSnapshotsOverMaxCountAndOnClear() {
+    val backend = mockBackend(*longAnimation(200))
+    val compositor = AnimatedImageCompositor(backend, false, NO_CACHE, 8)
+    val bitmap = spy(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888))
+    val snapshots = ArrayList<Bitmap>()
+    doAnswer { (it.callRealMethod() as Bitmap).also { copy -> snapshots.add(copy) } }
+        .whenever(bitmap)
+        .copy(any(), any())
+
+    for (frameNumber in 0 until 200) {
+      compositor.renderFrame(frameNumber, bitmap)
+    }
+
+    // a snapshot of every 8th frame, of which the 16 most recent are kept
+    assertThat(snapshots).hasSize(25)
+    assertThat(compositor.snapshotCount).isEqualTo(16)
+    assertThat(snapshots.count { it.isRecycled }).isEqualTo(9)
+
+    compositor.clearSnapshots()
+
+    assertThat(compositor.snapshotCount).isEqualTo(0)
+    assertThat(snapshots).allMatch { it.isRecycled }
+  }
+
+  /** @return the largest number of frames composited to render one frame */
+  private fun renderSeekingBack(frameCount: Int, snapshotInterval: Int): Int {
+    val backend = mockBackend(*longAnimation(frameCount))
+    val compositor = AnimatedImageCompositor(backend, false, NO_CACHE, snapshotInterval)
+    val bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888)
+    for (frameNumber in 0 until frameCount) {
+      compositor.renderFrame(frameNumber, bitmap)
+    }
+    var worstCase = 0
+    var worstCaseNs = 0L
+    for (frameNumber in frameCount - 1 downTo 0) {
+      renderedFrames.clear()
+      val startNs = System.nanoTime()
+      compositor.renderFrame(frameNumber, bitmap)
+      worstCaseNs = maxOf(worstCaseNs, System.nanoTime() - startNs)
+      worstCase = maxOf(worstCase, renderedFrames.size)
+    }
+    assertThat(worstCaseNs).isPositive()
+    return worstCase
+  }
+
+  private fun longAnimation(frameCount: Int): Array<AnimatedDrawableFrameInfo> =
+      Array(frameCount) {
+        if (it == 0) fullFrame(BlendOperation.NO_BLEND, DisposalMethod.DISPOSE_DO_NOT)
+        else partialFrame(DisposalMethod.DISPOSE_DO_NOT)
+      }
+
+  private fun mockBackend(vararg frameInfos: AnimatedDrawableFrameInfo): AnimatedDrawableBackend {
+    val backend = mock<AnimatedDrawableBackend>()
+    whenever(backend.frameCount).thenReturn(frameInfos.size)
+    whenever(backend.renderedWidth).thenReturn(SIZE)
+    whenever(backend.renderedHeight).thenReturn(SIZE)
+    whenever(backend.getFrameInfo(any())).thenAnswer { frameInfos[it.getArgument(0)] }
+    doAnswer { renderedFrames.add(it.getArgument(0)) }
+        .whenever(backend)
+        .renderFrame(any(), any<Canvas>())
+    return backend
+  }
+
+  private fun fullFrame(blendOperation: BlendOperation, disposalMethod: DisposalMethod) =
+      AnimatedDrawableFrameInfo(0, 0, 0, SIZE, SIZE, blendOperation, disposalMethod)
+
+  private fun partialFrame(disposalMethod: DisposalMethod) =
+      AnimatedDrawableFrameInfo(
+          0,
+          1,
+          1,
+          SIZE / 2,
+          SIZE / 2,
+          BlendOperation.BLEND_WITH_PREVIOUS,
+          disposalMethod,
+      )
+
+  companion object {
+    private const val SIZE = 16
+
+    private val NO_CACHE =
+        object : AnimatedImageCompositor.Callback {
+          override fun onIntermediateResult(frameNumber: Int, bitmap: Bitmap) = Unit
+
+          override fun getCachedBitmap(frameNumber: Int): CloseableReference<Bitmap>? = null
+        }
+  }
+}
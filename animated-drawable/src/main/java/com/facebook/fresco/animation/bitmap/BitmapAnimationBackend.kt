@@ -313,6 +313,7 @@ constructor(
     } else {
       bitmapFrameCache.clear()
     }
+    bitmapFrameRenderer.clear()
   }
 
   override fun preloadAnimation() {
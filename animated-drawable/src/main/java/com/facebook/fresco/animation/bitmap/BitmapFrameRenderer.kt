@@ -47,4 +47,7 @@ interface BitmapFrameRenderer {
    * @return the intrinsic height
    */
   val intrinsicHeight: Int
+
+  /** Releases the memory kept to render frames faster, e.g. when the frame caches are cleared. */
+  fun clear() = Unit
 }
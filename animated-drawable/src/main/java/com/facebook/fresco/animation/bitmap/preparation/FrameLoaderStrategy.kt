@@ -9,6 +9,7 @@ package com.facebook.fresco.animation.bitmap.preparation
 
 import android.graphics.Bitmap
 import androidx.annotation.UiThread
+import com.facebook.cache.common.CacheKey
 import com.facebook.common.references.CloseableReference
 import com.facebook.fresco.animation.backend.AnimationInformation
 import com.facebook.fresco.animation.bitmap.BitmapFrameRenderer
@@ -25,6 +26,7 @@ class FrameLoaderStrategy(
     private val bitmapFrameRenderer: BitmapFrameRenderer,
     private val frameLoaderFactory: FrameLoaderFactory,
     private val downscaleFrameToDrawableDimensions: Boolean,
+    private val animationKey: CacheKey? = null,
 ) : BitmapFramePreparationStrategy {
 
   private val cacheKey = source ?: this.hashCode().toString()
@@ -38,6 +40,7 @@ class FrameLoaderStrategy(
                 cacheKey,
                 bitmapFrameRenderer,
                 animationInformation,
+                animationKey,
             )
       }
       return field
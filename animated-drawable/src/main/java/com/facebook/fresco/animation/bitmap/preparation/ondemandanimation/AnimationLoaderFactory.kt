@@ -7,6 +7,7 @@
 
 package com.facebook.fresco.animation.bitmap.preparation.ondemandanimation
 
+import com.facebook.cache.common.CacheKey
 import com.facebook.fresco.animation.backend.AnimationInformation
 import com.facebook.fresco.animation.bitmap.BitmapFrameRenderer
 import com.facebook.fresco.animation.bitmap.preparation.loadframe.FpsCompressorInfo
@@ -24,12 +25,19 @@ class FrameLoaderFactory(
     val enableUnusedFrameLoaderCleanupSync: Boolean = false,
     val enableUnusedFrameLoaderCleanupSyncAndClear: Boolean = false,
     private val shouldRoundUpFractionalFrameBudget: Boolean = false,
+    private val sharedFrameStore: SharedAnimationFrameStore? = null,
 ) {
 
+  /**
+   * Creates the loader of an animation, or reuses an unused one. If the factory has a
+   * [sharedFrameStore] and an [animationKey] is given, the loader shares its frames with the other
+   * loaders of the same animation.
+   */
   fun createBufferLoader(
       cacheKey: String,
       bitmapFrameRenderer: BitmapFrameRenderer,
       animationInformation: AnimationInformation,
+      animationKey: CacheKey? = null,
   ): FrameLoader {
     synchronized(UNUSED_FRAME_LOADERS) {
       val unusedFrameLoader = UNUSED_FRAME_LOADERS[cacheKey]
@@ -39,6 +47,18 @@ class FrameLoaderFactory(
       }
     }
 
+    if (sharedFrameStore != null && animationKey != null) {
+      return SharedFrameLoader(
+          platformBitmapFactory,
+          bitmapFrameRenderer,
+          FpsCompressorInfo(maxFpsRender, shouldRoundUpFractionalFrameBudget),
+          animationInformation,
+          bufferLengthMilliseconds,
+          animationKey,
+          sharedFrameStore,
+      )
+    }
+
     return BufferFrameLoader(
         platformBitmapFactory,
         bitmapFrameRenderer,
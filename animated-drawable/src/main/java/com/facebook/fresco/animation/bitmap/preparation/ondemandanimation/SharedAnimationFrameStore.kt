@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.fresco.animation.bitmap.preparation.ondemandanimation
+
+import android.graphics.Bitmap
+import com.facebook.cache.common.CacheKey
+import com.facebook.common.references.CloseableReference
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * Rendered animation frames shared by the [SharedFrameLoader]s of all the drawables that show the
+ * same animation, so that a frame is rendered and kept in memory once however many views display
+ * it.
+ *
+ * A frame is stored while it has holders: each [acquire] or [put] adds a holder, which must be
+ * removed with [release]. The bitmap of a frame is closed once its last holder is released, and
+ * stored bitmaps must not be modified.
+ */
+@ThreadSafe
+class SharedAnimationFrameStore {
+
+  /** Identifies a frame of the animation of [animationKey] rendered at [width] x [height]. */
+  data class FrameKey(
+      val animationKey: CacheKey,
+      val frameNumber: Int,
+      val width: Int,
+      val height: Int,
+  )
+
+  private class Entry(val bitmapRef: CloseableReference<Bitmap>) {
+    var holderCount = 1
+  }
+
+  @GuardedBy("this") private val frames = HashMap<FrameKey, Entry>()
+
+  /** Number of frames currently stored. */
+  val frameCount: Int
+    @Synchronized get() = frames.size
+
+  /**
+   * Returns the stored frame without adding a holder.
+   *
+   * @return a reference that the caller must close, or null if the frame is not stored
+   */
+  @Synchronized
+  fun get(key: FrameKey): CloseableReference<Bitmap>? = frames[key]?.bitmapRef?.clone()
+
+  /**
+   * Adds a holder to the stored frame.
+   *
+   * @return a reference that the caller must close, or null if the frame is not stored
+   */
+  @Synchronized
+  fun acquire(key: FrameKey): CloseableReference<Bitmap>? {
+    val entry = frames[key] ?: return null
+    entry.holderCount++
+    return entry.bitmapRef.clone()
+  }
+
+  /**
+   * Stores a frame rendered by the caller, which becomes one of its holders. If another holder
+   * stored the same frame in the meantime, the given bitmap is closed and the stored one is
+   * acquired instead.
+   *
+   * @param bitmapRef the rendered frame, which the store takes ownership of
+   * @return a reference to the stored frame that the caller must close
+   */
+  fun put(key: FrameKey, bitmapRef: CloseableReference<Bitmap>): CloseableReference<Bitmap> {
+    val storedRef =
+        synchronized(this) {
+          val entry = frames[key]
+          if (entry == null) {
+            frames[key] = Entry(bitmapRef)
+            return bitmapRef.clone()
+          }
+          entry.holderCount++
+          entry.bitmapRef.clone()
+        }
+    bitmapRef.close()
+    return storedRef
+  }
+
+  /** Removes a holder of the frame, and removes the frame if it was the last one. */
+  fun release(key: FrameKey) {
+    val removed =
+        synchronized(this) {
+          val entry = frames[key] ?: return
+          entry.holderCount--
+          if (entry.holderCount > 0) {
+            return
+          }
+          frames.remove(key)
+        }
+    CloseableReference.closeSafely(removed?.bitmapRef)
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.fresco.animation.bitmap.preparation.ondemandanimation
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.PorterDuff
+import androidx.annotation.UiThread
+import androidx.annotation.WorkerThread
+import com.facebook.cache.common.CacheKey
+import com.facebook.common.references.CloseableReference
+import com.facebook.fresco.animation.backend.AnimationInformation
+import com.facebook.fresco.animation.bitmap.BitmapFrameRenderer
+import com.facebook.fresco.animation.bitmap.preparation.loadframe.AnimationLoaderExecutor
+import com.facebook.fresco.animation.bitmap.preparation.loadframe.FpsCompressorInfo
+import com.facebook.fresco.animation.bitmap.preparation.ondemandanimation.SharedAnimationFrameStore.FrameKey
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Buffers the next frames of the animation like [BufferFrameLoader], but takes them from a
+ * [SharedAnimationFrameStore] so that the drawables showing the same animation at the same size
+ * render each frame once and hold the same bitmaps. The playback position stays per loader: each
+ * one holds the frames of its own buffer window, and a frame is rendered only if no other loader
+ * holds it.
+ */
+class SharedFrameLoader(
+    private val platformBitmapFactory: PlatformBitmapFactory,
+    private val bitmapFrameRenderer: BitmapFrameRenderer,
+    private val fpsCompressor: FpsCompressorInfo,
+    override val animationInformation: AnimationInformation,
+    bufferLengthMilliseconds: Int,
+    private val animationKey: CacheKey,
+    private val frameStore: SharedAnimationFrameStore,
+    private val loaderExecutor: Executor = Executor { AnimationLoaderExecutor.execute(it) },
+) : FrameLoader {
+
+  private val bufferSize =
+      ((animationInformation.fps() * bufferLengthMilliseconds) / 1000).coerceAtLeast(1)
+
+  // Frames of the buffer window, each holding its frame in the store
+  private val heldFrames = ConcurrentHashMap<Int, HeldFrame>()
+  @Volatile private var thresholdFrame: Int = bufferSize.times(THRESHOLD_PERCENTAGE).toInt()
+  @Volatile private var isFetching = false
+
+  private val frameSequence = CircularList(animationInformation.frameCount)
+  @Volatile private var lastRenderedFrameNumber: Int = -1
+  @Volatile private var compressionFrameMap: Map<Int, Int> = emptyMap()
+  @Volatile private var renderableFrameIndexes: Set<Int> = emptySet()
+
+  init {
+    compressToFps(animationInformation.fps())
+  }
+
+  @UiThread
+  override fun getFrame(frameNumber: Int, width: Int, height: Int): FrameResult {
+    val cachedFrameIndex = compressionFrameMap[frameNumber]
+    if (cachedFrameIndex == null || width == 0 || height == 0) {
+      return findNearestToRender(cachedFrameIndex ?: frameNumber)
+    }
+
+    lastRenderedFrameNumber = cachedFrameIndex
+
+    val frameRef =
+        heldFrames[cachedFrameIndex]?.takeIf { it.isFor(width, height) }?.bitmapRef?.cloneOrNull()
+    if (frameRef != null) {
+      if (frameSequence.isTargetAhead(thresholdFrame, cachedFrameIndex, bufferSize)) {
+        loadNextFrames(width, height)
+      }
+      return FrameResult(frameRef, FrameResult.FrameType.SUCCESS)
+    }
+
+    loadNextFrames(width, height)
+    return findNearestToRender(cachedFrameIndex)
+  }
+
+  @UiThread
+  override fun prepareFrames(width: Int, height: Int, onAnimationLoaded: () -> Unit) {
+    loadNextFrames(width, height)
+    onAnimationLoaded()
+  }
+
+  override fun compressToFps(fps: Int) {
+    val durationMs =
+        animationInformation.loopDurationMs.times(animationInformation.loopCount.coerceAtLeast(1))
+    compressionFrameMap =
+        fpsCompressor.calculateReducedIndexes(
+            durationMs = durationMs,
+            frameCount = animationInformation.frameCount,
+            targetFps = fps.coerceAtMost(animationInformation.fps()),
+        )
+
+    renderableFrameIndexes = compressionFrameMap.values.toSet()
+  }
+
+  /** Release the frames held by this loader */
+  override fun clear() {
+    heldFrames.keys.toList().forEach { releaseFrame(it) }
+    lastRenderedFrameNumber = -1
+  }
+
+  @UiThread
+  private fun findNearestToRender(targetFrame: Int): FrameResult {
+    val nearestFrame =
+        (0..frameSequence.size).firstNotNullOfOrNull { delta ->
+          val closestFrame = frameSequence.getPosition(targetFrame - delta)
+          heldFrames[closestFrame]?.bitmapRef?.cloneOrNull()?.let { closestFrame to it }
+        }
+    if (nearestFrame == null) {
+      return FrameResult(null, FrameResult.FrameType.MISSING)
+    }
+    lastRenderedFrameNumber = nearestFrame.first
+    return FrameResult(nearestFrame.second, FrameResult.FrameType.NEAREST)
+  }
+
+  private fun loadNextFrames(width: Int, height: Int) {
+    if (width == 0 || height == 0 || isFetching) {
+      return
+    }
+
+    isFetching = true
+    loaderExecutor.execute {
+      try {
+        loadWindow(lastRenderedFrameNumber.coerceAtLeast(0), width, height)
+      } finally {
+        isFetching = false
+      }
+    }
+  }
+
+  @WorkerThread
+  private fun loadWindow(targetFrame: Int, width: Int, height: Int) {
+    val nextWindow =
+        frameSequence.sublist(targetFrame, bufferSize).filter {
+          renderableFrameIndexes.contains(it)
+        }
+
+    nextWindow.forEach { frameNumber ->
+      val heldFrame = heldFrames[frameNumber]
+      if (heldFrame != null) {
+        if (heldFrame.isFor(width, height)) {
+          return@forEach
+        }
+        releaseFrame(frameNumber)
+      }
+      val key = FrameKey(animationKey, frameNumber, width, height)
+      val bitmapRef =
+          frameStore.acquire(key) ?: frameStore.put(key, renderFrame(frameNumber, width, height))
+      heldFrames.put(frameNumber, HeldFrame(key, bitmapRef))?.release()
+    }
+
+    // The frames out of the window are released once the window is loaded, since the first frames
+    // of the window are rendered from them. The store drops them if no other loader holds them.
+    heldFrames.keys.minus(nextWindow.toSet()).forEach { releaseFrame(it) }
+
+    thresholdFrame =
+        if (nextWindow.isEmpty()) bufferSize.times(THRESHOLD_PERCENTAGE).toInt()
+        else {
+          val windowSize = nextWindow.size
+          val middlePoint =
+              windowSize.times(THRESHOLD_PERCENTAGE).toInt().coerceIn(0, windowSize - 1)
+          nextWindow[middlePoint]
+        }
+  }
+
+  /**
+   * Renders the frame into a new bitmap, starting from the nearest previous frame in the store.
+   * Stored bitmaps are shared, so they are only read from.
+   */
+  @WorkerThread
+  private fun renderFrame(frameNumber: Int, width: Int, height: Int): CloseableReference<Bitmap> {
+    val bitmapRef = platformBitmapFactory.createBitmap(width, height)
+    val canvas = Canvas(bitmapRef.get())
+    canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR)
+
+    var from = 0
+    for (previousFrame in frameNumber - 1 downTo 0) {
+      val previousRef =
+          frameStore.get(FrameKey(animationKey, previousFrame, width, height)) ?: continue
+      previousRef.use { canvas.drawBitmap(it.get(), 0f, 0f, null) }
+      from = previousFrame + 1
+      break
+    }
+    (from..frameNumber).forEach { bitmapFrameRenderer.renderFrame(it, bitmapRef.get()) }
+    return bitmapRef
+  }
+
+  private fun releaseFrame(frameNumber: Int) {
+    heldFrames.remove(frameNumber)?.release()
+  }
+
+  private fun AnimationInformation.fps(): Int =
+      TimeUnit.SECONDS.toMillis(1).div(loopDurationMs.div(frameCount)).coerceAtLeast(1).toInt()
+
+  private inner class HeldFrame(val key: FrameKey, val bitmapRef: CloseableReference<Bitmap>) {
+    fun isFor(width: Int, height: Int): Boolean = key.width == width && key.height == height
+
+    fun release() {
+      CloseableReference.closeSafely(bitmapRef)
+      frameStore.release(key)
+    }
+  }
+
+  companion object {
+
+    /**
+     * Used to calculate the threshold frame for triggering the next buffer load from the last
+     * render frame
+     */
+    private const val THRESHOLD_PERCENTAGE = 0.5f
+  }
+}
@@ -1148,6 +1148,7 @@ class BitmapAnimationBackendTest {
     bitmapAnimationBackend.clear()
 
     verify(bitmapFrameCache).clear()
+    verify(bitmapFrameRenderer).clear()
     verify(bitmapFramePreparationStrategy, never()).clearFrames()
   }
 
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.fresco.animation.bitmap.preparation.ondemandanimation
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+import com.facebook.cache.common.CacheKey
+import com.facebook.cache.common.SimpleCacheKey
+import com.facebook.common.references.CloseableReference
+import com.facebook.fresco.animation.backend.AnimationInformation
+import com.facebook.fresco.animation.bitmap.BitmapFrameRenderer
+import com.facebook.fresco.animation.bitmap.preparation.loadframe.FpsCompressorInfo
+import com.facebook.fresco.animation.bitmap.preparation.ondemandanimation.SharedAnimationFrameStore.FrameKey
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory
+import java.util.concurrent.Executor
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class SharedFrameLoaderTest {
+
+  private val frameStore = SharedAnimationFrameStore()
+  private val platformBitmapFactory = mock<PlatformBitmapFactory>()
+  private val animationInformation = mock<AnimationInformation>()
+  private var renderCount = 0
+  private val bitmapFrameRenderer =
+      object : BitmapFrameRenderer {
+        override fun renderFrame(frameNumber: Int, targetBitmap: Bitmap): Boolean {
+          renderCount++
+          return true
+        }
+
+        override fun setBounds(bounds: Rect?) = Unit
+
+        override val intrinsicWidth: Int = WIDTH
+
+        override val intrinsicHeight: Int = HEIGHT
+      }
+
+  @Before
+  fun setup() {
+    whenever(platformBitmapFactory.createBitmap(any<Int>(), any<Int>())).thenAnswer {
+      val bitmap =
+          Bitmap.createBitmap(it.getArgument(0), it.getArgument(1), Bitmap.Config.ARGB_8888)
+      CloseableReference.of(bitmap) { released -> released.recycle() }
+    }
+    whenever(animationInformation.frameCount).thenReturn(FRAME_COUNT)
+    whenever(animationInformation.loopDurationMs).thenReturn(FRAME_COUNT * FRAME_DURATION_MS)
+    whenever(animationInformation.loopCount).thenReturn(AnimationInformation.LOOP_COUNT_INFINITE)
+  }
+
+  @Test
+  fun testLoadersOfSameAnimationRenderFramesOnce() {
+    val first = newLoader(ANIMATION_KEY)
+    val second = newLoader(ANIMATION_KEY)
+
+    first.prepareFrames(WIDTH, HEIGHT) {}
+    // each frame is rendered once, on top of the previous one
+    assertThat(renderCount).isEqualTo(FRAME_COUNT)
+    assertThat(frameStore.frameCount).isEqualTo(FRAME_COUNT)
+
+    second.prepareFrames(WIDTH, HEIGHT) {}
+    assertThat(renderCount).isEqualTo(FRAME_COUNT)
+    assertThat(frameStore.frameCount).isEqualTo(FRAME_COUNT)
+  }
+
+  @Test
+  fun testLoadersKeepTheirOwnPosition() {
+    val first = newLoader(ANIMATION_KEY)
+    val second = newLoader(ANIMATION_KEY)
+    first.prepareFrames(WIDTH, HEIGHT) {}
+    second.prepareFrames(WIDTH, HEIGHT) {}
+
+    val firstFrame = first.getFrame(2, WIDTH, HEIGHT)
+    val secondFrame = second.getFrame(0, WIDTH, HEIGHT)
+    val sameFrame = second.getFrame(2, WIDTH, HEIGHT)
+
+    assertThat(firstFrame.type).isEqualTo(FrameResult.FrameType.SUCCESS)
+    assertThat(secondFrame.type).isEqualTo(FrameResult.FrameType.SUCCESS)
+    assertThat(secondFrame.bitmapRef?.get()).isNotSameAs(firstFrame.bitmapRef?.get())
+    assertThat(sameFrame.bitmapRef?.get()).isSameAs(firstFrame.bitmapRef?.get())
+    listOf(firstFrame, secondFrame, sameFrame).forEach { it.bitmapRef?.close() }
+  }
+
+  @Test
+  fun testFramesAreReleasedWithTheirLastLoader() {
+    val first = newLoader(ANIMATION_KEY)
+    val second = newLoader(ANIMATION_KEY)
+    first.prepareFrames(WIDTH, HEIGHT) {}
+    second.prepareFrames(WIDTH, HEIGHT) {}
+    val frame = first.getFrame(1, WIDTH, HEIGHT).bitmapRef!!
+
+    first.clear()
+    assertThat(frameStore.frameCount).isEqualTo(FRAME_COUNT)
+
+    second.clear()
+    assertThat(frameStore.frameCount).isEqualTo(0)
+    // a frame being drawn stays valid until it is closed
+    assertThat(frame.isValid).isTrue()
+    assertThat(frame.get().isRecycled).isFalse()
+    frame.close()
+  }
+
+  @Test
+  fun testDifferentAnimationsAndSizesAreNotShared() {
+    newLoader(ANIMATION_KEY).prepareFrames(WIDTH, HEIGHT) {}
+    newLoader(SimpleCacheKey("other")).prepareFrames(WIDTH, HEIGHT) {}
+    newLoader(ANIMATION_KEY).prepareFrames(WIDTH / 2, HEIGHT / 2) {}
+
+    assertThat(renderCount).isEqualTo(3 * FRAME_COUNT)
+    assertThat(frameStore.frameCount).isEqualTo(3 * FRAME_COUNT)
+  }
+
+  @Test
+  fun testStoreKeepsFirstPutFrame() {
+    val key = FrameKey(ANIMATION_KEY, 0, WIDTH, HEIGHT)
+    val stored = platformBitmapFactory.createBitmap(WIDTH, HEIGHT)
+    val duplicate = platformBitmapFactory.createBitmap(WIDTH, HEIGHT)
+    val storedBitmap = stored.get()
+    val duplicateBitmap = duplicate.get()
+
+    frameStore.put(key, stored).use { assertThat(it.get()).isSameAs(storedBitmap) }
+    frameStore.put(key, duplicate).use { assertThat(it.get()).isSameAs(storedBitmap) }
+    assertThat(duplicateBitmap.isRecycled).isTrue()
+
+    frameStore.release(key)
+    assertThat(frameStore.get(key)?.use { it.get() }).isSameAs(storedBitmap)
+    frameStore.release(key)
+    assertThat(frameStore.get(key)).isNull()
+    assertThat(storedBitmap.isRecycled).isTrue()
+  }
+
+  private fun newLoader(animationKey: CacheKey): SharedFrameLoader =
+      SharedFrameLoader(
+          platformBitmapFactory,
+          bitmapFrameRenderer,
+          FpsCompressorInfo(maxFpsLimit = 30),
+          animationInformation,
+          bufferLengthMilliseconds = FRAME_COUNT * FRAME_DURATION_MS,
+          animationKey,
+          frameStore,
+          Executor { it.run() },
+      )
+
+  companion object {
+    private const val FRAME_COUNT = 4
+    private const val FRAME_DURATION_MS = 100
+    private const val WIDTH = 40
+    private const val HEIGHT = 30
+    private val ANIMATION_KEY = SimpleCacheKey("animation")
+  }
+}
@@ -9,6 +9,8 @@ package com.facebook.animated.giflite;
 
 import android.graphics.Movie;
 import com.facebook.animated.giflite.decoder.GifMetadataDecoder;
+import com.facebook.animated.giflite.decoder.GifStreamDecoder;
+import com.facebook.animated.giflite.draw.GifStreamAnimatedImage;
 import com.facebook.animated.giflite.draw.MovieAnimatedImage;
 import com.facebook.animated.giflite.draw.MovieDrawer;
 import com.facebook.animated.giflite.draw.MovieFrame;
@@ -27,10 +29,28 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
-/** A simple Gif decoder that uses Android's {@link Movie} class to decode Gif images. */
+/**
+ * A simple Gif decoder that uses Android's {@link Movie} class to decode Gif images, or optionally
+ * {@link GifStreamDecoder}.
+ */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class GifDecoder implements ImageDecoder {
 
+  private final boolean mUseStreamDecoder;
+
+  public GifDecoder() {
+    this(false);
+  }
+
+  /**
+   * @param useStreamDecoder whether to decode the frames with {@link GifStreamDecoder}, which does
+   *     not depend on {@link Movie}. The pipeline does not decode GIFs progressively, so the whole
+   *     image is read before its first frame is shown either way.
+   */
+  public GifDecoder(boolean useStreamDecoder) {
+    mUseStreamDecoder = useStreamDecoder;
+  }
+
   @Override
   public CloseableImage decode(
       final EncodedImage encodedImage,
@@ -39,6 +59,15 @@ public class GifDecoder implements ImageDecoder {
       ImageDecodeOptions options) {
     InputStream is = encodedImage.getInputStream();
     try {
+      if (mUseStreamDecoder) {
+        // NULLSAFE_FIXME[Parameter Not Nullable]
+        GifStreamDecoder decoder = GifStreamDecoder.create(is);
+        return new CloseableAnimatedImage(
+            AnimatedImageResult.forAnimatedImage(
+                new GifStreamAnimatedImage(decoder, options.animatedBitmapConfig)),
+            false);
+      }
+
       ByteArrayOutputStream out = new ByteArrayOutputStream();
 
       // NULLSAFE_FIXME[Parameter Not Nullable]
@@ -89,15 +118,6 @@ public class GifDecoder implements ImageDecoder {
   }
 
   private static AnimatedDrawableFrameInfo.DisposalMethod translateFrameDisposal(int raw) {
-    switch (raw) {
-      case 2: // restore to background
-        return AnimatedDrawableFrameInfo.DisposalMethod.DISPOSE_TO_BACKGROUND;
-      case 3: // restore to previous
-        return AnimatedDrawableFrameInfo.DisposalMethod.DISPOSE_TO_PREVIOUS;
-      case 1: // do not dispose
-      // fallthrough
-      default: // unspecified
-        return AnimatedDrawableFrameInfo.DisposalMethod.DISPOSE_DO_NOT;
-    }
+    return GifStreamDecoder.getDisposalMethod(raw);
   }
 }
@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.animated.giflite.decoder;
+
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.DisposalMethod;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * GIF decoder that parses the stream as it arrives and decodes the frames with its own LZW decoder,
+ * without {@link android.graphics.Movie}.
+ *
+ * <p>Data is added with {@link #append}, and each frame becomes available as soon as all its image
+ * data has arrived, so that a caller receiving the GIF in chunks can show its first frames before
+ * the whole file is loaded. {@link #create} reads the whole stream instead, as {@link
+ * com.facebook.animated.giflite.GifDecoder} is only given complete images. Frames are decoded on
+ * demand into a caller-provided pixel buffer; the LZW tables and the color index buffer are
+ * allocated once and reused for every frame.
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class GifStreamDecoder {
+
+  private static final int MAX_CODE_COUNT = 4096; // LZW codes have at most 12 bits
+  private static final int DEFAULT_FRAME_DURATION_MS = 100;
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final byte[] NETSCAPE = {'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0'};
+
+  /** A frame of the GIF whose image data is available. */
+  public static final class Frame {
+    public final int xOffset;
+    public final int yOffset;
+    public final int width;
+    public final int height;
+    public final int durationMs;
+    public final DisposalMethod disposalMethod;
+
+    private final boolean mInterlaced;
+    @Nullable private final int[] mLocalColorTable;
+    private final int mTransparentIndex;
+    // Offset of the LZW minimum code size, followed by the image data sub-blocks
+    private final int mDataOffset;
+
+    private Frame(
+        int xOffset,
+        int yOffset,
+        int width,
+        int height,
+        int durationMs,
+        DisposalMethod disposalMethod,
+        boolean interlaced,
+        @Nullable int[] localColorTable,
+        int transparentIndex,
+        int dataOffset) {
+      this.xOffset = xOffset;
+      this.yOffset = yOffset;
+      this.width = width;
+      this.height = height;
+      this.durationMs = durationMs;
+      this.disposalMethod = disposalMethod;
+      mInterlaced = interlaced;
+      mLocalColorTable = localColorTable;
+      mTransparentIndex = transparentIndex;
+      mDataOffset = dataOffset;
+    }
+  }
+
+  @GuardedBy("this")
+  private byte[] mData = new byte[0];
+
+  @GuardedBy("this")
+  private int mLength;
+
+  // Offset of the next block to parse
+  @GuardedBy("this")
+  private int mParseOffset;
+
+  @GuardedBy("this")
+  private boolean mHeaderParsed;
+
+  @GuardedBy("this")
+  private boolean mComplete;
+
+  @GuardedBy("this")
+  private int mWidth;
+
+  @GuardedBy("this")
+  private int mHeight;
+
+  @GuardedBy("this")
+  private int mLoopCount = 1; // default loop count is 1
+
+  @GuardedBy("this")
+  @Nullable
+  private int[] mGlobalColorTable;
+
+  @GuardedBy("this")
+  private final List<Frame> mFrames = new ArrayList<>();
+
+  // Graphics control of the next frame
+  @GuardedBy("this")
+  private int mNextDisposal;
+
+  @GuardedBy("this")
+  private int mNextDurationMs = DEFAULT_FRAME_DURATION_MS;
+
+  @GuardedBy("this")
+  private int mNextTransparentIndex = -1;
+
+  // LZW decoding buffers, reused for every frame
+  @GuardedBy("this")
+  private final short[] mPrefix = new short[MAX_CODE_COUNT];
+
+  @GuardedBy("this")
+  private final byte[] mSuffix = new byte[MAX_CODE_COUNT];
+
+  @GuardedBy("this")
+  private final byte[] mPixelStack = new byte[MAX_CODE_COUNT + 1];
+
+  @GuardedBy("this")
+  private byte[] mColorIndices = new byte[0];
+
+  /** Creates a decoder of the whole stream. */
+  public static GifStreamDecoder create(InputStream is) throws IOException {
+    GifStreamDecoder decoder = new GifStreamDecoder();
+    byte[] buffer = new byte[READ_BUFFER_SIZE];
+    int count;
+    while ((count = is.read(buffer)) != -1) {
+      decoder.append(buffer, 0, count);
+    }
+    if (!decoder.isHeaderParsed()) {
+      throw new IOException("Illegal header for gif");
+    }
+    return decoder;
+  }
+
+  /**
+   * Adds the next bytes of the stream and parses the frames that are now complete.
+   *
+   * @throws IOException if the stream does not start with a GIF header
+   */
+  public synchronized void append(byte[] data, int offset, int count) throws IOException {
+    if (mLength + count > mData.length) {
+      mData = Arrays.copyOf(mData, Math.max(mLength + count, mData.length * 2));
+    }
+    System.arraycopy(data, offset, mData, mLength, count);
+    mLength += count;
+    parse();
+  }
+
+  public synchronized boolean isHeaderParsed() {
+    return mHeaderParsed;
+  }
+
+  /** Whether the trailer of the GIF has been parsed, after which no frame is added. */
+  public synchronized boolean isComplete() {
+    return mComplete;
+  }
+
+  public synchronized int getWidth() {
+    return mWidth;
+  }
+
+  public synchronized int getHeight() {
+    return mHeight;
+  }
+
+  public synchronized int getLoopCount() {
+    return mLoopCount;
+  }
+
+  /** Returns the number of frames whose image data is available. */
+  public synchronized int getFrameCount() {
+    return mFrames.size();
+  }
+
+  public synchronized Frame getFrame(int frameNumber) {
+    return mFrames.get(frameNumber);
+  }
+
+  /** Returns the number of bytes received so far. */
+  public synchronized int getSizeInBytes() {
+    return mLength;
+  }
+
+  /**
+   * Decodes the pixels of the frame, without compositing it with previous frames.
+   *
+   * @param pixels the ARGB pixels of the frame, row by row, of at least width x height values.
+   *     Transparent pixels are set to 0.
+   */
+  public synchronized void decodeFrame(int frameNumber, int[] pixels) {
+    Frame frame = mFrames.get(frameNumber);
+    int pixelCount = frame.width * frame.height;
+    if (mColorIndices.length < pixelCount) {
+      mColorIndices = new byte[pixelCount];
+    }
+    decodeColorIndices(frame.mDataOffset, pixelCount);
+
+    int[] colorTable =
+        frame.mLocalColorTable != null
+            ? frame.mLocalColorTable
+            : mGlobalColorTable != null ? mGlobalColorTable : new int[0];
+    for (int row = 0; row < frame.height; row++) {
+      int line = frame.mInterlaced ? getInterlacedLine(row, frame.height) : row;
+      int source = row * frame.width;
+      int destination = line * frame.width;
+      for (int x = 0; x < frame.width; x++) {
+        int index = mColorIndices[source + x] & 0xff;
+        pixels[destination + x] =
+            index == frame.mTransparentIndex || index >= colorTable.length ? 0 : colorTable[index];
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void parse() throws IOException {
+    if (!mHeaderParsed && !parseHeader()) {
+      return;
+    }
+    while (!mComplete && mParseOffset < mLength) {
+      int offset = mParseOffset;
+      int next;
+      switch (readByte(offset)) {
+        case 0x21: // extension
+          next = parseExtension(offset);
+          break;
+        case 0x2C: // image
+          next = parseImage(offset);
+          break;
+        case 0x3b: // terminator
+        default: // anything after the last frame is ignored
+          mComplete = true;
+          next = offset + 1;
+      }
+      if (next < 0) {
+        return; // wait for the rest of the block
+      }
+      mParseOffset = next;
+    }
+  }
+
+  @GuardedBy("this")
+  private boolean parseHeader() throws IOException {
+    if (mLength < 6) {
+      return false;
+    }
+    boolean valid =
+        readByte(0) == 'G'
+            && readByte(1) == 'I'
+            && readByte(2) == 'F'
+            && readByte(3) == '8'
+            && (readByte(4) == '7' || readByte(4) == '9')
+            && readByte(5) == 'a';
+    if (!valid) {
+      throw new IOException("Illegal header for gif");
+    }
+    if (mLength < 13) {
+      return false;
+    }
+    int fields = readByte(10);
+    int offset = 13;
+    int[] globalColorTable = null;
+    if ((fields & 0x80) != 0) {
+      int colorCount = 2 << (fields & 7);
+      if (mLength < offset + 3 * colorCount) {
+        return false;
+      }
+      globalColorTable = readColorTable(offset, colorCount);
+      offset += 3 * colorCount;
+    }
+    mWidth = readShort(6);
+    mHeight = readShort(8);
+    mGlobalColorTable = globalColorTable;
+    mParseOffset = offset;
+    mHeaderParsed = true;
+    return true;
+  }
+
+  /** @return the offset after the extension, or -1 if it has not fully arrived */
+  @GuardedBy("this")
+  private int parseExtension(int offset) {
+    if (mLength < offset + 2) {
+      return -1;
+    }
+    int label = readByte(offset + 1);
+    int dataOffset = offset + 2;
+    int next = skipSubBlocks(dataOffset);
+    if (next < 0) {
+      return -1;
+    }
+    if (label == 0xf9 && readByte(dataOffset) >= 4) { // graphics control extension
+      int flags = readByte(dataOffset + 1);
+      mNextDisposal = (flags & 0x1c) >> 2;
+      int durationMs = readShort(dataOffset + 2) * 10;
+      mNextDurationMs = durationMs == 0 ? DEFAULT_FRAME_DURATION_MS : durationMs;
+      mNextTransparentIndex = (flags & 1) != 0 ? readByte(dataOffset + 4) : -1;
+    } else if (label == 0xff && isNetscapeExtension(dataOffset, next)) {
+      mLoopCount = readShort(dataOffset + 14);
+    }
+    return next;
+  }
+
+  @GuardedBy("this")
+  private boolean isNetscapeExtension(int offset, int end) {
+    if (readByte(offset) != NETSCAPE.length || end < offset + 17) {
+      return false;
+    }
+    for (int i = 0; i < NETSCAPE.length; i++) {
+      if (mData[offset + 1 + i] != NETSCAPE[i]) {
+        return false;
+      }
+    }
+    // the sub-block of the loop count: size 3, id 1, then the count
+    return readByte(offset + 12) == 3 && readByte(offset + 13) == 1;
+  }
+
+  /** @return the offset after the image, or -1 if it has not fully arrived */
+  @GuardedBy("this")
+  private int parseImage(int offset) {
+    if (mLength < offset + 10) {
+      return -1;
+    }
+    int flags = readByte(offset + 9);
+    int dataOffset = offset + 10;
+    int colorCount = 2 << (flags & 7);
+    boolean hasLocalColorTable = (flags & 0x80) != 0;
+    if (hasLocalColorTable) {
+      dataOffset += 3 * colorCount;
+    }
+    // the LZW minimum code size precedes the sub-blocks
+    if (mLength < dataOffset + 1) {
+      return -1;
+    }
+    int next = skipSubBlocks(dataOffset + 1);
+    if (next < 0) {
+      return -1;
+    }
+    mFrames.add(
+        new Frame(
+            readShort(offset + 1),
+            readShort(offset + 3),
+            readShort(offset + 5),
+            readShort(offset + 7),
+            mNextDurationMs,
+            getDisposalMethod(mNextDisposal),
+            (flags & 0x40) != 0,
+            hasLocalColorTable ? readColorTable(offset + 10, colorCount) : null,
+            mNextTransparentIndex,
+            dataOffset));
+    // a graphics control extension only applies to the image following it
+    mNextDisposal = 0;
+    mNextDurationMs = DEFAULT_FRAME_DURATION_MS;
+    mNextTransparentIndex = -1;
+    return next;
+  }
+
+  /** @return the offset after the block terminator, or -1 if it has not arrived yet */
+  @GuardedBy("this")
+  private int skipSubBlocks(int offset) {
+    while (offset < mLength) {
+      int size = readByte(offset);
+      offset += 1;
+      if (size == 0) {
+        return offset;
+      }
+      offset += size;
+    }
+    return -1;
+  }
+
+  /**
+   * Decodes the LZW data at the given offset into {@link #mColorIndices}. Missing or corrupt data
+   * leaves the remaining pixels at index 0.
+   */
+  @GuardedBy("this")
+  private void decodeColorIndices(int offset, int pixelCount) {
+    int minCodeSize = readByte(offset++);
+    int pixel = 0;
+    if (minCodeSize >= 1 && minCodeSize <= 11) {
+      final int clearCode = 1 << minCodeSize;
+      final int endCode = clearCode + 1;
+      for (int code = 0; code < clearCode; code++) {
+        mPrefix[code] = 0;
+        mSuffix[code] = (byte) code;
+      }
+      int codeSize = minCodeSize + 1;
+      int codeMask = (1 << codeSize) - 1;
+      int available = clearCode + 2;
+      int oldCode = -1;
+      int first = 0;
+      int datum = 0;
+      int bits = 0;
+      int blockRemaining = 0;
+      int stackTop = 0;
+      while (pixel < pixelCount) {
+        if (bits < codeSize) {
+          if (blockRemaining == 0) {
+            if (offset >= mLength) {
+              break;
+            }
+            blockRemaining = readByte(offset++);
+            if (blockRemaining == 0 || offset + blockRemaining > mLength) {
+              break;
+            }
+          }
+          datum |= readByte(offset++) << bits;
+          bits += 8;
+          blockRemaining--;
+          continue;
+        }
+
+        int code = datum & codeMask;
+        datum >>= codeSize;
+        bits -= codeSize;
+
+        if (code == clearCode) {
+          codeSize = minCodeSize + 1;
+          codeMask = (1 << codeSize) - 1;
+          available = clearCode + 2;
+          oldCode = -1;
+          continue;
+        }
+        if (code == endCode || code > available) {
+          break;
+        }
+        if (oldCode == -1) {
+          if (code >= clearCode) {
+            break;
+          }
+          mColorIndices[pixel++] = mSuffix[code];
+          oldCode = code;
+          first = code;
+          continue;
+        }
+
+        int inCode = code;
+        if (code == available) {
+          // the code being defined: the previous string followed by its own first value
+          mPixelStack[stackTop++] = (byte) first;
+          code = oldCode;
+        }
+        while (code >= clearCode) {
+          mPixelStack[stackTop++] = mSuffix[code];
+          code = mPrefix[code];
+        }
+        first = mSuffix[code] & 0xff;
+        mColorIndices[pixel++] = (byte) first;
+        while (stackTop > 0 && pixel < pixelCount) {
+          mColorIndices[pixel++] = mPixelStack[--stackTop];
+        }
+        stackTop = 0;
+
+        if (available < MAX_CODE_COUNT) {
+          mPrefix[available] = (short) oldCode;
+          mSuffix[available] = (byte) first;
+          available++;
+          if ((available & codeMask) == 0 && available < MAX_CODE_COUNT) {
+            codeSize++;
+            codeMask += available;
+          }
+        }
+        oldCode = inCode;
+      }
+    }
+    Arrays.fill(mColorIndices, pixel, pixelCount, (byte) 0);
+  }
+
+  @GuardedBy("this")
+  private int[] readColorTable(int offset, int colorCount) {
+    int[] colorTable = new int[colorCount];
+    for (int i = 0; i < colorCount; i++) {
+      int color = offset + 3 * i;
+      colorTable[i] =
+          0xff000000 | (readByte(color) << 16) | (readByte(color + 1) << 8) | readByte(color + 2);
+    }
+    return colorTable;
+  }
+
+  @GuardedBy("this")
+  private int readByte(int offset) {
+    return mData[offset] & 0xff;
+  }
+
+  @GuardedBy("this")
+  private int readShort(int offset) {
+    return readByte(offset) | (readByte(offset + 1) << 8);
+  }
+
+  /** Returns the line of a row of an interlaced image, whose rows are stored in 4 passes. */
+  private static int getInterlacedLine(int row, int height) {
+    int firstPassRows = (height + 7) / 8; // lines 0, 8, 16...
+    if (row < firstPassRows) {
+      return row * 8;
+    }
+    row -= firstPassRows;
+    int secondPassRows = (height + 3) / 8; // lines 4, 12, 20...
+    if (row < secondPassRows) {
+      return row * 8 + 4;
+    }
+    row -= secondPassRows;
+    int thirdPassRows = (height + 1) / 4; // lines 2, 6, 10...
+    if (row < thirdPassRows) {
+      return row * 4 + 2;
+    }
+    row -= thirdPassRows;
+    return row * 2 + 1; // lines 1, 3, 5...
+  }
+
+  public static DisposalMethod getDisposalMethod(int rawDisposal) {
+    switch (rawDisposal) {
+      case 2: // restore to background
+        return DisposalMethod.DISPOSE_TO_BACKGROUND;
+      case 3: // restore to previous
+        return DisposalMethod.DISPOSE_TO_PREVIOUS;
+      case 1: // do not dispose
+      // fallthrough
+      default: // unspecified
+        return DisposalMethod.DISPOSE_DO_NOT;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.animated.giflite.draw
+
+import android.graphics.Bitmap
+import com.facebook.animated.giflite.decoder.GifStreamDecoder
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.BlendOperation
+import com.facebook.imagepipeline.animated.base.AnimatedImage
+import com.facebook.imagepipeline.animated.base.AnimatedImageFrame
+
+/**
+ * Animated image backed by a [GifStreamDecoder]. The frames of the image are the ones whose data
+ * had arrived when it was created, so that its frame count does not change while the decoder keeps
+ * receiving data: an image with the frames that arrived since is created from the same decoder.
+ *
+ * Frames are decoded into pixel buffers that are allocated once and shared by all the frames of the
+ * image, so rendering is synchronized on the image.
+ */
+class GifStreamAnimatedImage
+@JvmOverloads
+constructor(
+    private val decoder: GifStreamDecoder,
+    private val _animatedBitmapConfig: Bitmap.Config? = null,
+) : AnimatedImage {
+
+  private val frames = Array(decoder.frameCount) { decoder.getFrame(it) }
+  private val encodedSizeInBytes = decoder.sizeInBytes
+  private val pixels = IntArray(decoder.width * decoder.height)
+  private var scaledPixels = IntArray(0)
+
+  override fun dispose() = Unit
+
+  override fun getWidth(): Int = decoder.width
+
+  override fun getHeight(): Int = decoder.height
+
+  override fun getFrameCount(): Int = frames.size
+
+  override fun getDuration(): Int = frames.sumOf { it.durationMs }
+
+  override fun getFrameDurations(): IntArray = IntArray(frames.size) { frames[it].durationMs }
+
+  override fun getLoopCount(): Int = decoder.loopCount
+
+  override fun getFrame(frameNumber: Int): AnimatedImageFrame =
+      GifStreamFrame(this, frameNumber, frames[frameNumber])
+
+  override fun doesRenderSupportScaling(): Boolean = false
+
+  override fun getSizeInBytes(): Int = encodedSizeInBytes
+
+  override fun getFrameInfo(frameNumber: Int): AnimatedDrawableFrameInfo {
+    val frame = frames[frameNumber]
+    return AnimatedDrawableFrameInfo(
+        frameNumber,
+        frame.xOffset,
+        frame.yOffset,
+        frame.width,
+        frame.height,
+        BlendOperation.BLEND_WITH_PREVIOUS,
+        frame.disposalMethod,
+    )
+  }
+
+  override fun getAnimatedBitmapConfig(): Bitmap.Config? = _animatedBitmapConfig
+
+  /**
+   * Renders the frame at the top left of the bitmap, scaled to w x h with nearest neighbour
+   * sampling if needed.
+   */
+  @Synchronized
+  internal fun renderFrame(frameNumber: Int, w: Int, h: Int, bitmap: Bitmap) {
+    val frame = frames[frameNumber]
+    if (frame.width * frame.height > pixels.size) {
+      return // frames outside of the logical screen are not supported
+    }
+    decoder.decodeFrame(frameNumber, pixels)
+    if (w == frame.width && h == frame.height) {
+      bitmap.setPixels(pixels, 0, w, 0, 0, w, h)
+      return
+    }
+    if (scaledPixels.size < w * h) {
+      scaledPixels = IntArray(w * h)
+    }
+    for (y in 0..<h) {
+      val sourceRow = y * frame.height / h * frame.width
+      for (x in 0..<w) {
+        scaledPixels[y * w + x] = pixels[sourceRow + x * frame.width / w]
+      }
+    }
+    bitmap.setPixels(scaledPixels, 0, w, 0, 0, w, h)
+  }
+}
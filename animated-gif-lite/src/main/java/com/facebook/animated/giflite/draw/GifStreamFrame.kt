@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.animated.giflite.draw
+
+import android.graphics.Bitmap
+import com.facebook.animated.giflite.decoder.GifStreamDecoder
+import com.facebook.imagepipeline.animated.base.AnimatedImageFrame
+
+/** Frame of a [GifStreamAnimatedImage], decoded each time it is rendered. */
+class GifStreamFrame
+internal constructor(
+    private val image: GifStreamAnimatedImage,
+    private val frameNumber: Int,
+    private val frame: GifStreamDecoder.Frame,
+) : AnimatedImageFrame {
+
+  override fun dispose() = Unit
+
+  override fun renderFrame(w: Int, h: Int, bitmap: Bitmap) {
+    if (w <= 0 || h <= 0) {
+      return
+    }
+    image.renderFrame(frameNumber, w, h, bitmap)
+  }
+
+  override fun getDurationMs(): Int = frame.durationMs
+
+  override fun getWidth(): Int = frame.width
+
+  override fun getHeight(): Int = frame.height
+
+  override fun getXOffset(): Int = frame.xOffset
+
+  override fun getYOffset(): Int = frame.yOffset
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.animated.giflite.decoder
+
+import com.facebook.common.logging.FLog
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import javax.imageio.ImageIO
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Assume
+import org.junit.Test
+
+/** Tests [GifStreamDecoder] */
+class GifStreamDecoderTest {
+
+  @Test
+  fun testDecodesFramesLikeImageIO() {
+    for ((name, frameCount) in FIXTURES) {
+      val decoder = GifStreamDecoder.create(ByteArrayInputStream(readFixture(name)))
+
+      assertThat(decoder.isComplete).isTrue()
+      assertThat(decoder.frameCount).isEqualTo(frameCount)
+      assertThat(decoder.loopCount).isEqualTo(0)
+      assertFramesMatchImageIO(decoder, readFixture(name))
+    }
+  }
+
+  @Test
+  fun testDecodesFramesBeforeWholeFileHasArrived() {
+    val bytes = readFixture("animated.gif")
+    val decoder = GifStreamDecoder()
+    var frameCount = 0
+    var firstFrameOffset = -1
+
+    for (offset in bytes.indices step CHUNK_SIZE) {
+      decoder.append(bytes, offset, minOf(CHUNK_SIZE, bytes.size - offset))
+      assertThat(decoder.frameCount).isGreaterThanOrEqualTo(frameCount)
+      frameCount = decoder.frameCount
+      if (frameCount > 0 && firstFrameOffset == -1) {
+        firstFrameOffset = offset
+        val frame = decoder.getFrame(0)
+        decoder.decodeFrame(0, IntArray(frame.width * frame.height))
+      }
+    }
+
+    assertThat(firstFrameOffset).isBetween(0, bytes.size / 2)
+    assertThat(decoder.isComplete).isTrue()
+    assertThat(decoder.frameCount).isEqualTo(8)
+    assertFramesMatchImageIO(decoder, bytes)
+  }
+
+  @Test(expected = IOException::class)
+  fun testRejectsInvalidHeader() {
+    GifStreamDecoder().append("PNG123".toByteArray(), 0, 6)
+  }
+
+  /**
+   * Measures the decode throughput of the fixtures, decoding every frame into one reused buffer.
+   * Only runs with FRESCO_BENCHMARKS set.
+   */
+  @Test
+  fun benchmarkDecodeThroughput() {
+    Assume.assumeTrue(System.getenv("FRESCO_BENCHMARKS") != null)
+    for ((name, _) in FIXTURES) {
+      val decoder = GifStreamDecoder.create(ByteArrayInputStream(readFixture(name)))
+      val pixels = IntArray(decoder.width * decoder.height)
+      // warm up
+      repeat(BENCHMARK_WARMUP_LOOPS) {
+        for (frameNumber in 0 until decoder.frameCount) {
+          decoder.decodeFrame(frameNumber, pixels)
+        }
+      }
+
+      val startNs = System.nanoTime()
+      repeat(BENCHMARK_LOOPS) {
+        for (frameNumber in 0 until decoder.frameCount) {
+          decoder.decodeFrame(frameNumber, pixels)
+        }
+      }
+      val elapsedNs = System.nanoTime() - startNs
+
+      val framesPerSecond = BENCHMARK_LOOPS * decoder.frameCount * 1_000_000_000L / elapsedNs
+      val megapixelsPerSecond = framesPerSecond * decoder.width * decoder.height / 1_000_000.0
+      FLog.i(
+          TAG,
+          "GifStreamDecoder %s: %d frames/s, %f MP/s",
+          name,
+          framesPerSecond,
+          megapixelsPerSecond,
+      )
+      assertThat(framesPerSecond).isPositive()
+    }
+  }
+
+  private fun assertFramesMatchImageIO(decoder: GifStreamDecoder, bytes: ByteArray) {
+    val reader = ImageIO.getImageReadersByFormatName("gif").next()
+    reader.input = ImageIO.createImageInputStream(ByteArrayInputStream(bytes))
+    for (frameNumber in 0 until decoder.frameCount) {
+      val frame = decoder.getFrame(frameNumber)
+      val expected = reader.read(frameNumber)
+      assertThat(frame.width).isEqualTo(expected.width)
+      assertThat(frame.height).isEqualTo(expected.height)
+
+      val pixels = IntArray(frame.width * frame.height)
+      decoder.decodeFrame(frameNumber, pixels)
+      for (y in 0 until frame.height) {
+        for (x in 0 until frame.width) {
+          val color = expected.getRGB(x, y)
+          assertThat(pixels[y * frame.width + x])
+              .describedAs("frame %d pixel (%d, %d)", frameNumber, x, y)
+              .isEqualTo(if (color ushr 24 == 0) 0 else color)
+        }
+      }
+    }
+    reader.dispose()
+  }
+
+  private fun readFixture(name: String): ByteArray =
+      javaClass.getResourceAsStream("gifs/$name")!!.use { it.readBytes() }
+
+  companion object {
+    private val FIXTURES = listOf("animated.gif" to 8, "fresco_logo.gif" to 23)
+    private const val CHUNK_SIZE = 1024
+    private const val BENCHMARK_WARMUP_LOOPS = 5
+    private const val BENCHMARK_LOOPS = 20
+    private const val TAG = "GifStreamDecoderTest"
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.animated.giflite.draw
+
+import com.facebook.animated.giflite.decoder.GifStreamDecoder
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+
+/** Tests [GifStreamAnimatedImage] */
+class GifStreamAnimatedImageTest {
+
+  @Test
+  fun testKeepsFramesAvailableWhenCreated() {
+    val bytes =
+        javaClass.getResourceAsStream("/com/facebook/animated/giflite/decoder/gifs/animated.gif")!!
+            .use { it.readBytes() }
+    val decoder = GifStreamDecoder()
+    decoder.append(bytes, 0, bytes.size / 2)
+    val partialFrameCount = decoder.frameCount
+    assertThat(partialFrameCount).isBetween(1, 7)
+
+    val partialImage = GifStreamAnimatedImage(decoder)
+    val partialDuration = partialImage.duration
+    decoder.append(bytes, bytes.size / 2, bytes.size - bytes.size / 2)
+    val image = GifStreamAnimatedImage(decoder)
+
+    assertThat(partialImage.frameCount).isEqualTo(partialFrameCount)
+    assertThat(partialImage.frameDurations).hasSize(partialFrameCount)
+    assertThat(partialImage.duration).isEqualTo(partialDuration)
+    assertThat(image.frameCount).isEqualTo(8)
+    assertThat(image.sizeInBytes).isEqualTo(bytes.size)
+  }
+}
@@ -46,23 +46,49 @@ public class PooledByteStreams {
    * @throws IOException
    */
   public long copy(final InputStream from, final OutputStream to) throws IOException {
-    long count = 0;
     byte[] tmp = mByteArrayPool.get(mTempBufSize);
 
     try {
-      while (true) {
-        int read = from.read(tmp, 0, mTempBufSize);
-        if (read == -1) {
-          return count;
-        }
-        to.write(tmp, 0, read);
-        count += read;
-      }
+      return copy(from, to, tmp);
     } finally {
       mByteArrayPool.release(tmp);
     }
   }
 
+  /**
+   * Copy all bytes from InputStream to OutputStream, using the given temporary buffer.
+   *
+   * <p>Lets a sequence of copies share one buffer obtained with {@link #getTempBuffer}.
+   *
+   * @param from InputStream
+   * @param to OutputStream
+   * @param tmp temporary buffer
+   * @return number of copied bytes
+   * @throws IOException
+   */
+  public long copy(final InputStream from, final OutputStream to, final byte[] tmp)
+      throws IOException {
+    Preconditions.checkArgument(tmp.length >= mTempBufSize);
+    long count = 0;
+    while (true) {
+      int read = from.read(tmp, 0, mTempBufSize);
+      if (read == -1) {
+        return count;
+      }
+      to.write(tmp, 0, read);
+      count += read;
+    }
+  }
+
+  /** Gets a temporary buffer from the pool, to be given back with {@link #releaseTempBuffer}. */
+  public byte[] getTempBuffer() {
+    return mByteArrayPool.get(mTempBufSize);
+  }
+
+  public void releaseTempBuffer(final byte[] tmp) {
+    mByteArrayPool.release(tmp);
+  }
+
   /**
    * Copy at most number of bytes from InputStream to OutputStream.
    *
@@ -7,9 +7,8 @@
 
 package com.facebook.cache.common
 
-import com.facebook.common.util.SecureHashUtil
-import java.io.UnsupportedEncodingException
 import java.util.ArrayList
+import java.util.Collections
 
 object CacheKeyUtil {
 
@@ -18,42 +17,80 @@ object CacheKeyUtil {
    */
   @JvmStatic
   fun getResourceIds(key: CacheKey): List<String> =
-      try {
-        val ids: MutableList<String>
-        if (key is MultiCacheKey) {
-          val keys = key.cacheKeys
-          ids = ArrayList(keys.size)
-          for (i in keys.indices) {
-            ids.add(secureHashKey(keys[i]))
-          }
-        } else {
-          ids = ArrayList(1)
-          ids.add(if (key.isResourceIdForDebugging) key.uriString else secureHashKey(key))
-        }
-        ids
-      } catch (e: UnsupportedEncodingException) {
-        // This should never happen. All VMs support UTF-8
-        throw RuntimeException(e)
-      }
+      getResourceIds(key, Sha1ResourceIdHasher.getInstance())
 
   /**
    * Get the resourceId from the first key in MultiCacheKey or get single resourceId from CacheKey.
    */
   @JvmStatic
   fun getFirstResourceId(key: CacheKey): String =
-      try {
-        if (key is MultiCacheKey) {
-          val keys = key.cacheKeys
-          secureHashKey(keys[0])
-        } else {
-          secureHashKey(key)
+      getFirstResourceId(key, Sha1ResourceIdHasher.getInstance())
+
+  /**
+   * Get a list of possible resourceIds from MultiCacheKey or get single resourceId from CacheKey,
+   * followed by the ids of the previous hashers of [hasher]. The ids are memoized on
+   * [SimpleCacheKey] and [MultiCacheKey], so they are computed once per key and hasher.
+   */
+  @JvmStatic
+  fun getResourceIds(key: CacheKey, hasher: ResourceIdHasher): List<String> {
+    when (key) {
+      is SimpleCacheKey -> {
+        val cached = key.mCachedResourceIds
+        if (cached != null && cached.hasher === hasher) {
+          return cached.resourceIds
+        }
+        val resourceIds = computeResourceIds(key, hasher)
+        key.mCachedResourceIds = CachedResourceIds(hasher, resourceIds)
+        return resourceIds
+      }
+      is MultiCacheKey -> {
+        val cached = key.mCachedResourceIds
+        if (cached != null && cached.hasher === hasher) {
+          return cached.resourceIds
         }
-      } catch (e: UnsupportedEncodingException) {
-        // This should never happen. All VMs support UTF-8
-        throw RuntimeException(e)
+        val resourceIds = computeResourceIds(key, hasher)
+        key.mCachedResourceIds = CachedResourceIds(hasher, resourceIds)
+        return resourceIds
       }
+      else -> return computeResourceIds(key, hasher)
+    }
+  }
 
-  @Throws(UnsupportedEncodingException::class)
-  private fun secureHashKey(key: CacheKey): String =
-      SecureHashUtil.makeSHA1HashBase64(key.uriString.toByteArray(charset("UTF-8")))
+  /**
+   * Get the resourceId from the first key in MultiCacheKey or get single resourceId from CacheKey,
+   * as computed by [hasher]. This is the id new entries are written with.
+   */
+  @JvmStatic
+  fun getFirstResourceId(key: CacheKey, hasher: ResourceIdHasher): String =
+      if (key.isResourceIdForDebugging) {
+        hasher.getResourceId(key.uriString)
+      } else {
+        getResourceIds(key, hasher)[0]
+      }
+
+  private fun computeResourceIds(key: CacheKey, hasher: ResourceIdHasher): List<String> {
+    val ids: MutableList<String>
+    if (key is MultiCacheKey) {
+      val keys = key.cacheKeys
+      ids = ArrayList(keys.size)
+      var current: ResourceIdHasher? = hasher
+      while (current != null) {
+        for (i in keys.indices) {
+          ids.add(current.getResourceId(keys[i].uriString))
+        }
+        current = current.previousHasher
+      }
+    } else if (key.isResourceIdForDebugging) {
+      ids = ArrayList(1)
+      ids.add(key.uriString)
+    } else {
+      ids = ArrayList(1)
+      var current: ResourceIdHasher? = hasher
+      while (current != null) {
+        ids.add(current.getResourceId(key.uriString))
+        current = current.previousHasher
+      }
+    }
+    return Collections.unmodifiableList(ids)
+  }
 }
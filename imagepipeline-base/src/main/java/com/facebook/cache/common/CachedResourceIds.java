@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common;
+
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.List;
+
+/** Resource ids of a cache key, memoized along with the hasher that computed them. */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+final class CachedResourceIds {
+  final ResourceIdHasher hasher;
+  final List<String> resourceIds;
+
+  CachedResourceIds(ResourceIdHasher hasher, List<String> resourceIds) {
+    this.hasher = hasher;
+    this.resourceIds = resourceIds;
+  }
+}
@@ -29,6 +29,8 @@ import javax.annotation.Nullable;
 public class MultiCacheKey implements CacheKey {
 
   final List<CacheKey> mCacheKeys;
+  // Written by CacheKeyUtil, racy but idempotent
+  volatile @Nullable CachedResourceIds mCachedResourceIds;
 
   public MultiCacheKey(List<CacheKey> cacheKeys) {
     mCacheKeys = Preconditions.checkNotNull(cacheKeys);
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common;
+
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.Nullable;
+
+/**
+ * {@link ResourceIdHasher} computing the 128-bit MurmurHash3 (x64 variant, seed 0) of the UTF-16
+ * chars of the uri string, encoded in 22 chars of URL-safe Base64.
+ *
+ * <p>The chars are read directly from the string, little-endian, so apart from the returned id no
+ * intermediate byte array, digest or encoder is allocated. The hash is the same as Guava's {@code
+ * Hashing.murmur3_128().hashUnencodedChars()}.
+ *
+ * <p>Ids are shorter than those of {@link Sha1ResourceIdHasher}, so the two can't collide. Pass
+ * {@link Sha1ResourceIdHasher#getInstance()} as previous hasher to keep reading an existing cache.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class Murmur3ResourceIdHasher implements ResourceIdHasher {
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private static final char[] BASE64_URL_SAFE =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  private final @Nullable ResourceIdHasher mPreviousHasher;
+
+  public Murmur3ResourceIdHasher() {
+    this(null);
+  }
+
+  /**
+   * @param previousHasher hasher of the entries already in the cache, see {@link
+   *     #getPreviousHasher()}
+   */
+  public Murmur3ResourceIdHasher(@Nullable ResourceIdHasher previousHasher) {
+    mPreviousHasher = previousHasher;
+  }
+
+  @Override
+  public String getResourceId(String uriString) {
+    final int length = uriString.length();
+    long h1 = 0;
+    long h2 = 0;
+
+    // 16-byte blocks of 8 chars
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      long k1 =
+          uriString.charAt(i)
+              | ((long) uriString.charAt(i + 1) << 16)
+              | ((long) uriString.charAt(i + 2) << 32)
+              | ((long) uriString.charAt(i + 3) << 48);
+      long k2 =
+          uriString.charAt(i + 4)
+              | ((long) uriString.charAt(i + 5) << 16)
+              | ((long) uriString.charAt(i + 6) << 32)
+              | ((long) uriString.charAt(i + 7) << 48);
+
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    // Tail of up to 7 chars
+    int remaining = length - i;
+    if (remaining > 4) {
+      h2 ^= mixK2(chars(uriString, i + 4, remaining - 4));
+    }
+    if (remaining > 0) {
+      h1 ^= mixK1(chars(uriString, i, Math.min(remaining, 4)));
+    }
+
+    long byteLength = 2L * length;
+    h1 ^= byteLength;
+    h2 ^= byteLength;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+    return encode(h1, h2);
+  }
+
+  @Override
+  public @Nullable ResourceIdHasher getPreviousHasher() {
+    return mPreviousHasher;
+  }
+
+  /** Packs up to 4 chars, the first one in the low bits. */
+  private static long chars(String string, int start, int count) {
+    long result = 0;
+    for (int j = 0; j < count; j++) {
+      result |= ((long) string.charAt(start + j)) << (16 * j);
+    }
+    return result;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    return k1;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    return k2;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  /** Encodes the hash bytes, h1 then h2 in little-endian order, without padding. */
+  private static String encode(long h1, long h2) {
+    char[] result = new char[22];
+    int position = 0;
+    int bits = 0;
+    int bitCount = 0;
+    for (int j = 0; j < 16; j++) {
+      long word = j < 8 ? h1 : h2;
+      bits = (bits << 8) | (int) ((word >>> (8 * (j & 7))) & 0xFF);
+      bitCount += 8;
+      while (bitCount >= 6) {
+        bitCount -= 6;
+        result[position++] = BASE64_URL_SAFE[(bits >>> bitCount) & 0x3F];
+      }
+    }
+    // 128 bits leave 2 bits, padded with zeros
+    result[position] = BASE64_URL_SAFE[(bits << (6 - bitCount)) & 0x3F];
+    return new String(result);
+  }
+}
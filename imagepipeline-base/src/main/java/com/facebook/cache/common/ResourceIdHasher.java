@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common;
+
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.Nullable;
+
+/**
+ * Computes the id under which the resource of a {@link CacheKey} is stored in the disk cache, from
+ * the uri string of the key. Ids must be usable as file names.
+ *
+ * <p>Changing the hasher of an existing cache makes its entries unreachable, unless the new hasher
+ * returns the old one from {@link #getPreviousHasher()}.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public interface ResourceIdHasher {
+
+  /**
+   * Computes the resource id of a key.
+   *
+   * @param uriString the uri string of the key
+   * @return the resource id
+   */
+  String getResourceId(String uriString);
+
+  /**
+   * Returns the hasher the resources were named with before this one. Ids of that hasher are still
+   * looked up on reads, so that entries written before the migration are found until they are
+   * evicted. New entries are only written with this hasher.
+   *
+   * @return the previous hasher, or null if there is none
+   */
+  default @Nullable ResourceIdHasher getPreviousHasher() {
+    return null;
+  }
+}
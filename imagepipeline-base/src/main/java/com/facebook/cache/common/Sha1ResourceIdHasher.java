@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common;
+
+import com.facebook.common.util.SecureHashUtil;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The historical {@link ResourceIdHasher}: URL-safe Base64 of the SHA-1 of the UTF-8 bytes of the
+ * uri string.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class Sha1ResourceIdHasher implements ResourceIdHasher {
+
+  private static final Sha1ResourceIdHasher sInstance = new Sha1ResourceIdHasher();
+
+  private Sha1ResourceIdHasher() {}
+
+  public static Sha1ResourceIdHasher getInstance() {
+    return sInstance;
+  }
+
+  @Override
+  public String getResourceId(String uriString) {
+    try {
+      return SecureHashUtil.makeSHA1HashBase64(uriString.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      // This should never happen. All VMs support UTF-8
+      throw new RuntimeException(e);
+    }
+  }
+}
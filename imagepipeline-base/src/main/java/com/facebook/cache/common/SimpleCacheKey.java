@@ -22,6 +22,8 @@ import javax.annotation.Nullable;
 public class SimpleCacheKey implements CacheKey {
   final String mKey;
   final boolean mIsResourceIdForDebugging;
+  // Written by CacheKeyUtil, racy but idempotent
+  volatile @Nullable CachedResourceIds mCachedResourceIds;
 
   public SimpleCacheKey(final String key) {
     this(key, false);
@@ -207,8 +207,11 @@ class DefaultDiskStorage(rootDirectory: File, version: Int, cacheErrorLogger: Ca
     }
 
     override fun visitFile(file: File?) {
+      if (isMetadataFile(file!!)) {
+        return
+      }
       if (!insideBaseDirectory || !isExpectedFile(file)) {
-        file!!.delete()
+        file.delete()
       }
     }
 
@@ -243,6 +246,16 @@ class DefaultDiskStorage(rootDirectory: File, version: Int, cacheErrorLogger: Ca
     }
   }
 
+  /** Metadata files live in the root directory, next to the version directory. */
+  override fun getMetadataFile(name: String): File {
+    return File(mRootDirectory, name + METADATA_FILE_EXTENSION)
+  }
+
+  private fun isMetadataFile(file: File): Boolean {
+    return file.getName().endsWith(METADATA_FILE_EXTENSION) &&
+        mRootDirectory == file.getParentFile()
+  }
+
   override fun purgeUnexpectedResources() {
     FileTree.walkFileTree(mRootDirectory, PurgingVisitor())
   }
@@ -266,7 +279,7 @@ class DefaultDiskStorage(rootDirectory: File, version: Int, cacheErrorLogger: Ca
   }
 
   @Throws(IOException::class)
-  override fun insert(resourceId: String, debugInfo: Any): DiskStorage.Inserter {
+  override fun insert(resourceId: String, debugInfo: Any): InserterImpl {
     // ensure that the parent directory exists
     val info = DefaultDiskStorage.FileInfo(FileType.Companion.TEMP, resourceId)
     val parent = getSubdirectory(info.resourceId)
@@ -365,43 +378,9 @@ class DefaultDiskStorage(rootDirectory: File, version: Int, cacheErrorLogger: Ca
   @Throws(IOException::class)
   private fun dumpCacheEntry(entry: DiskStorage.Entry?): DiskDumpInfoEntry {
     val entryImpl = entry as EntryImpl
-    var firstBits = ""
     val bytes = entryImpl.getResource().read()
-    val type = typeOfBytes(bytes)
-    if (type == "undefined" && bytes.size >= 4) {
-      firstBits =
-          String.format(
-              null as Locale?,
-              "0x%02X 0x%02X 0x%02X 0x%02X",
-              bytes[0],
-              bytes[1],
-              bytes[2],
-              bytes[3],
-          )
-    }
     val path = entryImpl.getResource().file.getPath()
-    return DiskDumpInfoEntry(
-        entryImpl.getId(),
-        path,
-        type,
-        entryImpl.getSize().toFloat(),
-        firstBits,
-    )
-  }
-
-  private fun typeOfBytes(bytes: ByteArray): String {
-    if (bytes.size >= 2) {
-      if (bytes[0] == 0xFF.toByte() && bytes[1] == 0xD8.toByte()) {
-        return "jpg"
-      } else if (bytes[0] == 0x89.toByte() && bytes[1] == 0x50.toByte()) {
-        return "png"
-      } else if (bytes[0] == 0x52.toByte() && bytes[1] == 0x49.toByte()) {
-        return "webp"
-      } else if (bytes[0] == 0x47.toByte() && bytes[1] == 0x49.toByte()) {
-        return "gif"
-      }
-    }
-    return "undefined"
+    return createDumpInfoEntry(entryImpl.getId(), path, entryImpl.getSize(), bytes)
   }
 
   @Throws(IOException::class)
@@ -616,6 +595,7 @@ class DefaultDiskStorage(rootDirectory: File, version: Int, cacheErrorLogger: Ca
 
     private const val CONTENT_FILE_EXTENSION = ".cnt"
     private const val TEMP_FILE_EXTENSION = ".tmp"
+    private const val METADATA_FILE_EXTENSION = ".meta"
 
     private const val DEFAULT_DISK_STORAGE_VERSION_PREFIX = "v2"
 
@@ -667,6 +647,44 @@ class DefaultDiskStorage(rootDirectory: File, version: Int, cacheErrorLogger: Ca
       return state
     }
 
+    /** Describes an entry of the storage, guessing its type from its first bytes. */
+    internal fun createDumpInfoEntry(
+        id: String,
+        path: String,
+        size: Long,
+        bytes: ByteArray,
+    ): DiskDumpInfoEntry {
+      var firstBits = ""
+      val type = typeOfBytes(bytes)
+      if (type == "undefined" && bytes.size >= 4) {
+        firstBits =
+            String.format(
+                null as Locale?,
+                "0x%02X 0x%02X 0x%02X 0x%02X",
+                bytes[0],
+                bytes[1],
+                bytes[2],
+                bytes[3],
+            )
+      }
+      return DiskDumpInfoEntry(id, path, type, size.toFloat(), firstBits)
+    }
+
+    private fun typeOfBytes(bytes: ByteArray): String {
+      if (bytes.size >= 2) {
+        if (bytes[0] == 0xFF.toByte() && bytes[1] == 0xD8.toByte()) {
+          return "jpg"
+        } else if (bytes[0] == 0x89.toByte() && bytes[1] == 0x50.toByte()) {
+          return "png"
+        } else if (bytes[0] == 0x52.toByte() && bytes[1] == 0x49.toByte()) {
+          return "webp"
+        } else if (bytes[0] == 0x47.toByte() && bytes[1] == 0x49.toByte()) {
+          return "gif"
+        }
+      }
+      return "undefined"
+    }
+
     @VisibleForTesting
     fun getVersionSubdirectoryName(version: Int): String {
       return String.format(
@@ -12,6 +12,8 @@ import com.facebook.cache.common.CacheErrorLogger;
 import com.facebook.cache.common.CacheEventListener;
 import com.facebook.cache.common.NoOpCacheErrorLogger;
 import com.facebook.cache.common.NoOpCacheEventListener;
+import com.facebook.cache.common.ResourceIdHasher;
+import com.facebook.cache.common.Sha1ResourceIdHasher;
 import com.facebook.common.disk.DiskTrimmable;
 import com.facebook.common.disk.DiskTrimmableRegistry;
 import com.facebook.common.disk.NoOpDiskTrimmableRegistry;
@@ -39,6 +41,11 @@ public class DiskCacheConfig {
   private final DiskTrimmableRegistry mDiskTrimmableRegistry;
   @Nullable private final Context mContext;
   private final boolean mIndexPopulateAtStartupEnabled;
+  private final int mLockStripeCount;
+  private final boolean mLruIndexEnabled;
+  private final boolean mMappedIndexEnabled;
+  private final int mPackedStorageMaxEntrySize;
+  private final ResourceIdHasher mResourceIdHasher;
 
   protected DiskCacheConfig(Builder builder) {
     mContext = builder.mContext;
@@ -76,6 +83,14 @@ public class DiskCacheConfig {
             ? NoOpDiskTrimmableRegistry.INSTANCE
             : builder.mDiskTrimmableRegistry;
     mIndexPopulateAtStartupEnabled = builder.mIndexPopulateAtStartupEnabled;
+    mLockStripeCount = builder.mLockStripeCount;
+    mLruIndexEnabled = builder.mLruIndexEnabled;
+    mMappedIndexEnabled = builder.mMappedIndexEnabled;
+    mPackedStorageMaxEntrySize = builder.mPackedStorageMaxEntrySize;
+    mResourceIdHasher =
+        builder.mResourceIdHasher == null
+            ? Sha1ResourceIdHasher.getInstance()
+            : builder.mResourceIdHasher;
   }
 
   public int getVersion() {
@@ -126,6 +141,26 @@ public class DiskCacheConfig {
     return mIndexPopulateAtStartupEnabled;
   }
 
+  public int getLockStripeCount() {
+    return mLockStripeCount;
+  }
+
+  public boolean getLruIndexEnabled() {
+    return mLruIndexEnabled;
+  }
+
+  public boolean getMappedIndexEnabled() {
+    return mMappedIndexEnabled;
+  }
+
+  public int getPackedStorageMaxEntrySize() {
+    return mPackedStorageMaxEntrySize;
+  }
+
+  public ResourceIdHasher getResourceIdHasher() {
+    return mResourceIdHasher;
+  }
+
   /**
    * Create a new builder.
    *
@@ -153,6 +188,11 @@ public class DiskCacheConfig {
     private @Nullable CacheEventListener mCacheEventListener;
     private @Nullable DiskTrimmableRegistry mDiskTrimmableRegistry;
     private boolean mIndexPopulateAtStartupEnabled;
+    private int mLockStripeCount = 0;
+    private boolean mLruIndexEnabled;
+    private boolean mMappedIndexEnabled;
+    private int mPackedStorageMaxEntrySize = 0;
+    private @Nullable ResourceIdHasher mResourceIdHasher;
 
     private final @Nullable Context mContext;
 
@@ -251,6 +291,66 @@ public class DiskCacheConfig {
       return this;
     }
 
+    /**
+     * Sets the number of locks single-key operations are striped over.
+     *
+     * <p>With the default value of 0 (or 1) every operation of the {@link DiskStorageCache} is
+     * serialized on one lock. A larger value lets reads, probes and removals of different keys run
+     * in parallel; only eviction and size accounting keep using the global lock.
+     */
+    public Builder setLockStripeCount(int lockStripeCount) {
+      mLockStripeCount = lockStripeCount;
+      return this;
+    }
+
+    /**
+     * Tracks the entries in an in-memory LRU index persisted as a journal next to the cache
+     * directory, instead of listing the cache directory to compute its size and evict.
+     *
+     * <p>Eviction then runs on a background thread and only visits the evicted entries.
+     */
+    public Builder setLruIndexEnabled(boolean lruIndexEnabled) {
+      mLruIndexEnabled = lruIndexEnabled;
+      return this;
+    }
+
+    /**
+     * Persists an index of the entries in a memory-mapped file next to the cache directory.
+     *
+     * <p>After a cold start, the index is usable as soon as the file is mapped, so the cache can
+     * tell which keys it holds without waiting for a walk of the cache directory.
+     */
+    public Builder setMappedIndexEnabled(boolean mappedIndexEnabled) {
+      mMappedIndexEnabled = mappedIndexEnabled;
+      return this;
+    }
+
+    /**
+     * Stores the entries up to the given size in bytes in a {@link PackedDiskStorage}, which
+     * appends them to large segment files instead of creating a file per entry.
+     *
+     * <p>With the default value of 0 every entry is stored in its own file. Sizes of a few tens of
+     * kilobytes cover avatars and thumbnails, for which the per-file overhead of the file system
+     * dominates.
+     */
+    public Builder setPackedStorageMaxEntrySize(int packedStorageMaxEntrySize) {
+      mPackedStorageMaxEntrySize = packedStorageMaxEntrySize;
+      return this;
+    }
+
+    /**
+     * Sets how the file names of the entries are computed from their cache keys. The default is
+     * {@link Sha1ResourceIdHasher}.
+     *
+     * <p>{@link com.facebook.cache.common.Murmur3ResourceIdHasher} is cheaper to compute. To switch
+     * an existing cache to it without losing its entries, pass the current hasher as its previous
+     * hasher: entries written with it are still found until they are evicted.
+     */
+    public Builder setResourceIdHasher(ResourceIdHasher resourceIdHasher) {
+      mResourceIdHasher = resourceIdHasher;
+      return this;
+    }
+
     public DiskCacheConfig build() {
       return new DiskCacheConfig(this);
     }
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk
+
+import com.facebook.binaryresource.BinaryResource
+import com.facebook.common.internal.Supplier
+import com.facebook.common.logging.FLog
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+import kotlin.math.max
+
+/**
+ * In-memory LRU index of the entries of a [DiskStorage], with their size and last access time. It
+ * lets [DiskStorageCache] keep track of the cache size and pick eviction victims, least recently
+ * used first, without listing the storage.
+ *
+ * Changes are buffered in memory as compact binary records, and appended to the journal file by
+ * [flush]. When the journal grows much larger than the index it is compacted into a snapshot. At
+ * startup [load] replays the journal, so the storage only has to be walked (see [rebuild]) if the
+ * journal is missing or corrupt.
+ */
+@ThreadSafe
+class DiskCacheIndex
+@JvmOverloads
+constructor(
+    private val journalFileSupplier: Supplier<File?>,
+    private val storage: DiskStorage? = null,
+) {
+
+  /**
+   * Entry of the index. Its resource is looked up in the storage of the index when read, and is
+   * missing if the index has no storage or the entry was removed from it.
+   */
+  class IndexEntry
+  @JvmOverloads
+  constructor(
+      private val id: String,
+      internal var size: Long,
+      internal var timestamp: Long,
+      private val storage: DiskStorage? = null,
+  ) : DiskStorage.Entry {
+
+    override fun getId(): String = id
+
+    override fun getTimestamp(): Long = timestamp
+
+    override fun getSize(): Long = size
+
+    override fun getResource(): BinaryResource = StorageResource(id, size, storage)
+
+    internal fun copy(): IndexEntry = IndexEntry(id, size, timestamp, storage)
+  }
+
+  /** Resource of an index entry, read from the storage. */
+  private class StorageResource(
+      private val id: String,
+      private val size: Long,
+      private val storage: DiskStorage?,
+  ) : BinaryResource {
+
+    @Throws(IOException::class) override fun openStream(): InputStream = resolve().openStream()
+
+    @Throws(IOException::class) override fun read(): ByteArray = resolve().read()
+
+    override fun size(): Long = size
+
+    @Throws(IOException::class)
+    private fun resolve(): BinaryResource =
+        storage?.getResource(id, id) ?: throw FileNotFoundException("No resource for " + id)
+  }
+
+  // Iteration order is the eviction order: least recently used first.
+  @GuardedBy("this") private var entries = newEntryMap(INITIAL_CAPACITY)
+
+  @GuardedBy("this") private var totalSize = 0L
+
+  @GuardedBy("this") private var pendingRecords = ByteArrayOutputStream()
+
+  @GuardedBy("this") private var pendingOutput = DataOutputStream(pendingRecords)
+
+  @GuardedBy("this") private var pendingCount = 0
+
+  // Number of records in the journal file
+  @GuardedBy("this") private var journalRecordCount = 0
+
+  // Whether the journal file has to be rewritten from scratch on the next flush
+  @GuardedBy("this") private var snapshotNeeded = true
+
+  @GuardedBy("this") private var fullScanTime = 0L
+
+  // Serializes the file operations
+  private val journalLock = Any()
+
+  /** Total size in bytes of the indexed entries. */
+  @get:Synchronized
+  val size: Long
+    get() = totalSize
+
+  /** Number of indexed entries. */
+  @get:Synchronized
+  val count: Int
+    get() = entries.size
+
+  /** Number of changes not flushed to the journal file yet. */
+  @get:Synchronized
+  val pendingRecordCount: Int
+    get() = pendingCount
+
+  /** Size in bytes of the changes not flushed to the journal file yet. */
+  @get:Synchronized
+  val pendingRecordBytes: Int
+    get() = pendingRecords.size()
+
+  /** Time at which the index was last rebuilt from a listing of the storage. */
+  @get:Synchronized
+  val lastFullScanTime: Long
+    get() = fullScanTime
+
+  @Synchronized fun contains(resourceId: String): Boolean = entries.containsKey(resourceId)
+
+  /**
+   * Adds or replaces an entry, making it the most recently used one.
+   *
+   * @return the size of the replaced entry, or -1 if there was none
+   */
+  @Synchronized
+  fun put(resourceId: String, size: Long, timestamp: Long): Long {
+    val previous = entries.put(resourceId, IndexEntry(resourceId, size, timestamp, storage))
+    val previousSize = previous?.size ?: 0L
+    totalSize += size - previousSize
+    record(OP_PUT, resourceId, size, timestamp)
+    return if (previous != null) previousSize else -1
+  }
+
+  /**
+   * Marks an entry as the most recently used one.
+   *
+   * @return false if the entry is not in the index
+   */
+  @Synchronized
+  fun touch(resourceId: String, timestamp: Long): Boolean {
+    val entry = entries.get(resourceId) ?: return false
+    entry.timestamp = timestamp
+    record(OP_TOUCH, resourceId, 0, timestamp)
+    return true
+  }
+
+  /**
+   * Removes an entry.
+   *
+   * @return the size of the removed entry, or -1 if it was not in the index
+   */
+  @Synchronized
+  fun remove(resourceId: String): Long {
+    val previous = entries.remove(resourceId) ?: return -1
+    totalSize -= previous.size
+    record(OP_REMOVE, resourceId, 0, 0)
+    return previous.size
+  }
+
+  @Synchronized
+  fun clear() {
+    entries.clear()
+    totalSize = 0
+    resetPendingRecords()
+    snapshotNeeded = true
+  }
+
+  /** Returns a copy of all the entries, least recently used first. */
+  @Synchronized
+  fun getEntries(): List<DiskStorage.Entry> {
+    val result = ArrayList<DiskStorage.Entry>(entries.size)
+    for (entry in entries.values) {
+      result.add(entry.copy())
+    }
+    return result
+  }
+
+  /**
+   * Returns the least recently used entries whose total size just exceeds the given amount of
+   * bytes. Only the returned entries are visited.
+   */
+  @Synchronized
+  fun getEvictionCandidates(bytesToFree: Long): List<DiskStorage.Entry> {
+    val result = ArrayList<DiskStorage.Entry>()
+    var sumSizes = 0L
+    for (entry in entries.values) {
+      if (sumSizes > bytesToFree) {
+        break
+      }
+      result.add(entry.copy())
+      sumSizes += entry.size
+    }
+    return result
+  }
+
+  @Synchronized
+  fun getResourceIds(): List<String> = ArrayList(entries.keys)
+
+  /**
+   * Restores the index from the journal file. Entries changed since this index was created are kept
+   * as the most recently used ones.
+   *
+   * @return false if there is no valid journal, in which case the index should be [rebuild]-t
+   */
+  fun load(): Boolean {
+    synchronized(journalLock) {
+      val file = journalFileSupplier.get()
+      if (file == null || !file.exists()) {
+        return false
+      }
+      val loaded = newEntryMap(INITIAL_CAPACITY)
+      var recordCount = 0
+      var scanTime = -1L
+      var truncated = false
+      try {
+        DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+          if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+            return false
+          }
+          scanTime = input.readLong()
+          while (true) {
+            val op = input.read()
+            if (op < 0) {
+              break
+            }
+            val resourceId = input.readUTF()
+            when (op) {
+              OP_PUT -> {
+                val size = input.readLong()
+                loaded.put(resourceId, IndexEntry(resourceId, size, input.readLong(), storage))
+              }
+              OP_TOUCH -> {
+                val timestamp = input.readLong()
+                loaded.get(resourceId)?.timestamp = timestamp
+              }
+              OP_REMOVE -> loaded.remove(resourceId)
+              else -> return false
+            }
+            recordCount++
+          }
+        }
+      } catch (eof: EOFException) {
+        // An append was interrupted: keep the complete records, the file will be rewritten
+        if (scanTime < 0) {
+          return false
+        }
+        truncated = true
+      } catch (ioe: IOException) {
+        FLog.w(TAG, "Failed to read the disk cache journal", ioe)
+        return false
+      }
+      synchronized(this) {
+        mergeOlderEntries(loaded, Long.MIN_VALUE)
+        journalRecordCount = recordCount
+        fullScanTime = scanTime
+        snapshotNeeded = truncated
+      }
+      return true
+    }
+  }
+
+  /**
+   * Rebuilds the index from a listing of the storage. Entries missing from the listing are dropped,
+   * unless they were added after the listing started.
+   *
+   * @param storageEntries the entries of the storage, in eviction order
+   * @param scanTime the time at which the listing started
+   */
+  fun rebuild(storageEntries: Collection<DiskStorage.Entry>, scanTime: Long) {
+    val listed = newEntryMap(max(storageEntries.size * 4 / 3, INITIAL_CAPACITY))
+    for (entry in storageEntries) {
+      listed.put(
+          entry.getId(),
+          IndexEntry(entry.getId(), entry.getSize(), entry.getTimestamp(), storage),
+      )
+    }
+    synchronized(this) {
+      mergeOlderEntries(listed, scanTime)
+      fullScanTime = scanTime
+      snapshotNeeded = true
+    }
+  }
+
+  /** Writes the changes to the journal file, compacting it if needed. */
+  fun flush() {
+    synchronized(journalLock) {
+      val file = journalFileSupplier.get() ?: return
+      val fileExists = file.exists()
+      var snapshot: List<DiskStorage.Entry>? = null
+      val records: ByteArray
+      val scanTime: Long
+      synchronized(this) {
+        if (
+            snapshotNeeded ||
+                !fileExists ||
+                journalRecordCount + pendingCount >
+                    max(entries.size * COMPACTION_FACTOR, MIN_COMPACTION_RECORD_COUNT)
+        ) {
+          snapshot = getEntries()
+          journalRecordCount = entries.size
+          snapshotNeeded = false
+        } else {
+          journalRecordCount += pendingCount
+        }
+        records = pendingRecords.toByteArray()
+        resetPendingRecords()
+        scanTime = fullScanTime
+      }
+      try {
+        val entriesToWrite = snapshot
+        if (entriesToWrite != null) {
+          writeSnapshot(file, entriesToWrite, scanTime)
+        } else if (records.isNotEmpty()) {
+          FileOutputStream(file, true).use { it.write(records) }
+        }
+      } catch (ioe: IOException) {
+        FLog.w(TAG, "Failed to write the disk cache journal", ioe)
+        synchronized(this) { snapshotNeeded = true }
+      }
+    }
+  }
+
+  /**
+   * Replaces the entries with the given older ones, keeping the current entries as the most
+   * recently used. Current entries missing from the older ones are dropped if their timestamp is
+   * before the given time.
+   */
+  @GuardedBy("this")
+  private fun mergeOlderEntries(older: LinkedHashMap<String, IndexEntry>, keepAfter: Long) {
+    for (entry in entries.values) {
+      if (older.containsKey(entry.getId()) || entry.timestamp >= keepAfter) {
+        older.remove(entry.getId())
+        older.put(entry.getId(), entry)
+      }
+    }
+    var sumSizes = 0L
+    for (entry in older.values) {
+      sumSizes += entry.size
+    }
+    entries = older
+    totalSize = sumSizes
+  }
+
+  @GuardedBy("this")
+  private fun record(op: Int, resourceId: String, size: Long, timestamp: Long) {
+    try {
+      pendingOutput.writeByte(op)
+      pendingOutput.writeUTF(resourceId)
+      if (op == OP_PUT) {
+        pendingOutput.writeLong(size)
+      }
+      if (op != OP_REMOVE) {
+        pendingOutput.writeLong(timestamp)
+      }
+      pendingCount++
+    } catch (ioe: IOException) {
+      // Can't happen when writing to memory, but make sure the journal is rewritten anyway
+      snapshotNeeded = true
+    }
+  }
+
+  @GuardedBy("this")
+  private fun resetPendingRecords() {
+    pendingRecords = ByteArrayOutputStream()
+    pendingOutput = DataOutputStream(pendingRecords)
+    pendingCount = 0
+  }
+
+  companion object {
+    private val TAG: Class<*> = DiskCacheIndex::class.java
+
+    private const val MAGIC = 0x46444349 // "FDCI"
+    private const val FORMAT_VERSION = 1
+    private const val TEMP_FILE_SUFFIX = ".tmp"
+
+    private const val OP_PUT = 1
+    private const val OP_TOUCH = 2
+    private const val OP_REMOVE = 3
+
+    private const val INITIAL_CAPACITY = 256
+    // The journal is compacted when it has more records than this factor times the entry count
+    private const val COMPACTION_FACTOR = 2
+    private const val MIN_COMPACTION_RECORD_COUNT = 1024
+
+    private fun newEntryMap(capacity: Int): LinkedHashMap<String, IndexEntry> =
+        LinkedHashMap(capacity, 0.75f, true)
+
+    @Throws(IOException::class)
+    private fun writeSnapshot(file: File, entries: List<DiskStorage.Entry>, scanTime: Long) {
+      val tempFile = File(file.path + TEMP_FILE_SUFFIX)
+      DataOutputStream(BufferedOutputStream(FileOutputStream(tempFile))).use { output ->
+        output.writeInt(MAGIC)
+        output.writeInt(FORMAT_VERSION)
+        output.writeLong(scanTime)
+        for (entry in entries) {
+          output.writeByte(OP_PUT)
+          output.writeUTF(entry.getId())
+          output.writeLong(entry.getSize())
+          output.writeLong(entry.getTimestamp())
+        }
+      }
+      if (!tempFile.renameTo(file)) {
+        tempFile.delete()
+        throw IOException("Failed to rename " + tempFile + " to " + file)
+      }
+    }
+  }
+}
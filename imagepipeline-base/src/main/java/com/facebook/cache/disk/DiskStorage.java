@@ -10,6 +10,7 @@ package com.facebook.cache.disk;
 import com.facebook.binaryresource.BinaryResource;
 import com.facebook.cache.common.WriterCallback;
 import com.facebook.infer.annotation.Nullsafe;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -153,6 +154,18 @@ public interface DiskStorage {
    */
   String getStorageName();
 
+  /**
+   * Get a file, next to the contents of the storage, in which the owner of the storage can persist
+   * its own metadata, such as an index of the entries. Metadata files are not treated as unexpected
+   * resources, and are deleted along with the contents on {@link #clearAll()}.
+   *
+   * @param name name of the metadata file
+   * @return the metadata file, or null if this storage can't hold metadata files
+   */
+  default @Nullable File getMetadataFile(String name) {
+    return null;
+  }
+
   interface Entry {
     /** the id representing the resource */
     String getId();
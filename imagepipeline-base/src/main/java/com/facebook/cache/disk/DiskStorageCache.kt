@@ -14,24 +14,51 @@ import com.facebook.cache.common.CacheEventListener
 import com.facebook.cache.common.CacheEventListener.EvictionReason
 import com.facebook.cache.common.CacheKey
 import com.facebook.cache.common.CacheKeyUtil
+import com.facebook.cache.common.ResourceIdHasher
+import com.facebook.cache.common.Sha1ResourceIdHasher
 import com.facebook.cache.common.WriterCallback
 import com.facebook.cache.disk.DiskStorage.DiskDumpInfo
 import com.facebook.common.disk.DiskTrimmable
 import com.facebook.common.disk.DiskTrimmableRegistry
+import com.facebook.common.internal.Supplier
 import com.facebook.common.logging.FLog
 import com.facebook.common.statfs.StatFsHelper
 import com.facebook.common.time.Clock
 import com.facebook.common.time.SystemClock
 import java.io.IOException
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.Executor
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.annotation.concurrent.GuardedBy
 import javax.annotation.concurrent.ThreadSafe
 import kotlin.math.abs
 import kotlin.math.max
 
-/** Cache that manages disk storage. */
+/**
+ * Cache that manages disk storage.
+ *
+ * By default every operation is serialized on a single lock. When [lockStripeCount] is greater than
+ * one, single-key operations (get, probe, insert commit, remove) only take a lock striped by
+ * resourceId, so that reads of independent keys can hit the storage in parallel. Eviction and size
+ * accounting still go through the global lock.
+ *
+ * When [lruIndexEnabled] is set, the entries are tracked by a [DiskCacheIndex] persisted next to
+ * the storage. The cache size then comes from the index, and eviction runs on the background
+ * executor, removing the least recently used entries without listing the storage. The storage is
+ * only listed to build the index when its journal is missing, and from time to time in the
+ * background to reconcile it. The [EntryEvictionComparatorSupplier] only orders that listing.
+ *
+ * When [mappedIndexEnabled] is set, a [MappedDiskCacheIndex] of the entries is kept in a
+ * memory-mapped file. At startup it's usable as soon as it's mapped, so [hasKeySync] and the cache
+ * size don't have to wait for a walk of the storage, which only happens if the file is missing or
+ * inconsistent.
+ *
+ * Entries are named by [resourceIdHasher]. When it has a previous hasher, reads, probes and
+ * removals also try the ids of that hasher, so that an existing cache survives a change of hasher.
+ */
 @ThreadSafe
 class DiskStorageCache(
     private val storage: DiskStorage,
@@ -42,15 +69,26 @@ class DiskStorageCache(
     diskTrimmableRegistry: DiskTrimmableRegistry?,
     executorForBackgrountInit: Executor,
     private val indexPopulateAtStartupEnabled: Boolean,
+    lockStripeCount: Int = 0,
+    lruIndexEnabled: Boolean = false,
+    mappedIndexEnabled: Boolean = false,
+    private val resourceIdHasher: ResourceIdHasher = Sha1ResourceIdHasher.getInstance(),
 ) : FileCache, DiskTrimmable {
   private val lowDiskSpaceCacheSizeLimit: Long
   private val defaultCacheSizeLimit: Long
   private var countDownLatch: CountDownLatch? = null
-  private var cacheSizeLimit: Long
+  @Volatile private var cacheSizeLimit: Long
 
-  @GuardedBy("lock") // All resourceId stored on disk (if any).
+  // All resourceId stored on disk (if any). Guarded by lockFor(resourceId), concurrent if striped.
+  // Replaced as a whole when rebuilt from a listing of the storage.
   @VisibleForTesting
-  val resourceIndex: MutableSet<String?>
+  @Volatile
+  var resourceIndex: MutableSet<String?>
+    private set
+
+  // Changes of the resource index while it is rebuilt, replayed on the rebuilt index: true for an
+  // addition, false for a removal. Null when the index is not being rebuilt.
+  @Volatile private var resourceIndexChanges: MutableMap<String, Boolean>? = null
 
   private var cacheSizeLastUpdateTime: Long
 
@@ -65,7 +103,34 @@ class DiskStorageCache(
   // synchronization object.
   private val lock = Any()
 
-  private var indexReady = false
+  // Striped per-resourceId locks, null when single-key operations use the global lock.
+  private val keyLocks: Array<Any>? =
+      if (lockStripeCount > 1) Array(lockStripeCount) { Any() } else null
+
+  // LRU index of the entries, null when the storage is listed to evict and compute the size.
+  private val lruIndex: DiskCacheIndex? =
+      if (lruIndexEnabled) {
+        DiskCacheIndex(Supplier { storage.getMetadataFile(LRU_JOURNAL_NAME) }, storage)
+      } else {
+        null
+      }
+
+  // Persistent hash table of the entries, null when the index is built by listing the storage.
+  private val mappedIndex: MappedDiskCacheIndex? =
+      if (mappedIndexEnabled) {
+        MappedDiskCacheIndex(Supplier { storage.getMetadataFile(MAPPED_INDEX_NAME) })
+      } else {
+        null
+      }
+
+  private val backgroundExecutor: Executor = executorForBackgrountInit
+
+  private val lruIndexMaintenanceScheduled = AtomicBoolean()
+
+  @Volatile private var lruIndexMaintenanceTime: Long = UNINITIALIZED
+
+  // Set once the indexes have been initialized in the background, if there are any
+  @Volatile private var indexReady = false
 
   /**
    * Stats about the cache - currently size of the cache (in bytes) and number of items in the cache
@@ -127,29 +192,58 @@ class DiskStorageCache(
 
     this.clock = SystemClock.get()
 
-    this.resourceIndex = HashSet<String?>()
+    this.resourceIndex = newResourceIndex()
 
     if (diskTrimmableRegistry != null) {
       diskTrimmableRegistry.registerDiskTrimmable(this)
     }
 
-    if (indexPopulateAtStartupEnabled) {
+    if (indexPopulateAtStartupEnabled || lruIndex != null || mappedIndex != null) {
       countDownLatch = CountDownLatch(1)
 
       executorForBackgrountInit.execute(
           object : Runnable {
             override fun run() {
-              synchronized(lock) { maybeUpdateFileCacheSize() }
-              indexReady = true
-              countDownLatch!!.countDown()
+              initializeIndex()
             }
           },
       )
     } else {
+      indexReady = true
       countDownLatch = CountDownLatch(0)
     }
   }
 
+  /**
+   * Loads the in-memory index. If the mapped index can be opened, the index is ready as soon as it
+   * is, otherwise the storage is listed.
+   */
+  private fun initializeIndex() {
+    val mappedIndexOpened = mappedIndex != null && mappedIndex.open()
+    if (mappedIndex != null && mappedIndexOpened) {
+      if (lruIndex == null) {
+        synchronized(lock) {
+          cacheStats.set(mappedIndex.size, mappedIndex.count.toLong())
+          cacheSizeLastUpdateTime = clock.now()
+        }
+      }
+      // hasKeySync can be answered by the mapped index already
+      indexReady = true
+      countDownLatch!!.countDown()
+    }
+    if (lruIndex != null) {
+      loadLruIndex(lruIndex)
+      if (mappedIndex != null && !mappedIndex.isOpen) {
+        mappedIndex.rebuild(lruIndex.getEntries())
+      }
+    } else if (!mappedIndexOpened) {
+      // also rebuilds the mapped index, if any
+      synchronized(lock) { maybeUpdateFileCacheSize() }
+    }
+    indexReady = true
+    countDownLatch!!.countDown()
+  }
+
   @Throws(IOException::class)
   override fun getDumpInfo(): DiskDumpInfo {
     return storage.getDumpInfo()
@@ -177,7 +271,7 @@ class DiskStorageCache(
      * Tells if memory index is completed in initialization. Only call it when you need to know if
      * memory index is completed in cold start.
      */
-    get() = indexReady || !indexPopulateAtStartupEnabled
+    get() = indexReady
 
   /**
    * Retrieves the file corresponding to the mKey, if it is in the cache. Also touches the item,
@@ -189,34 +283,36 @@ class DiskStorageCache(
    * @return The resource if present in cache, otherwise null
    */
   override fun getResource(key: CacheKey): BinaryResource? {
-    var resourceId: String? = null
     val cacheEvent = SettableCacheEvent.obtain().setCacheKey(key)
     try {
-      synchronized(lock) {
-        var resource: BinaryResource? = null
-        val resourceIds: List<String?> = CacheKeyUtil.getResourceIds(key)
-        for (i in resourceIds.indices) {
-          resourceId = resourceIds.get(i)
-          cacheEvent.setResourceId(resourceId!!)
-          resource = storage.getResource(resourceId, key)
-          if (resource != null) {
-            break
+      var resource: BinaryResource? = null
+      val resourceIds: List<String> = CacheKeyUtil.getResourceIds(key, resourceIdHasher)
+      for (i in resourceIds.indices) {
+        val resourceId = resourceIds.get(i)
+        cacheEvent.setResourceId(resourceId)
+        synchronized(lockFor(resourceId)) {
+          val found = storage.getResource(resourceId, key)
+          if (found == null) {
+            removeFromResourceIndex(resourceId)
+            removeFromIndexes(resourceId)
+          } else {
+            addToResourceIndex(resourceId)
+            touchInIndexes(resourceId, found)
           }
+          resource = found
+        }
+        if (resource != null) {
+          break
         }
+      }
+      if (cacheEventListener != null) {
         if (resource == null) {
-          if (cacheEventListener != null) {
-            cacheEventListener.onMiss(cacheEvent)
-          }
-          resourceIndex.remove(resourceId)
+          cacheEventListener.onMiss(cacheEvent)
         } else {
-          checkNotNull(resourceId)
-          if (cacheEventListener != null) {
-            cacheEventListener.onHit(cacheEvent)
-          }
-          resourceIndex.add(resourceId)
+          cacheEventListener.onHit(cacheEvent)
         }
-        return resource
       }
+      return resource
     } catch (ioe: IOException) {
       cacheErrorLogger.logError(
           CacheErrorLogger.CacheErrorCategory.GENERIC_IO,
@@ -247,17 +343,19 @@ class DiskStorageCache(
   override fun probe(key: CacheKey): Boolean {
     var resourceId: String? = null
     try {
-      synchronized(lock) {
-        val resourceIds: List<String?> = CacheKeyUtil.getResourceIds(key)
-        for (i in resourceIds.indices) {
-          resourceId = resourceIds.get(i)
-          if (storage.touch(resourceId!!, key)) {
-            resourceIndex.add(resourceId)
+      val resourceIds: List<String> = CacheKeyUtil.getResourceIds(key, resourceIdHasher)
+      for (i in resourceIds.indices) {
+        val id = resourceIds.get(i)
+        resourceId = id
+        synchronized(lockFor(id)) {
+          if (storage.touch(id, key)) {
+            addToResourceIndex(id)
+            touchInIndexes(id, null)
             return true
           }
         }
-        return false
       }
+      return false
     } catch (e: IOException) {
       val cacheEvent =
           SettableCacheEvent.obtain().setCacheKey(key).setResourceId(resourceId!!).setException(e)
@@ -269,11 +367,15 @@ class DiskStorageCache(
     }
   }
 
-  /** Creates a temp file for writing outside the session lock */
+  /** Makes room for new entries if the cache is full. */
   @Throws(IOException::class)
-  private fun startInsert(resourceId: String?, key: CacheKey?): DiskStorage.Inserter {
-    maybeEvictFilesInCacheDir()
-    return storage.insert(resourceId!!, key!!)
+  private fun prepareForInsert() {
+    if (lruIndex != null) {
+      maybeEvictAboveHardLimit()
+      maybeScheduleLruIndexMaintenance(lruIndex)
+    } else {
+      maybeEvictFilesInCacheDir()
+    }
   }
 
   /**
@@ -284,12 +386,20 @@ class DiskStorageCache(
   private fun endInsert(
       inserter: DiskStorage.Inserter,
       key: CacheKey?,
-      resourceId: String?,
+      resourceId: String,
   ): BinaryResource {
-    synchronized(lock) {
+    synchronized(lockFor(resourceId)) {
       val resource = inserter.commit(key!!)
-      resourceIndex.add(resourceId)
-      cacheStats.increment(resource.size(), 1)
+      val size = resource.size()
+      addToResourceIndex(resourceId)
+      val now = clock.now()
+      mappedIndex?.put(resourceId, size, now)
+      val previousSize = lruIndex?.put(resourceId, size, now) ?: -1
+      if (previousSize >= 0) {
+        cacheStats.increment(size - previousSize, 0)
+      } else {
+        cacheStats.increment(size, 1)
+      }
       return resource
     }
   }
@@ -298,63 +408,145 @@ class DiskStorageCache(
   override fun insert(key: CacheKey, writer: WriterCallback): BinaryResource {
     // Write to a temp file, then move it into place. This allows more parallelism
     // when writing files.
-    val cacheEvent = SettableCacheEvent.obtain().setCacheKey(key)
-    if (cacheEventListener != null) {
-      cacheEventListener.onWriteAttempt(cacheEvent)
-    }
-    val resourceId: String?
-    synchronized(lock) {
-      // for multiple resource ids associated with the same image, we only write one file
-      resourceId = CacheKeyUtil.getFirstResourceId(key)
-    }
-    cacheEvent.setResourceId(resourceId!!)
+    // for multiple resource ids associated with the same image, we only write one file
+    val resourceId: String = CacheKeyUtil.getFirstResourceId(key, resourceIdHasher)
+    val cacheEvent = obtainWriteEvent(key, resourceId)
     try {
-      // getting the file is synchronized
-      val inserter = startInsert(resourceId, key)
+      prepareForInsert()
+      val inserter = writeTempFile(resourceId, key, writer)
       try {
-        inserter.writeData(writer, key)
-        // Committing the file is synchronized
-        val resource = endInsert(inserter, key, resourceId)
-        cacheEvent.setItemSize(resource.size()).setCacheSize(cacheStats.size)
-        if (cacheEventListener != null) {
-          cacheEventListener.onWriteSuccess(cacheEvent)
-        }
-        return resource
+        return commitInsert(inserter, key, resourceId, cacheEvent)
       } finally {
-        if (!inserter.cleanUp()) {
-          FLog.e(TAG, "Failed to delete temp file")
-        }
+        cleanUpInserter(inserter)
       }
     } catch (ioe: IOException) {
-      cacheEvent.setException(ioe)
-      if (cacheEventListener != null) {
-        cacheEventListener.onWriteException(cacheEvent)
-      }
-      FLog.e(TAG, "Failed inserting a file into the cache", ioe)
+      onInsertFailure(cacheEvent, ioe)
       throw ioe
     } finally {
       cacheEvent.recycle()
     }
   }
 
+  /**
+   * Checks the size of the cache once for the whole batch, writes all the temp files, and then
+   * commits them one after the other. As with [insert], a lock is only held while committing one
+   * file.
+   */
+  override fun insertBatch(
+      keys: List<CacheKey>,
+      writers: List<WriterCallback>,
+  ): List<BinaryResource?> {
+    check(keys.size == writers.size)
+    val results = arrayOfNulls<BinaryResource>(keys.size)
+    val inserters = arrayOfNulls<DiskStorage.Inserter>(keys.size)
+    val resourceIds = keys.map { CacheKeyUtil.getFirstResourceId(it, resourceIdHasher) }
+    val cacheEvents = Array(keys.size) { i -> obtainWriteEvent(keys[i], resourceIds[i]) }
+    try {
+      val prepareException =
+          try {
+            prepareForInsert()
+            null
+          } catch (ioe: IOException) {
+            ioe
+          }
+      for (i in keys.indices) {
+        if (prepareException != null) {
+          onInsertFailure(cacheEvents[i], prepareException)
+          continue
+        }
+        try {
+          inserters[i] = writeTempFile(resourceIds[i], keys[i], writers[i])
+        } catch (ioe: IOException) {
+          onInsertFailure(cacheEvents[i], ioe)
+        }
+      }
+      for (i in keys.indices) {
+        val inserter = inserters[i] ?: continue
+        try {
+          results[i] = commitInsert(inserter, keys[i], resourceIds[i], cacheEvents[i])
+        } catch (ioe: IOException) {
+          onInsertFailure(cacheEvents[i], ioe)
+        }
+      }
+    } finally {
+      for (inserter in inserters) {
+        inserter?.let { cleanUpInserter(it) }
+      }
+      for (cacheEvent in cacheEvents) {
+        cacheEvent.recycle()
+      }
+    }
+    return results.asList()
+  }
+
+  /** Obtains the event of a write, and reports the write attempt. */
+  private fun obtainWriteEvent(key: CacheKey, resourceId: String): SettableCacheEvent {
+    val cacheEvent = SettableCacheEvent.obtain().setCacheKey(key).setResourceId(resourceId)
+    cacheEventListener?.onWriteAttempt(cacheEvent)
+    return cacheEvent
+  }
+
+  /** Writes a temp file outside the session lock, deleting it if the write fails. */
+  @Throws(IOException::class)
+  private fun writeTempFile(
+      resourceId: String,
+      key: CacheKey,
+      writer: WriterCallback,
+  ): DiskStorage.Inserter {
+    val inserter = storage.insert(resourceId, key)
+    try {
+      inserter.writeData(writer, key)
+    } catch (ioe: IOException) {
+      cleanUpInserter(inserter)
+      throw ioe
+    }
+    return inserter
+  }
+
+  /** Commits a temp file, which is synchronized, and reports the successful write. */
+  @Throws(IOException::class)
+  private fun commitInsert(
+      inserter: DiskStorage.Inserter,
+      key: CacheKey,
+      resourceId: String,
+      cacheEvent: SettableCacheEvent,
+  ): BinaryResource {
+    val resource = endInsert(inserter, key, resourceId)
+    cacheEvent.setItemSize(resource.size()).setCacheSize(cacheStats.size)
+    cacheEventListener?.onWriteSuccess(cacheEvent)
+    return resource
+  }
+
+  private fun onInsertFailure(cacheEvent: SettableCacheEvent, ioe: IOException) {
+    cacheEvent.setException(ioe)
+    cacheEventListener?.onWriteException(cacheEvent)
+    FLog.e(TAG, "Failed inserting a file into the cache", ioe)
+  }
+
+  private fun cleanUpInserter(inserter: DiskStorage.Inserter) {
+    if (!inserter.cleanUp()) {
+      FLog.e(TAG, "Failed to delete temp file")
+    }
+  }
+
   override fun remove(key: CacheKey) {
-    synchronized(lock) {
-      try {
-        var resourceId: String?
-        val resourceIds: List<String> = CacheKeyUtil.getResourceIds(key)
-        for (i in resourceIds.indices) {
-          resourceId = resourceIds.get(i)
+    try {
+      val resourceIds: List<String> = CacheKeyUtil.getResourceIds(key, resourceIdHasher)
+      for (i in resourceIds.indices) {
+        val resourceId = resourceIds.get(i)
+        synchronized(lockFor(resourceId)) {
           storage.remove(resourceId)
-          resourceIndex.remove(resourceId)
+          removeFromResourceIndex(resourceId)
+          removeFromIndexes(resourceId)
         }
-      } catch (e: IOException) {
-        cacheErrorLogger.logError(
-            CacheErrorLogger.CacheErrorCategory.DELETE_FILE,
-            TAG,
-            "delete: " + e.message,
-            e,
-        )
       }
+    } catch (e: IOException) {
+      cacheErrorLogger.logError(
+          CacheErrorLogger.CacheErrorCategory.DELETE_FILE,
+          TAG,
+          "delete: " + e.message,
+          e,
+      )
     }
   }
 
@@ -369,7 +561,7 @@ class DiskStorageCache(
     synchronized(lock) {
       try {
         val now = clock.now()
-        val allEntries = storage.getEntries()
+        val allEntries = lruIndex?.getEntries() ?: storage.getEntries()
         val cacheSizeBeforeClearance = cacheStats.size
         var itemsRemovedCount = 0
         var itemsRemovedSize = 0L
@@ -377,8 +569,7 @@ class DiskStorageCache(
           // entry age of zero is disallowed.
           val entryAgeMs = max(1.0, abs((now - entry.getTimestamp()).toDouble())).toLong()
           if (entryAgeMs >= cacheExpirationMs) {
-            val entryRemovedSize = storage.remove(entry)
-            resourceIndex.remove(entry.getId())
+            val entryRemovedSize = removeEntry(entry)
             if (entryRemovedSize > 0) {
               itemsRemovedCount++
               itemsRemovedSize += entryRemovedSize
@@ -398,7 +589,9 @@ class DiskStorageCache(
                 max(oldestRemainingEntryAgeMs.toDouble(), entryAgeMs.toDouble()).toLong()
           }
         }
-        storage.purgeUnexpectedResources()
+        if (lruIndex == null) {
+          storage.purgeUnexpectedResources()
+        }
         if (itemsRemovedCount > 0) {
           maybeUpdateFileCacheSize()
           cacheStats.increment(-itemsRemovedSize, -itemsRemovedCount.toLong())
@@ -446,9 +639,14 @@ class DiskStorageCache(
   @GuardedBy("lock")
   @Throws(IOException::class)
   private fun evictAboveSize(desiredSize: Long, reason: EvictionReason?) {
-    val entries: MutableCollection<DiskStorage.Entry>?
+    val entries: Collection<DiskStorage.Entry>
     try {
-      entries = getSortedEntries(storage.getEntries())
+      entries =
+          if (lruIndex != null) {
+            lruIndex.getEvictionCandidates(cacheStats.size - desiredSize)
+          } else {
+            getSortedEntries(storage.getEntries())
+          }
     } catch (ioe: IOException) {
       cacheErrorLogger.logError(
           CacheErrorLogger.CacheErrorCategory.EVICTION,
@@ -467,8 +665,7 @@ class DiskStorageCache(
       if (sumItemSizes > (deleteSize)) {
         break
       }
-      val deletedSize = storage.remove(entry)
-      resourceIndex.remove(entry.getId())
+      val deletedSize = removeEntry(entry)
       if (deletedSize > 0) {
         itemCount++
         sumItemSizes += deletedSize
@@ -486,7 +683,214 @@ class DiskStorageCache(
       }
     }
     cacheStats.increment(-sumItemSizes, -itemCount.toLong())
-    storage.purgeUnexpectedResources()
+    if (lruIndex == null) {
+      storage.purgeUnexpectedResources()
+    }
+  }
+
+  /**
+   * Removes an entry found while holding the global lock, also taking its key lock so that the
+   * storage and the index are updated atomically with respect to single-key operations.
+   */
+  @GuardedBy("lock")
+  @Throws(IOException::class)
+  private fun removeEntry(entry: DiskStorage.Entry): Long {
+    synchronized(lockFor(entry.getId())) {
+      val removedSize =
+          if (entry is DiskCacheIndex.IndexEntry) storage.remove(entry.getId())
+          else storage.remove(entry)
+      removeFromResourceIndex(entry.getId())
+      lruIndex?.remove(entry.getId())
+      mappedIndex?.remove(entry.getId())
+      return removedSize
+    }
+  }
+
+  /**
+   * Updates the last access time of a resource found in the storage. If the resource is given, it
+   * is added to the LRU index when unknown to it. As reads don't go through [prepareForInsert], the
+   * journal of the touches is written once enough of them accumulate.
+   */
+  private fun touchInIndexes(resourceId: String, resource: BinaryResource?) {
+    val now = clock.now()
+    mappedIndex?.touch(resourceId, now)
+    if (lruIndex != null) {
+      if (!lruIndex.touch(resourceId, now) && resource != null) {
+        val size = resource.size()
+        val previousSize = lruIndex.put(resourceId, size, now)
+        cacheStats.increment(size - max(previousSize, 0L), if (previousSize >= 0) 0L else 1L)
+      }
+      maybeScheduleLruIndexMaintenance(lruIndex)
+    }
+  }
+
+  /** Removes a resource that is no longer in the storage from the indexes and the cache size. */
+  private fun removeFromIndexes(resourceId: String) {
+    mappedIndex?.remove(resourceId)
+    val removedSize = lruIndex?.remove(resourceId) ?: -1
+    if (removedSize >= 0) {
+      cacheStats.increment(-removedSize, -1)
+    }
+  }
+
+  /** Restores the LRU index from its journal, or from a listing of the storage if there's none. */
+  private fun loadLruIndex(index: DiskCacheIndex) {
+    if (!index.load()) {
+      rebuildLruIndex(index)
+    }
+    synchronized(lock) {
+      cacheStats.set(index.size, index.count.toLong())
+      cacheSizeLastUpdateTime = index.lastFullScanTime
+      if (indexPopulateAtStartupEnabled) {
+        resourceIndex.addAll(index.getResourceIds())
+      }
+    }
+    lruIndexMaintenanceTime = clock.now()
+    index.flush()
+  }
+
+  /** Rebuilds the LRU index from a listing of the storage, which is done outside of the lock. */
+  private fun rebuildLruIndex(index: DiskCacheIndex) {
+    val now = clock.now()
+    try {
+      index.rebuild(getSortedEntries(storage.getEntries()), now)
+      mappedIndex?.rebuild(index.getEntries())
+    } catch (ioe: IOException) {
+      cacheErrorLogger.logError(
+          CacheErrorLogger.CacheErrorCategory.GENERIC_IO,
+          TAG,
+          "rebuildLruIndex: " + ioe.message,
+          ioe,
+      )
+    }
+  }
+
+  /**
+   * Evicts inline when the background eviction of the LRU index falls too far behind a burst of
+   * inserts, so that the cache never grows above its limit by more than half of it.
+   */
+  @Throws(IOException::class)
+  private fun maybeEvictAboveHardLimit() {
+    if (!cacheStats.isInitialized || cacheStats.size <= getHardSizeLimit()) {
+      return
+    }
+    synchronized(lock) {
+      if (cacheStats.size > getHardSizeLimit()) {
+        evictAboveSize(cacheSizeLimit * 9 / 10, EvictionReason.CACHE_FULL) // 90%
+      }
+    }
+  }
+
+  private fun getHardSizeLimit(): Long = cacheSizeLimit + cacheSizeLimit / 2
+
+  /**
+   * Schedules a maintenance pass of the LRU index on the background executor if the cache is above
+   * its limit, the journal has enough unwritten changes, or the last pass is too old. It doesn't
+   * access the storage, so it's cheap enough for the insert and read paths.
+   */
+  private fun maybeScheduleLruIndexMaintenance(index: DiskCacheIndex) {
+    if (!cacheStats.isInitialized) {
+      // the index is still loading
+      return
+    }
+    if (
+        (cacheStats.size > cacheSizeLimit ||
+            index.pendingRecordCount >= LRU_JOURNAL_FLUSH_THRESHOLD ||
+            index.pendingRecordBytes >= LRU_JOURNAL_FLUSH_THRESHOLD_BYTES ||
+            clock.now() - lruIndexMaintenanceTime > LRU_INDEX_MAINTENANCE_PERIOD_MS) &&
+            lruIndexMaintenanceScheduled.compareAndSet(false, true)
+    ) {
+      backgroundExecutor.execute(
+          object : Runnable {
+            override fun run() {
+              runLruIndexMaintenance(index)
+            }
+          },
+      )
+    }
+  }
+
+  /**
+   * Evicts the least recently used entries if the cache is above its limit and writes the journal.
+   * Every [FILECACHE_SIZE_UPDATE_PERIOD_MS] the index is also reconciled with a listing of the
+   * storage, in case files changed behind its back.
+   */
+  private fun runLruIndexMaintenance(index: DiskCacheIndex) {
+    lruIndexMaintenanceScheduled.set(false)
+    val now = clock.now()
+    lruIndexMaintenanceTime = now
+    val reconcile =
+        synchronized(lock) { now - cacheSizeLastUpdateTime > FILECACHE_SIZE_UPDATE_PERIOD_MS }
+    if (reconcile) {
+      rebuildLruIndex(index)
+      storage.purgeUnexpectedResources()
+    }
+    synchronized(lock) {
+      if (reconcile) {
+        cacheStats.set(index.size, index.count.toLong())
+        cacheSizeLastUpdateTime = now
+      }
+      updateFileCacheSizeLimit()
+      if (cacheStats.size > cacheSizeLimit) {
+        try {
+          evictAboveSize(cacheSizeLimit * 9 / 10, EvictionReason.CACHE_FULL) // 90%
+        } catch (ioe: IOException) {
+          // already logged, the next pass will try again
+        }
+      }
+    }
+    index.flush()
+  }
+
+  private fun newResourceIndex(): MutableSet<String?> =
+      if (keyLocks != null) Collections.newSetFromMap(ConcurrentHashMap<String?, Boolean>())
+      else HashSet<String?>()
+
+  // The change is recorded before the index is updated, so that a change made to the index being
+  // replaced is replayed on the rebuilt one.
+  private fun addToResourceIndex(resourceId: String) {
+    resourceIndexChanges?.put(resourceId, true)
+    resourceIndex.add(resourceId)
+  }
+
+  private fun removeFromResourceIndex(resourceId: String) {
+    resourceIndexChanges?.put(resourceId, false)
+    resourceIndex.remove(resourceId)
+  }
+
+  /**
+   * Replaces the resource index with one rebuilt from a listing of the storage. Single-key
+   * operations run concurrently when striped: their changes since the listing started are replayed
+   * on the new index, before and after it is published.
+   */
+  @GuardedBy("lock")
+  private fun publishResourceIndex(newIndex: MutableSet<String?>, changes: Map<String, Boolean>) {
+    replayResourceIndexChanges(newIndex, changes)
+    resourceIndex = newIndex
+    replayResourceIndexChanges(newIndex, changes)
+  }
+
+  private fun replayResourceIndexChanges(
+      index: MutableSet<String?>,
+      changes: Map<String, Boolean>,
+  ) {
+    for ((resourceId, added) in changes) {
+      if (added) {
+        index.add(resourceId)
+      } else {
+        index.remove(resourceId)
+      }
+    }
+  }
+
+  /**
+   * Returns the lock guarding single-key state for the given resourceId: one of the stripes if lock
+   * striping is enabled, the global lock otherwise. The global lock is always acquired before a key
+   * lock, never the other way around.
+   */
+  private fun lockFor(resourceId: String): Any {
+    val locks = keyLocks ?: return lock
+    return locks[(resourceId.hashCode() and Int.MAX_VALUE) % locks.size]
   }
 
   /**
@@ -546,7 +950,9 @@ class DiskStorageCache(
     synchronized(lock) {
       try {
         storage.clearAll()
-        resourceIndex.clear()
+        resourceIndex = newResourceIndex()
+        lruIndex?.clear()
+        mappedIndex?.clear()
         if (cacheEventListener != null) {
           cacheEventListener.onCleared()
         }
@@ -565,43 +971,55 @@ class DiskStorageCache(
             e,
         )
       }
-      cacheStats.reset()
+      if (lruIndex != null) {
+        cacheStats.set(0, 0)
+      } else {
+        cacheStats.reset()
+      }
     }
   }
 
   override fun hasKeySync(key: CacheKey): Boolean {
-    synchronized(lock) {
-      var resourceId: String?
-      val resourceIds: List<String?> = CacheKeyUtil.getResourceIds(key)
-      for (i in resourceIds.indices) {
-        resourceId = resourceIds.get(i)
+    val resourceIds: List<String> = CacheKeyUtil.getResourceIds(key, resourceIdHasher)
+    for (i in resourceIds.indices) {
+      val resourceId = resourceIds.get(i)
+      if (mappedIndex != null && mappedIndex.contains(resourceId)) {
+        return true
+      }
+      if (keyLocks != null) {
+        // the striped index is a concurrent set, no need to lock for a lookup
         if (resourceIndex.contains(resourceId)) {
           return true
         }
+      } else {
+        synchronized(lock) {
+          if (resourceIndex.contains(resourceId)) {
+            return true
+          }
+        }
       }
-      return false
     }
+    return false
   }
 
   override fun hasKey(key: CacheKey): Boolean {
-    synchronized(lock) {
-      if (hasKeySync(key)) {
-        return true
-      }
-      try {
-        var resourceId: String?
-        val resourceIds: List<String> = CacheKeyUtil.getResourceIds(key)
-        for (i in resourceIds.indices) {
-          resourceId = resourceIds.get(i)
+    if (hasKeySync(key)) {
+      return true
+    }
+    try {
+      val resourceIds: List<String> = CacheKeyUtil.getResourceIds(key, resourceIdHasher)
+      for (i in resourceIds.indices) {
+        val resourceId = resourceIds.get(i)
+        synchronized(lockFor(resourceId)) {
           if (storage.contains(resourceId, key)) {
-            resourceIndex.add(resourceId)
+            addToResourceIndex(resourceId)
             return true
           }
         }
-        return false
-      } catch (e: IOException) {
-        return false
       }
+      return false
+    } catch (e: IOException) {
+      return false
     }
   }
 
@@ -626,9 +1044,11 @@ class DiskStorageCache(
   private fun trimBy(trimRatio: Double) {
     synchronized(lock) {
       try {
-        // Force update the ground truth if we are about to evict
-        cacheStats.reset()
-        maybeUpdateFileCacheSize()
+        if (lruIndex == null) {
+          // Force update the ground truth if we are about to evict
+          cacheStats.reset()
+          maybeUpdateFileCacheSize()
+        }
         val cacheSize = cacheStats.size
         val newMaxBytesInFiles = cacheSize - (trimRatio * cacheSize).toLong()
         evictAboveSize(newMaxBytesInFiles, EvictionReason.CACHE_MANAGER_TRIMMED)
@@ -651,6 +1071,10 @@ class DiskStorageCache(
    */
   @GuardedBy("lock")
   private fun maybeUpdateFileCacheSize(): Boolean {
+    if (lruIndex != null) {
+      // the size is kept up to date by the LRU index
+      return false
+    }
     val now = clock.now()
     if (
         (!cacheStats.isInitialized) ||
@@ -672,14 +1096,12 @@ class DiskStorageCache(
     var maxTimeDelta: Long = -1
     val now = clock.now()
     val timeThreshold: Long = now + FUTURE_TIMESTAMP_THRESHOLD_MS
-    val tempResourceIndex: MutableSet<String?>?
-    if (indexPopulateAtStartupEnabled && resourceIndex.isEmpty()) {
-      tempResourceIndex = resourceIndex
-    } else if (indexPopulateAtStartupEnabled) {
-      tempResourceIndex = HashSet<String?>()
-    } else {
-      tempResourceIndex = null
-    }
+    // Built aside and then published, so that lookups never see a partial index
+    val tempResourceIndex: MutableSet<String?>? =
+        if (indexPopulateAtStartupEnabled) newResourceIndex() else null
+    val changes: MutableMap<String, Boolean>? =
+        if (tempResourceIndex != null) ConcurrentHashMap<String, Boolean>() else null
+    resourceIndexChanges = changes
     try {
       val entries = storage.getEntries()
       for (entry in entries) {
@@ -712,14 +1134,21 @@ class DiskStorageCache(
             null,
         )
       }
-      if (cacheStats.count != count.toLong() || cacheStats.size != size) {
-        if (indexPopulateAtStartupEnabled && resourceIndex !== tempResourceIndex) {
-          checkNotNull(tempResourceIndex)
-          resourceIndex.clear()
-          resourceIndex.addAll(tempResourceIndex)
-        }
+      val statsChanged = cacheStats.count != count.toLong() || cacheStats.size != size
+      if (
+          tempResourceIndex != null && changes != null && (statsChanged || resourceIndex.isEmpty())
+      ) {
+        publishResourceIndex(tempResourceIndex, changes)
+      }
+      if (statsChanged) {
         cacheStats.set(size, count.toLong())
       }
+      if (
+          mappedIndex != null &&
+              (!mappedIndex.isOpen || mappedIndex.count != count || mappedIndex.size != size)
+      ) {
+        mappedIndex.rebuild(entries)
+      }
     } catch (ioe: IOException) {
       cacheErrorLogger.logError(
           CacheErrorLogger.CacheErrorCategory.GENERIC_IO,
@@ -728,6 +1157,8 @@ class DiskStorageCache(
           ioe,
       )
       return false
+    } finally {
+      resourceIndexChanges = null
     }
     cacheSizeLastUpdateTime = now
     return true
@@ -745,6 +1176,14 @@ class DiskStorageCache(
     // Force recalculation of the ground truth for filecache size at this interval
     private val FILECACHE_SIZE_UPDATE_PERIOD_MS = TimeUnit.MINUTES.toMillis(30)
     private const val TRIMMING_LOWER_BOUND = 0.02
+    private const val LRU_JOURNAL_NAME = "lru_journal"
+    private const val MAPPED_INDEX_NAME = "mapped_index"
+    // Number of unwritten changes of the LRU index after which its journal is flushed
+    private const val LRU_JOURNAL_FLUSH_THRESHOLD = 256
+    // Size of the unwritten changes of the LRU index after which its journal is flushed, reached
+    // before the count with long resource ids
+    private const val LRU_JOURNAL_FLUSH_THRESHOLD_BYTES = 16 * 1024
+    private val LRU_INDEX_MAINTENANCE_PERIOD_MS = TimeUnit.MINUTES.toMillis(1)
     private val UNINITIALIZED: Long = -1
   }
 }
@@ -10,15 +10,18 @@ package com.facebook.cache.disk;
 import androidx.annotation.VisibleForTesting;
 import com.facebook.binaryresource.BinaryResource;
 import com.facebook.cache.common.CacheErrorLogger;
+import com.facebook.common.executors.CallerThreadExecutor;
 import com.facebook.common.file.FileTree;
 import com.facebook.common.file.FileUtils;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.Supplier;
 import com.facebook.common.logging.FLog;
 import com.facebook.infer.annotation.Nullsafe;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 import javax.annotation.Nullable;
 
 /** A supplier of a DiskStorage concrete implementation. */
@@ -30,6 +33,8 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
   private final Supplier<File> mBaseDirectoryPathSupplier;
   private final String mBaseDirectoryName;
   private final CacheErrorLogger mCacheErrorLogger;
+  private final int mPackedStorageMaxEntrySize;
+  private final Executor mCompactionExecutor;
 
   @VisibleForTesting volatile State mCurrentState;
 
@@ -51,10 +56,33 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
       Supplier<File> baseDirectoryPathSupplier,
       String baseDirectoryName,
       CacheErrorLogger cacheErrorLogger) {
+    this(
+        version,
+        baseDirectoryPathSupplier,
+        baseDirectoryName,
+        cacheErrorLogger,
+        0,
+        CallerThreadExecutor.getInstance());
+  }
+
+  /**
+   * @param packedStorageMaxEntrySize if positive, entries up to this size are stored by a {@link
+   *     PackedDiskStorage}
+   * @param compactionExecutor executor compacting the segments of the {@link PackedDiskStorage}
+   */
+  public DynamicDefaultDiskStorage(
+      int version,
+      Supplier<File> baseDirectoryPathSupplier,
+      String baseDirectoryName,
+      CacheErrorLogger cacheErrorLogger,
+      int packedStorageMaxEntrySize,
+      Executor compactionExecutor) {
     mVersion = version;
     mCacheErrorLogger = cacheErrorLogger;
     mBaseDirectoryPathSupplier = baseDirectoryPathSupplier;
     mBaseDirectoryName = baseDirectoryName;
+    mPackedStorageMaxEntrySize = packedStorageMaxEntrySize;
+    mCompactionExecutor = compactionExecutor;
     mCurrentState = new State(null, null);
   }
 
@@ -85,6 +113,15 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
     }
   }
 
+  @Override
+  public @Nullable File getMetadataFile(String name) {
+    try {
+      return get().getMetadataFile(name);
+    } catch (IOException ioe) {
+      return null;
+    }
+  }
+
   @Override
   public @Nullable BinaryResource getResource(String resourceId, Object debugInfo)
       throws IOException {
@@ -169,6 +206,14 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
   @VisibleForTesting
   void deleteOldStorageIfNecessary() {
     if (mCurrentState.delegate != null && mCurrentState.rootDirectory != null) {
+      DiskStorage delegate = mCurrentState.delegate;
+      if (delegate instanceof Closeable) {
+        try {
+          ((Closeable) delegate).close();
+        } catch (IOException ioe) {
+          FLog.e(TAG, "deleteOldStorageIfNecessary", ioe);
+        }
+      }
       // LATER: Actually delegate this call to the storage. We shouldn't be
       // making an end-run around it
       FileTree.deleteRecursively(mCurrentState.rootDirectory);
@@ -178,7 +223,15 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
   private void createStorage() throws IOException {
     File rootDirectory = new File(mBaseDirectoryPathSupplier.get(), mBaseDirectoryName);
     createRootDirectoryIfNecessary(rootDirectory);
-    DiskStorage storage = new DefaultDiskStorage(rootDirectory, mVersion, mCacheErrorLogger);
+    DiskStorage storage =
+        mPackedStorageMaxEntrySize > 0
+            ? new PackedDiskStorage(
+                rootDirectory,
+                mVersion,
+                mCacheErrorLogger,
+                mPackedStorageMaxEntrySize,
+                mCompactionExecutor)
+            : new DefaultDiskStorage(rootDirectory, mVersion, mCacheErrorLogger);
     mCurrentState = new State(rootDirectory, storage);
   }
 
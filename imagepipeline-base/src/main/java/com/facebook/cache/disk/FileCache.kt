@@ -52,6 +52,23 @@ interface FileCache : DiskTrimmable {
    */
   @Throws(IOException::class) fun insert(key: CacheKey, writer: WriterCallback): BinaryResource?
 
+  /**
+   * Inserts several resources, with the same outcome as calling [insert] for each of them.
+   * Implementations can share work between the inserts, e.g. check the size of the cache once.
+   *
+   * @param keys cache keys
+   * @param writers callbacks writing the resources of the keys, in the same order
+   * @return the inserted resources, in the same order, null for the inserts that failed
+   */
+  fun insertBatch(keys: List<CacheKey>, writers: List<WriterCallback>): List<BinaryResource?> =
+      keys.indices.map { i ->
+        try {
+          insert(keys[i], writers[i])
+        } catch (ioe: IOException) {
+          null
+        }
+      }
+
   /**
    * Removes a resource by key from cache.
    *
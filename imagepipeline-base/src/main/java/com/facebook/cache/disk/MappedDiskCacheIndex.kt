@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk
+
+import androidx.annotation.VisibleForTesting
+import com.facebook.common.internal.Supplier
+import com.facebook.common.logging.FLog
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.atomic.AtomicLong
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * Persistent index of the entries of a [DiskStorage], kept in a memory-mapped file as an open
+ * addressing hash table of fixed-size records. Each record holds the hash of a resourceId, the size
+ * of the entry and its last access time, and the header holds the entry count and total size.
+ *
+ * Mapping the file is all it takes to make the index usable, so after a cold start
+ * [DiskStorageCache] can answer [DiskStorageCache.hasKeySync] and knows its size within
+ * milliseconds, instead of after a walk of the storage. Changes are written straight to the mapped
+ * pages, which the OS persists even if the process dies.
+ *
+ * The generation counter in the header is odd while the table is being modified. A file left with
+ * an odd generation, or with an invalid header, is rejected by [open] and has to be [rebuild]-t.
+ *
+ * Lookups don't take the lock of the index: they read the table optimistically and only retry under
+ * the lock if a modification ran concurrently, so that [DiskStorageCache.hasKeySync] calls don't
+ * serialize. The table is always recreated in a new file, so a stale mapping stays readable.
+ */
+@ThreadSafe
+class MappedDiskCacheIndex(private val fileSupplier: Supplier<File?>) {
+
+  // Written under the lock, read optimistically by contains
+  @Volatile private var buffer: MappedByteBuffer? = null
+
+  @Volatile private var capacity = 0
+
+  // Odd while the table is modified, checked by the optimistic lookups
+  private val sequence = AtomicLong()
+
+  @GuardedBy("this") private var generation = 0L
+
+  @GuardedBy("this") private var entryCount = 0
+
+  @GuardedBy("this") private var tombstoneCount = 0
+
+  @GuardedBy("this") private var totalSize = 0L
+
+  /** Whether the table is mapped. All the operations are no-ops until it is. */
+  @get:Synchronized
+  val isOpen: Boolean
+    get() = buffer != null
+
+  /** Total size in bytes of the indexed entries. */
+  @get:Synchronized
+  val size: Long
+    get() = totalSize
+
+  /** Number of indexed entries. */
+  @get:Synchronized
+  val count: Int
+    get() = entryCount
+
+  /**
+   * Maps the index file.
+   *
+   * @return false if the file is missing or was not left in a consistent state
+   */
+  @Synchronized
+  fun open(): Boolean {
+    val file = fileSupplier.get()
+    if (file == null || !file.exists()) {
+      return false
+    }
+    try {
+      RandomAccessFile(file, "rw").use { randomAccessFile ->
+        val length = randomAccessFile.length()
+        if (length < HEADER_SIZE || length > Int.MAX_VALUE) {
+          return false
+        }
+        val mapped = randomAccessFile.channel.map(FileChannel.MapMode.READ_WRITE, 0, length)
+        val storedCapacity = mapped.getInt(CAPACITY_OFFSET)
+        val storedCount = mapped.getInt(COUNT_OFFSET)
+        val storedTombstones = mapped.getInt(TOMBSTONES_OFFSET)
+        val storedGeneration = mapped.getLong(GENERATION_OFFSET)
+        val valid =
+            mapped.getInt(MAGIC_OFFSET) == MAGIC &&
+                mapped.getInt(FORMAT_VERSION_OFFSET) == FORMAT_VERSION &&
+                storedGeneration % 2 == 0L &&
+                storedCapacity >= MIN_CAPACITY &&
+                Integer.bitCount(storedCapacity) == 1 &&
+                length == HEADER_SIZE + storedCapacity.toLong() * RECORD_SIZE &&
+                storedCount >= 0 &&
+                storedTombstones >= 0 &&
+                storedCount + storedTombstones < storedCapacity &&
+                mapped.getLong(TOTAL_SIZE_OFFSET) >= 0
+        if (!valid) {
+          FLog.w(TAG, "Discarding inconsistent disk cache index %s", file)
+          return false
+        }
+        buffer = mapped
+        generation = storedGeneration
+        capacity = storedCapacity
+        entryCount = storedCount
+        tombstoneCount = storedTombstones
+        totalSize = mapped.getLong(TOTAL_SIZE_OFFSET)
+        return true
+      }
+    } catch (ioe: IOException) {
+      FLog.w(TAG, "Failed to map the disk cache index", ioe)
+      return false
+    }
+  }
+
+  /** Recreates the index file with the given entries, and maps it. */
+  @Synchronized
+  fun rebuild(entries: Collection<DiskStorage.Entry>): Boolean {
+    val hashes = LongArray(entries.size)
+    val sizes = LongArray(entries.size)
+    val timestamps = LongArray(entries.size)
+    var i = 0
+    for (entry in entries) {
+      hashes[i] = hash(entry.getId())
+      sizes[i] = entry.getSize()
+      timestamps[i] = entry.getTimestamp()
+      i++
+    }
+    return createTable(capacityFor(entries.size), hashes, sizes, timestamps, entries.size)
+  }
+
+  fun contains(resourceId: String): Boolean {
+    val hash = hash(resourceId)
+    val stamp = sequence.get()
+    if (stamp % 2 == 0L) {
+      val found =
+          try {
+            val mapped = buffer
+            mapped != null && findSlot(mapped, capacity, hash) >= 0
+          } catch (e: IndexOutOfBoundsException) {
+            // the table was replaced while it was read
+            false
+          }
+      // The no-op compare-and-set orders the reads of the table before the validation
+      if (sequence.compareAndSet(stamp, stamp)) {
+        return found
+      }
+    }
+    synchronized(this) {
+      val mapped = buffer ?: return false
+      return findSlot(mapped, capacity, hash) >= 0
+    }
+  }
+
+  /** Adds or replaces an entry. */
+  @Synchronized
+  fun put(resourceId: String, size: Long, timestamp: Long) {
+    val hash = hash(resourceId)
+    var mapped = buffer ?: return
+    var slot = findSlot(mapped, capacity, hash)
+    if (slot < 0 && (entryCount + tombstoneCount + 1) * 4 > capacity * 3) {
+      // grow if the table is mostly live entries, otherwise just get rid of the tombstones
+      if (!resize(if ((entryCount + 1) * 2 > capacity) capacity * 2 else capacity)) {
+        return
+      }
+      mapped = buffer ?: return
+      slot = findSlot(mapped, capacity, hash)
+    }
+    beginModification(mapped)
+    if (slot >= 0) {
+      totalSize += size - mapped.getLong(recordOffset(slot) + SIZE_OFFSET)
+    } else {
+      slot = -slot - 1
+      if (mapped.getLong(recordOffset(slot)) == TOMBSTONE) {
+        tombstoneCount--
+      }
+      entryCount++
+      totalSize += size
+      mapped.putLong(recordOffset(slot), hash)
+    }
+    mapped.putLong(recordOffset(slot) + SIZE_OFFSET, size)
+    mapped.putLong(recordOffset(slot) + TIMESTAMP_OFFSET, timestamp)
+    endModification(mapped)
+  }
+
+  /** Updates the last access time of an entry, if it is in the index. */
+  @Synchronized
+  fun touch(resourceId: String, timestamp: Long) {
+    val mapped = buffer ?: return
+    val slot = findSlot(mapped, capacity, hash(resourceId))
+    if (slot >= 0) {
+      // a single aligned write, no need to bump the generation
+      mapped.putLong(recordOffset(slot) + TIMESTAMP_OFFSET, timestamp)
+    }
+  }
+
+  @Synchronized
+  fun remove(resourceId: String) {
+    val mapped = buffer ?: return
+    val slot = findSlot(mapped, capacity, hash(resourceId))
+    if (slot < 0) {
+      return
+    }
+    beginModification(mapped)
+    mapped.putLong(recordOffset(slot), TOMBSTONE)
+    totalSize -= mapped.getLong(recordOffset(slot) + SIZE_OFFSET)
+    entryCount--
+    tombstoneCount++
+    endModification(mapped)
+  }
+
+  /** Empties the index, recreating its file if it was deleted along with the storage contents. */
+  @Synchronized
+  fun clear() {
+    createTable(MIN_CAPACITY, LongArray(0), LongArray(0), LongArray(0), 0)
+  }
+
+  @GuardedBy("this")
+  private fun resize(newCapacity: Int): Boolean {
+    val mapped = buffer ?: return false
+    val hashes = LongArray(entryCount)
+    val sizes = LongArray(entryCount)
+    val timestamps = LongArray(entryCount)
+    var n = 0
+    for (slot in 0 until capacity) {
+      val offset = recordOffset(slot)
+      val hash = mapped.getLong(offset)
+      if (hash != EMPTY && hash != TOMBSTONE && n < entryCount) {
+        hashes[n] = hash
+        sizes[n] = mapped.getLong(offset + SIZE_OFFSET)
+        timestamps[n] = mapped.getLong(offset + TIMESTAMP_OFFSET)
+        n++
+      }
+    }
+    return createTable(newCapacity, hashes, sizes, timestamps, n)
+  }
+
+  /**
+   * Creates a new index file sized for the given capacity, fills it with the given records and
+   * replaces the previous one with it. The previous mapping stays valid for concurrent lookups.
+   */
+  @GuardedBy("this")
+  private fun createTable(
+      newCapacity: Int,
+      hashes: LongArray,
+      sizes: LongArray,
+      timestamps: LongArray,
+      n: Int,
+  ): Boolean {
+    sequence.incrementAndGet()
+    try {
+      buffer = null
+      val file = fileSupplier.get() ?: return false
+      val tempFile = File(file.path + TEMP_FILE_SUFFIX)
+      tempFile.delete()
+      RandomAccessFile(tempFile, "rw").use { randomAccessFile ->
+        val length = HEADER_SIZE + newCapacity.toLong() * RECORD_SIZE
+        // a new file reads as empty slots
+        randomAccessFile.setLength(length)
+        val mapped = randomAccessFile.channel.map(FileChannel.MapMode.READ_WRITE, 0, length)
+        capacity = newCapacity
+        entryCount = 0
+        tombstoneCount = 0
+        totalSize = 0
+        generation = 1
+        mapped.putLong(GENERATION_OFFSET, generation)
+        mapped.putInt(MAGIC_OFFSET, MAGIC)
+        mapped.putInt(FORMAT_VERSION_OFFSET, FORMAT_VERSION)
+        mapped.putInt(CAPACITY_OFFSET, capacity)
+        for (i in 0 until n) {
+          val slot = findSlot(mapped, newCapacity, hashes[i])
+          if (slot < 0) {
+            val offset = recordOffset(-slot - 1)
+            mapped.putLong(offset, hashes[i])
+            mapped.putLong(offset + SIZE_OFFSET, sizes[i])
+            mapped.putLong(offset + TIMESTAMP_OFFSET, timestamps[i])
+            entryCount++
+            totalSize += sizes[i]
+          }
+        }
+        writeHeader(mapped)
+        if (!tempFile.renameTo(file)) {
+          tempFile.delete()
+          throw IOException("Failed to rename " + tempFile + " to " + file)
+        }
+        buffer = mapped
+        return true
+      }
+    } catch (ioe: IOException) {
+      FLog.w(TAG, "Failed to create the disk cache index", ioe)
+      return false
+    } finally {
+      sequence.incrementAndGet()
+    }
+  }
+
+  @GuardedBy("this")
+  private fun beginModification(mapped: MappedByteBuffer) {
+    sequence.incrementAndGet()
+    generation++
+    mapped.putLong(GENERATION_OFFSET, generation)
+  }
+
+  @GuardedBy("this")
+  private fun endModification(mapped: MappedByteBuffer) {
+    writeHeader(mapped)
+    sequence.incrementAndGet()
+  }
+
+  @GuardedBy("this")
+  private fun writeHeader(mapped: MappedByteBuffer) {
+    mapped.putInt(COUNT_OFFSET, entryCount)
+    mapped.putInt(TOMBSTONES_OFFSET, tombstoneCount)
+    mapped.putLong(TOTAL_SIZE_OFFSET, totalSize)
+    generation++
+    mapped.putLong(GENERATION_OFFSET, generation)
+  }
+
+  /**
+   * Looks up the slot of the given hash with linear probing.
+   *
+   * @return the slot if found, or -(insertion slot) - 1
+   */
+  private fun findSlot(mapped: MappedByteBuffer, capacity: Int, hash: Long): Int {
+    val mask = capacity - 1
+    var slot = ((hash xor (hash ushr 32)).toInt()) and mask
+    var firstTombstone = -1
+    for (i in 0 until capacity) {
+      val stored = mapped.getLong(recordOffset(slot))
+      if (stored == EMPTY) {
+        return -(if (firstTombstone >= 0) firstTombstone else slot) - 1
+      } else if (stored == TOMBSTONE) {
+        if (firstTombstone < 0) {
+          firstTombstone = slot
+        }
+      } else if (stored == hash) {
+        return slot
+      }
+      slot = (slot + 1) and mask
+    }
+    // the load factor guarantees there is an empty slot or a tombstone
+    return -firstTombstone - 1
+  }
+
+  companion object {
+    private val TAG: Class<*> = MappedDiskCacheIndex::class.java
+
+    private const val MAGIC = 0x46444d49 // "FDMI"
+    private const val FORMAT_VERSION = 1
+    private const val TEMP_FILE_SUFFIX = ".tmp"
+
+    private const val MAGIC_OFFSET = 0
+    private const val FORMAT_VERSION_OFFSET = 4
+    private const val GENERATION_OFFSET = 8
+    private const val CAPACITY_OFFSET = 16
+    private const val COUNT_OFFSET = 20
+    private const val TOMBSTONES_OFFSET = 24
+    private const val TOTAL_SIZE_OFFSET = 32
+    private const val HEADER_SIZE = 64
+
+    // record: hash, size, last access time
+    private const val SIZE_OFFSET = 8
+    private const val TIMESTAMP_OFFSET = 16
+    private const val RECORD_SIZE = 24
+
+    private const val EMPTY = 0L
+    private const val TOMBSTONE = 1L
+
+    @VisibleForTesting const val MIN_CAPACITY: Int = 1024
+
+    private const val FNV_OFFSET_BASIS = -3750763034362895579L // 0xcbf29ce484222325
+    private const val FNV_PRIME = 1099511628211L
+
+    private fun recordOffset(slot: Int): Int = HEADER_SIZE + slot * RECORD_SIZE
+
+    /** Capacity keeping the table at most half full. */
+    private fun capacityFor(count: Int): Int {
+      var capacity = MIN_CAPACITY
+      while (capacity < count * 2) {
+        capacity *= 2
+      }
+      return capacity
+    }
+
+    /** 64-bit FNV-1a hash of the resourceId, never equal to the empty or tombstone markers. */
+    @VisibleForTesting
+    fun hash(resourceId: String): Long {
+      var hash = FNV_OFFSET_BASIS
+      for (i in 0 until resourceId.length) {
+        hash = (hash xor resourceId[i].code.toLong()) * FNV_PRIME
+      }
+      return if (hash == EMPTY || hash == TOMBSTONE) hash + 2 else hash
+    }
+  }
+}
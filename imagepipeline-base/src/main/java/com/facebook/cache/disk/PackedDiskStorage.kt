@@ -0,0 +1,839 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk
+
+import androidx.annotation.VisibleForTesting
+import com.facebook.binaryresource.BinaryResource
+import com.facebook.cache.common.CacheErrorLogger
+import com.facebook.cache.common.CacheErrorLogger.CacheErrorCategory
+import com.facebook.cache.common.WriterCallback
+import com.facebook.cache.disk.DiskStorage.DiskDumpInfo
+import com.facebook.common.file.FileTree
+import com.facebook.common.file.FileUtils
+import com.facebook.common.time.Clock
+import com.facebook.common.time.SystemClock
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.EOFException
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedByInterruptException
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.FileChannel
+import java.util.TreeMap
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+import kotlin.math.max
+
+/**
+ * Disk storage that appends small entries to large segment files, instead of giving each of them a
+ * file of its own. Entries larger than [maxPackedEntrySize] are still stored one per file, by a
+ * [DefaultDiskStorage].
+ *
+ * The position of each packed entry is kept in an in-memory index, rebuilt at startup from the
+ * record headers of the segments. Reads are positional reads of the segment files, so they don't
+ * serialize on the storage lock. The access times of the reads are kept in memory, and written to
+ * the record headers in batches on [compactionExecutor]. Removed and replaced records are only
+ * flagged as such, and segments that are mostly made of dead records are compacted on
+ * [compactionExecutor].
+ *
+ * A segment starts with a header (magic, format version), followed by records made of a header
+ * (state, id length, data length, timestamp), the UTF-8 resource id and the data.
+ */
+@ThreadSafe
+class PackedDiskStorage
+@JvmOverloads
+constructor(
+    private val rootDirectory: File,
+    version: Int,
+    private val cacheErrorLogger: CacheErrorLogger,
+    private val maxPackedEntrySize: Int,
+    private val compactionExecutor: Executor,
+    private val segmentSize: Long = DEFAULT_SEGMENT_SIZE,
+) : DiskStorage, Closeable {
+
+  private class Segment(val id: Int, val file: File, @Volatile var channel: FileChannel) {
+    // Offset at which the next record is appended
+    var length = 0L
+    // Total size of the records still in the index
+    var liveBytes = 0L
+  }
+
+  private class Location(
+      val segment: Segment,
+      val offset: Long,
+      val idLength: Int,
+      val size: Int,
+      var timestamp: Long,
+  ) {
+    val dataOffset: Long
+      get() = offset + RECORD_HEADER_SIZE + idLength
+
+    val recordSize: Long
+      get() = RECORD_HEADER_SIZE.toLong() + idLength + size
+  }
+
+  private val largeEntryStorage =
+      DefaultDiskStorage(File(rootDirectory, LARGE_ENTRY_DIRECTORY_NAME), version, cacheErrorLogger)
+
+  private val segmentDirectory = File(rootDirectory, SEGMENT_DIRECTORY_PREFIX + version)
+
+  private val clock: Clock = SystemClock.get()
+
+  @GuardedBy("this") private val segments = TreeMap<Int, Segment>()
+
+  @GuardedBy("this") private val index = HashMap<String, Location>()
+
+  // Segment new records are appended to, null until the first append
+  @GuardedBy("this") private var activeSegment: Segment? = null
+
+  @GuardedBy("this") private var nextSegmentId = 0
+
+  // Records whose access time changed since it was last written to their header
+  @GuardedBy("this") private val pendingTouches = HashMap<String, Location>()
+
+  private val compactionScheduled = AtomicBoolean()
+
+  private val touchFlushScheduled = AtomicBoolean()
+
+  init {
+    deleteUnexpectedDirectories()
+    loadSegments()
+  }
+
+  override fun isEnabled(): Boolean = true
+
+  override fun isExternal(): Boolean = largeEntryStorage.isExternal()
+
+  override fun getStorageName(): String = largeEntryStorage.getStorageName()
+
+  override fun getMetadataFile(name: String): File = largeEntryStorage.getMetadataFile(name)
+
+  @Throws(IOException::class)
+  override fun getResource(resourceId: String, debugInfo: Any): BinaryResource? {
+    val size = touchPacked(resourceId)
+    if (size >= 0) {
+      return PackedResource(resourceId, size)
+    }
+    return largeEntryStorage.getResource(resourceId, debugInfo)
+  }
+
+  @Throws(IOException::class)
+  override fun contains(resourceId: String, debugInfo: Any): Boolean {
+    val packed = synchronized(this) { index.containsKey(resourceId) }
+    return packed || largeEntryStorage.contains(resourceId, debugInfo)
+  }
+
+  @Throws(IOException::class)
+  override fun touch(resourceId: String, debugInfo: Any): Boolean {
+    return touchPacked(resourceId) >= 0 || largeEntryStorage.touch(resourceId, debugInfo)
+  }
+
+  override fun purgeUnexpectedResources() {
+    deleteUnexpectedDirectories()
+    largeEntryStorage.purgeUnexpectedResources()
+    val expected = HashSet<File>()
+    synchronized(this) {
+      for (segment in segments.values) {
+        expected.add(segment.file)
+      }
+      val files = segmentDirectory.listFiles() ?: return
+      for (file in files) {
+        if (!expected.contains(file)) {
+          FileTree.deleteRecursively(file)
+        }
+      }
+    }
+  }
+
+  @Throws(IOException::class)
+  override fun insert(resourceId: String, debugInfo: Any): DiskStorage.Inserter {
+    return PackedInserter(resourceId)
+  }
+
+  @Throws(IOException::class)
+  override fun getEntries(): Collection<DiskStorage.Entry> {
+    val result = ArrayList<DiskStorage.Entry>()
+    val packedIds = HashSet<String>()
+    synchronized(this) {
+      for ((resourceId, location) in index) {
+        result.add(PackedEntry(resourceId, location.timestamp, location.size.toLong()))
+        packedIds.add(resourceId)
+      }
+    }
+    for (entry in largeEntryStorage.getEntries()) {
+      // a packed entry shadows an older file with the same id
+      if (!packedIds.contains(entry.getId())) {
+        result.add(entry)
+      }
+    }
+    return result
+  }
+
+  @Throws(IOException::class)
+  override fun remove(entry: DiskStorage.Entry): Long {
+    if (entry is DefaultDiskStorage.EntryImpl) {
+      return largeEntryStorage.remove(entry)
+    }
+    return remove(entry.getId())
+  }
+
+  @Throws(IOException::class)
+  override fun remove(resourceId: String): Long {
+    val packedSize = removePacked(resourceId)
+    val fileSize = largeEntryStorage.remove(resourceId)
+    return if (packedSize >= 0) packedSize + max(fileSize, 0L) else fileSize
+  }
+
+  @Throws(IOException::class)
+  override fun clearAll() {
+    synchronized(this) {
+      closeSegments()
+      index.clear()
+      pendingTouches.clear()
+      FileTree.deleteContents(segmentDirectory)
+    }
+    largeEntryStorage.clearAll()
+  }
+
+  @Throws(IOException::class)
+  override fun getDumpInfo(): DiskDumpInfo {
+    val dumpInfo = largeEntryStorage.getDumpInfo()
+    val packed = ArrayList<Pair<String, String>>()
+    synchronized(this) {
+      for ((resourceId, location) in index) {
+        packed.add(Pair(resourceId, location.segment.file.getPath() + "@" + location.offset))
+      }
+    }
+    for ((resourceId, path) in packed) {
+      val bytes =
+          try {
+            readPacked(resourceId)
+          } catch (fnfe: FileNotFoundException) {
+            // removed in the meantime
+            continue
+          }
+      val infoEntry =
+          DefaultDiskStorage.createDumpInfoEntry(resourceId, path, bytes.size.toLong(), bytes)
+      val typeCount = dumpInfo.typeCounts.get(infoEntry.type)
+      dumpInfo.typeCounts.put(infoEntry.type, if (typeCount == null) 1 else typeCount + 1)
+      dumpInfo.entries.add(infoEntry)
+    }
+    return dumpInfo
+  }
+
+  /**
+   * Writes the pending access times and closes the segment files. The storage reopens them if it is
+   * used again.
+   */
+  @Synchronized
+  override fun close() {
+    writePendingTouches()
+    for (segment in segments.values) {
+      closeQuietly(segment.channel)
+    }
+  }
+
+  /** Number of segment files, for tests. */
+  @VisibleForTesting
+  @get:Synchronized
+  internal val segmentCount: Int
+    get() = segments.size
+
+  /** Moves the live records of the segments that are mostly made of dead records. */
+  @VisibleForTesting
+  internal fun compactSegments() {
+    while (true) {
+      val segment = synchronized(this) { findSegmentToCompact() } ?: return
+      if (!compactSegment(segment)) {
+        return
+      }
+    }
+  }
+
+  /** Reads the data of a packed entry. */
+  @Throws(IOException::class)
+  private fun readPacked(resourceId: String): ByteArray {
+    var attempts = 0
+    while (true) {
+      val location =
+          synchronized(this) { index.get(resourceId) } ?: throw FileNotFoundException(resourceId)
+      try {
+        return readData(location)
+      } catch (cce: ClosedChannelException) {
+        // The segment was compacted or cleared since the lookup, or its channel was closed by an
+        // interrupt of another reader
+        if (cce is ClosedByInterruptException || ++attempts >= MAX_READ_ATTEMPTS) {
+          throw cce
+        }
+        synchronized(this) { reopenIfNeeded(location.segment) }
+      }
+    }
+  }
+
+  /**
+   * Updates the access time of a packed entry in memory. It is written to the record header later,
+   * along with the other pending ones.
+   *
+   * @return the size of the entry, or -1 if it is not packed
+   */
+  private fun touchPacked(resourceId: String): Long {
+    val size: Long
+    val pendingCount: Int
+    synchronized(this) {
+      val location = index.get(resourceId) ?: return -1
+      location.timestamp = clock.now()
+      pendingTouches.put(resourceId, location)
+      size = location.size.toLong()
+      pendingCount = pendingTouches.size
+    }
+    if (pendingCount >= TOUCH_FLUSH_THRESHOLD && touchFlushScheduled.compareAndSet(false, true)) {
+      compactionExecutor.execute {
+        touchFlushScheduled.set(false)
+        synchronized(this) { writePendingTouches() }
+      }
+    }
+    return size
+  }
+
+  /** Writes the pending access times to the record headers, in the order of the files. */
+  @GuardedBy("this")
+  private fun writePendingTouches() {
+    if (pendingTouches.isEmpty()) {
+      return
+    }
+    val touched = ArrayList<Location>(pendingTouches.size)
+    for ((resourceId, location) in pendingTouches) {
+      // records moved or removed since they were touched are skipped
+      if (
+          index.get(resourceId) === location &&
+              segments.get(location.segment.id) === location.segment
+      ) {
+        touched.add(location)
+      }
+    }
+    pendingTouches.clear()
+    touched.sortWith(compareBy({ it.segment.id }, { it.offset }))
+    val buffer = ByteBuffer.allocate(8)
+    for (location in touched) {
+      buffer.clear()
+      buffer.putLong(location.timestamp)
+      buffer.flip()
+      try {
+        writeAt(location.segment, buffer, location.offset + TIMESTAMP_OFFSET)
+      } catch (ioe: IOException) {
+        // not fatal: the entry just looks older after a restart
+        cacheErrorLogger.logError(CacheErrorCategory.GENERIC_IO, TAG, "touch", ioe)
+      }
+    }
+  }
+
+  /**
+   * Removes a packed entry.
+   *
+   * @return the size of the entry, or -1 if it is not packed
+   */
+  @Synchronized
+  private fun removePacked(resourceId: String): Long {
+    val location = index.remove(resourceId) ?: return -1
+    markRemoved(location)
+    return location.size.toLong()
+  }
+
+  @Synchronized
+  @Throws(IOException::class)
+  private fun commitPacked(resourceId: String, data: ByteArray, length: Int, time: Long) {
+    append(resourceId, resourceId.toByteArray(Charsets.UTF_8), data, length, time)
+  }
+
+  @GuardedBy("this")
+  @Throws(IOException::class)
+  private fun append(
+      resourceId: String,
+      idBytes: ByteArray,
+      data: ByteArray,
+      length: Int,
+      timestamp: Long,
+  ): Location {
+    val recordSize = RECORD_HEADER_SIZE + idBytes.size + length
+    var segment = activeSegment
+    if (
+        segment == null ||
+            (segment.length + recordSize > segmentSize && segment.length > SEGMENT_HEADER_SIZE)
+    ) {
+      segment = createSegment()
+      activeSegment = segment
+    }
+    val buffer = ByteBuffer.allocate(recordSize)
+    buffer.put(STATE_LIVE)
+    buffer.putShort(idBytes.size.toShort())
+    buffer.putInt(length)
+    buffer.putLong(timestamp)
+    buffer.put(idBytes)
+    buffer.put(data, 0, length)
+    buffer.flip()
+    // a failed append is overwritten by the next one
+    writeAt(segment, buffer, segment.length)
+    val location = Location(segment, segment.length, idBytes.size, length, timestamp)
+    segment.length += recordSize
+    segment.liveBytes += recordSize
+    val previous = index.put(resourceId, location)
+    if (previous != null) {
+      markRemoved(previous)
+    }
+    return location
+  }
+
+  /** Flags the record as removed so that it is not indexed again after a restart. */
+  @GuardedBy("this")
+  private fun markRemoved(location: Location) {
+    val segment = location.segment
+    segment.liveBytes -= location.recordSize
+    if (segments.get(segment.id) !== segment) {
+      return
+    }
+    val buffer = ByteBuffer.allocate(1)
+    buffer.put(STATE_REMOVED)
+    buffer.flip()
+    try {
+      writeAt(segment, buffer, location.offset)
+    } catch (ioe: IOException) {
+      cacheErrorLogger.logError(CacheErrorCategory.DELETE_FILE, TAG, "markRemoved", ioe)
+    }
+    if (needsCompaction(segment)) {
+      scheduleCompaction()
+    }
+  }
+
+  @GuardedBy("this")
+  private fun needsCompaction(segment: Segment): Boolean =
+      segment !== activeSegment && segment.liveBytes < segment.length * COMPACTION_THRESHOLD
+
+  @GuardedBy("this")
+  private fun findSegmentToCompact(): Segment? {
+    for (segment in segments.values) {
+      if (needsCompaction(segment)) {
+        return segment
+      }
+    }
+    return null
+  }
+
+  private fun scheduleCompaction() {
+    if (compactionScheduled.compareAndSet(false, true)) {
+      compactionExecutor.execute {
+        try {
+          compactSegments()
+        } finally {
+          compactionScheduled.set(false)
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends the live records of the segment to the active segment, one at a time so that readers
+   * and writers are not blocked for long, then deletes it.
+   *
+   * @return false if the segment could not be deleted
+   */
+  private fun compactSegment(segment: Segment): Boolean {
+    val resourceIds = ArrayList<String>()
+    synchronized(this) {
+      for ((resourceId, location) in index) {
+        if (location.segment === segment) {
+          resourceIds.add(resourceId)
+        }
+      }
+    }
+    try {
+      for (resourceId in resourceIds) {
+        moveRecord(resourceId, segment)
+      }
+    } catch (ioe: IOException) {
+      cacheErrorLogger.logError(CacheErrorCategory.GENERIC_IO, TAG, "compactSegment", ioe)
+      return false
+    }
+    synchronized(this) {
+      if (segments.get(segment.id) !== segment) {
+        // cleared in the meantime
+        return true
+      }
+      if (segment.liveBytes > 0) {
+        return false
+      }
+      segments.remove(segment.id)
+      closeQuietly(segment.channel)
+      if (!segment.file.delete()) {
+        cacheErrorLogger.logError(CacheErrorCategory.DELETE_FILE, TAG, "compactSegment", null)
+      }
+      return true
+    }
+  }
+
+  @Synchronized
+  @Throws(IOException::class)
+  private fun moveRecord(resourceId: String, segment: Segment) {
+    val location = index.get(resourceId)
+    if (location == null || location.segment !== segment) {
+      return
+    }
+    reopenIfNeeded(segment)
+    val data = readData(location)
+    append(resourceId, resourceId.toByteArray(Charsets.UTF_8), data, data.size, location.timestamp)
+  }
+
+  @GuardedBy("this")
+  @Throws(IOException::class)
+  private fun createSegment(): Segment {
+    if (!segmentDirectory.exists()) {
+      FileUtils.mkdirs(segmentDirectory)
+    }
+    val id = nextSegmentId++
+    val file = File(segmentDirectory, id.toString() + SEGMENT_FILE_EXTENSION)
+    val segment = Segment(id, file, RandomAccessFile(file, "rw").getChannel())
+    val header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE)
+    header.putInt(MAGIC)
+    header.putInt(FORMAT_VERSION)
+    header.flip()
+    try {
+      segment.channel.truncate(0)
+      writeFully(segment.channel, header, 0)
+    } catch (ioe: IOException) {
+      closeQuietly(segment.channel)
+      file.delete()
+      throw ioe
+    }
+    segment.length = SEGMENT_HEADER_SIZE.toLong()
+    segments.put(id, segment)
+    return segment
+  }
+
+  @GuardedBy("this")
+  @Throws(IOException::class)
+  private fun writeAt(segment: Segment, buffer: ByteBuffer, position: Long) {
+    reopenIfNeeded(segment)
+    writeFully(segment.channel, buffer, position)
+  }
+
+  @GuardedBy("this")
+  @Throws(IOException::class)
+  private fun reopenIfNeeded(segment: Segment) {
+    if (!segment.channel.isOpen() && segments.get(segment.id) === segment) {
+      segment.channel = RandomAccessFile(segment.file, "rw").getChannel()
+    }
+  }
+
+  @GuardedBy("this")
+  private fun closeSegments() {
+    for (segment in segments.values) {
+      closeQuietly(segment.channel)
+    }
+    segments.clear()
+    activeSegment = null
+  }
+
+  /**
+   * Deletes the segments of other versions, and the files left in the root directory by a
+   * [DefaultDiskStorage] used before the packed storage was enabled.
+   */
+  private fun deleteUnexpectedDirectories() {
+    val files = rootDirectory.listFiles() ?: return
+    for (file in files) {
+      if (file != segmentDirectory && file.getName() != LARGE_ENTRY_DIRECTORY_NAME) {
+        FileTree.deleteRecursively(file)
+      }
+    }
+  }
+
+  /** Rebuilds the index from the record headers of the segment files. */
+  @Synchronized
+  private fun loadSegments() {
+    val files = segmentDirectory.listFiles() ?: return
+    val segmentFiles = TreeMap<Int, File>()
+    for (file in files) {
+      val name = file.getName()
+      if (name.endsWith(SEGMENT_FILE_EXTENSION)) {
+        val id = name.substring(0, name.length - SEGMENT_FILE_EXTENSION.length).toIntOrNull()
+        if (id != null && id >= 0) {
+          segmentFiles.put(id, file)
+        }
+      }
+    }
+    for ((id, file) in segmentFiles) {
+      var channel: FileChannel? = null
+      try {
+        channel = RandomAccessFile(file, "rw").getChannel()
+        val segment = Segment(id, file, channel)
+        segments.put(id, segment)
+        scanSegment(segment)
+      } catch (ioe: IOException) {
+        cacheErrorLogger.logError(CacheErrorCategory.READ_INVALID_ENTRY, TAG, "loadSegments", ioe)
+        segments.remove(id)
+        index.entries.removeAll { it.value.segment.id == id }
+        closeQuietly(channel)
+        file.delete()
+      }
+      nextSegmentId = id + 1
+    }
+    val last = segments.lastEntry()?.value
+    if (last != null && last.length < segmentSize) {
+      activeSegment = last
+    }
+  }
+
+  @GuardedBy("this")
+  @Throws(IOException::class)
+  private fun scanSegment(segment: Segment) {
+    val channel = segment.channel
+    val fileLength = channel.size()
+    val header = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+    readFully(channel, header, 0, SEGMENT_HEADER_SIZE)
+    if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+      throw IOException("Invalid segment header: " + segment.file)
+    }
+    var position = SEGMENT_HEADER_SIZE.toLong()
+    while (position + RECORD_HEADER_SIZE <= fileLength) {
+      readFully(channel, header, position, RECORD_HEADER_SIZE)
+      val state = header.get()
+      val idLength = header.getShort().toInt() and 0xFFFF
+      val size = header.getInt()
+      val timestamp = header.getLong()
+      val recordSize = RECORD_HEADER_SIZE.toLong() + idLength + size
+      if (
+          (state != STATE_LIVE && state != STATE_REMOVED) ||
+              idLength == 0 ||
+              size < 0 ||
+              position + recordSize > fileLength
+      ) {
+        break
+      }
+      if (state == STATE_LIVE) {
+        val idBuffer = ByteBuffer.allocate(idLength)
+        readFully(channel, idBuffer, position + RECORD_HEADER_SIZE, idLength)
+        val resourceId = String(idBuffer.array(), Charsets.UTF_8)
+        val location = Location(segment, position, idLength, size, timestamp)
+        segment.liveBytes += recordSize
+        val previous = index.put(resourceId, location)
+        if (previous != null) {
+          // left over by an interrupted replacement or compaction
+          markRemoved(previous)
+        }
+      }
+      position += recordSize
+    }
+    if (position < fileLength) {
+      // the last append was interrupted
+      channel.truncate(position)
+    }
+    segment.length = position
+  }
+
+  @Throws(IOException::class)
+  private fun readData(location: Location): ByteArray {
+    val buffer = ByteBuffer.allocate(location.size)
+    readFully(location.segment.channel, buffer, location.dataOffset, location.size)
+    return buffer.array()
+  }
+
+  private inner class PackedEntry(
+      private val id: String,
+      private val timestamp: Long,
+      private val size: Long,
+  ) : DiskStorage.Entry {
+
+    private val resource = PackedResource(id, size)
+
+    override fun getId(): String = id
+
+    override fun getTimestamp(): Long = timestamp
+
+    override fun getSize(): Long = size
+
+    override fun getResource(): BinaryResource = resource
+  }
+
+  /** Resource of a packed entry. It is looked up on each read, as compaction moves the data. */
+  private inner class PackedResource(private val resourceId: String, private val size: Long) :
+      BinaryResource {
+
+    @Throws(IOException::class)
+    override fun openStream(): InputStream = ByteArrayInputStream(read())
+
+    @Throws(IOException::class) override fun read(): ByteArray = readPacked(resourceId)
+
+    override fun size(): Long = size
+  }
+
+  /**
+   * Buffers the data in memory, and moves it to a temporary file of the large entry storage once it
+   * exceeds [maxPackedEntrySize].
+   */
+  private inner class PackedInserter(private val resourceId: String) : DiskStorage.Inserter {
+
+    private val buffer = ExposedByteArrayOutputStream()
+    private var largeEntryInserter: DefaultDiskStorage.InserterImpl? = null
+
+    @Throws(IOException::class)
+    override fun writeData(callback: WriterCallback, debugInfo: Any) {
+      val stream = SpillingOutputStream(debugInfo)
+      try {
+        callback.write(stream)
+        stream.flush()
+      } finally {
+        stream.close()
+      }
+    }
+
+    @Throws(IOException::class)
+    override fun commit(debugInfo: Any): BinaryResource = commit(debugInfo, clock.now())
+
+    @Throws(IOException::class)
+    override fun commit(debugInfo: Any, time: Long): BinaryResource {
+      val inserter = largeEntryInserter
+      if (inserter != null) {
+        val resource = inserter.commit(debugInfo, time)
+        removePacked(resourceId)
+        return resource
+      }
+      try {
+        commitPacked(resourceId, buffer.data, buffer.size(), time)
+      } catch (ioe: IOException) {
+        cacheErrorLogger.logError(
+            CacheErrorCategory.WRITE_UPDATE_FILE_NOT_FOUND,
+            TAG,
+            "commit",
+            ioe,
+        )
+        throw ioe
+      }
+      // drop an older version stored in its own file
+      largeEntryStorage.remove(resourceId)
+      return PackedResource(resourceId, buffer.size().toLong())
+    }
+
+    override fun cleanUp(): Boolean = largeEntryInserter?.cleanUp() ?: true
+
+    private inner class SpillingOutputStream(private val debugInfo: Any) : OutputStream() {
+
+      private var fileStream: OutputStream? = null
+
+      @Throws(IOException::class)
+      override fun write(b: Int) {
+        target(1).write(b)
+      }
+
+      @Throws(IOException::class)
+      override fun write(b: ByteArray, off: Int, len: Int) {
+        target(len).write(b, off, len)
+      }
+
+      @Throws(IOException::class)
+      override fun flush() {
+        fileStream?.flush()
+      }
+
+      @Throws(IOException::class)
+      override fun close() {
+        fileStream?.close()
+      }
+
+      @Throws(IOException::class)
+      private fun target(length: Int): OutputStream {
+        val current = fileStream
+        if (current != null) {
+          return current
+        }
+        if (buffer.size() + length <= maxPackedEntrySize) {
+          return buffer
+        }
+        val inserter = largeEntryStorage.insert(resourceId, debugInfo)
+        largeEntryInserter = inserter
+        val stream = FileOutputStream(inserter.mTemporaryFile)
+        fileStream = stream
+        buffer.writeTo(stream)
+        buffer.reset()
+        return stream
+      }
+    }
+  }
+
+  private class ExposedByteArrayOutputStream : ByteArrayOutputStream() {
+    val data: ByteArray
+      get() = buf
+  }
+
+  companion object {
+    private val TAG: Class<*> = PackedDiskStorage::class.java
+
+    private const val LARGE_ENTRY_DIRECTORY_NAME = "files"
+    private const val SEGMENT_DIRECTORY_PREFIX = "packed.v1."
+    private const val SEGMENT_FILE_EXTENSION = ".seg"
+
+    private const val MAGIC = 0x46445053 // "FDPS"
+    private const val FORMAT_VERSION = 1
+    private const val SEGMENT_HEADER_SIZE = 8
+
+    private const val STATE_LIVE: Byte = 1
+    private const val STATE_REMOVED: Byte = 2
+    // state (1), id length (2), data length (4), timestamp (8)
+    private const val RECORD_HEADER_SIZE = 15
+    private const val TIMESTAMP_OFFSET = 7
+
+    /** Default size after which a new segment is started. */
+    const val DEFAULT_SEGMENT_SIZE: Long = 4L * 1024 * 1024
+
+    // A segment is compacted when less than this fraction of it is live
+    private const val COMPACTION_THRESHOLD = 0.5
+
+    private const val MAX_READ_ATTEMPTS = 3
+
+    // Number of pending access times after which they are written
+    private const val TOUCH_FLUSH_THRESHOLD = 64
+
+    @Throws(IOException::class)
+    private fun readFully(channel: FileChannel, buffer: ByteBuffer, position: Long, length: Int) {
+      buffer.clear()
+      buffer.limit(length)
+      var read = 0
+      while (read < length) {
+        val count = channel.read(buffer, position + read)
+        if (count < 0) {
+          throw EOFException()
+        }
+        read += count
+      }
+      buffer.flip()
+    }
+
+    @Throws(IOException::class)
+    private fun writeFully(channel: FileChannel, buffer: ByteBuffer, position: Long) {
+      var written = 0L
+      while (buffer.hasRemaining()) {
+        written += channel.write(buffer, position + written)
+      }
+    }
+
+    private fun closeQuietly(closeable: Closeable?) {
+      try {
+        closeable?.close()
+      } catch (ioe: IOException) {
+        // nothing to do
+      }
+    }
+  }
+}
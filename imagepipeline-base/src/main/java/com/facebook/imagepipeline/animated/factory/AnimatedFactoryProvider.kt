@@ -85,6 +85,39 @@ object AnimatedFactoryProvider {
       enableSingleFrameRendering: Boolean,
       enableUnusedFrameLoaderCleanupSync: Boolean,
       enableUnusedFrameLoaderCleanupSyncAndClear: Boolean,
+  ): AnimatedFactory? {
+    return getAnimatedFactory(
+        platformBitmapFactory,
+        executorSupplier,
+        backingCache,
+        downscaleFrameToDrawableDimensions,
+        useBalancedAnimationStrategy,
+        animationFpsLimit,
+        bufferLengthMilliseconds,
+        serialExecutorService,
+        enableBufferFrameLoaderFix,
+        enableSingleFrameRendering,
+        enableUnusedFrameLoaderCleanupSync,
+        enableUnusedFrameLoaderCleanupSyncAndClear,
+        false,
+    )
+  }
+
+  @JvmStatic
+  fun getAnimatedFactory(
+      platformBitmapFactory: PlatformBitmapFactory?,
+      executorSupplier: ExecutorSupplier?,
+      backingCache: CountingMemoryCache<CacheKey?, CloseableImage?>?,
+      downscaleFrameToDrawableDimensions: Boolean,
+      useBalancedAnimationStrategy: Boolean,
+      animationFpsLimit: Int,
+      bufferLengthMilliseconds: Int,
+      serialExecutorService: ExecutorService?,
+      enableBufferFrameLoaderFix: Boolean,
+      enableSingleFrameRendering: Boolean,
+      enableUnusedFrameLoaderCleanupSync: Boolean,
+      enableUnusedFrameLoaderCleanupSyncAndClear: Boolean,
+      enableSharedAnimationFrames: Boolean,
   ): AnimatedFactory? {
     if (!implLoaded) {
       try {
@@ -111,6 +144,7 @@ object AnimatedFactoryProvider {
                 animatedImagePerfLoggingListenerClass,
                 java.lang.Boolean.TYPE,
                 java.lang.Boolean.TYPE,
+                java.lang.Boolean.TYPE,
             )
         impl =
             constructor.newInstance(
@@ -128,6 +162,7 @@ object AnimatedFactoryProvider {
                 null,
                 enableUnusedFrameLoaderCleanupSync,
                 enableUnusedFrameLoaderCleanupSyncAndClear,
+                enableSharedAnimationFrames,
             ) as AnimatedFactory
       } catch (e: Throwable) {
         // Head in the sand
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import androidx.annotation.VisibleForTesting;
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Count-min sketch that estimates how often a key was accessed recently.
+ *
+ * <p>Each key is mapped to four 4-bit counters, so a frequency saturates at 15. Once the number of
+ * recorded accesses reaches ten times the capacity, all the counters are halved, so that the
+ * sketch keeps track of the recent popularity rather than of the all-time one.
+ */
+@NotThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+final class FrequencySketch {
+
+  @VisibleForTesting static final int MAX_FREQUENCY = 15;
+
+  private static final int MIN_CAPACITY = 16;
+  private static final int MAX_CAPACITY = 1 << 12;
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private static final long[] SEEDS = {
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+
+  // 16 counters of 4 bits per long
+  private long[] mTable = new long[0];
+  private int mTableMask;
+  private int mSampleSize;
+  private int mAdditions;
+
+  FrequencySketch(int capacity) {
+    ensureCapacity(capacity);
+  }
+
+  /** Resizes the sketch for the given number of entries, dropping the collected frequencies. */
+  void ensureCapacity(int capacity) {
+    int clamped = Math.max(MIN_CAPACITY, Math.min(capacity, MAX_CAPACITY));
+    int tableSize = Integer.highestOneBit(clamped - 1) << 1;
+    if (mTable.length == tableSize) {
+      return;
+    }
+    mTable = new long[tableSize];
+    mTableMask = tableSize - 1;
+    mSampleSize = 10 * clamped;
+    mAdditions = 0;
+  }
+
+  /** Returns the estimated number of recent accesses of the key, at most {@link #MAX_FREQUENCY}. */
+  int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    int frequency = MAX_FREQUENCY;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /** Records an access of the key, aging all the frequencies if the sample size is reached. */
+  void increment(Object key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++mAdditions == mSampleSize) {
+      reset();
+    }
+  }
+
+  /** Clears all the collected frequencies. */
+  void clear() {
+    for (int i = 0; i < mTable.length; i++) {
+      mTable[i] = 0;
+    }
+    mAdditions = 0;
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((mTable[index] & mask) != mask) {
+      mTable[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /** Halves all the counters. */
+  @VisibleForTesting
+  void reset() {
+    int oddCounters = 0;
+    for (int i = 0; i < mTable.length; i++) {
+      oddCounters += Long.bitCount(mTable[i] & ONE_MASK);
+      mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+    }
+    // every halved odd counter loses half an addition, four counters make up one key
+    mAdditions = (mAdditions >>> 1) - (oddCounters >>> 2);
+  }
+
+  private int indexOf(int hash, int i) {
+    long value = (hash + SEEDS[i]) * SEEDS[i];
+    value += value >>> 32;
+    return ((int) value) & mTableMask;
+  }
+
+  private static int spread(int hash) {
+    hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+    hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+    return (hash >>> 16) ^ hash;
+  }
+}
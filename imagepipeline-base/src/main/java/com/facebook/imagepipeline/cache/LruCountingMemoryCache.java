@@ -75,7 +75,7 @@ public class LruCountingMemoryCache<K, V>
   private long mLastCacheParamsCheck;
 
   private final boolean mStoreEntrySize;
-  private final boolean mIgnoreSizeMismatch;
+  final boolean mIgnoreSizeMismatch;
 
   public LruCountingMemoryCache(
       ValueDescriptor<V> valueDescriptor,
@@ -98,7 +98,7 @@ public class LruCountingMemoryCache<K, V>
     mIgnoreSizeMismatch = ignoreSizeMismatch;
   }
 
-  private ValueDescriptor<Entry<K, V>> wrapValueDescriptor(
+  ValueDescriptor<Entry<K, V>> wrapValueDescriptor(
       final ValueDescriptor<V> evictableValueDescriptor) {
     return new ValueDescriptor<Entry<K, V>>() {
       @Override
@@ -145,10 +145,12 @@ public class LruCountingMemoryCache<K, V>
     CloseableReference<V> oldRefToClose = null;
     CloseableReference<V> clientRef = null;
     synchronized (this) {
+      onAccess(key);
       // remove the old item (if any) as it is stale now
-      oldExclusive = mExclusiveEntries.remove(key);
+      oldExclusive = removeExclusive(key);
       Entry<K, V> oldEntry = mCachedEntries.remove(key);
       if (oldEntry != null) {
+        onRemovedFromCache(key);
         makeOrphan(oldEntry);
         oldRefToClose = referenceToClose(oldEntry);
       }
@@ -194,7 +196,8 @@ public class LruCountingMemoryCache<K, V>
     Entry<K, V> oldExclusive;
     CloseableReference<V> clientRef = null;
     synchronized (this) {
-      oldExclusive = mExclusiveEntries.remove(key);
+      onAccess(key);
+      oldExclusive = removeExclusive(key);
       Entry<K, V> entry = mCachedEntries.get(key);
       if (entry != null) {
         clientRef = newClientReference(entry);
@@ -224,9 +227,10 @@ public class LruCountingMemoryCache<K, V>
     Preconditions.checkNotNull(key);
     Entry<K, V> oldExclusive;
     synchronized (this) {
-      oldExclusive = mExclusiveEntries.remove(key);
+      onAccess(key);
+      oldExclusive = removeExclusive(key);
       if (oldExclusive != null) {
-        mExclusiveEntries.put(key, oldExclusive);
+        addExclusive(oldExclusive);
       }
     }
   }
@@ -260,10 +264,45 @@ public class LruCountingMemoryCache<K, V>
     maybeEvictEntries();
   }
 
+  /** Called on every access to the key, before its entry is looked up or replaced. */
+  @GuardedBy("this")
+  void onAccess(K key) {}
+
+  /** Called when the entry of the key is removed, other than by eviction. */
+  @GuardedBy("this")
+  void onRemovedFromCache(K key) {}
+
+  /** Called when the cache params are updated. */
+  @GuardedBy("this")
+  void onMemoryCacheParamsUpdated(MemoryCacheParams params) {}
+
+  /** Adds the entry to the exclusively owned items. */
+  @GuardedBy("this")
+  void addExclusive(Entry<K, V> entry) {
+    mExclusiveEntries.put(entry.key, entry);
+  }
+
+  /** Removes the item from the exclusively owned items, if it is one. */
+  @GuardedBy("this")
+  @Nullable
+  Entry<K, V> removeExclusive(K key) {
+    return mExclusiveEntries.remove(key);
+  }
+
+  @GuardedBy("this")
+  ArrayList<Entry<K, V>> removeAllExclusives(Predicate<K> predicate) {
+    return mExclusiveEntries.removeAll(predicate);
+  }
+
+  @GuardedBy("this")
+  ArrayList<Entry<K, V>> clearExclusives() {
+    return mExclusiveEntries.clear();
+  }
+
   /** Adds the entry to the exclusively owned queue if it is viable for eviction. */
   private synchronized boolean maybeAddToExclusives(Entry<K, V> entry) {
     if (!entry.isOrphan && entry.clientCount == 0) {
-      mExclusiveEntries.put(entry.key, entry);
+      addExclusive(entry);
       return true;
     }
     return false;
@@ -282,10 +321,11 @@ public class LruCountingMemoryCache<K, V>
     boolean removed = false;
     Entry<K, V> oldExclusive = null;
     synchronized (this) {
-      oldExclusive = mExclusiveEntries.remove(key);
+      oldExclusive = removeExclusive(key);
       if (oldExclusive != null) {
         Entry<K, V> entry = mCachedEntries.remove(key);
         Preconditions.checkNotNull(entry);
+        onRemovedFromCache(key);
         Preconditions.checkState(entry.clientCount == 0);
         // optimization: instead of cloning and then closing the original reference,
         // we just do a move
@@ -309,8 +349,11 @@ public class LruCountingMemoryCache<K, V>
     ArrayList<Entry<K, V>> oldExclusives;
     ArrayList<Entry<K, V>> oldEntries;
     synchronized (this) {
-      oldExclusives = mExclusiveEntries.removeAll(predicate);
+      oldExclusives = removeAllExclusives(predicate);
       oldEntries = mCachedEntries.removeAll(predicate);
+      for (Entry<K, V> oldEntry : oldEntries) {
+        onRemovedFromCache(oldEntry.key);
+      }
       makeOrphans(oldEntries);
     }
     maybeClose(oldEntries);
@@ -326,7 +369,7 @@ public class LruCountingMemoryCache<K, V>
     ArrayList<Entry<K, V>> oldExclusives;
     ArrayList<Entry<K, V>> oldEntries;
     synchronized (this) {
-      oldExclusives = mExclusiveEntries.clear();
+      oldExclusives = clearExclusives();
       oldEntries = mCachedEntries.clear();
       makeOrphans(oldEntries);
     }
@@ -384,6 +427,7 @@ public class LruCountingMemoryCache<K, V>
     mMemoryCacheParams =
         Preconditions.checkNotNull(
             mMemoryCacheParamsSupplier.get(), "mMemoryCacheParamsSupplier returned null");
+    onMemoryCacheParamsUpdated(mMemoryCacheParams);
   }
 
   public MemoryCacheParams getMemoryCacheParams() {
@@ -425,6 +469,26 @@ public class LruCountingMemoryCache<K, V>
     maybeNotifyExclusiveEntryRemoval(oldEntries);
   }
 
+  /**
+   * Removes the least recently used exclusively owned items until at least <code>size</code> bytes
+   * are freed, or until there are none left.
+   *
+   * @return the number of bytes freed
+   */
+  int evictExclusiveEntries(int size) {
+    ArrayList<Entry<K, V>> oldEntries;
+    int freedSize;
+    synchronized (this) {
+      int evictionQueueSize = getEvictionQueueSizeInBytes();
+      oldEntries = trimExclusivelyOwnedEntries(Integer.MAX_VALUE, evictionQueueSize - size);
+      freedSize = evictionQueueSize - getEvictionQueueSizeInBytes();
+      makeOrphans(oldEntries);
+    }
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldEntries);
+    return freedSize;
+  }
+
   /**
    * Removes the exclusively owned items until there is at most <code>count</code> of them and they
    * occupy no more than <code>size</code> bytes.
@@ -433,7 +497,7 @@ public class LruCountingMemoryCache<K, V>
    * called while holding the <code>this</code> lock.
    */
   @Nullable
-  private synchronized ArrayList<Entry<K, V>> trimExclusivelyOwnedEntries(int count, int size) {
+  synchronized ArrayList<Entry<K, V>> trimExclusivelyOwnedEntries(int count, int size) {
     count = Math.max(count, 0);
     size = Math.max(size, 0);
     // fast path without array allocation if no eviction is necessary
@@ -544,13 +608,13 @@ public class LruCountingMemoryCache<K, V>
 
   /** Gets the number of the cached items that are used by at least one client. */
   public synchronized int getInUseCount() {
-    return mCachedEntries.getCount() - mExclusiveEntries.getCount();
+    return mCachedEntries.getCount() - getEvictionQueueCount();
   }
 
   /** Gets the total size in bytes of the cached items that are used by at least one client. */
   @Override
   public synchronized int getInUseSizeInBytes() {
-    return mCachedEntries.getSizeInBytes() - mExclusiveEntries.getSizeInBytes();
+    return mCachedEntries.getSizeInBytes() - getEvictionQueueSizeInBytes();
   }
 
   /** Gets the number of the exclusively owned items. */
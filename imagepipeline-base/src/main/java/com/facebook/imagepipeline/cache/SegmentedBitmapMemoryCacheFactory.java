@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.MemoryTrimmableRegistry;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.Nullable;
+
+/**
+ * Creates a {@link SegmentedCountingMemoryCache}, which reduces lock contention between the UI
+ * thread and the decode threads on devices with many cores.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class SegmentedBitmapMemoryCacheFactory implements BitmapMemoryCacheFactory {
+
+  private static final int MAX_DEFAULT_SEGMENT_COUNT = 8;
+
+  private final int mSegmentCount;
+
+  /** Uses one segment per available processor, up to 8 segments. */
+  public SegmentedBitmapMemoryCacheFactory() {
+    this(Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_SEGMENT_COUNT));
+  }
+
+  public SegmentedBitmapMemoryCacheFactory(int segmentCount) {
+    mSegmentCount = segmentCount;
+  }
+
+  @Override
+  public CountingMemoryCache<CacheKey, CloseableImage> create(
+      Supplier<MemoryCacheParams> bitmapMemoryCacheParamsSupplier,
+      MemoryTrimmableRegistry memoryTrimmableRegistry,
+      MemoryCache.CacheTrimStrategy trimStrategy,
+      boolean storeEntrySize,
+      boolean ignoreSizeMismatch,
+      @Nullable CountingMemoryCache.EntryStateObserver<CacheKey> observer) {
+
+    ValueDescriptor<CloseableImage> valueDescriptor =
+        new ValueDescriptor<CloseableImage>() {
+          @Override
+          public int getSizeInBytes(CloseableImage value) {
+            return value.getSizeInBytes();
+          }
+        };
+
+    CountingMemoryCache<CacheKey, CloseableImage> countingCache =
+        new SegmentedCountingMemoryCache<>(
+            valueDescriptor,
+            trimStrategy,
+            bitmapMemoryCacheParamsSupplier,
+            observer,
+            storeEntrySize,
+            ignoreSizeMismatch,
+            mSegmentCount);
+
+    memoryTrimmableRegistry.registerMemoryTrimmable(countingCache);
+
+    return countingCache;
+  }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import android.graphics.Bitmap;
+import androidx.annotation.VisibleForTesting;
+import com.facebook.cache.common.HasDebugData;
+import com.facebook.common.internal.Objects;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Predicate;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Counting memory cache that splits its entries into a number of independent LRU segments.
+ *
+ * <p>Each key is mapped to a segment by its hash code, and every segment is a {@link
+ * LruCountingMemoryCache} with its own lock and a proportional share of the {@link
+ * MemoryCacheParams} budget. Lookups and insertions of different keys therefore only contend when
+ * they land in the same segment, instead of serializing on a single cache-wide lock.
+ *
+ * <p>The LRU order is maintained per segment, so eviction is an approximation of a global LRU. The
+ * size budget of every segment is an even share of the budget plus the largest entry allowed by the
+ * params, so that a segment holding its share can still take the largest entry, and the size of
+ * the whole cache is bounded by evicting the exclusively owned entries of the fullest segments
+ * whenever a segment grows past its even share.
+ *
+ * <p>The segments publish the changes of their counts and sizes to cache-wide counters, so the
+ * cache-wide constraints are checked without locking every segment.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class SegmentedCountingMemoryCache<K, V>
+    implements CountingMemoryCache<K, V>, MemoryCache<K, V>, HasDebugData {
+
+  private final LruCountingMemoryCache<K, V>[] mSegments;
+  private final int mSegmentMask;
+
+  // The number of segments holding more than their even share, which the cache-wide constraints
+  // are checked for
+  private final AtomicInteger mSegmentsAboveShare = new AtomicInteger();
+
+  // The sums of the counts and sizes of the segments, as last published by each of them
+  private final AtomicInteger mCount = new AtomicInteger();
+  private final AtomicInteger mEvictionQueueCount = new AtomicInteger();
+  private final AtomicInteger mInUseSizeInBytes = new AtomicInteger();
+  private final AtomicInteger mEvictionQueueSizeInBytes = new AtomicInteger();
+
+  private final ValueDescriptor<V> mValueDescriptor;
+
+  private final Map<Bitmap, Object> mOtherEntries = new WeakHashMap<>();
+
+  // The last params returned by the supplier, shared by all segments.
+  private volatile MemoryCacheParams mMemoryCacheParams;
+
+  /**
+   * @param segmentCount the number of segments, rounded up to the next power of two
+   */
+  @SuppressWarnings("unchecked")
+  public SegmentedCountingMemoryCache(
+      ValueDescriptor<V> valueDescriptor,
+      CacheTrimStrategy cacheTrimStrategy,
+      final Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+      @Nullable EntryStateObserver<K> entryStateObserver,
+      boolean storeEntrySize,
+      boolean ignoreSizeMismatch,
+      int segmentCount) {
+    Preconditions.checkArgument(segmentCount > 0, "segmentCount must be positive");
+    mValueDescriptor = valueDescriptor;
+    mMemoryCacheParams =
+        Preconditions.checkNotNull(
+            memoryCacheParamsSupplier.get(), "memoryCacheParamsSupplier returned null");
+    final int count = roundUpToPowerOfTwo(segmentCount);
+    Supplier<MemoryCacheParams> segmentParamsSupplier =
+        new Supplier<MemoryCacheParams>() {
+          @Override
+          public MemoryCacheParams get() {
+            MemoryCacheParams params =
+                Preconditions.checkNotNull(
+                    memoryCacheParamsSupplier.get(), "memoryCacheParamsSupplier returned null");
+            mMemoryCacheParams = params;
+            return getSegmentParams(params, count);
+          }
+        };
+    mSegments = new LruCountingMemoryCache[count];
+    for (int i = 0; i < count; i++) {
+      mSegments[i] =
+          new Segment(
+              valueDescriptor,
+              cacheTrimStrategy,
+              segmentParamsSupplier,
+              entryStateObserver,
+              storeEntrySize,
+              ignoreSizeMismatch);
+    }
+    mSegmentMask = count - 1;
+  }
+
+  /**
+   * Splits the cache-wide constraints into the constraints of a single segment. The sizes are an
+   * even share plus the max entry size, so that every segment can take the largest entry on top of
+   * its share, but no more than the cache-wide sizes.
+   */
+  @VisibleForTesting
+  static MemoryCacheParams getSegmentParams(MemoryCacheParams params, int segmentCount) {
+    return new MemoryCacheParams(
+        getSegmentSize(params.maxCacheSize, params.maxCacheEntrySize, segmentCount),
+        divideRoundingUp(params.maxCacheEntries, segmentCount),
+        getSegmentSize(params.maxEvictionQueueSize, params.maxCacheEntrySize, segmentCount),
+        divideRoundingUp(params.maxEvictionQueueEntries, segmentCount),
+        params.maxCacheEntrySize,
+        params.paramsCheckIntervalMs);
+  }
+
+  private static int getSegmentSize(int size, int maxEntrySize, int segmentCount) {
+    return (int) Math.min(size, (long) (size / segmentCount) + maxEntrySize);
+  }
+
+  private static int divideRoundingUp(int value, int divisor) {
+    return value / divisor + (value % divisor == 0 ? 0 : 1);
+  }
+
+  private static int roundUpToPowerOfTwo(int value) {
+    int highestBit = Integer.highestOneBit(value);
+    return highestBit == value ? value : highestBit << 1;
+  }
+
+  /** Segment also enforcing the cache-wide constraints after its own evictions. */
+  private class Segment extends LruCountingMemoryCache<K, V> {
+
+    Segment(
+        ValueDescriptor<V> valueDescriptor,
+        CacheTrimStrategy cacheTrimStrategy,
+        Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+        @Nullable EntryStateObserver<K> entryStateObserver,
+        boolean storeEntrySize,
+        boolean ignoreSizeMismatch) {
+      super(
+          valueDescriptor,
+          cacheTrimStrategy,
+          memoryCacheParamsSupplier,
+          entryStateObserver,
+          storeEntrySize,
+          ignoreSizeMismatch);
+    }
+
+    @GuardedBy("this")
+    private boolean mAboveShare;
+
+    // The counts and sizes last added to the cache-wide counters
+    @GuardedBy("this")
+    private int mPublishedCount;
+
+    @GuardedBy("this")
+    private int mPublishedEvictionQueueCount;
+
+    @GuardedBy("this")
+    private int mPublishedInUseSizeInBytes;
+
+    @GuardedBy("this")
+    private int mPublishedEvictionQueueSizeInBytes;
+
+    @Override
+    public void maybeEvictEntries() {
+      super.maybeEvictEntries();
+      publishSizes();
+      maybeEvictAboveCacheLimits(this);
+    }
+
+    @Override
+    public @Nullable CloseableReference<V> reuse(K key) {
+      CloseableReference<V> clientRef = super.reuse(key);
+      publishSizes();
+      return clientRef;
+    }
+
+    @Override
+    public void clear() {
+      super.clear();
+      publishSizes();
+    }
+
+    @Override
+    int evictExclusiveEntries(int size) {
+      int freedSize = super.evictExclusiveEntries(size);
+      publishSizes();
+      return freedSize;
+    }
+
+    /**
+     * Adds the changes of the counts and sizes since the last call to the cache-wide counters.
+     * Called after every operation changing them, most of which end with {@link
+     * #maybeEvictEntries}.
+     */
+    synchronized void publishSizes() {
+      int count = getCount();
+      int evictionQueueCount = getEvictionQueueCount();
+      int inUseSize = getInUseSizeInBytes();
+      int evictionQueueSize = getEvictionQueueSizeInBytes();
+      mCount.addAndGet(count - mPublishedCount);
+      mEvictionQueueCount.addAndGet(evictionQueueCount - mPublishedEvictionQueueCount);
+      mInUseSizeInBytes.addAndGet(inUseSize - mPublishedInUseSizeInBytes);
+      mEvictionQueueSizeInBytes.addAndGet(evictionQueueSize - mPublishedEvictionQueueSizeInBytes);
+      mPublishedCount = count;
+      mPublishedEvictionQueueCount = evictionQueueCount;
+      mPublishedInUseSizeInBytes = inUseSize;
+      mPublishedEvictionQueueSizeInBytes = evictionQueueSize;
+    }
+
+    /** Updates whether the segment holds more than its even share of the sizes. */
+    synchronized void updateAboveShare(MemoryCacheParams params) {
+      boolean aboveShare =
+          getEvictionQueueSizeInBytes() > params.maxEvictionQueueSize / mSegments.length
+              || getSizeInBytes() > params.maxCacheSize / mSegments.length;
+      if (aboveShare != mAboveShare) {
+        mAboveShare = aboveShare;
+        mSegmentsAboveShare.addAndGet(aboveShare ? 1 : -1);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  LruCountingMemoryCache<K, V> segmentFor(K key) {
+    int hash = key.hashCode();
+    // spread the higher bits, as CacheKey hash codes are often poor in the lower ones
+    return mSegments[(hash ^ (hash >>> 16)) & mSegmentMask];
+  }
+
+  @VisibleForTesting
+  int getSegmentCount() {
+    return mSegments.length;
+  }
+
+  /**
+   * Caches the given key-value pair.
+   *
+   * <p>Important: the client should use the returned reference instead of the original one. It is
+   * the caller's responsibility to close the returned reference once not needed anymore.
+   *
+   * @return the new reference to be used, null if the value cannot be cached
+   */
+  @Override
+  public @Nullable CloseableReference<V> cache(final K key, final CloseableReference<V> valueRef) {
+    Preconditions.checkNotNull(key);
+    LruCountingMemoryCache<K, V> segment = segmentFor(key);
+    if (!canCacheNewValue(segment, key, valueRef)) {
+      return null;
+    }
+    return segment.cache(key, valueRef);
+  }
+
+  @Override
+  public @Nullable CloseableReference<V> cache(
+      final K key,
+      final CloseableReference<V> valueRef,
+      final @Nullable EntryStateObserver<K> observer) {
+    Preconditions.checkNotNull(key);
+    LruCountingMemoryCache<K, V> segment = segmentFor(key);
+    if (!canCacheNewValue(segment, key, valueRef)) {
+      return null;
+    }
+    return segment.cache(key, valueRef, observer);
+  }
+
+  /**
+   * Checks the cache-wide constraints on the entries in use, which the segments only check against
+   * their share. Removes the old value of the key if the new one cannot be cached, as the segments
+   * do.
+   */
+  private boolean canCacheNewValue(
+      LruCountingMemoryCache<K, V> segment, final K key, CloseableReference<V> valueRef) {
+    Preconditions.checkNotNull(valueRef);
+    MemoryCacheParams params = mMemoryCacheParams;
+    int size = mValueDescriptor.getSizeInBytes(valueRef.get());
+    if (getInUseSizeInBytes() <= params.maxCacheSize - size) {
+      return true;
+    }
+    segment.removeAll(
+        new Predicate<K>() {
+          @Override
+          public boolean apply(K cachedKey) {
+            return cachedKey.equals(key);
+          }
+        });
+    return false;
+  }
+
+  /**
+   * Evicts the least recently used exclusively owned entries of the fullest segments until the
+   * cache-wide size constraints are met, as the segments together may hold more than the budget.
+   * Only needed while a segment exceeds its even share, since the constraints hold otherwise.
+   */
+  private void maybeEvictAboveCacheLimits(Segment changedSegment) {
+    MemoryCacheParams params = mMemoryCacheParams;
+    changedSegment.updateAboveShare(params);
+    if (mSegmentsAboveShare.get() == 0) {
+      return;
+    }
+    int maxEvictionQueueSize =
+        Math.min(params.maxEvictionQueueSize, params.maxCacheSize - getInUseSizeInBytes());
+    int sizeToFree = getEvictionQueueSizeInBytes() - Math.max(maxEvictionQueueSize, 0);
+    while (sizeToFree > 0) {
+      LruCountingMemoryCache<K, V> fullestSegment = mSegments[0];
+      for (LruCountingMemoryCache<K, V> segment : mSegments) {
+        if (segment.getEvictionQueueSizeInBytes()
+            > fullestSegment.getEvictionQueueSizeInBytes()) {
+          fullestSegment = segment;
+        }
+      }
+      int freedSize = fullestSegment.evictExclusiveEntries(sizeToFree);
+      if (freedSize <= 0) {
+        // Nothing left to evict, or evicted concurrently
+        break;
+      }
+      sizeToFree -= freedSize;
+    }
+    for (LruCountingMemoryCache<K, V> segment : mSegments) {
+      ((Segment) segment).updateAboveShare(params);
+    }
+  }
+
+  @Override
+  public @Nullable CloseableReference<V> cacheOnRelease(
+      final K key, final CloseableReference<V> valueRef) {
+    Preconditions.checkNotNull(key);
+    LruCountingMemoryCache<K, V> segment = segmentFor(key);
+    if (!canCacheNewValue(segment, key, valueRef)) {
+      return null;
+    }
+    return segment.cacheOnRelease(key, valueRef);
+  }
+
+  @Override
+  public @Nullable CloseableReference<V> get(final K key) {
+    Preconditions.checkNotNull(key);
+    return segmentFor(key).get(key);
+  }
+
+  @Override
+  public @Nullable V inspect(final K key) {
+    return segmentFor(key).inspect(key);
+  }
+
+  @Override
+  public void probe(final K key) {
+    Preconditions.checkNotNull(key);
+    segmentFor(key).probe(key);
+  }
+
+  @Override
+  public @Nullable CloseableReference<V> reuse(K key) {
+    Preconditions.checkNotNull(key);
+    return segmentFor(key).reuse(key);
+  }
+
+  @Override
+  public int removeAll(Predicate<K> predicate) {
+    int removed = 0;
+    for (LruCountingMemoryCache<K, V> segment : mSegments) {
+      removed += segment.removeAll(predicate);
+    }
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    for (LruCountingMemoryCache<K, V> segment : mSegments) {
+      segment.clear();
+    }
+  }
+
+  @Override
+  public boolean contains(Predicate<K> predicate) {
+    for (LruCountingMemoryCache<K, V> segment : mSegments) {
+      if (segment.contains(predicate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean contains(K key) {
+    return segmentFor(key).contains(key);
+  }
+
+  @Override
+  public void trim(MemoryTrimType trimType) {
+    for (LruCountingMemoryCache<K, V> segment : mSegments) {
+      segment.trim(trimType);
+    }
+  }
+
+  @Override
+  public void maybeEvictEntries() {
+    for (LruCountingMemoryCache<K, V> segment : mSegments) {
+      segment.maybeEvictEntries();
+    }
+  }
+
+  @Override
+  public MemoryCacheParams getMemoryCacheParams() {
+    return mMemoryCacheParams;
+  }
+
+  /**
+   * Returns a snapshot of the entries of all segments. Unlike {@link LruCountingMemoryCache}, the
+   * returned map is a copy and is not updated by the cache.
+   */
+  @Override
+  public CountingLruMap<K, Entry<K, V>> getCachedEntries() {
+    CountingLruMap<K, Entry<K, V>> entries =
+        new CountingLruMap<>(
+            new ValueDescriptor<Entry<K, V>>() {
+              @Override
+              public int getSizeInBytes(Entry<K, V> entry) {
+                return entry.size >= 0
+                    ? entry.size
+                    : mValueDescriptor.getSizeInBytes(entry.valueRef.get());
+              }
+            });
+    for (LruCountingMemoryCache<K, V> segment : mSegments) {
+      for (Map.Entry<K, Entry<K, V>> entry :
+          segment.getCachedEntries().getMatchingEntries(null)) {
+        entries.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return entries;
+  }
+
+  @Override
+  public Map<Bitmap, Object> getOtherEntries() {
+    return mOtherEntries;
+  }
+
+  /** Gets the total number of all currently cached items. */
+  @Override
+  public int getCount() {
+    return mCount.get();
+  }
+
+  /** Gets the total size in bytes of all currently cached items. */
+  @Override
+  public int getSizeInBytes() {
+    return mInUseSizeInBytes.get() + mEvictionQueueSizeInBytes.get();
+  }
+
+  /** Gets the number of the cached items that are used by at least one client. */
+  public int getInUseCount() {
+    return mCount.get() - mEvictionQueueCount.get();
+  }
+
+  /** Gets the total size in bytes of the cached items that are used by at least one client. */
+  @Override
+  public int getInUseSizeInBytes() {
+    return mInUseSizeInBytes.get();
+  }
+
+  /** Gets the number of the exclusively owned items. */
+  @Override
+  public int getEvictionQueueCount() {
+    return mEvictionQueueCount.get();
+  }
+
+  /** Gets the total size in bytes of the exclusively owned items. */
+  @Override
+  public int getEvictionQueueSizeInBytes() {
+    return mEvictionQueueSizeInBytes.get();
+  }
+
+  @Override
+  public @Nullable String getDebugData() {
+    return Objects.toStringHelper("SegmentedCountingMemoryCache")
+        .add("segment_count", mSegments.length)
+        .add("cached_entries_count", getCount())
+        .add("cached_entries_size_bytes", getSizeInBytes())
+        .add("exclusive_entries_count", getEvictionQueueCount())
+        .add("exclusive_entries_size_bytes", getEvictionQueueSizeInBytes())
+        .toString();
+  }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import androidx.annotation.VisibleForTesting;
+import com.facebook.common.internal.Objects;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Predicate;
+import com.facebook.common.internal.Supplier;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Layer of memory cache stack responsible for managing eviction of the the cached items.
+ *
+ * <p>This layer implements the W-TinyLFU eviction strategy on top of the reference counting of
+ * {@link LruCountingMemoryCache}. The exclusively owned items are kept in three LRU queues:
+ *
+ * <ul>
+ *   <li>the window, a small queue that every new item enters first;
+ *   <li>the probation queue, which holds the items admitted from the window;
+ *   <li>the protected queue, which holds the items that were accessed again while in probation.
+ * </ul>
+ *
+ * <p>When the window overflows, its least recently used item becomes a candidate for the main
+ * queues. If the cache is full, the candidate is only admitted if a {@link FrequencySketch}
+ * estimates that it was accessed more often recently than the item it would evict. This keeps items
+ * that are used on every screen from being pushed out by a burst of items that are seen once, e.g.
+ * during a fast fling.
+ *
+ * <p>Only the exclusively owned elements, i.e. the elements not referenced by any client, can be
+ * evicted.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class TinyLfuCountingMemoryCache<K, V> extends LruCountingMemoryCache<K, V> {
+
+  /** Default share of the eviction queue budget used by the window, in percent. */
+  public static final int DEFAULT_WINDOW_PERCENT = 1;
+
+  // Share of the main queues budget used by the protected queue, in percent.
+  private static final int PROTECTED_PERCENT = 80;
+
+  private enum Region {
+    PROBATION,
+    PROTECTED
+  }
+
+  // Exclusively owned items that have not been admitted to the main queues yet.
+
+  @GuardedBy("this")
+  @VisibleForTesting
+  final CountingLruMap<K, Entry<K, V>> mWindowExclusiveEntries;
+
+  // Exclusively owned items that were admitted to the main queues.
+
+  @GuardedBy("this")
+  @VisibleForTesting
+  final CountingLruMap<K, Entry<K, V>> mProbationExclusiveEntries;
+
+  // Exclusively owned items that were accessed while in probation.
+
+  @GuardedBy("this")
+  @VisibleForTesting
+  final CountingLruMap<K, Entry<K, V>> mProtectedExclusiveEntries;
+
+  // The main queue region of the admitted items, kept while they are in use too. Items without a
+  // region belong to the window.
+
+  @GuardedBy("this")
+  private final HashMap<K, Region> mMainRegions = new HashMap<>();
+
+  @GuardedBy("this")
+  private final FrequencySketch mFrequencySketch;
+
+  private final ValueDescriptor<Entry<K, V>> mEntryValueDescriptor;
+
+  private final int mWindowPercent;
+
+  /**
+   * @param windowPercent the share of the eviction queue budget used by the window, between 1 and
+   *     99 percent. The window holds at least its most recent item, even if larger than that.
+   */
+  public TinyLfuCountingMemoryCache(
+      ValueDescriptor<V> valueDescriptor,
+      CacheTrimStrategy cacheTrimStrategy,
+      Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+      @Nullable EntryStateObserver<K> entryStateObserver,
+      boolean storeEntrySize,
+      boolean ignoreSizeMismatch,
+      int windowPercent) {
+    super(
+        valueDescriptor,
+        cacheTrimStrategy,
+        memoryCacheParamsSupplier,
+        entryStateObserver,
+        storeEntrySize,
+        ignoreSizeMismatch);
+    Preconditions.checkArgument(
+        windowPercent > 0 && windowPercent < 100, "windowPercent must be between 1 and 99");
+    mEntryValueDescriptor = wrapValueDescriptor(valueDescriptor);
+    mWindowExclusiveEntries = new CountingLruMap<>(mEntryValueDescriptor);
+    mProbationExclusiveEntries = new CountingLruMap<>(mEntryValueDescriptor);
+    mProtectedExclusiveEntries = new CountingLruMap<>(mEntryValueDescriptor);
+    mFrequencySketch = new FrequencySketch(mMemoryCacheParams.maxCacheEntries);
+    mWindowPercent = windowPercent;
+  }
+
+  public TinyLfuCountingMemoryCache(
+      ValueDescriptor<V> valueDescriptor,
+      CacheTrimStrategy cacheTrimStrategy,
+      Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+      @Nullable EntryStateObserver<K> entryStateObserver,
+      boolean storeEntrySize,
+      int windowPercent) {
+    this(
+        valueDescriptor,
+        cacheTrimStrategy,
+        memoryCacheParamsSupplier,
+        entryStateObserver,
+        storeEntrySize,
+        /* ignoreSizeMismatch */ false,
+        windowPercent);
+  }
+
+  public TinyLfuCountingMemoryCache(
+      ValueDescriptor<V> valueDescriptor,
+      CacheTrimStrategy cacheTrimStrategy,
+      Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+      @Nullable EntryStateObserver<K> entryStateObserver,
+      boolean storeEntrySize,
+      boolean ignoreSizeMismatch) {
+    this(
+        valueDescriptor,
+        cacheTrimStrategy,
+        memoryCacheParamsSupplier,
+        entryStateObserver,
+        storeEntrySize,
+        ignoreSizeMismatch,
+        DEFAULT_WINDOW_PERCENT);
+  }
+
+  public TinyLfuCountingMemoryCache(
+      ValueDescriptor<V> valueDescriptor,
+      CacheTrimStrategy cacheTrimStrategy,
+      Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+      @Nullable EntryStateObserver<K> entryStateObserver,
+      boolean storeEntrySize) {
+    this(
+        valueDescriptor,
+        cacheTrimStrategy,
+        memoryCacheParamsSupplier,
+        entryStateObserver,
+        storeEntrySize,
+        /* ignoreSizeMismatch */ false,
+        DEFAULT_WINDOW_PERCENT);
+  }
+
+  /** Counts the access and moves an item accessed while in probation to the protected queue. */
+  @Override
+  synchronized void onAccess(K key) {
+    mFrequencySketch.increment(key);
+    if (mMainRegions.get(key) == Region.PROBATION) {
+      mMainRegions.put(key, Region.PROTECTED);
+    }
+  }
+
+  @Override
+  synchronized void onRemovedFromCache(K key) {
+    mMainRegions.remove(key);
+  }
+
+  @Override
+  synchronized void onMemoryCacheParamsUpdated(MemoryCacheParams params) {
+    mFrequencySketch.ensureCapacity(params.maxCacheEntries);
+  }
+
+  /** Adds the entry to the exclusively owned queue of its region. */
+  @Override
+  synchronized void addExclusive(Entry<K, V> entry) {
+    Region region = mMainRegions.get(entry.key);
+    CountingLruMap<K, Entry<K, V>> exclusiveEntries;
+    if (region == null) {
+      exclusiveEntries = mWindowExclusiveEntries;
+    } else if (region == Region.PROTECTED) {
+      exclusiveEntries = mProtectedExclusiveEntries;
+    } else {
+      exclusiveEntries = mProbationExclusiveEntries;
+    }
+    exclusiveEntries.put(entry.key, entry);
+  }
+
+  /** Removes the item from whichever exclusively owned queue it is in. */
+  @Override
+  @Nullable
+  synchronized Entry<K, V> removeExclusive(K key) {
+    Entry<K, V> entry = mWindowExclusiveEntries.remove(key);
+    if (entry == null) {
+      entry = mProbationExclusiveEntries.remove(key);
+    }
+    if (entry == null) {
+      entry = mProtectedExclusiveEntries.remove(key);
+    }
+    return entry;
+  }
+
+  @Override
+  synchronized ArrayList<Entry<K, V>> removeAllExclusives(Predicate<K> predicate) {
+    ArrayList<Entry<K, V>> oldExclusives = mWindowExclusiveEntries.removeAll(predicate);
+    oldExclusives.addAll(mProbationExclusiveEntries.removeAll(predicate));
+    oldExclusives.addAll(mProtectedExclusiveEntries.removeAll(predicate));
+    return oldExclusives;
+  }
+
+  /** Clears the queues, and forgets the regions and the frequencies of all the items. */
+  @Override
+  synchronized ArrayList<Entry<K, V>> clearExclusives() {
+    ArrayList<Entry<K, V>> oldExclusives = mWindowExclusiveEntries.clear();
+    oldExclusives.addAll(mProbationExclusiveEntries.clear());
+    oldExclusives.addAll(mProtectedExclusiveEntries.clear());
+    mMainRegions.clear();
+    mFrequencySketch.clear();
+    return oldExclusives;
+  }
+
+  /**
+   * Removes the exclusively owned items until there is at most <code>count</code> of them and they
+   * occupy no more than <code>size</code> bytes.
+   *
+   * <p>The items overflowing the window compete with the least recently used item of the main
+   * queues, and the one with the lower frequency is removed. The items overflowing the protected
+   * queue are moved back to probation.
+   *
+   * <p>This method returns the removed items instead of actually closing them, so it is safe to be
+   * called while holding the <code>this</code> lock.
+   */
+  @Override
+  @Nullable
+  synchronized ArrayList<Entry<K, V>> trimExclusivelyOwnedEntries(int count, int size) {
+    count = Math.max(count, 0);
+    size = Math.max(size, 0);
+    int windowMaxCount = (int) Math.max(1, (long) count * mWindowPercent / 100);
+    int windowMaxSize = (int) ((long) size * mWindowPercent / 100);
+    ArrayList<Entry<K, V>> oldEntries = null;
+
+    // The window keeps its most recent item even if it is larger than the window, as a share of the
+    // budget in bytes can be smaller than a single bitmap
+    while (mWindowExclusiveEntries.getCount() > windowMaxCount
+        || (mWindowExclusiveEntries.getCount() > 1
+            && mWindowExclusiveEntries.getSizeInBytes() > windowMaxSize)) {
+      K candidateKey = mWindowExclusiveEntries.getFirstKey();
+      if (candidateKey == null) {
+        checkSizeMismatchIgnored();
+        mWindowExclusiveEntries.resetSize();
+        break;
+      }
+      Entry<K, V> candidate =
+          Preconditions.checkNotNull(mWindowExclusiveEntries.remove(candidateKey));
+      int candidateSize = mEntryValueDescriptor.getSizeInBytes(candidate);
+      boolean admitted = true;
+      while (getEvictionQueueCount() >= count
+          || getEvictionQueueSizeInBytes() > size - candidateSize) {
+        CountingLruMap<K, Entry<K, V>> victims =
+            mProbationExclusiveEntries.getCount() > 0
+                ? mProbationExclusiveEntries
+                : mProtectedExclusiveEntries;
+        K victimKey = victims.getFirstKey();
+        if (victimKey == null) {
+          break;
+        }
+        if (mFrequencySketch.frequency(candidateKey) > mFrequencySketch.frequency(victimKey)) {
+          oldEntries = addOldEntry(oldEntries, removeExclusiveEntry(victimKey, victims));
+        } else {
+          admitted = false;
+          break;
+        }
+      }
+      if (admitted) {
+        mMainRegions.put(candidateKey, Region.PROBATION);
+        mProbationExclusiveEntries.put(candidateKey, candidate);
+      } else {
+        oldEntries = addOldEntry(oldEntries, mCachedEntries.remove(candidateKey));
+      }
+    }
+
+    int protectedMaxCount =
+        (int) ((long) Math.max(0, count - windowMaxCount) * PROTECTED_PERCENT / 100);
+    int protectedMaxSize = (int) ((long) (size - windowMaxSize) * PROTECTED_PERCENT / 100);
+    while (mProtectedExclusiveEntries.getCount() > protectedMaxCount
+        || mProtectedExclusiveEntries.getSizeInBytes() > protectedMaxSize) {
+      K key = mProtectedExclusiveEntries.getFirstKey();
+      if (key == null) {
+        checkSizeMismatchIgnored();
+        mProtectedExclusiveEntries.resetSize();
+        break;
+      }
+      mMainRegions.put(key, Region.PROBATION);
+      mProbationExclusiveEntries.put(
+          key, Preconditions.checkNotNull(mProtectedExclusiveEntries.remove(key)));
+    }
+
+    // the budget can still be exceeded, e.g. when trimming or when the items in use grow, in which
+    // case the less frequently used of the window and probation victims is removed first
+    while (getEvictionQueueCount() > count || getEvictionQueueSizeInBytes() > size) {
+      CountingLruMap<K, Entry<K, V>> victims;
+      K windowKey = mWindowExclusiveEntries.getFirstKey();
+      K probationKey = mProbationExclusiveEntries.getFirstKey();
+      if (windowKey != null
+          && (probationKey == null
+              || mFrequencySketch.frequency(windowKey)
+                  <= mFrequencySketch.frequency(probationKey))) {
+        victims = mWindowExclusiveEntries;
+      } else if (probationKey != null) {
+        victims = mProbationExclusiveEntries;
+      } else {
+        victims = mProtectedExclusiveEntries;
+      }
+      K key = victims.getFirstKey();
+      if (key == null) {
+        checkSizeMismatchIgnored();
+        mProbationExclusiveEntries.resetSize();
+        mWindowExclusiveEntries.resetSize();
+        mProtectedExclusiveEntries.resetSize();
+        break;
+      }
+      oldEntries = addOldEntry(oldEntries, removeExclusiveEntry(key, victims));
+    }
+    return oldEntries;
+  }
+
+  /**
+   * Throws when the sizes of the exclusive entries do not match their items, unless the cache was
+   * created to ignore such mismatches and reset the sizes, as {@link LruCountingMemoryCache} does.
+   */
+  private void checkSizeMismatchIgnored() {
+    if (!mIgnoreSizeMismatch) {
+      throw new IllegalStateException(
+          String.format(
+              "key is null, but exclusiveEntries count: %d, size: %d",
+              getEvictionQueueCount(), getEvictionQueueSizeInBytes()));
+    }
+  }
+
+  /** Removes the exclusively owned item from the cache. */
+  private synchronized Entry<K, V> removeExclusiveEntry(
+      K key, CountingLruMap<K, Entry<K, V>> exclusiveEntries) {
+    exclusiveEntries.remove(key);
+    mMainRegions.remove(key);
+    return Preconditions.checkNotNull(mCachedEntries.remove(key));
+  }
+
+  private static <K, V> ArrayList<Entry<K, V>> addOldEntry(
+      @Nullable ArrayList<Entry<K, V>> oldEntries, @Nullable Entry<K, V> oldEntry) {
+    if (oldEntries == null) {
+      oldEntries = new ArrayList<>();
+    }
+    if (oldEntry != null) {
+      oldEntries.add(oldEntry);
+    }
+    return oldEntries;
+  }
+
+  /** Gets the estimated recent access frequency of the key. */
+  @VisibleForTesting
+  synchronized int getFrequency(K key) {
+    return mFrequencySketch.frequency(key);
+  }
+
+  private synchronized int getMainCount() {
+    return mProbationExclusiveEntries.getCount() + mProtectedExclusiveEntries.getCount();
+  }
+
+  private synchronized int getMainSizeInBytes() {
+    return mProbationExclusiveEntries.getSizeInBytes()
+        + mProtectedExclusiveEntries.getSizeInBytes();
+  }
+
+  /** Gets the number of the exclusively owned items. */
+  @Override
+  public synchronized int getEvictionQueueCount() {
+    return mWindowExclusiveEntries.getCount() + getMainCount();
+  }
+
+  /** Gets the total size in bytes of the exclusively owned items. */
+  @Override
+  public synchronized int getEvictionQueueSizeInBytes() {
+    return mWindowExclusiveEntries.getSizeInBytes() + getMainSizeInBytes();
+  }
+
+  @Override
+  public synchronized @Nullable String getDebugData() {
+    return Objects.toStringHelper("TinyLfuCountingMemoryCache")
+        .add("cached_entries_count", mCachedEntries.getCount())
+        .add("cached_entries_size_bytes", mCachedEntries.getSizeInBytes())
+        .add("window_entries_count", mWindowExclusiveEntries.getCount())
+        .add("probation_entries_count", mProbationExclusiveEntries.getCount())
+        .add("protected_entries_count", mProtectedExclusiveEntries.getCount())
+        .add("exclusive_entries_size_bytes", getEvictionQueueSizeInBytes())
+        .toString();
+  }
+}
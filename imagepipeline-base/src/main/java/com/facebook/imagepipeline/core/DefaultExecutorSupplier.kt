@@ -17,32 +17,49 @@ import java.util.concurrent.ScheduledExecutorService
  *
  * Provides one thread pool for the CPU-bound operations and another thread pool for the IO-bound
  * operations.
+ *
+ * If [usePriorityExecutors] is set, the IO-bound, decode and background executors are
+ * [PriorityExecutor]s, so queued work for visible images runs before queued prefetches.
  */
-class DefaultExecutorSupplier(
+class DefaultExecutorSupplier
+@JvmOverloads
+constructor(
     numCpuBoundThreads: Int,
     numIoBoundThreads: Int = DEFAULT_NUM_IO_BOUND_THREADS,
     numLightweightBackgroundThreads: Int = DEFAULT_NUM_LIGHTWEIGHT_BACKGROUND_THREADS,
+    private val usePriorityExecutors: Boolean = false,
 ) : ExecutorSupplier {
 
   private val ioBoundExecutor: Executor =
-      Executors.newFixedThreadPool(
-          numIoBoundThreads,
-          PriorityThreadFactory(Process.THREAD_PRIORITY_BACKGROUND, "FrescoIoBoundExecutor", true),
-      )
+      maybePrioritize(
+          Executors.newFixedThreadPool(
+              numIoBoundThreads,
+              PriorityThreadFactory(
+                  Process.THREAD_PRIORITY_BACKGROUND,
+                  "FrescoIoBoundExecutor",
+                  true,
+              ),
+          ))
   private val decodeExecutor: Executor =
-      Executors.newFixedThreadPool(
-          numCpuBoundThreads,
-          PriorityThreadFactory(Process.THREAD_PRIORITY_BACKGROUND, "FrescoDecodeExecutor", true),
-      )
+      maybePrioritize(
+          Executors.newFixedThreadPool(
+              numCpuBoundThreads,
+              PriorityThreadFactory(
+                  Process.THREAD_PRIORITY_BACKGROUND,
+                  "FrescoDecodeExecutor",
+                  true,
+              ),
+          ))
   private val backgroundExecutor: Executor =
-      Executors.newFixedThreadPool(
-          numCpuBoundThreads,
-          PriorityThreadFactory(
-              Process.THREAD_PRIORITY_BACKGROUND,
-              "FrescoBackgroundExecutor",
-              true,
-          ),
-      )
+      maybePrioritize(
+          Executors.newFixedThreadPool(
+              numCpuBoundThreads,
+              PriorityThreadFactory(
+                  Process.THREAD_PRIORITY_BACKGROUND,
+                  "FrescoBackgroundExecutor",
+                  true,
+              ),
+          ))
   private val lightWeightBackgroundExecutor: Executor =
       Executors.newFixedThreadPool(
           numLightweightBackgroundThreads,
@@ -77,6 +94,9 @@ class DefaultExecutorSupplier(
 
   override fun forThumbnailProducer(): Executor = ioBoundExecutor
 
+  private fun maybePrioritize(executor: Executor): Executor =
+      if (usePriorityExecutors) PriorityExecutor(executor) else executor
+
   companion object {
     // Allows for simultaneous reads and writes.
     const val DEFAULT_NUM_IO_BOUND_THREADS = 2
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core
+
+import com.facebook.imagepipeline.common.Priority
+
+/** A [Runnable] that a [PriorityExecutor] queues according to its [priority]. */
+interface PrioritizedRunnable : Runnable {
+
+  /**
+   * The priority of the task. It is read when the task is queued and again whenever the priority
+   * change listener of the task is run.
+   */
+  val priority: Priority
+
+  /**
+   * Sets the listener to run whenever the [priority] of the task changes, or clears it. A
+   * [PriorityExecutor] sets it while the task is queued, so that tasks do not need to know which
+   * executor, if any, queues them by priority.
+   */
+  fun setPriorityChangeListener(listener: Runnable?) {}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core
+
+import androidx.annotation.VisibleForTesting
+import com.facebook.common.time.MonotonicClock
+import com.facebook.common.time.RealtimeSinceBootClock
+import com.facebook.imagepipeline.common.Priority
+import java.util.PriorityQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * Executor that runs the queued tasks in the order of their [Priority] instead of the order in
+ * which they were submitted.
+ *
+ * Tasks implementing [PrioritizedRunnable] are queued with their own priority, and are moved when
+ * it changes while they are queued. Any other task is queued with [DEFAULT_PRIORITY]. As in
+ * [PriorityStarvingThrottlingProducer] all the higher priority tasks run before the lower priority
+ * ones, and tasks of the same priority run in the order they were submitted. So that prefetches
+ * are not starved for as long as the user keeps scrolling, a task that has been queued for longer
+ * than `maxQueueTimeMs` runs before any task that was submitted after it.
+ *
+ * The threads are provided by the [delegate]: every submitted task schedules one drain on it, and
+ * a drain runs whatever task comes first at the time the drain starts.
+ */
+@ThreadSafe
+class PriorityExecutor
+@JvmOverloads
+constructor(
+    private val delegate: Executor,
+    private val maxQueueTimeMs: Long = DEFAULT_MAX_QUEUE_TIME_MS,
+    private val clock: MonotonicClock = RealtimeSinceBootClock.get(),
+) : Executor {
+
+  private class Task(
+      val runnable: Runnable,
+      var priority: Priority,
+      val sequenceNumber: Long,
+      val enqueueTimeMs: Long,
+  )
+
+  @GuardedBy("this")
+  private val queues: Array<PriorityQueue<Task>> =
+      Array(Priority.values().size) { PriorityQueue(INITIAL_QUEUE_CAPACITY, SUBMISSION_ORDER) }
+
+  @GuardedBy("this") private var nextSequenceNumber = 0L
+
+  private val drainRunnable = Runnable {
+    val runnable = poll() ?: return@Runnable
+    (runnable as? PrioritizedRunnable)?.setPriorityChangeListener(null)
+    runnable.run()
+  }
+
+  override fun execute(runnable: Runnable) {
+    val prioritizedRunnable = runnable as? PrioritizedRunnable
+    // Set first, so that no change between reading the priority and queueing the task is missed
+    prioritizedRunnable?.setPriorityChangeListener { onPriorityChanged(prioritizedRunnable) }
+    val task: Task
+    synchronized(this) {
+      val priority = prioritizedRunnable?.priority ?: DEFAULT_PRIORITY
+      task = Task(runnable, priority, nextSequenceNumber++, clock.now())
+      queues[priority.ordinal].add(task)
+    }
+    try {
+      delegate.execute(drainRunnable)
+    } catch (e: RejectedExecutionException) {
+      synchronized(this) { queues[task.priority.ordinal].remove(task) }
+      prioritizedRunnable?.setPriorityChangeListener(null)
+      throw e
+    }
+  }
+
+  /**
+   * Moves the given task to the queue of its current [PrioritizedRunnable.priority], keeping its
+   * place in the submission order. Does nothing if the task is not queued, e.g. because it already
+   * started.
+   *
+   * This is called by the priority change listener the executor sets on the queued tasks.
+   */
+  fun onPriorityChanged(runnable: PrioritizedRunnable) {
+    synchronized(this) {
+      val priority = runnable.priority
+      for (queue in queues) {
+        val task = queue.firstOrNull { it.runnable === runnable } ?: continue
+        if (task.priority != priority) {
+          queue.remove(task)
+          task.priority = priority
+          queues[priority.ordinal].add(task)
+        }
+        return
+      }
+    }
+  }
+
+  /** The number of tasks that are queued and have not started yet. */
+  val queuedTaskCount: Int
+    @Synchronized get() = queues.sumOf { it.size }
+
+  /** Removes and returns the task that has to run next, if any. */
+  @VisibleForTesting
+  @Synchronized
+  internal fun poll(): Runnable? {
+    val now = clock.now()
+    var next: Task? = null
+    for (i in queues.indices.reversed()) {
+      val head = queues[i].peek() ?: continue
+      if (
+          next == null ||
+              (now - head.enqueueTimeMs > maxQueueTimeMs &&
+                  head.sequenceNumber < next.sequenceNumber)
+      ) {
+        next = head
+      }
+    }
+    if (next == null) {
+      return null
+    }
+    queues[next.priority.ordinal].poll()
+    return next.runnable
+  }
+
+  companion object {
+    /** The priority of the tasks that do not implement [PrioritizedRunnable]. */
+    @JvmField val DEFAULT_PRIORITY = Priority.HIGH
+
+    const val DEFAULT_MAX_QUEUE_TIME_MS = 2_000L
+
+    private const val INITIAL_QUEUE_CAPACITY = 11
+
+    private val SUBMISSION_ORDER =
+        Comparator<Task> { t1, t2 -> t1.sequenceNumber.compareTo(t2.sequenceNumber) }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+/** Tests for [CacheKeyUtil] */
+@RunWith(RobolectricTestRunner::class)
+class CacheKeyUtilTest {
+
+  private val sha1 = Sha1ResourceIdHasher.getInstance()
+  private val murmur3 = Murmur3ResourceIdHasher()
+
+  @Test
+  fun testDefaultHasherIsSha1() {
+    val key = SimpleCacheKey("http://example.com/a.jpg")
+    assertThat(CacheKeyUtil.getResourceIds(key))
+        .containsExactly(sha1.getResourceId("http://example.com/a.jpg"))
+    assertThat(CacheKeyUtil.getFirstResourceId(key))
+        .isEqualTo(sha1.getResourceId("http://example.com/a.jpg"))
+  }
+
+  @Test
+  fun testResourceIdsAreCachedPerHasher() {
+    val key = SimpleCacheKey("http://example.com/a.jpg")
+    val sha1Ids = CacheKeyUtil.getResourceIds(key, sha1)
+    assertThat(CacheKeyUtil.getResourceIds(key, sha1)).isSameAs(sha1Ids)
+
+    val murmur3Ids = CacheKeyUtil.getResourceIds(key, murmur3)
+    assertThat(murmur3Ids).containsExactly(murmur3.getResourceId("http://example.com/a.jpg"))
+    assertThat(CacheKeyUtil.getResourceIds(key, murmur3)).isSameAs(murmur3Ids)
+  }
+
+  @Test
+  fun testPreviousHasherIdsComeLast() {
+    val migrating = Murmur3ResourceIdHasher(sha1)
+    val key = SimpleCacheKey("a")
+    assertThat(CacheKeyUtil.getResourceIds(key, migrating))
+        .containsExactly(murmur3.getResourceId("a"), sha1.getResourceId("a"))
+    assertThat(CacheKeyUtil.getFirstResourceId(key, migrating))
+        .isEqualTo(murmur3.getResourceId("a"))
+
+    val multiKey = MultiCacheKey(listOf<CacheKey>(SimpleCacheKey("a"), SimpleCacheKey("b")))
+    assertThat(CacheKeyUtil.getResourceIds(multiKey, migrating))
+        .containsExactly(
+            murmur3.getResourceId("a"),
+            murmur3.getResourceId("b"),
+            sha1.getResourceId("a"),
+            sha1.getResourceId("b"),
+        )
+    assertThat(CacheKeyUtil.getFirstResourceId(multiKey, migrating))
+        .isEqualTo(murmur3.getResourceId("a"))
+  }
+
+  @Test
+  fun testResourceIdForDebugging() {
+    val key = SimpleCacheKey("debug_id", true)
+    assertThat(CacheKeyUtil.getResourceIds(key, Murmur3ResourceIdHasher(sha1)))
+        .containsExactly("debug_id")
+  }
+}
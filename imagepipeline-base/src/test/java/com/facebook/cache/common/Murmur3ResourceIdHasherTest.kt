@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Assume
+import org.junit.Test
+
+/** Tests for [Murmur3ResourceIdHasher] */
+class Murmur3ResourceIdHasherTest {
+
+  private val hasher = Murmur3ResourceIdHasher()
+
+  @Test
+  fun testKnownValues() {
+    // Base64 of Guava's Hashing.murmur3_128().hashUnencodedChars()
+    assertThat(hasher.getResourceId("")).isEqualTo("AAAAAAAAAAAAAAAAAAAAAA")
+    assertThat(hasher.getResourceId("a")).isEqualTo("vZhOC1CYppZ9Z1THv8l4sg")
+    assertThat(hasher.getResourceId("http://example.com/images/photo.jpg"))
+        .isEqualTo("gWUdJeD8GsCk4HZutXMaSw")
+    assertThat(hasher.getResourceId("é✓")).isEqualTo("MOeGOHvsm_4jCE8f5yu-cA")
+  }
+
+  @Test
+  fun testIdsAreFileNameSafe() {
+    val builder = StringBuilder()
+    for (i in 0 until 200) {
+      val id = hasher.getResourceId(builder.toString())
+      assertThat(id).hasSize(22).matches("[A-Za-z0-9_-]+")
+      builder.append((i * 7919 % 65536).toChar())
+    }
+  }
+
+  @Test
+  fun testDistinctInputs() {
+    val ids = HashSet<String>()
+    for (i in 0 until 10000) {
+      ids.add(hasher.getResourceId("https://example.com/image/" + i))
+    }
+    assertThat(ids).hasSize(10000)
+  }
+
+  @Test
+  fun testPreviousHasher() {
+    assertThat(hasher.previousHasher).isNull()
+    val migrating = Murmur3ResourceIdHasher(Sha1ResourceIdHasher.getInstance())
+    assertThat(migrating.previousHasher).isSameAs(Sha1ResourceIdHasher.getInstance())
+  }
+
+  /**
+   * Compares the hashing time of uris with [Sha1ResourceIdHasher]. Only runs with FRESCO_BENCHMARKS
+   * set.
+   */
+  @Test
+  fun benchmarkAgainstSha1() {
+    Assume.assumeTrue(System.getenv("FRESCO_BENCHMARKS") != null)
+    val uris = Array(10_000) { "https://scontent.example.com/v/t39.30808-6/${it}_n.jpg?stp=dst" }
+    val sha1 = Sha1ResourceIdHasher.getInstance()
+    // warm up
+    hashAll(hasher, uris)
+    hashAll(sha1, uris)
+
+    val murmur3Ns = hashAll(hasher, uris)
+    val sha1Ns = hashAll(sha1, uris)
+
+    assertThat(murmur3Ns)
+        .describedAs("Murmur3 %d ns, SHA-1 %d ns for %d uris", murmur3Ns, sha1Ns, uris.size)
+        .isLessThan(sha1Ns)
+  }
+
+  private fun hashAll(resourceIdHasher: ResourceIdHasher, uris: Array<String>): Long {
+    val start = System.nanoTime()
+    for (round in 0 until 10) {
+      for (uri in uris) {
+        resourceIdHasher.getResourceId(uri)
+      }
+    }
+    return System.nanoTime() - start
+  }
+}
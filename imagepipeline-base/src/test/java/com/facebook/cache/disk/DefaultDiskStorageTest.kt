@@ -396,6 +396,26 @@ class DefaultDiskStorageTest {
     assertThat(directory.listFiles()?.size).isEqualTo(1) // just the version directory
   }
 
+  /** Test that purgeUnexpectedResources keeps the metadata files next to the version directory. */
+  @Test
+  @Throws(Exception::class)
+  fun testPurgeKeepsMetadataFiles() {
+    val storage = getStorageSupplier(1).get()
+    val metadataFile = storage.getMetadataFile("index")
+    assertThat(metadataFile.parentFile).isEqualTo(directory)
+    assertThat(metadataFile.createNewFile()).isTrue()
+    val misplacedMetadataFile = File(File(directory, "unexpected-dir"), metadataFile.name)
+    assertThat(misplacedMetadataFile.parentFile.mkdirs()).isTrue()
+    assertThat(misplacedMetadataFile.createNewFile()).isTrue()
+
+    storage.purgeUnexpectedResources()
+    assertThat(metadataFile.exists()).isTrue()
+    assertThat(misplacedMetadataFile.exists()).isFalse()
+
+    storage.clearAll()
+    assertThat(metadataFile.exists()).isFalse()
+  }
+
   /**
    * Tests that an existing directory is nuked when it's not current version (doens't have the
    * version directory used for the structure)
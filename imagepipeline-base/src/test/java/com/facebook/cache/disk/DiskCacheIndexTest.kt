@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk
+
+import com.facebook.binaryresource.BinaryResource
+import com.facebook.common.file.FileTree
+import com.facebook.common.internal.Supplier
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.RandomAccessFile
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+/** Tests for [DiskCacheIndex] */
+@RunWith(RobolectricTestRunner::class)
+class DiskCacheIndexTest {
+
+  private lateinit var journalFile: File
+
+  @Before
+  fun setUp() {
+    val directory = File(RuntimeEnvironment.application.cacheDir, "disk-cache-index-test")
+    directory.mkdirs()
+    FileTree.deleteContents(directory)
+    journalFile = File(directory, "journal.meta")
+  }
+
+  private fun newIndex(): DiskCacheIndex = DiskCacheIndex(Supplier { journalFile })
+
+  @Test
+  fun testSizeAndCount() {
+    val index = newIndex()
+    assertThat(index.put("a", 10, 1)).isEqualTo(-1)
+    assertThat(index.put("b", 20, 2)).isEqualTo(-1)
+    assertThat(index.put("a", 15, 3)).isEqualTo(10)
+    assertThat(index.size).isEqualTo(35)
+    assertThat(index.count).isEqualTo(2)
+
+    assertThat(index.remove("b")).isEqualTo(20)
+    assertThat(index.remove("b")).isEqualTo(-1)
+    assertThat(index.size).isEqualTo(15)
+    assertThat(index.count).isEqualTo(1)
+  }
+
+  @Test
+  fun testEvictionCandidatesAreLeastRecentlyUsedFirst() {
+    val index = newIndex()
+    index.put("a", 10, 1)
+    index.put("b", 10, 2)
+    index.put("c", 10, 3)
+    assertThat(index.touch("a", 4)).isTrue()
+    assertThat(index.touch("unknown", 4)).isFalse()
+
+    assertThat(index.getEvictionCandidates(15).map { it.getId() }).containsExactly("b", "c")
+    assertThat(index.getEvictionCandidates(5).map { it.getId() }).containsExactly("b")
+    assertThat(index.getEntries().map { it.getId() }).containsExactly("b", "c", "a")
+  }
+
+  @Test
+  fun testLoadWithoutJournal() {
+    assertThat(newIndex().load()).isFalse()
+  }
+
+  @Test
+  fun testFlushAndLoad() {
+    val index = newIndex()
+    index.put("a", 10, 1)
+    index.put("b", 20, 2)
+    index.flush()
+    assertThat(journalFile.exists()).isTrue()
+    index.put("c", 30, 3)
+    index.touch("a", 4)
+    index.remove("b")
+    assertThat(index.pendingRecordCount).isEqualTo(3)
+    assertThat(index.pendingRecordBytes).isGreaterThan(0)
+    index.flush()
+    assertThat(index.pendingRecordCount).isEqualTo(0)
+    assertThat(index.pendingRecordBytes).isEqualTo(0)
+
+    val restored = newIndex()
+    assertThat(restored.load()).isTrue()
+    assertThat(restored.size).isEqualTo(40)
+    assertThat(restored.count).isEqualTo(2)
+    assertThat(restored.getEntries().map { it.getId() }).containsExactly("c", "a")
+    assertThat(restored.getEntries()[1].getTimestamp()).isEqualTo(4)
+  }
+
+  @Test
+  fun testLoadKeepsNewerEntries() {
+    val index = newIndex()
+    index.put("a", 10, 1)
+    index.put("b", 20, 2)
+    index.flush()
+
+    val restored = newIndex()
+    restored.put("a", 50, 5)
+    assertThat(restored.load()).isTrue()
+    assertThat(restored.size).isEqualTo(70)
+    assertThat(restored.getEntries().map { it.getId() }).containsExactly("b", "a")
+  }
+
+  @Test
+  fun testLoadTruncatedJournal() {
+    val index = newIndex()
+    index.put("a", 10, 1)
+    index.flush()
+    index.put("b", 20, 2)
+    index.flush()
+    RandomAccessFile(journalFile, "rw").use { it.setLength(it.length() - 3) }
+
+    val restored = newIndex()
+    assertThat(restored.load()).isTrue()
+    assertThat(restored.getResourceIds()).containsExactly("a")
+  }
+
+  @Test
+  fun testLoadCorruptJournal() {
+    journalFile.writeBytes(byteArrayOf(1, 2, 3, 4, 5, 6, 7, 8))
+    assertThat(newIndex().load()).isFalse()
+  }
+
+  @Test
+  fun testRebuildDropsEntriesMissingFromStorage() {
+    val index = newIndex()
+    index.put("stale", 10, 1)
+    index.put("new", 10, 200)
+    index.rebuild(listOf(DiskCacheIndex.IndexEntry("listed", 30, 50)), 100)
+    assertThat(index.getResourceIds()).containsExactly("listed", "new")
+    assertThat(index.size).isEqualTo(40)
+    assertThat(index.lastFullScanTime).isEqualTo(100)
+  }
+
+  @Test
+  fun testJournalIsCompacted() {
+    val index = newIndex()
+    index.put("a", 10, 1)
+    index.flush()
+    for (i in 0..2000) {
+      index.touch("a", i.toLong())
+    }
+    index.flush()
+    // the journal only holds the header and a single record again
+    assertThat(journalFile.length()).isLessThan(64)
+
+    val restored = newIndex()
+    assertThat(restored.load()).isTrue()
+    assertThat(restored.getEntries()[0].getTimestamp()).isEqualTo(2000)
+  }
+
+  @Test
+  fun testClearRewritesJournal() {
+    val index = newIndex()
+    index.put("a", 10, 1)
+    index.flush()
+    index.clear()
+    index.flush()
+
+    val restored = newIndex()
+    assertThat(restored.load()).isTrue()
+    assertThat(restored.count).isEqualTo(0)
+  }
+
+  @Test
+  fun testEntryResourceIsReadFromStorage() {
+    val storage = mock<DiskStorage>()
+    val resource = mock<BinaryResource>()
+    whenever(storage.getResource("a", "a")).thenReturn(resource)
+    whenever(resource.read()).thenReturn(byteArrayOf(1, 2))
+    val index = DiskCacheIndex(Supplier { journalFile }, storage)
+    index.put("a", 2, 1)
+    index.put("b", 3, 1)
+
+    val entries = index.getEntries()
+    assertThat(entries[0].getResource().size()).isEqualTo(2)
+    assertThat(entries[0].getResource().read()).containsExactly(1, 2)
+    assertThatThrownBy { entries[1].getResource().read() }
+        .isInstanceOf(FileNotFoundException::class.java)
+  }
+}
@@ -16,6 +16,9 @@ import com.facebook.cache.common.CacheEventListener.EvictionReason
 import com.facebook.cache.common.CacheKey
 import com.facebook.cache.common.CacheKeyUtil.getFirstResourceId
 import com.facebook.cache.common.MultiCacheKey
+import com.facebook.cache.common.Murmur3ResourceIdHasher
+import com.facebook.cache.common.ResourceIdHasher
+import com.facebook.cache.common.Sha1ResourceIdHasher
 import com.facebook.cache.common.SimpleCacheKey
 import com.facebook.cache.common.WriterCallback
 import com.facebook.cache.common.WriterCallbacks
@@ -23,6 +26,7 @@ import com.facebook.common.disk.DiskTrimmableRegistry
 import com.facebook.common.internal.ByteStreams
 import com.facebook.common.internal.Supplier
 import com.facebook.common.internal.Suppliers
+import com.facebook.common.logging.FLog
 import com.facebook.common.time.SystemClock
 import com.facebook.imagepipeline.testing.FakeClock
 import com.facebook.imagepipeline.testing.TestExecutorService
@@ -33,9 +37,12 @@ import java.io.RandomAccessFile
 import java.util.Locale
 import java.util.concurrent.CyclicBarrier
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.test.fail
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.After
+import org.junit.Assume
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -96,6 +103,10 @@ class DiskStorageCacheTest {
   private fun createDiskCache(
       diskStorage: DiskStorage,
       indexPopulateAtStartupEnabled: Boolean,
+      lockStripeCount: Int = 0,
+      lruIndexEnabled: Boolean = false,
+      mappedIndexEnabled: Boolean = false,
+      resourceIdHasher: ResourceIdHasher = Sha1ResourceIdHasher.getInstance(),
   ): DiskStorageCache {
     val diskStorageCacheParams =
         DiskStorageCache.Params(0, FILE_CACHE_MAX_SIZE_LOW_LIMIT, FILE_CACHE_MAX_SIZE_HIGH_LIMIT)
@@ -109,6 +120,10 @@ class DiskStorageCacheTest {
         diskTrimmableRegistry,
         backgroundExecutor!!,
         indexPopulateAtStartupEnabled,
+        lockStripeCount,
+        lruIndexEnabled,
+        mappedIndexEnabled,
+        resourceIdHasher,
     )
   }
 
@@ -348,6 +363,45 @@ class DiskStorageCacheTest {
     Mockito.verifyNoMoreInteractions(cacheEventListener)
   }
 
+  @Test
+  @Throws(IOException::class)
+  fun testInsertBatch() {
+    val key1: CacheKey = SimpleCacheKey("aaa")
+    val key2: CacheKey = SimpleCacheKey("bbb")
+    val key3: CacheKey = SimpleCacheKey("ccc")
+    val value1 = ByteArray(42)
+    value1[10] = 'a'.code.toByte()
+    val value3 = ByteArray(24)
+    value3[20] = 'c'.code.toByte()
+    val writeException = IOException()
+
+    val resources =
+        this@DiskStorageCacheTest.cache!!.insertBatch(
+            listOf(key1, key2, key3),
+            listOf(
+                WriterCallbacks.from(value1),
+                WriterCallback { throw writeException },
+                WriterCallbacks.from(value3),
+            ),
+        )
+
+    assertThat(resources).hasSize(3)
+    assertThat(resources[1]).isNull()
+    assertThat(getContents(resources[0]!!)).containsExactly(*value1)
+    assertThat(getContents(resources[2]!!)).containsExactly(*value3)
+    assertThat(getResource(key2)).isNull()
+    assertThat(this@DiskStorageCacheTest.cache!!.hasKeySync(key1)).isTrue()
+    assertThat(this@DiskStorageCacheTest.cache!!.hasKeySync(key2)).isFalse()
+    assertThat(this@DiskStorageCacheTest.cache!!.hasKeySync(key3)).isTrue()
+
+    verifyListenerOnWriteAttempt(key1)
+    verifyListenerOnWriteAttempt(key2)
+    verifyListenerOnWriteException(key2, writeException)
+    verifyListenerOnWriteAttempt(key3)
+    verifyListenerOnWriteSuccessAndGetResourceId(key1, value1.size.toLong())
+    verifyListenerOnWriteSuccessAndGetResourceId(key3, value3.size.toLong())
+  }
+
   @Test
   @Throws(IOException::class, NoSuchFieldException::class, IllegalAccessException::class)
   fun testCleanOldCache() {
@@ -486,6 +540,383 @@ class DiskStorageCacheTest {
     t2.join(1000)
   }
 
+  @Test
+  @Throws(Exception::class)
+  fun testStripedLocksCacheFile() {
+    val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, false, LOCK_STRIPE_COUNT)
+    val key = putOneThingInCache(cache)
+    assertThat(cache.hasKeySync(key)).isTrue()
+    assertThat(cache.probe(key)).isTrue()
+    assertThat(cache.getResource(key)).isNotNull()
+    assertThat(cache.getSize()).isEqualTo(101)
+
+    cache.remove(key)
+    assertThat(cache.hasKeySync(key)).isFalse()
+    assertThat(cache.hasKey(key)).isFalse()
+    assertThat(cache.getResource(key)).isNull()
+  }
+
+  /** Verify that with striped locks, reads of keys in different stripes do not serialize. */
+  @Test
+  @Throws(Exception::class)
+  fun testStripedLocksConcurrentReads() {
+    val key1: CacheKey = SimpleCacheKey("reader1")
+    var key2: CacheKey = SimpleCacheKey("reader2")
+    var i = 3
+    while (stripeOf(key2) == stripeOf(key1)) {
+      key2 = SimpleCacheKey("reader" + i++)
+    }
+    val barrier = CyclicBarrier(3)
+    val storageMock = Mockito.mock<DiskStorage>(DiskStorage::class.java)
+    Mockito.`when`(storageMock.getResource(Mockito.anyString(), Mockito.any())).thenAnswer {
+      // Both readers need to be inside the storage at the same time to pass the barrier
+      barrier.await(10, TimeUnit.SECONDS)
+      null
+    }
+    val cache = createDiskCache(storageMock, false, LOCK_STRIPE_COUNT)
+    val t1 = Thread { cache.getResource(key1) }
+    val t2 = Thread { cache.getResource(key2) }
+    t1.setDaemon(true)
+    t2.setDaemon(true)
+    t1.start()
+    t2.start()
+    barrier.await(10, TimeUnit.SECONDS)
+    t1.join(1000)
+    t2.join(1000)
+    assertThat(t1.isAlive).isFalse()
+    assertThat(t2.isAlive).isFalse()
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testStripedLocksSizeEvictionClearsIndex() {
+    val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, false, LOCK_STRIPE_COUNT)
+    Mockito.`when`<Long?>(clock!!.now()).thenReturn(TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS))
+    val key1 = putOneThingInCache(cache)
+    val key2: CacheKey = SimpleCacheKey("bar")
+    val key3: CacheKey = SimpleCacheKey("duck")
+    val callback = WriterCallbacks.from(ByteArray(FILE_CACHE_MAX_SIZE_HIGH_LIMIT.toInt()))
+    Mockito.`when`<Long?>(clock!!.now()).thenReturn(TimeUnit.MILLISECONDS.convert(2, TimeUnit.DAYS))
+    cache.insert(key2, callback)
+    // now over limit. Next write will evict key1
+    Mockito.`when`<Long?>(clock!!.now()).thenReturn(TimeUnit.MILLISECONDS.convert(3, TimeUnit.DAYS))
+    cache.insert(key3, callback)
+    assertThat(cache.hasKeySync(key1)).isFalse()
+    assertThat(cache.hasKey(key1)).isFalse()
+    assertThat(cache.hasKeySync(key3)).isTrue()
+  }
+
+  /** Verify that changes made while the index is rebuilt are kept in the published index. */
+  @Test
+  @Throws(Exception::class)
+  fun testStripedLocksIndexRebuildKeepsConcurrentChanges() {
+    val key1 = putOneThingInCache()
+    val key2: CacheKey = SimpleCacheKey("bar")
+    val storageSpy = Mockito.spy(this@DiskStorageCacheTest.storage!!)
+    lateinit var cache: DiskStorageCache
+    Mockito.doAnswer {
+          val entries = it.callRealMethod()
+          // Single-key operations only take their stripe, so they run during the listing
+          this@DiskStorageCacheTest.cache!!.insert(key2, WriterCallbacks.from(ByteArray(42)))
+          assertThat(cache.getResource(key2)).isNotNull()
+          cache.remove(key1)
+          entries
+        }
+        .`when`(storageSpy)
+        .getEntries()
+    cache = createDiskCache(storageSpy, true, LOCK_STRIPE_COUNT)
+
+    backgroundExecutor!!.runUntilIdle()
+
+    assertThat(cache.isIndexReady).isTrue()
+    assertThat(cache.resourceIndex).containsExactly(getFirstResourceId(key2))
+    assertThat(cache.hasKeySync(key1)).isFalse()
+    assertThat(cache.hasKeySync(key2)).isTrue()
+  }
+
+  /**
+   * Compares the throughput of lookups with striped locks and with the global lock, while another
+   * thread writes to the cache. Only runs with FRESCO_BENCHMARKS set.
+   */
+  @Test
+  @Throws(Exception::class)
+  fun benchmarkStripedLocksLookups() {
+    Assume.assumeTrue(System.getenv("FRESCO_BENCHMARKS") != null)
+    val keys = (0 until 8).map { SimpleCacheKey("benchmark$it") }
+    val extraKey = SimpleCacheKey("benchmarkExtra")
+    keys.forEach { cache!!.insert(it, WriterCallbacks.from(ByteArray(16))) }
+    for (lockStripeCount in intArrayOf(0, LOCK_STRIPE_COUNT)) {
+      val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, true, lockStripeCount)
+      backgroundExecutor!!.runUntilIdle()
+      val readerCount = 4
+      val lookups = 20_000
+      val misses = AtomicInteger()
+      val done = AtomicBoolean()
+      val barrier = CyclicBarrier(readerCount + 1)
+      val readers =
+          (0 until readerCount).map { t ->
+            Thread {
+              barrier.await(10, TimeUnit.SECONDS)
+              for (i in 0 until lookups) {
+                if (cache.getResource(keys[(i + t) % keys.size]) == null) {
+                  misses.incrementAndGet()
+                }
+              }
+            }
+          }
+      val writer = Thread {
+        while (!done.get()) {
+          cache.insert(extraKey, WriterCallbacks.from(ByteArray(16)))
+          cache.remove(extraKey)
+        }
+      }
+      readers.forEach { it.start() }
+      writer.start()
+      val start = System.nanoTime()
+      barrier.await(10, TimeUnit.SECONDS)
+      readers.forEach { it.join() }
+      val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+      done.set(true)
+      writer.join()
+      val lookupCount = readerCount * lookups
+      FLog.i(TAG, "%d stripes: %d lookups in %d ms", lockStripeCount, lookupCount, elapsedMs)
+      assertThat(misses.get()).isEqualTo(0)
+    }
+  }
+
+  /**
+   * Compares how long lookups wait for the locks while another thread writes entries one at a
+   * time and in batches. Only runs with FRESCO_BENCHMARKS set.
+   */
+  @Test
+  @Throws(Exception::class)
+  fun benchmarkInsertBatchLockHoldTime() {
+    Assume.assumeTrue(System.getenv("FRESCO_BENCHMARKS") != null)
+    val key = SimpleCacheKey("benchmark")
+    cache!!.insert(key, WriterCallbacks.from(ByteArray(16)))
+    val batchSize = 16
+    val batches = 200
+    for (batched in booleanArrayOf(false, true)) {
+      val done = AtomicBoolean()
+      val misses = AtomicInteger()
+      var maxLookupNs = 0L
+      val reader = Thread {
+        while (!done.get()) {
+          val start = System.nanoTime()
+          if (cache!!.getResource(key) == null) {
+            misses.incrementAndGet()
+          }
+          maxLookupNs = Math.max(maxLookupNs, System.nanoTime() - start)
+        }
+      }
+      reader.start()
+      val start = System.nanoTime()
+      for (i in 0 until batches) {
+        val keys = (0 until batchSize).map { SimpleCacheKey("benchmark$batched$i-$it") }
+        val writers = keys.map { WriterCallbacks.from(ByteArray(1024)) }
+        if (batched) {
+          assertThat(cache!!.insertBatch(keys, writers)).doesNotContainNull()
+        } else {
+          keys.indices.forEach { cache!!.insert(keys[it], writers[it]) }
+        }
+        keys.forEach { cache!!.remove(it) }
+      }
+      val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+      done.set(true)
+      reader.join()
+      FLog.i(
+          TAG,
+          "batched %b: %d writes in %d ms, longest lookup %d us",
+          batched,
+          batches * batchSize,
+          elapsedMs,
+          TimeUnit.NANOSECONDS.toMicros(maxLookupNs),
+      )
+      assertThat(misses.get()).isEqualTo(0)
+    }
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testLruIndexEvictsInBackground() {
+    val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, false, lruIndexEnabled = true)
+    backgroundExecutor!!.runUntilIdle()
+    assertThat(cache.getSize()).isEqualTo(0)
+
+    val key1 = putOneThingInCache(cache)
+    val key2: CacheKey = SimpleCacheKey("bar")
+    val key3: CacheKey = SimpleCacheKey("duck")
+    val callback = WriterCallbacks.from(ByteArray(101))
+    cache.insert(key2, callback)
+    // now over limit. Next write schedules the eviction of key1 instead of doing it inline
+    cache.insert(key3, callback)
+    assertThat(cache.getSize()).isEqualTo(303)
+    assertThat(cache.hasKey(key1)).isTrue()
+
+    backgroundExecutor!!.runUntilIdle()
+    assertThat(cache.hasKeySync(key1)).isFalse()
+    assertThat(cache.hasKey(key1)).isFalse()
+    assertThat(cache.hasKey(key3)).isTrue()
+    assertThat(cache.getSize()).isLessThanOrEqualTo(FILE_CACHE_MAX_SIZE_HIGH_LIMIT * 9 / 10)
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testLruIndexEvictsInlineAboveHardLimit() {
+    val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, false, lruIndexEnabled = true)
+    backgroundExecutor!!.runUntilIdle()
+    val callback = WriterCallbacks.from(ByteArray(101))
+    // The background executor never runs during the burst
+    for (i in 0 until 10) {
+      cache.insert(SimpleCacheKey("burst$i"), callback)
+      assertThat(cache.getSize()).isLessThanOrEqualTo(FILE_CACHE_MAX_SIZE_HIGH_LIMIT * 3 / 2 + 101)
+    }
+    assertThat(cache.hasKey(SimpleCacheKey("burst0"))).isFalse()
+    assertThat(cache.hasKey(SimpleCacheKey("burst9"))).isTrue()
+  }
+
+  @Test
+  fun testIndexIsNotReadyUntilLruIndexIsLoaded() {
+    val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, false, lruIndexEnabled = true)
+    assertThat(cache.isIndexReady).isFalse()
+
+    backgroundExecutor!!.runUntilIdle()
+
+    assertThat(cache.isIndexReady).isTrue()
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testLruIndexEvictsLeastRecentlyUsed() {
+    val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, false, lruIndexEnabled = true)
+    backgroundExecutor!!.runUntilIdle()
+
+    val key1 = putOneThingInCache(cache)
+    val key2: CacheKey = SimpleCacheKey("bar")
+    val key3: CacheKey = SimpleCacheKey("duck")
+    val callback = WriterCallbacks.from(ByteArray(50))
+    cache.insert(key2, callback)
+    cache.insert(key3, callback)
+    // key1 becomes the most recently used
+    assertThat(cache.getResource(key1)).isNotNull()
+    cache.insert(SimpleCacheKey("goose"), callback)
+    backgroundExecutor!!.runUntilIdle()
+
+    assertThat(cache.hasKey(key1)).isTrue()
+    assertThat(cache.hasKey(key2)).isFalse()
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testLruIndexIsRestoredFromJournal() {
+    val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, false, lruIndexEnabled = true)
+    backgroundExecutor!!.runUntilIdle()
+    val key = putOneThingInCache(cache)
+    // once its period is over, the next insert schedules a maintenance pass which writes the
+    // journal
+    Mockito.`when`<Long?>(clock!!.now()).thenReturn(TimeUnit.MINUTES.toMillis(2))
+    cache.insert(SimpleCacheKey("bar"), WriterCallbacks.from(ByteArray(10)))
+    backgroundExecutor!!.runUntilIdle()
+
+    // A new cache object in the same directory. Equivalent to a process restart.
+    val cache2 = createDiskCache(this@DiskStorageCacheTest.storage!!, true, lruIndexEnabled = true)
+    backgroundExecutor!!.runUntilIdle()
+    assertThat(cache2.isIndexReady).isTrue()
+    assertThat(cache2.hasKeySync(key)).isTrue()
+    assertThat(cache2.getSize()).isEqualTo(111)
+    assertThat(cache2.getCount()).isEqualTo(2)
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testLruIndexJournalIsWrittenAfterManyReads() {
+    val cache = createDiskCache(this@DiskStorageCacheTest.storage!!, false, lruIndexEnabled = true)
+    backgroundExecutor!!.runUntilIdle()
+    val key = putOneThingInCache(cache)
+    backgroundExecutor!!.runUntilIdle()
+    val journalFile = this@DiskStorageCacheTest.storage!!.getMetadataFile("lru_journal")!!
+    val journalLength = journalFile.length()
+
+    // the reads only touch the entry, and insert nothing that would schedule a maintenance pass
+    repeat(256) { assertThat(cache.getResource(key)).isNotNull() }
+    backgroundExecutor!!.runUntilIdle()
+
+    assertThat(journalFile.length()).isGreaterThan(journalLength)
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testMappedIndexIsUsedAfterRestart() {
+    val cache =
+        createDiskCache(this@DiskStorageCacheTest.storage!!, true, mappedIndexEnabled = true)
+    backgroundExecutor!!.runUntilIdle()
+    val key = putOneThingInCache(cache)
+    val missingKey: CacheKey = SimpleCacheKey("bar")
+
+    // A new cache object in the same directory. Equivalent to a process restart.
+    val cache2 =
+        createDiskCache(this@DiskStorageCacheTest.storage!!, true, mappedIndexEnabled = true)
+    assertThat(cache2.isIndexReady).isFalse()
+    backgroundExecutor!!.runUntilIdle()
+    assertThat(cache2.isIndexReady).isTrue()
+    assertThat(cache2.hasKeySync(key)).isTrue()
+    assertThat(cache2.hasKeySync(missingKey)).isFalse()
+    assertThat(cache2.getSize()).isEqualTo(101)
+    assertThat(cache2.getCount()).isEqualTo(1)
+
+    cache2.remove(key)
+    assertThat(cache2.hasKeySync(key)).isFalse()
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testMappedIndexForgetsEntriesMissingFromStorage() {
+    val cache =
+        createDiskCache(this@DiskStorageCacheTest.storage!!, true, mappedIndexEnabled = true)
+    backgroundExecutor!!.runUntilIdle()
+    val key = putOneThingInCache(cache)
+    this@DiskStorageCacheTest.storage!!.remove(getFirstResourceId(key))
+    assertThat(cache.hasKeySync(key)).isTrue()
+    assertThat(cache.getResource(key)).isNull()
+    assertThat(cache.hasKeySync(key)).isFalse()
+  }
+
+  @Test
+  @Throws(Exception::class)
+  fun testResourceIdHasherMigration() {
+    val key = putOneThingInCache()
+    val murmur3 = Murmur3ResourceIdHasher(Sha1ResourceIdHasher.getInstance())
+    val cache2 =
+        createDiskCache(this@DiskStorageCacheTest.storage!!, false, resourceIdHasher = murmur3)
+
+    // entries written with the previous hasher are still found
+    assertThat(cache2.hasKey(key)).isTrue()
+    assertThat(cache2.getResource(key)).isNotNull()
+
+    // new entries are only written with the new hasher
+    val key2: CacheKey = SimpleCacheKey("bar")
+    cache2.insert(key2, WriterCallbacks.from(ByteArray(10)))
+    assertThat(storage!!.contains(murmur3.getResourceId("bar"), key2)).isTrue()
+    assertThat(storage!!.contains(getFirstResourceId(key2), key2)).isFalse()
+    assertThat(cache2.getResource(key2)).isNotNull()
+
+    cache2.remove(key)
+    assertThat(storage!!.contains(getFirstResourceId(key), key)).isFalse()
+
+    // without a previous hasher, old entries are unreachable
+    putOneThingInCache()
+    val cache3 =
+        createDiskCache(
+            this@DiskStorageCacheTest.storage!!,
+            false,
+            resourceIdHasher = Murmur3ResourceIdHasher(),
+        )
+    assertThat(cache3.hasKey(key)).isFalse()
+  }
+
+  private fun stripeOf(key: CacheKey): Int =
+      (getFirstResourceId(key).hashCode() and Int.MAX_VALUE) % LOCK_STRIPE_COUNT
+
   @Test
   @Throws(Exception::class)
   fun testIsEnabled() {
@@ -882,6 +1313,7 @@ class DiskStorageCacheTest {
   }
 
   companion object {
+    private const val TAG = "DiskStorageCacheTest"
     private const val CACHE_TYPE = "media_test"
 
     private const val TESTCACHE_VERSION_START_OF_VERSIONING = 1
@@ -892,6 +1324,8 @@ class DiskStorageCacheTest {
     private const val FILE_CACHE_MAX_SIZE_HIGH_LIMIT: Long = 200
     private const val FILE_CACHE_MAX_SIZE_LOW_LIMIT: Long = 200
 
+    private const val LOCK_STRIPE_COUNT = 16
+
     private fun createDiskStorage(version: Int): DiskStorage {
       return DiskStorageWithReadFailures(
           version,
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk
+
+import com.facebook.common.file.FileTree
+import com.facebook.common.internal.Supplier
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+/** Tests for [MappedDiskCacheIndex] */
+@RunWith(RobolectricTestRunner::class)
+class MappedDiskCacheIndexTest {
+
+  private lateinit var indexFile: File
+
+  @Before
+  fun setUp() {
+    val directory = File(RuntimeEnvironment.application.cacheDir, "mapped-disk-cache-index-test")
+    directory.mkdirs()
+    FileTree.deleteContents(directory)
+    indexFile = File(directory, "index.meta")
+  }
+
+  private fun newIndex(): MappedDiskCacheIndex = MappedDiskCacheIndex(Supplier { indexFile })
+
+  @Test
+  fun testOpenWithoutFile() {
+    val index = newIndex()
+    assertThat(index.open()).isFalse()
+    assertThat(index.isOpen).isFalse()
+    // operations are no-ops until the table is created
+    index.put("a", 10, 1)
+    assertThat(index.contains("a")).isFalse()
+  }
+
+  @Test
+  fun testPutContainsRemove() {
+    val index = newIndex()
+    assertThat(index.rebuild(emptyList())).isTrue()
+    index.put("a", 10, 1)
+    index.put("b", 20, 2)
+    index.put("a", 15, 3)
+    assertThat(index.contains("a")).isTrue()
+    assertThat(index.contains("b")).isTrue()
+    assertThat(index.contains("c")).isFalse()
+    assertThat(index.count).isEqualTo(2)
+    assertThat(index.size).isEqualTo(35)
+
+    index.remove("a")
+    index.remove("c")
+    assertThat(index.contains("a")).isFalse()
+    assertThat(index.count).isEqualTo(1)
+    assertThat(index.size).isEqualTo(20)
+  }
+
+  @Test
+  fun testReopen() {
+    val index = newIndex()
+    index.rebuild(listOf(DiskCacheIndex.IndexEntry("a", 10, 1)))
+    index.put("b", 20, 2)
+
+    val reopened = newIndex()
+    assertThat(reopened.open()).isTrue()
+    assertThat(reopened.contains("a")).isTrue()
+    assertThat(reopened.contains("b")).isTrue()
+    assertThat(reopened.count).isEqualTo(2)
+    assertThat(reopened.size).isEqualTo(30)
+  }
+
+  @Test
+  fun testOddGenerationIsRejected() {
+    newIndex().rebuild(listOf(DiskCacheIndex.IndexEntry("a", 10, 1)))
+    RandomAccessFile(indexFile, "rw").use {
+      // generation of a table left in the middle of a modification
+      it.seek(8)
+      it.writeLong(3)
+    }
+    assertThat(newIndex().open()).isFalse()
+  }
+
+  @Test
+  fun testCorruptFileIsRejected() {
+    indexFile.writeBytes(ByteArray(100))
+    assertThat(newIndex().open()).isFalse()
+  }
+
+  @Test
+  fun testGrowAndReuseTombstones() {
+    val index = newIndex()
+    index.rebuild(emptyList())
+    val count = MappedDiskCacheIndex.MIN_CAPACITY * 2
+    for (i in 0 until count) {
+      index.put("id" + i, 1, i.toLong())
+    }
+    for (i in 0 until count step 2) {
+      index.remove("id" + i)
+    }
+    for (i in 0 until count) {
+      index.put("other" + i, 1, i.toLong())
+    }
+    assertThat(index.count).isEqualTo(count / 2 + count)
+    assertThat(index.contains("id1")).isTrue()
+    assertThat(index.contains("id2")).isFalse()
+    assertThat(index.contains("other" + (count - 1))).isTrue()
+
+    val reopened = newIndex()
+    assertThat(reopened.open()).isTrue()
+    assertThat(reopened.count).isEqualTo(count / 2 + count)
+  }
+
+  @Test
+  fun testClearRecreatesDeletedFile() {
+    val index = newIndex()
+    index.rebuild(listOf(DiskCacheIndex.IndexEntry("a", 10, 1)))
+    assertThat(indexFile.delete()).isTrue()
+    index.clear()
+    index.put("b", 20, 2)
+
+    val reopened = newIndex()
+    assertThat(reopened.open()).isTrue()
+    assertThat(reopened.contains("a")).isFalse()
+    assertThat(reopened.contains("b")).isTrue()
+  }
+
+  @Test
+  fun testLookupsDuringModifications() {
+    val index = newIndex()
+    index.rebuild(listOf(DiskCacheIndex.IndexEntry("stable", 10, 1)))
+    val misses = AtomicInteger()
+    val done = AtomicBoolean()
+    val reader = Thread {
+      while (!done.get()) {
+        if (!index.contains("stable")) {
+          misses.incrementAndGet()
+        }
+      }
+    }
+    reader.start()
+    // grows, compacts and recreates the table while the reader looks up
+    for (round in 0 until 3) {
+      for (i in 0 until MappedDiskCacheIndex.MIN_CAPACITY) {
+        index.put("id$i", 1, i.toLong())
+      }
+      for (i in 0 until MappedDiskCacheIndex.MIN_CAPACITY) {
+        index.remove("id$i")
+      }
+    }
+    done.set(true)
+    reader.join()
+
+    assertThat(misses.get()).isEqualTo(0)
+    assertThat(index.count).isEqualTo(1)
+  }
+}
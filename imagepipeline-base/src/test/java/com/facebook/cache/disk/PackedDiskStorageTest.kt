@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk
+
+import com.facebook.binaryresource.FileBinaryResource
+import com.facebook.cache.common.CacheErrorLogger
+import com.facebook.cache.common.WriterCallback
+import com.facebook.common.file.FileTree
+import com.facebook.common.logging.FLog
+import java.io.File
+import java.io.IOException
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.util.concurrent.Executor
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.mock
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+/** Tests for [PackedDiskStorage] */
+@RunWith(RobolectricTestRunner::class)
+class PackedDiskStorageTest {
+
+  private lateinit var directory: File
+  private val compactions = ArrayList<Runnable>()
+  private val compactionExecutor = Executor { compactions.add(it) }
+  private val storages = ArrayList<PackedDiskStorage>()
+
+  @Before
+  fun setUp() {
+    directory = File(RuntimeEnvironment.application.cacheDir, "packed-disk-storage-test")
+    directory.mkdirs()
+    FileTree.deleteContents(directory)
+  }
+
+  @After
+  fun tearDown() {
+    for (storage in storages) {
+      storage.close()
+    }
+  }
+
+  private fun newStorage(version: Int = 1, segmentSize: Long = SEGMENT_SIZE): PackedDiskStorage {
+    val storage =
+        PackedDiskStorage(
+            directory,
+            version,
+            mock<CacheErrorLogger>(),
+            MAX_PACKED_ENTRY_SIZE,
+            compactionExecutor,
+            segmentSize,
+        )
+    storages.add(storage)
+    return storage
+  }
+
+  @Test
+  fun testSmallEntriesArePacked() {
+    val storage = newStorage()
+    val content = bytes(100, 1)
+    val resource = write(storage, "R1", content)
+    assertThat(resource).isNotInstanceOf(FileBinaryResource::class.java)
+    write(storage, "R2", bytes(200, 2))
+
+    assertThat(storage.contains("R1", Any())).isTrue()
+    assertThat(storage.getResource("R1", Any())!!.read()).containsExactly(*content)
+    assertThat(storage.getResource("R2", Any())!!.size()).isEqualTo(200)
+    assertThat(storage.getResource("R3", Any())).isNull()
+    assertThat(storage.segmentCount).isEqualTo(1)
+    assertThat(storage.entries.map { it.id }).containsExactlyInAnyOrder("R1", "R2")
+  }
+
+  @Test
+  fun testLargeEntriesUseTheirOwnFile() {
+    val storage = newStorage()
+    val content = bytes(MAX_PACKED_ENTRY_SIZE + 1, 3)
+    val resource = write(storage, "R1", content)
+    assertThat(resource).isInstanceOf(FileBinaryResource::class.java)
+    assertThat(storage.getResource("R1", Any())!!.read()).containsExactly(*content)
+    assertThat(storage.segmentCount).isEqualTo(0)
+    assertThat(storage.entries.map { it.id }).containsExactly("R1")
+  }
+
+  @Test
+  fun testReplacingAFileWithAPackedEntry() {
+    val storage = newStorage()
+    write(storage, "R1", bytes(MAX_PACKED_ENTRY_SIZE * 2, 1))
+    val content = bytes(10, 2)
+    write(storage, "R1", content)
+    assertThat(storage.getResource("R1", Any())!!.read()).containsExactly(*content)
+    assertThat(storage.entries).hasSize(1)
+
+    val larger = bytes(MAX_PACKED_ENTRY_SIZE * 2, 3)
+    write(storage, "R1", larger)
+    assertThat(storage.getResource("R1", Any())!!.read()).containsExactly(*larger)
+    assertThat(storage.entries).hasSize(1)
+  }
+
+  @Test
+  fun testRemove() {
+    val storage = newStorage()
+    write(storage, "R1", bytes(100, 1))
+    val resource = storage.getResource("R1", Any())!!
+    assertThat(storage.remove("R1")).isEqualTo(100)
+    assertThat(storage.contains("R1", Any())).isFalse()
+    assertThat(storage.remove("R1")).isEqualTo(0)
+
+    write(storage, "R2", bytes(100, 2))
+    val entry = storage.entries.single()
+    assertThat(storage.remove(entry)).isEqualTo(100)
+    assertThat(storage.entries).isEmpty()
+
+    try {
+      resource.read()
+      throw AssertionError("expected an IOException")
+    } catch (expected: IOException) {
+      // the resource was removed
+    }
+  }
+
+  @Test
+  fun testTouchUpdatesTimestamp() {
+    val storage = newStorage()
+    write(storage, "R1", bytes(100, 1))
+    val before = storage.entries.single().timestamp
+    Thread.sleep(10)
+    assertThat(storage.touch("R1", Any())).isTrue()
+    assertThat(storage.touch("R2", Any())).isFalse()
+    val after = storage.entries.single().timestamp
+    assertThat(after).isGreaterThan(before)
+
+    storage.close()
+    assertThat(newStorage().entries.single().timestamp).isEqualTo(after)
+  }
+
+  @Test
+  fun testIndexIsRestoredFromSegments() {
+    val storage = newStorage()
+    write(storage, "R1", bytes(100, 1))
+    write(storage, "R2", bytes(100, 2))
+    write(storage, "R1", bytes(50, 3))
+    storage.remove("R2")
+    storage.close()
+
+    val restored = newStorage()
+    assertThat(restored.entries.map { it.id }).containsExactly("R1")
+    assertThat(restored.getResource("R1", Any())!!.read()).containsExactly(*bytes(50, 3))
+    write(restored, "R3", bytes(10, 4))
+    assertThat(restored.getResource("R3", Any())!!.read()).containsExactly(*bytes(10, 4))
+  }
+
+  @Test
+  fun testInterruptedAppendIsDropped() {
+    val storage = newStorage()
+    write(storage, "R1", bytes(100, 1))
+    write(storage, "R2", bytes(100, 2))
+    storage.close()
+    val segment = segmentFiles().single()
+    RandomAccessFile(segment, "rw").use { it.setLength(it.length() - 10) }
+
+    val restored = newStorage()
+    assertThat(restored.entries.map { it.id }).containsExactly("R1")
+    write(restored, "R3", bytes(10, 3))
+    restored.close()
+    assertThat(newStorage().entries.map { it.id }).containsExactlyInAnyOrder("R1", "R3")
+  }
+
+  @Test
+  fun testCorruptSegmentIsDeleted() {
+    val storage = newStorage()
+    write(storage, "R1", bytes(100, 1))
+    storage.close()
+    val segment = segmentFiles().single()
+    segment.writeBytes(ByteArray(64))
+
+    val restored = newStorage()
+    assertThat(restored.entries).isEmpty()
+    assertThat(segment.exists()).isFalse()
+  }
+
+  @Test
+  fun testSegmentsAreCompacted() {
+    // room for about 4 records per segment
+    val storage = newStorage(segmentSize = 500)
+    for (i in 0 until 12) {
+      write(storage, "R" + i, bytes(100, i))
+    }
+    assertThat(storage.segmentCount).isEqualTo(3)
+    for (i in 0 until 8) {
+      if (i != 5) {
+        storage.remove("R" + i)
+      }
+    }
+    assertThat(compactions).hasSize(1)
+    val resource = storage.getResource("R5", Any())!!
+    compactions.removeAt(0).run()
+
+    // the first two segments are gone, R5 was moved to the active segment
+    assertThat(storage.segmentCount).isEqualTo(2)
+    assertThat(resource.read()).containsExactly(*bytes(100, 5))
+    assertThat(storage.entries.map { it.id })
+        .containsExactlyInAnyOrder("R5", "R8", "R9", "R10", "R11")
+
+    storage.close()
+    val restored = newStorage(segmentSize = 500)
+    assertThat(restored.entries.map { it.id })
+        .containsExactlyInAnyOrder("R5", "R8", "R9", "R10", "R11")
+    assertThat(restored.getResource("R5", Any())!!.read()).containsExactly(*bytes(100, 5))
+  }
+
+  @Test
+  fun testClearAll() {
+    val storage = newStorage()
+    write(storage, "R1", bytes(100, 1))
+    write(storage, "R2", bytes(MAX_PACKED_ENTRY_SIZE + 1, 2))
+    storage.clearAll()
+    assertThat(storage.entries).isEmpty()
+    assertThat(storage.segmentCount).isEqualTo(0)
+
+    write(storage, "R3", bytes(100, 3))
+    assertThat(storage.getResource("R3", Any())!!.read()).containsExactly(*bytes(100, 3))
+  }
+
+  @Test
+  fun testPurgeUnexpectedResources() {
+    val storage = newStorage()
+    write(storage, "R1", bytes(100, 1))
+    val bogus = File(segmentFiles().single().parentFile, "bogus")
+    assertThat(bogus.createNewFile()).isTrue()
+    storage.purgeUnexpectedResources()
+    assertThat(bogus.exists()).isFalse()
+    assertThat(storage.getResource("R1", Any())!!.read()).containsExactly(*bytes(100, 1))
+  }
+
+  @Test
+  fun testVersionChangeDropsSegments() {
+    val storage = newStorage(version = 1)
+    write(storage, "R1", bytes(100, 1))
+    storage.close()
+    assertThat(newStorage(version = 2).entries).isEmpty()
+    assertThat(segmentFiles()).isEmpty()
+  }
+
+  @Test
+  fun testTouchesAreWrittenInBatches() {
+    val storage = newStorage()
+    for (i in 0 until 64) {
+      write(storage, "R" + i, bytes(10, i))
+    }
+    val written = newStorage().entries.associate { it.id to it.timestamp }
+    Thread.sleep(10)
+    for (i in 0 until 63) {
+      assertThat(storage.getResource("R" + i, Any())).isNotNull()
+    }
+    // reads don't write to the segments
+    assertThat(compactions).isEmpty()
+    assertThat(newStorage().entries.associate { it.id to it.timestamp }).isEqualTo(written)
+
+    assertThat(storage.getResource("R63", Any())).isNotNull()
+    assertThat(compactions).hasSize(1)
+    compactions.removeAt(0).run()
+
+    val restored = newStorage().entries
+    assertThat(restored).hasSize(64)
+    for (entry in restored) {
+      assertThat(entry.timestamp).isGreaterThan(written.getValue(entry.id))
+    }
+  }
+
+  @Test
+  fun testFilesOfDefaultStorageAreDeleted() {
+    val versionDirectory = File(directory, DefaultDiskStorage.getVersionSubdirectoryName(1))
+    versionDirectory.mkdirs()
+    assertThat(File(versionDirectory, "R1.cnt").createNewFile()).isTrue()
+    assertThat(File(directory, "journal.meta").createNewFile()).isTrue()
+
+    val storage = newStorage()
+    write(storage, "R1", bytes(100, 1))
+    write(storage, "R2", bytes(MAX_PACKED_ENTRY_SIZE + 1, 2))
+
+    assertThat(versionDirectory.exists()).isFalse()
+    assertThat(File(directory, "journal.meta").exists()).isFalse()
+    assertThat(storage.entries.map { it.id }).containsExactlyInAnyOrder("R1", "R2")
+  }
+
+  /**
+   * Compares the insert and read throughput of small entries with a [DefaultDiskStorage]. Only runs
+   * with FRESCO_BENCHMARKS set.
+   */
+  @Test
+  fun benchmarkSmallEntries() {
+    Assume.assumeTrue(System.getenv("FRESCO_BENCHMARKS") != null)
+    val count = 2_000
+    val content = bytes(MAX_PACKED_ENTRY_SIZE / 2, 1)
+    // next to the directory of the packed storage, which deletes unexpected files
+    val defaultDirectory = File(directory.parentFile, "packed-disk-storage-test-default")
+    FileTree.deleteRecursively(defaultDirectory)
+    val storages =
+        listOf(
+            "default" to DefaultDiskStorage(defaultDirectory, 1, mock<CacheErrorLogger>()),
+            "packed" to newStorage(),
+        )
+    for ((name, storage) in storages) {
+      val insertStart = System.nanoTime()
+      for (i in 0 until count) {
+        write(storage, "R" + i, content)
+      }
+      val readStart = System.nanoTime()
+      for (i in 0 until count) {
+        assertThat(storage.getResource("R" + i, Any())!!.read()).hasSize(content.size)
+      }
+      val readEnd = System.nanoTime()
+      FLog.i(
+          TAG,
+          "%s: %d inserts/s, %d reads/s",
+          name,
+          count * 1_000_000_000L / (readStart - insertStart),
+          count * 1_000_000_000L / (readEnd - readStart),
+      )
+      assertThat(storage.entries).hasSize(count)
+    }
+  }
+
+  private fun segmentFiles(): List<File> =
+      directory.walkTopDown().filter { it.isFile && it.name.endsWith(".seg") }.toList()
+
+  companion object {
+    private const val TAG = "PackedDiskStorageTest"
+    private const val MAX_PACKED_ENTRY_SIZE = 1024
+    private const val SEGMENT_SIZE = 64L * 1024
+
+    private fun bytes(size: Int, seed: Int): ByteArray = ByteArray(size) { (it + seed).toByte() }
+
+    @Throws(IOException::class)
+    private fun write(storage: DiskStorage, resourceId: String, content: ByteArray) =
+        storage.insert(resourceId, Any()).let { inserter ->
+          inserter.writeData(
+              object : WriterCallback {
+                @Throws(IOException::class)
+                override fun write(os: OutputStream) {
+                  // write in chunks, as a decoder would
+                  var offset = 0
+                  while (offset < content.size) {
+                    val count = minOf(300, content.size - offset)
+                    os.write(content, offset, count)
+                    offset += count
+                  }
+                }
+              },
+              Any(),
+          )
+          inserter.commit(Any())
+        }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+
+class FrequencySketchTest {
+
+  @Test
+  fun testFrequency() {
+    val sketch = FrequencySketch(16)
+    repeat(3) { sketch.increment("a") }
+    assertThat(sketch.frequency("a")).isEqualTo(3)
+    assertThat(sketch.frequency("b")).isEqualTo(0)
+  }
+
+  @Test
+  fun testFrequencySaturates() {
+    val sketch = FrequencySketch(16)
+    repeat(20) { sketch.increment("a") }
+    assertThat(sketch.frequency("a")).isEqualTo(FrequencySketch.MAX_FREQUENCY)
+  }
+
+  @Test
+  fun testResetHalvesFrequencies() {
+    val sketch = FrequencySketch(16)
+    repeat(20) { sketch.increment("a") }
+    repeat(3) { sketch.increment("b") }
+    sketch.reset()
+    assertThat(sketch.frequency("a")).isEqualTo(7)
+    assertThat(sketch.frequency("b")).isEqualTo(1)
+  }
+
+  @Test
+  fun testFrequenciesAgeAfterSampleSize() {
+    val sketch = FrequencySketch(16)
+    repeat(8) { sketch.increment("a") }
+    // the sample size is ten times the capacity
+    for (i in 0 until 200) {
+      sketch.increment("key$i")
+    }
+    assertThat(sketch.frequency("a")).isLessThan(8)
+  }
+
+  @Test
+  fun testClear() {
+    val sketch = FrequencySketch(16)
+    repeat(3) { sketch.increment("a") }
+    sketch.clear()
+    assertThat(sketch.frequency("a")).isEqualTo(0)
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import com.facebook.cache.common.CacheKey
+import com.facebook.cache.common.SimpleCacheKey
+import com.facebook.common.internal.Supplier
+import com.facebook.common.references.CloseableReference
+import com.facebook.common.references.ResourceReleaser
+import java.io.BufferedReader
+import java.io.Reader
+
+/**
+ * Replays a recorded trace of memory cache accesses against the LRU, ARC and W-TinyLFU caches and
+ * returns their hit ratios.
+ *
+ * A trace has one access per line: the uri of the [CacheKey], optionally followed by whitespace
+ * and the size of the image in bytes. Empty lines and lines starting with `#` are ignored.
+ *
+ * Every access is a `get`, followed by a `cache` on a miss, and the returned reference is closed
+ * right away, so all the items are exclusively owned by the cache between accesses.
+ */
+class MemoryCacheTraceSimulator(private val params: MemoryCacheParams) {
+
+  class Access(val key: CacheKey, val sizeInBytes: Int)
+
+  class Result(val policy: String, val requests: Int, val hits: Int) {
+    val hitRatio: Double
+      get() = if (requests == 0) 0.0 else hits.toDouble() / requests
+
+    override fun toString(): String = "%-8s %.4f (%d/%d)".format(policy, hitRatio, hits, requests)
+  }
+
+  fun replay(trace: List<Access>): List<Result> =
+      createCaches().map { (policy, cache) -> Result(policy, trace.size, replay(cache, trace)) }
+
+  private fun replay(cache: CountingMemoryCache<CacheKey, Int>, trace: List<Access>): Int {
+    var hits = 0
+    for (access in trace) {
+      val cachedRef = cache.get(access.key)
+      if (cachedRef != null) {
+        hits++
+        cachedRef.close()
+      } else {
+        CloseableReference.of(access.sizeInBytes, NOOP_RELEASER).use {
+          cache.cache(access.key, it)?.close()
+        }
+      }
+    }
+    return hits
+  }
+
+  private fun createCaches(): Map<String, CountingMemoryCache<CacheKey, Int>> {
+    val paramsSupplier = Supplier { params }
+    val trimStrategy = MemoryCache.CacheTrimStrategy { 0.0 }
+    val valueDescriptor = ValueDescriptor<Int> { it }
+    return linkedMapOf(
+        "LRU" to
+            LruCountingMemoryCache(
+                valueDescriptor,
+                trimStrategy,
+                paramsSupplier,
+                null,
+                false,
+                false,
+            ),
+        "ARC" to
+            object :
+                AbstractAdaptiveCountingMemoryCache<CacheKey, Int>(
+                    paramsSupplier,
+                    trimStrategy,
+                    valueDescriptor,
+                    AbstractAdaptiveCountingMemoryCache.DEFAULT_ADAPTIVE_RATE_PROMIL,
+                    ARC_FREQUENTLY_USED_THRESHOLD,
+                    ARC_GHOST_LIST_MAX_SIZE,
+                    AbstractAdaptiveCountingMemoryCache.DEFAULT_LFU_FRACTION_PROMIL,
+                ) {
+              override fun logIllegalLfuFraction() {}
+
+              override fun logIllegalAdaptiveRate() {}
+
+              override val debugData: String?
+                get() = null
+            },
+        "TinyLFU" to
+            TinyLfuCountingMemoryCache(
+                valueDescriptor,
+                trimStrategy,
+                paramsSupplier,
+                null,
+                false,
+            ),
+    )
+  }
+
+  companion object {
+    private const val DEFAULT_SIZE_IN_BYTES = 1
+    private const val ARC_FREQUENTLY_USED_THRESHOLD = 1
+    private const val ARC_GHOST_LIST_MAX_SIZE = 256
+
+    private val NOOP_RELEASER = ResourceReleaser<Int> {}
+
+    /** Parses a trace, see [MemoryCacheTraceSimulator] for the format. */
+    @JvmStatic
+    fun parse(reader: Reader): List<Access> =
+        BufferedReader(reader).useLines { lines ->
+          lines
+              .map { it.trim() }
+              .filter { it.isNotEmpty() && !it.startsWith("#") }
+              .map { line ->
+                val parts = line.split(Regex("\\s+"))
+                val size = if (parts.size > 1) parts[1].toInt() else DEFAULT_SIZE_IN_BYTES
+                Access(SimpleCacheKey(parts[0]), size)
+              }
+              .toList()
+        }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import com.facebook.cache.common.SimpleCacheKey
+import java.io.StringReader
+import java.util.Random
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class MemoryCacheTraceSimulatorTest {
+
+  @Test
+  fun testParse() {
+    val trace =
+        MemoryCacheTraceSimulator.parse(
+            StringReader(
+                """
+                # feed
+                http://example.com/a.jpg 1024
+                http://example.com/b.jpg
+
+                http://example.com/a.jpg 1024
+                """
+                    .trimIndent()))
+    assertThat(trace.map { it.key }).containsExactly(
+        SimpleCacheKey("http://example.com/a.jpg"),
+        SimpleCacheKey("http://example.com/b.jpg"),
+        SimpleCacheKey("http://example.com/a.jpg"),
+    )
+    assertThat(trace.map { it.sizeInBytes }).containsExactly(1024, 1, 1024)
+  }
+
+  /**
+   * A skewed trace of images that are shown over and over, mixed with images that are only seen
+   * once, as during a fling through a feed.
+   */
+  @Test
+  fun testTinyLfuResistsOneHitWonders() {
+    val random = Random(42)
+    val lines = StringBuilder()
+    var scanned = 0
+    for (i in 0 until 50_000) {
+      if (random.nextInt(100) < 30) {
+        lines.append("http://example.com/scan/").append(scanned++).append('\n')
+      } else {
+        val uniform = random.nextDouble()
+        val popular = (uniform * uniform * uniform * 2000).toInt()
+        lines.append("http://example.com/popular/").append(popular).append('\n')
+      }
+    }
+    val trace = MemoryCacheTraceSimulator.parse(StringReader(lines.toString()))
+
+    val results =
+        MemoryCacheTraceSimulator(MemoryCacheParams(100, 100, 100, 100, 100))
+            .replay(trace)
+            .associateBy { it.policy }
+
+    assertThat(results.keys).containsExactly("LRU", "ARC", "TinyLFU")
+    assertThat(results.getValue("TinyLFU").hitRatio)
+        .isGreaterThan(results.getValue("LRU").hitRatio)
+  }
+}
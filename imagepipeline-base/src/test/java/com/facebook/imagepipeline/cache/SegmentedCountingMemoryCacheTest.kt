@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import com.facebook.common.internal.Predicate
+import com.facebook.common.internal.Supplier
+import com.facebook.common.logging.FLog
+import com.facebook.common.memory.MemoryTrimType
+import com.facebook.common.references.CloseableReference
+import com.facebook.common.references.ResourceReleaser
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class SegmentedCountingMemoryCacheTest {
+
+  companion object {
+    private const val SEGMENT_COUNT = 4
+    private const val CACHE_MAX_SIZE = 4000
+    private const val CACHE_MAX_COUNT = 80
+    private const val CACHE_EVICTION_QUEUE_MAX_SIZE = 2000
+    private const val CACHE_EVICTION_QUEUE_MAX_COUNT = 80
+    private const val CACHE_ENTRY_MAX_SIZE = 1000
+    private const val BENCHMARK_THREAD_COUNT = 8
+    private const val BENCHMARK_OPERATIONS_PER_THREAD = 500_000
+    private const val TAG = "SegmentedCountingMemoryCacheTest"
+  }
+
+  private val released = AtomicInteger()
+  private val releaser = ResourceReleaser<Int> { released.incrementAndGet() }
+  private val valueDescriptor = ValueDescriptor<Int> { value -> value }
+  private val trimStrategy = MemoryCache.CacheTrimStrategy { 0.5 }
+
+  private lateinit var params: MemoryCacheParams
+  private lateinit var cache: SegmentedCountingMemoryCache<String, Int>
+
+  @Before
+  fun setUp() {
+    params =
+        MemoryCacheParams(
+            CACHE_MAX_SIZE,
+            CACHE_MAX_COUNT,
+            CACHE_EVICTION_QUEUE_MAX_SIZE,
+            CACHE_EVICTION_QUEUE_MAX_COUNT,
+            CACHE_ENTRY_MAX_SIZE,
+            TimeUnit.MINUTES.toMillis(5),
+        )
+    cache = newCache(params, SEGMENT_COUNT)
+  }
+
+  private fun newCache(
+      params: MemoryCacheParams,
+      segmentCount: Int,
+  ): SegmentedCountingMemoryCache<String, Int> =
+      SegmentedCountingMemoryCache(
+          valueDescriptor,
+          trimStrategy,
+          Supplier { params },
+          null,
+          false,
+          false,
+          segmentCount,
+      )
+
+  @Test
+  fun testSegmentCountIsRoundedUpToPowerOfTwo() {
+    assertThat(newCache(params, 1).segmentCount).isEqualTo(1)
+    assertThat(newCache(params, 3).segmentCount).isEqualTo(4)
+    assertThat(newCache(params, 8).segmentCount).isEqualTo(8)
+  }
+
+  @Test
+  fun testSegmentParams() {
+    val segmentParams = SegmentedCountingMemoryCache.getSegmentParams(params, 3)
+    // An even share plus the largest entry
+    assertThat(segmentParams.maxCacheSize).isEqualTo(1333 + CACHE_ENTRY_MAX_SIZE)
+    assertThat(segmentParams.maxCacheEntries).isEqualTo(27)
+    assertThat(segmentParams.maxEvictionQueueSize).isEqualTo(666 + CACHE_ENTRY_MAX_SIZE)
+    assertThat(segmentParams.maxEvictionQueueEntries).isEqualTo(27)
+    assertThat(segmentParams.maxCacheEntrySize).isEqualTo(CACHE_ENTRY_MAX_SIZE)
+    assertThat(cache.memoryCacheParams).isSameAs(params)
+
+    // No more than the whole cache
+    val singleSegmentParams = SegmentedCountingMemoryCache.getSegmentParams(params, 1)
+    assertThat(singleSegmentParams.maxCacheSize).isEqualTo(CACHE_MAX_SIZE)
+    assertThat(singleSegmentParams.maxEvictionQueueSize).isEqualTo(CACHE_EVICTION_QUEUE_MAX_SIZE)
+  }
+
+  @Test
+  fun testCacheAndGet() {
+    val cachedRef = cacheValue("k1", 100)!!
+    cache.get("k1")!!.use { assertThat(it.get()).isEqualTo(100) }
+    assertThat(cache.inspect("k1")).isEqualTo(100)
+    assertThat(cache.contains("k1")).isTrue()
+    assertThat(cache.contains("k2")).isFalse()
+    assertThat(cache.get("k2")).isNull()
+    assertThat(cache.count).isEqualTo(1)
+    assertThat(cache.sizeInBytes).isEqualTo(100)
+    assertThat(cache.inUseSizeInBytes).isEqualTo(100)
+    assertThat(cache.segmentFor("k1").count).isEqualTo(1)
+    cachedRef.close()
+  }
+
+  @Test
+  fun testClosedReferencesBecomeExclusiveAndReusable() {
+    for (i in 0 until 10) {
+      cacheValue("k$i", 10 + i)!!.close()
+    }
+    assertThat(cache.count).isEqualTo(10)
+    assertThat(cache.evictionQueueCount).isEqualTo(10)
+    assertThat(cache.inUseSizeInBytes).isEqualTo(0)
+    assertThat(cache.evictionQueueSizeInBytes).isEqualTo((10 until 20).sum())
+
+    val reused = cache.reuse("k3")!!
+    assertThat(reused.get()).isEqualTo(13)
+    assertThat(cache.contains("k3")).isFalse()
+    assertThat(cache.count).isEqualTo(9)
+    reused.close()
+    assertThat(released.get()).isEqualTo(1)
+  }
+
+  @Test
+  fun testEachSegmentEvictsWithinItsBudget() {
+    // every segment can keep 1500 bytes of exclusively owned entries, but all of them only 2000
+    for (i in 0 until 100) {
+      cacheValue("k$i", 100)!!.close()
+      assertThat(cache.evictionQueueSizeInBytes)
+          .isLessThanOrEqualTo(CACHE_EVICTION_QUEUE_MAX_SIZE)
+    }
+    for (i in 0 until 100) {
+      assertThat(cache.segmentFor("k$i").evictionQueueSizeInBytes)
+          .isLessThanOrEqualTo(CACHE_EVICTION_QUEUE_MAX_SIZE / SEGMENT_COUNT + CACHE_ENTRY_MAX_SIZE)
+    }
+    assertThat(released.get()).isEqualTo(100 - cache.count)
+  }
+
+  @Test
+  fun testLargestEntryFitsInEverySegment() {
+    // 500 bytes per segment by an even split
+    cache = newCache(params, 8)
+
+    for (i in 0 until 8) {
+      cacheValue("k$i", CACHE_ENTRY_MAX_SIZE)!!.close()
+    }
+
+    assertThat(cache.evictionQueueCount).isEqualTo(2)
+    assertThat(cache.evictionQueueSizeInBytes).isEqualTo(CACHE_EVICTION_QUEUE_MAX_SIZE)
+    assertThat(released.get()).isEqualTo(6)
+  }
+
+  @Test
+  fun testEntriesInUseAreBoundedByCacheSize() {
+    cache = newCache(params, 8)
+    // keys of different segments, which could each hold one more entry
+    val keys = (0 until 100).map { "k$it" }.distinctBy { cache.segmentFor(it) }.take(5)
+    assertThat(keys).hasSize(5)
+    val refs = keys.take(4).map { cacheValue(it, CACHE_ENTRY_MAX_SIZE)!! }
+
+    assertThat(cacheValue(keys[4], CACHE_ENTRY_MAX_SIZE)).isNull()
+    assertThat(cache.inUseSizeInBytes).isEqualTo(CACHE_MAX_SIZE)
+
+    refs[0].close()
+    cacheValue(keys[4], CACHE_ENTRY_MAX_SIZE)!!.close()
+    assertThat(cache.sizeInBytes).isLessThanOrEqualTo(CACHE_MAX_SIZE)
+    refs.drop(1).forEach { it.close() }
+  }
+
+  @Test
+  fun testRemoveAllAndContainsPredicate() {
+    for (i in 0 until 10) {
+      cacheValue("k$i", 10)!!.close()
+    }
+    cacheValue("other", 10)!!.close()
+    val predicate = Predicate<String> { it.startsWith("k") }
+    assertThat(cache.contains(predicate)).isTrue()
+    assertThat(cache.removeAll(predicate)).isEqualTo(10)
+    assertThat(cache.contains(predicate)).isFalse()
+    assertThat(cache.count).isEqualTo(1)
+    assertThat(cachedKeys()).containsExactly("other")
+  }
+
+  @Test
+  fun testTrimAndClear() {
+    for (i in 0 until 10) {
+      cacheValue("k$i", 100)!!.close()
+    }
+    val sizeBeforeTrim = cache.sizeInBytes
+    cache.trim(MemoryTrimType.OnSystemMemoryCriticallyLowWhileAppInForeground)
+    assertThat(cache.sizeInBytes).isLessThan(sizeBeforeTrim)
+
+    cache.clear()
+    assertThat(cache.count).isEqualTo(0)
+    assertThat(cache.sizeInBytes).isEqualTo(0)
+    assertThat(released.get()).isEqualTo(10)
+  }
+
+  @Test
+  fun testCachedEntriesSnapshot() {
+    val ref = cacheValue("k1", 100)!!
+    cacheValue("k2", 200)!!.close()
+    assertThat(cachedKeys()).containsExactlyInAnyOrder("k1", "k2")
+    assertThat(cache.cachedEntries.sizeInBytes).isEqualTo(300)
+    ref.close()
+  }
+
+  /**
+   * Hammers the cache from several threads with a skewed key distribution, checking that the
+   * counts stay consistent.
+   */
+  @Test
+  fun testConcurrentAccess() {
+    val (hits, _) = runConcurrentWorkload(cache, 8, 20_000)
+
+    assertThat(hits).isGreaterThan(0)
+    assertThat(cache.inUseCount).isEqualTo(0)
+    assertThat(cache.count).isEqualTo(cache.evictionQueueCount)
+    assertThat(cache.count).isLessThanOrEqualTo(CACHE_MAX_COUNT)
+    assertThat(cache.sizeInBytes).isLessThanOrEqualTo(CACHE_MAX_SIZE)
+    // The cache-wide counters match the segments
+    assertThat(cache.count).isEqualTo(cachedKeys().size)
+    assertThat(cache.sizeInBytes).isEqualTo(cache.cachedEntries.sizeInBytes)
+
+    cache.clear()
+    assertThat(cache.count).isEqualTo(0)
+    assertThat(cache.sizeInBytes).isEqualTo(0)
+  }
+
+  /**
+   * Compares the throughput and the hit rate of the cache with those of a single
+   * [LruCountingMemoryCache] with the same params, on the workload of [testConcurrentAccess]. Only
+   * runs with FRESCO_BENCHMARKS set.
+   */
+  @Test
+  fun benchmarkAgainstLruCountingMemoryCache() {
+    Assume.assumeTrue(System.getenv("FRESCO_BENCHMARKS") != null)
+    val lruCache =
+        LruCountingMemoryCache<String, Int>(
+            valueDescriptor,
+            trimStrategy,
+            Supplier { params },
+            null,
+            false,
+            false,
+        )
+    for (benchmarkedCache in listOf<MemoryCache<String, Int>>(lruCache, cache)) {
+      val (hits, elapsedNanos) =
+          runConcurrentWorkload(
+              benchmarkedCache, BENCHMARK_THREAD_COUNT, BENCHMARK_OPERATIONS_PER_THREAD)
+      val operations = BENCHMARK_THREAD_COUNT * BENCHMARK_OPERATIONS_PER_THREAD
+      FLog.i(
+          TAG,
+          "%s: hit rate %.3f, %d ops/ms",
+          benchmarkedCache.javaClass.simpleName,
+          hits.toDouble() / operations,
+          operations * TimeUnit.MILLISECONDS.toNanos(1) / elapsedNanos,
+      )
+    }
+  }
+
+  /**
+   * Gets or caches keys with a skewed distribution from several threads.
+   *
+   * @return the number of hits and the duration of the run in nanoseconds
+   */
+  private fun runConcurrentWorkload(
+      target: MemoryCache<String, Int>,
+      threadCount: Int,
+      operationsPerThread: Int,
+  ): Pair<Int, Long> {
+    val keyCount = 200
+    val hits = AtomicInteger()
+    val failure = AtomicReference<Throwable>()
+    val start = CountDownLatch(1)
+    val threads =
+        List(threadCount) { index ->
+          Thread {
+            val random = Random(index.toLong())
+            try {
+              start.await()
+              for (i in 0 until operationsPerThread) {
+                // the square of a uniform number favors the lower keys
+                val uniform = random.nextDouble()
+                val key = "k" + (uniform * uniform * keyCount).toInt()
+                val ref = target.get(key)
+                if (ref != null) {
+                  hits.incrementAndGet()
+                  assertThat(ref.get()).isEqualTo(key.length)
+                  ref.close()
+                } else {
+                  cacheValue(key, key.length, target)?.close()
+                }
+              }
+            } catch (t: Throwable) {
+              failure.compareAndSet(null, t)
+            }
+          }
+        }
+    threads.forEach { it.start() }
+    val startNanos = System.nanoTime()
+    start.countDown()
+    threads.forEach { it.join() }
+    val elapsedNanos = System.nanoTime() - startNanos
+
+    failure.get()?.let { throw it }
+    return Pair(hits.get(), elapsedNanos)
+  }
+
+  private fun cachedKeys(): List<String> =
+      cache.cachedEntries.getMatchingEntries(null).map { it.key }
+
+  /** Caches a new value and closes the original reference, as the pipeline does. */
+  private fun cacheValue(
+      key: String,
+      size: Int,
+      target: MemoryCache<String, Int> = cache,
+  ): CloseableReference<Int>? = CloseableReference.of(size, releaser).use { target.cache(key, it) }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import com.facebook.common.internal.Predicate
+import com.facebook.common.internal.Supplier
+import com.facebook.common.memory.MemoryTrimType
+import com.facebook.common.references.CloseableReference
+import com.facebook.common.references.ResourceReleaser
+import java.util.concurrent.TimeUnit
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.verify
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class TinyLfuCountingMemoryCacheTest {
+
+  companion object {
+    private const val CACHE_MAX_SIZE = 1000
+    private const val CACHE_MAX_COUNT = 10
+    private const val CACHE_ENTRY_MAX_SIZE = 1000
+    private const val WINDOW_PERCENT = 10
+    private const val VALUE_SIZE = 100
+  }
+
+  private val released = ArrayList<Int>()
+  private val releaser = ResourceReleaser<Int> { released.add(it) }
+
+  private lateinit var cache: TinyLfuCountingMemoryCache<String, Int>
+
+  @Before
+  fun setUp() {
+    val params =
+        MemoryCacheParams(
+            CACHE_MAX_SIZE,
+            CACHE_MAX_COUNT,
+            CACHE_MAX_SIZE,
+            CACHE_MAX_COUNT,
+            CACHE_ENTRY_MAX_SIZE,
+            TimeUnit.MINUTES.toMillis(5),
+        )
+    cache =
+        TinyLfuCountingMemoryCache(
+            ValueDescriptor { VALUE_SIZE },
+            MemoryCache.CacheTrimStrategy { 0.5 },
+            Supplier { params },
+            null,
+            false,
+            WINDOW_PERCENT,
+        )
+  }
+
+  @Test
+  fun testCacheAndGet() {
+    val cachedRef = cacheValue("k0", 0)!!
+    assertThat(cache.count).isEqualTo(1)
+    assertThat(cache.inUseCount).isEqualTo(1)
+    assertThat(cache.evictionQueueCount).isEqualTo(0)
+
+    cachedRef.close()
+    assertThat(cache.inUseCount).isEqualTo(0)
+    assertThat(cache.evictionQueueSizeInBytes).isEqualTo(VALUE_SIZE)
+    cache.get("k0")!!.use { assertThat(it.get()).isEqualTo(0) }
+    assertThat(cache.get("k1")).isNull()
+    assertThat(cache.inspect("k0")).isEqualTo(0)
+    assertThat(released).isEmpty()
+  }
+
+  @Test
+  fun testNewItemsEnterTheWindow() {
+    cacheValue("k0", 0)?.close()
+    assertThat(cache.mWindowExclusiveEntries.contains("k0")).isTrue()
+
+    // the window holds a single item, so the older one moves to probation
+    cacheValue("k1", 1)?.close()
+    assertThat(cache.mWindowExclusiveEntries.contains("k1")).isTrue()
+    assertThat(cache.mProbationExclusiveEntries.contains("k0")).isTrue()
+  }
+
+  @Test
+  fun testWindowKeepsItemLargerThanItsShare() {
+    cache =
+        TinyLfuCountingMemoryCache(
+            ValueDescriptor { VALUE_SIZE },
+            MemoryCache.CacheTrimStrategy { 0.5 },
+            Supplier { MemoryCacheParams(CACHE_MAX_SIZE, 1000, CACHE_MAX_SIZE, 1000, VALUE_SIZE) },
+            null,
+            false,
+            1,
+        )
+
+    // 1% of the budget is 10 bytes, less than any item
+    cacheValue("k0", 0)?.close()
+    assertThat(cache.mWindowExclusiveEntries.contains("k0")).isTrue()
+
+    cacheValue("k1", 1)?.close()
+    assertThat(cache.mWindowExclusiveEntries.count).isEqualTo(1)
+    assertThat(cache.mWindowExclusiveEntries.contains("k1")).isTrue()
+    assertThat(cache.mProbationExclusiveEntries.contains("k0")).isTrue()
+  }
+
+  @Test
+  fun testItemsAccessedInProbationAreProtected() {
+    cacheValue("k0", 0)?.close()
+    cacheValue("k1", 1)?.close()
+    cache.get("k0")?.close()
+    assertThat(cache.mProtectedExclusiveEntries.contains("k0")).isTrue()
+
+    cacheValue("k2", 2)?.close()
+    cache.probe("k1")
+    assertThat(cache.mProtectedExclusiveEntries.contains("k1")).isTrue()
+    assertThat(cache.getFrequency("k1")).isEqualTo(2)
+  }
+
+  @Test
+  fun testOneHitWondersDoNotEvictFrequentlyUsedItems() {
+    for (i in 0 until 5) {
+      cacheValue("hot$i", i)?.close()
+      cache.get("hot$i")?.close()
+      cache.get("hot$i")?.close()
+    }
+    for (i in 0 until 20) {
+      cacheValue("scan$i", 100 + i)?.close()
+    }
+
+    for (i in 0 until 5) {
+      assertThat(cache.contains("hot$i")).describedAs("hot$i").isTrue()
+    }
+    assertThat(cache.count).isEqualTo(CACHE_MAX_COUNT)
+    assertThat(released).hasSize(15).allMatch { it >= 100 }
+  }
+
+  @Test
+  fun testReuse() {
+    val cachedRef = cacheValue("k0", 0)!!
+    assertThat(cache.reuse("k0")).isNull()
+    cachedRef.close()
+
+    val reused = cache.reuse("k0")!!
+    assertThat(cache.contains("k0")).isFalse()
+    assertThat(cache.evictionQueueCount).isEqualTo(0)
+    reused.close()
+    assertThat(released).containsExactly(0)
+  }
+
+  @Test
+  fun testRemoveAll() {
+    for (i in 0 until 6) {
+      cacheValue("k$i", i)?.close()
+    }
+    cache.get("k0")?.close()
+    val inUse = cacheValue("k6", 6)!!
+
+    assertThat(cache.removeAll(Predicate { it != "k1" })).isEqualTo(6)
+    assertThat(cache.count).isEqualTo(1)
+    assertThat(cache.evictionQueueCount).isEqualTo(1)
+    assertThat(released).containsExactlyInAnyOrder(0, 2, 3, 4, 5)
+
+    // items in use are only released by their last client
+    inUse.close()
+    assertThat(released).contains(6)
+  }
+
+  @Test
+  fun testTrimAndClear() {
+    for (i in 0 until 8) {
+      cacheValue("k$i", i)?.close()
+    }
+    cache.trim(MemoryTrimType.OnSystemMemoryCriticallyLowWhileAppInForeground)
+    assertThat(cache.count).isEqualTo(4)
+    assertThat(cache.sizeInBytes).isEqualTo(4 * VALUE_SIZE)
+
+    cache.clear()
+    assertThat(cache.count).isEqualTo(0)
+    assertThat(cache.evictionQueueCount).isEqualTo(0)
+    assertThat(released).hasSize(8)
+    assertThat(cache.getFrequency("k0")).isEqualTo(0)
+  }
+
+  @Test
+  fun testExclusivityObserver() {
+    val observer = mock<CountingMemoryCache.EntryStateObserver<String>>()
+    val original = CloseableReference.of(0, releaser)
+    cache.cache("k0", original, observer)!!.close()
+    original.close()
+    verify(observer).onExclusivityChanged("k0", true)
+    cache.get("k0")!!.close()
+    verify(observer).onExclusivityChanged("k0", false)
+  }
+
+  @Test
+  fun testIgnoresSizeMismatch() {
+    val sizeMismatchCache = createSizeMismatchCache(ignoreSizeMismatch = true)
+
+    sizeMismatchCache.trim(MemoryTrimType.OnSystemLowMemoryWhileAppInForeground)
+    assertThat(sizeMismatchCache.evictionQueueCount).isEqualTo(0)
+    assertThat(sizeMismatchCache.evictionQueueSizeInBytes).isEqualTo(0)
+  }
+
+  @Test
+  fun testThrowsOnSizeMismatchIfNotIgnored() {
+    val sizeMismatchCache = createSizeMismatchCache(ignoreSizeMismatch = false)
+
+    assertThatThrownBy {
+          sizeMismatchCache.trim(MemoryTrimType.OnSystemLowMemoryWhileAppInForeground)
+        }
+        .isInstanceOf(IllegalStateException::class.java)
+  }
+
+  /**
+   * Creates a cache whose eviction queue is left with a size but no items, as the size of its only
+   * item changes while it is cached.
+   */
+  private fun createSizeMismatchCache(
+      ignoreSizeMismatch: Boolean
+  ): TinyLfuCountingMemoryCache<String, Int> {
+    var valueSize = VALUE_SIZE
+    val sizeMismatchCache =
+        TinyLfuCountingMemoryCache(
+            ValueDescriptor<Int> { valueSize },
+            MemoryCache.CacheTrimStrategy { 0.5 },
+            Supplier {
+              MemoryCacheParams(
+                  CACHE_MAX_SIZE,
+                  CACHE_MAX_COUNT,
+                  CACHE_MAX_SIZE,
+                  CACHE_MAX_COUNT,
+                  CACHE_ENTRY_MAX_SIZE,
+              )
+            },
+            null,
+            false,
+            ignoreSizeMismatch,
+            WINDOW_PERCENT,
+        )
+    CloseableReference.of(0, releaser).use { sizeMismatchCache.cache("k0", it) }!!.close()
+    valueSize = VALUE_SIZE / 2
+    // the item in use leaves half of its size behind in the window
+    assertThat(sizeMismatchCache.get("k0")).isNotNull()
+    assertThat(sizeMismatchCache.evictionQueueCount).isEqualTo(0)
+    assertThat(sizeMismatchCache.evictionQueueSizeInBytes).isEqualTo(VALUE_SIZE / 2)
+    return sizeMismatchCache
+  }
+
+  /** Caches a new value and closes the original reference, as the pipeline does. */
+  private fun cacheValue(key: String, value: Int): CloseableReference<Int>? =
+      CloseableReference.of(value, releaser).use { cache.cache(key, it) }
+}
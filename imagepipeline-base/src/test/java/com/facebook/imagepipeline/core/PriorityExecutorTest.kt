@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core
+
+import com.facebook.imagepipeline.common.Priority
+import com.facebook.imagepipeline.testing.FakeClock
+import java.util.concurrent.Executor
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+
+class PriorityExecutorTest {
+
+  companion object {
+    private const val MAX_QUEUE_TIME_MS = 1000L
+  }
+
+  private inner class TestTask(val name: String, priority: Priority) : PrioritizedRunnable {
+    override var priority: Priority = priority
+      set(value) {
+        field = value
+        listener?.run()
+      }
+
+    var listener: Runnable? = null
+
+    override fun setPriorityChangeListener(listener: Runnable?) {
+      this.listener = listener
+    }
+
+    override fun run() {
+      ran.add(name)
+    }
+  }
+
+  private val ran = ArrayList<String>()
+  private val drains = ArrayList<Runnable>()
+
+  private lateinit var clock: FakeClock
+  private lateinit var executor: PriorityExecutor
+
+  @Before
+  fun setUp() {
+    clock = FakeClock()
+    executor = PriorityExecutor(Executor { drains.add(it) }, MAX_QUEUE_TIME_MS, clock)
+  }
+
+  @Test
+  fun testHigherPriorityRunsFirst() {
+    executor.execute(TestTask("low1", Priority.LOW))
+    executor.execute(TestTask("medium", Priority.MEDIUM))
+    executor.execute(TestTask("low2", Priority.LOW))
+    executor.execute(TestTask("high", Priority.HIGH))
+    assertThat(executor.queuedTaskCount).isEqualTo(4)
+
+    runDrains()
+    assertThat(ran).containsExactly("high", "medium", "low1", "low2")
+    assertThat(executor.queuedTaskCount).isEqualTo(0)
+  }
+
+  @Test
+  fun testPlainRunnablesHaveDefaultPriority() {
+    executor.execute(TestTask("medium", Priority.MEDIUM))
+    executor.execute(Runnable { ran.add("plain") })
+    runDrains()
+    assertThat(PriorityExecutor.DEFAULT_PRIORITY).isEqualTo(Priority.HIGH)
+    assertThat(ran).containsExactly("plain", "medium")
+  }
+
+  @Test
+  fun testPriorityChangeReordersQueuedTasks() {
+    val prefetch = TestTask("prefetch", Priority.LOW)
+    executor.execute(TestTask("low", Priority.LOW))
+    executor.execute(prefetch)
+    executor.execute(TestTask("high", Priority.HIGH))
+
+    // the prefetched image became visible, which runs the listener set by the executor
+    prefetch.priority = Priority.HIGH
+
+    runDrains()
+    assertThat(ran).containsExactly("prefetch", "high", "low")
+  }
+
+  @Test
+  fun testPriorityChangeReordersTasksQueuedThroughWrappingExecutor() {
+    val wrappingExecutor = Executor { executor.execute(it) }
+    val prefetch = TestTask("prefetch", Priority.LOW)
+    wrappingExecutor.execute(TestTask("medium", Priority.MEDIUM))
+    wrappingExecutor.execute(prefetch)
+
+    prefetch.priority = Priority.HIGH
+
+    runDrains()
+    assertThat(ran).containsExactly("prefetch", "medium")
+  }
+
+  @Test
+  fun testPriorityChangeListenerIsClearedWhenTaskStarts() {
+    val task = TestTask("task", Priority.LOW)
+    executor.execute(task)
+    assertThat(task.listener).isNotNull()
+    runDrains()
+    assertThat(task.listener).isNull()
+    task.priority = Priority.HIGH
+    executor.onPriorityChanged(task)
+    assertThat(executor.queuedTaskCount).isEqualTo(0)
+    assertThat(ran).containsExactly("task")
+  }
+
+  @Test
+  fun testStarvedTasksRunBeforeNewerTasks() {
+    executor.execute(TestTask("low", Priority.LOW))
+    clock.incrementBy(MAX_QUEUE_TIME_MS / 2)
+    executor.execute(TestTask("medium", Priority.MEDIUM))
+    clock.incrementBy(MAX_QUEUE_TIME_MS / 2 + 1)
+    executor.execute(TestTask("high1", Priority.HIGH))
+    executor.execute(TestTask("high2", Priority.HIGH))
+
+    // only the low priority task has been queued for too long
+    assertThat((executor.poll() as TestTask).name).isEqualTo("low")
+    runDrains()
+    assertThat(ran).containsExactly("high1", "high2", "medium")
+  }
+
+  @Test
+  fun testEachTaskSchedulesOneDrain() {
+    executor.execute(TestTask("t1", Priority.LOW))
+    executor.execute(TestTask("t2", Priority.LOW))
+    assertThat(drains).hasSize(2)
+
+    drains[0].run()
+    drains[0].run()
+    drains[0].run()
+    assertThat(ran).containsExactly("t1", "t2")
+  }
+
+  private fun runDrains() {
+    drains.forEach { it.run() }
+    drains.clear()
+  }
+}
@@ -8,7 +8,9 @@
 package com.facebook.imagepipeline.cache
 
 import bolts.Task
+import com.facebook.binaryresource.FileBinaryResource
 import com.facebook.cache.common.CacheKey
+import com.facebook.cache.common.WriterCallback
 import com.facebook.cache.disk.FileCache
 import com.facebook.common.logging.FLog
 import com.facebook.common.memory.PooledByteBuffer
@@ -18,18 +20,37 @@ import com.facebook.common.references.CloseableReference
 import com.facebook.fresco.middleware.HasExtraData
 import com.facebook.imagepipeline.image.EncodedImage
 import com.facebook.imagepipeline.instrumentation.FrescoInstrumenter
+import com.facebook.imagepipeline.memory.MappedPooledByteBuffer
+import com.facebook.imagepipeline.producers.PrioritizedProducerRunnable
+import com.facebook.imagepipeline.producers.ProducerContext
 import com.facebook.imagepipeline.systrace.FrescoSystrace.traceSection
 import java.io.IOException
 import java.util.concurrent.Callable
 import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * BufferedDiskCache provides get and put operations to take care of scheduling disk-cache
  * read/writes.
+ *
+ * Images being written are kept in a [StagingArea] so that they can be read meanwhile. If
+ * [stagingAreaMaxBytes] is set, [put] drops the images that would stage more than that many bytes,
+ * rather than waiting for the writes to catch up.
+ *
+ * If [batchWrites] is set, the images are not written one task each: a single task at a time
+ * drains the queued images and writes them with [FileCache.insertBatch].
+ *
+ * If [mappedReadMinBytes] is positive, the cached files of at least that many bytes are read as
+ * [MappedPooledByteBuffer]s instead of being copied into a new [PooledByteBuffer]. Smaller files
+ * are still copied, mapping them costs more than the copy saves.
  */
-class BufferedDiskCache(
+class BufferedDiskCache
+@JvmOverloads
+constructor(
     private val fileCache: FileCache,
     private val pooledByteBufferFactory: PooledByteBufferFactory,
     private val pooledByteStreams: PooledByteStreams,
@@ -39,9 +60,26 @@ class BufferedDiskCache(
     private val preserveMetadata: Boolean,
     private val preserveMetadataDuringStartup: Boolean,
     private val isAppStarting: (() -> Boolean)?,
+    stagingAreaMaxBytes: Long = StagingArea.UNBOUNDED,
+    private val batchWrites: Boolean = false,
+    private val mappedReadMinBytes: Int = 0,
 ) {
 
-  private val stagingArea: StagingArea = StagingArea.getInstance()
+  private val stagingArea: StagingArea =
+      if (stagingAreaMaxBytes == StagingArea.UNBOUNDED) {
+        StagingArea.getInstance()
+      } else {
+        StagingArea.getInstance(stagingAreaMaxBytes)
+      }
+
+  private val pendingWrites = AtomicInteger()
+
+  private class PendingWrite(val key: CacheKey, val encodedImage: EncodedImage)
+
+  // Writes waiting for a batch, when batching
+  private val writeQueue = ConcurrentLinkedQueue<PendingWrite>()
+
+  private val writeBatchScheduled = AtomicBoolean()
 
   /**
    * Returns true if the key is in the in-memory key index.
@@ -113,13 +151,28 @@ class BufferedDiskCache(
    * i.e. the returned task resolves to null.
    *
    * @param key
+   * @param producerContext if set, the read has the priority of the request on the executors that
+   *   queue tasks by priority
    * @return Task that resolves to cached element or null if one cannot be retrieved; returned task
    *   never rethrows any exception
    */
-  operator fun get(key: CacheKey, isCancelled: AtomicBoolean): Task<EncodedImage> =
+  @JvmOverloads
+  operator fun get(
+      key: CacheKey,
+      isCancelled: AtomicBoolean,
+      producerContext: ProducerContext? = null,
+  ): Task<EncodedImage> =
       traceSection("BufferedDiskCache#get") {
         val pinnedImage = stagingArea[key]
-        pinnedImage?.let { foundPinnedImage(key, it) } ?: getAsync(key, isCancelled)
+        pinnedImage?.let { foundPinnedImage(key, it) }
+            ?: getAsync(key, isCancelled, getReadExecutor(producerContext))
+      }
+
+  private fun getReadExecutor(producerContext: ProducerContext?): Executor =
+      if (producerContext == null) {
+        readExecutor
+      } else {
+        Executor { PrioritizedProducerRunnable.execute(readExecutor, it, producerContext) }
       }
 
   /**
@@ -179,7 +232,11 @@ class BufferedDiskCache(
     }
   }
 
-  private fun getAsync(key: CacheKey, isCancelled: AtomicBoolean): Task<EncodedImage> {
+  private fun getAsync(
+      key: CacheKey,
+      isCancelled: AtomicBoolean,
+      executor: Executor,
+  ): Task<EncodedImage> {
     return try {
       val token = FrescoInstrumenter.onBeforeSubmitWork("BufferedDiskCache_getAsync")
       Task.call(
@@ -231,7 +288,7 @@ class BufferedDiskCache(
               FrescoInstrumenter.onEndWork(currentToken)
             }
           },
-          readExecutor,
+          executor,
       )
     } catch (exception: Exception) {
       // Log failure
@@ -249,25 +306,43 @@ class BufferedDiskCache(
       traceSection("BufferedDiskCache#put") {
         check(EncodedImage.isValid(encodedImage))
 
-        // Store encodedImage in staging area
-        stagingArea.put(key, encodedImage)
+        // Store encodedImage in staging area. This is called from the fetch threads, which must
+        // not wait for the writes to catch up: the image is not written if the area is full.
+        if (!stagingArea.put(key, encodedImage)) {
+          FLog.v(TAG, "Staging area full, dropping disk-cache write for %s", key.uriString)
+          imageCacheStatsTracker.onStagingAreaDrop(key)
+          return@traceSection
+        }
 
         // Write to disk cache. This will be executed on background thread, so increment the ref
         // count. When this write completes (with success/failure), then we will bump down the
         // ref count again.
         val finalEncodedImage = EncodedImage.cloneOrNull(encodedImage)
+        if (batchWrites) {
+          pendingWrites.incrementAndGet()
+          writeQueue.add(PendingWrite(key, checkNotNull(finalEncodedImage)))
+          scheduleWriteBatch()
+          return@traceSection
+        }
         try {
           val token = FrescoInstrumenter.onBeforeSubmitWork("BufferedDiskCache_putAsync")
+          pendingWrites.incrementAndGet()
           writeExecutor.execute {
             val currentToken = FrescoInstrumenter.onBeginWork(token, null)
             try {
-              writeToDiskCache(key, finalEncodedImage)
+              // A later put of the same key has its own write queued, which makes this one useless
+              if (stagingArea.isReplaced(key, finalEncodedImage!!)) {
+                FLog.v(TAG, "Skipping superseded disk-cache write for key %s", key.uriString)
+              } else {
+                writeToDiskCache(key, finalEncodedImage)
+              }
             } catch (th: Throwable) {
               FrescoInstrumenter.markFailure(token, th)
               throw th
             } finally {
               stagingArea.remove(key, finalEncodedImage!!)
               EncodedImage.closeSafely(finalEncodedImage)
+              pendingWrites.decrementAndGet()
               FrescoInstrumenter.onEndWork(currentToken)
             }
           }
@@ -275,11 +350,73 @@ class BufferedDiskCache(
           // We failed to enqueue cache write. Log failure and decrement ref count
           // TODO: 3697790
           FLog.w(TAG, exception, "Failed to schedule disk-cache write for %s", key.uriString)
+          pendingWrites.decrementAndGet()
           stagingArea.remove(key, encodedImage)
           EncodedImage.closeSafely(finalEncodedImage)
         }
       }
 
+  private fun scheduleWriteBatch() {
+    if (!writeBatchScheduled.compareAndSet(false, true)) {
+      return
+    }
+    try {
+      val token = FrescoInstrumenter.onBeforeSubmitWork("BufferedDiskCache_putBatchAsync")
+      writeExecutor.execute {
+        val currentToken = FrescoInstrumenter.onBeginWork(token, null)
+        try {
+          writeBatch()
+        } catch (th: Throwable) {
+          FrescoInstrumenter.markFailure(token, th)
+          throw th
+        } finally {
+          FrescoInstrumenter.onEndWork(currentToken)
+        }
+      }
+    } catch (exception: Exception) {
+      // We failed to enqueue cache write. Log failure and drop the queued writes
+      // TODO: 3697790
+      FLog.w(TAG, exception, "Failed to schedule disk-cache batch write")
+      writeBatchScheduled.set(false)
+      while (true) {
+        finishWrite(writeQueue.poll() ?: break)
+      }
+    }
+  }
+
+  private fun writeBatch() {
+    // The flag stays set while draining, so that puts do not schedule another drain meanwhile
+    try {
+      val batch = ArrayList<PendingWrite>(MAX_WRITE_BATCH_SIZE)
+      while (batch.size < MAX_WRITE_BATCH_SIZE) {
+        batch.add(writeQueue.poll() ?: break)
+      }
+      try {
+        // A later put of the same key has its own write queued, which makes this one useless
+        val writes = batch.filter { !stagingArea.isReplaced(it.key, it.encodedImage) }
+        if (writes.isNotEmpty()) {
+          writeBatchToDiskCache(writes)
+        }
+      } finally {
+        for (write in batch) {
+          finishWrite(write)
+        }
+      }
+    } finally {
+      // Images queued before the flag is cleared are drained by the next batch
+      writeBatchScheduled.set(false)
+      if (!writeQueue.isEmpty()) {
+        scheduleWriteBatch()
+      }
+    }
+  }
+
+  private fun finishWrite(write: PendingWrite) {
+    stagingArea.remove(write.key, write.encodedImage)
+    EncodedImage.closeSafely(write.encodedImage)
+    pendingWrites.decrementAndGet()
+  }
+
   /** Removes the item from the disk cache and the staging area. */
   fun remove(key: CacheKey): Task<Void> {
     stagingArea.remove(key)
@@ -341,6 +478,14 @@ class BufferedDiskCache(
   val size: Long
     get() = fileCache.getSize()
 
+  /** The total size of the images that are being written. */
+  val stagedBytes: Long
+    get() = stagingArea.stagedBytes
+
+  /** The number of writes that are scheduled and have not completed yet. */
+  val pendingWriteCount: Int
+    get() = pendingWrites.get()
+
   private fun foundPinnedImage(key: CacheKey, pinnedImage: EncodedImage): Task<EncodedImage> {
     FLog.v(TAG, "Found image for %s in staging area", key.uriString)
     imageCacheStatsTracker.onStagingAreaHit(key)
@@ -368,12 +513,21 @@ class BufferedDiskCache(
         imageCacheStatsTracker.onDiskCacheHit(key)
       }
       val originSub = diskCacheResource.getExtra(HasExtraData.KEY_ORIGIN_SUBCATEGORY)
-      val `is` = diskCacheResource.openStream()
+      val size = diskCacheResource.size()
       val byteBuffer =
-          try {
-            pooledByteBufferFactory.newByteBuffer(`is`, diskCacheResource.size().toInt())
-          } finally {
-            `is`.close()
+          if (
+              mappedReadMinBytes > 0 &&
+                  size >= mappedReadMinBytes &&
+                  diskCacheResource is FileBinaryResource
+          ) {
+            MappedPooledByteBuffer.map(diskCacheResource.file)
+          } else {
+            val `is` = diskCacheResource.openStream()
+            try {
+              pooledByteBufferFactory.newByteBuffer(`is`, size.toInt())
+            } finally {
+              `is`.close()
+            }
           }
       FLog.v(TAG, "Successful read from disk cache for %s", key.uriString)
       DiskCacheReadResult(byteBuffer, originSub)
@@ -395,12 +549,7 @@ class BufferedDiskCache(
   private fun writeToDiskCache(key: CacheKey, encodedImage: EncodedImage?) {
     FLog.v(TAG, "About to write to disk-cache for key %s", key.uriString)
     try {
-      fileCache.insert(key) { os ->
-        val inputStream = encodedImage!!.inputStream
-        checkNotNull(inputStream)
-        pooledByteStreams.copy(inputStream, os)
-        maybeSaveMetadata(key, encodedImage)
-      }
+      fileCache.insert(key, createWriter(key, checkNotNull(encodedImage), null))
       imageCacheStatsTracker.onDiskCachePut(key)
       FLog.v(TAG, "Successful disk-cache write for key %s", key.uriString)
     } catch (ioe: IOException) {
@@ -410,6 +559,50 @@ class BufferedDiskCache(
     }
   }
 
+  /** Writes several images to disk cache, copying them all through the same buffer. */
+  private fun writeBatchToDiskCache(writes: List<PendingWrite>) {
+    FLog.v(TAG, "About to write %d images to disk-cache", writes.size)
+    val startTimeNs = System.nanoTime()
+    val buffer = pooledByteStreams.tempBuffer
+    val resources =
+        try {
+          fileCache.insertBatch(
+              writes.map { it.key },
+              writes.map { createWriter(it.key, it.encodedImage, buffer) },
+          )
+        } finally {
+          pooledByteStreams.releaseTempBuffer(buffer)
+        }
+    var byteCount = 0L
+    for (i in writes.indices) {
+      val key = writes[i].key
+      val resource = resources[i]
+      if (resource == null) {
+        FLog.w(TAG, "Failed to write to disk-cache for key %s", key.uriString)
+        continue
+      }
+      imageCacheStatsTracker.onDiskCachePut(key)
+      byteCount += resource.size()
+    }
+    imageCacheStatsTracker.onDiskCacheBatchWrite(
+        writes.size,
+        byteCount,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNs),
+    )
+  }
+
+  /** Copies the image to the disk cache, through the given buffer if any. */
+  private fun createWriter(key: CacheKey, encodedImage: EncodedImage, buffer: ByteArray?) =
+      WriterCallback { os ->
+        val inputStream = checkNotNull(encodedImage.inputStream)
+        if (buffer == null) {
+          pooledByteStreams.copy(inputStream, os)
+        } else {
+          pooledByteStreams.copy(inputStream, os, buffer)
+        }
+        maybeSaveMetadata(key, encodedImage)
+      }
+
   private fun maybeSaveMetadata(key: CacheKey, image: EncodedImage) {
     if (!preserveMetadataDuringStartup && isAppStarting?.invoke() == true) {
       return
@@ -430,5 +623,7 @@ class BufferedDiskCache(
 
   companion object {
     private val TAG: Class<*> = BufferedDiskCache::class.java
+
+    private const val MAX_WRITE_BATCH_SIZE = 16
   }
 }
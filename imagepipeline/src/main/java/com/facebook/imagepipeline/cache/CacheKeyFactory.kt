@@ -45,4 +45,19 @@ interface CacheKeyFactory {
    * @return [CacheKey] for doing encoded image lookups in the pipeline.
    */
   fun getEncodedCacheKey(request: ImageRequest, sourceUri: Uri, callerContext: Any?): CacheKey
+
+  /**
+   * Creates the key of the encoded bytes of the request regardless of the requested size: like
+   * [getEncodedCacheKey], with the same normalization of the URI, but without the dimensions some
+   * implementations put in the encoded cache key.
+   *
+   * Requests with equal keys can share one fetch if the fetched bytes do not depend on the
+   * requested size. The key is not used to store anything in the caches.
+   *
+   * @param request the image request
+   * @param callerContext included for optional debugging or logging purposes only
+   * @return [CacheKey] of the source of the encoded image
+   */
+  fun getEncodedSourceCacheKey(request: ImageRequest, callerContext: Any?): CacheKey =
+      getEncodedCacheKey(request, callerContext)
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import com.facebook.cache.common.CacheEvent
+import com.facebook.cache.common.CacheEventListener
+import com.facebook.common.internal.Preconditions
+import java.util.concurrent.ConcurrentHashMap
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * [SimilarImageLookup] that keeps an index of the tracked variants of each group key, one for the
+ * memory cache and one for the disk cache. Set it with
+ * [com.facebook.imagepipeline.core.ImagePipelineConfig.Builder.setSimilarImageLookup]: the bitmap
+ * memory cache producer then tracks the cached variants and serves misses from a larger one, and
+ * the disk cache read producer reads a larger variant on a miss.
+ *
+ * The variants of a group are kept in an immutable array sorted by area, which is replaced on every
+ * change, so lookups do not take any lock. Each index holds at most [maxGroups] groups, dropping
+ * the least recently tracked group first, and [maxVariantsPerGroup] variants per group, dropping
+ * the smallest variant first since it can serve the fewest requests. The memory cache does not
+ * report its evictions: the producers remove the keys they find evicted.
+ *
+ * Disk cache keys are expected in the "groupKey_width_height" format, other keys are ignored. The
+ * disk index is fed either with [trackDiskCacheKey] or by a listener from
+ * [newDiskCacheEventListener] set as the [CacheEventListener] of the disk cache, which also removes
+ * the evicted entries.
+ */
+@ThreadSafe
+class DefaultSimilarImageLookup
+@JvmOverloads
+constructor(
+    private val maxGroups: Int = DEFAULT_MAX_GROUPS,
+    private val maxVariantsPerGroup: Int = DEFAULT_MAX_VARIANTS_PER_GROUP,
+) : SimilarImageLookup {
+
+  init {
+    Preconditions.checkArgument(maxGroups > 0 && maxVariantsPerGroup > 0)
+  }
+
+  private class Variant(val cacheKeyString: String, val width: Int, val height: Int) {
+    val area: Long
+      get() = width.toLong() * height
+  }
+
+  private inner class VariantIndex {
+    private val groups = ConcurrentHashMap<String, Array<Variant>>()
+
+    // Group keys from the least to the most recently tracked
+    @GuardedBy("this")
+    private val groupOrder = LinkedHashMap<String, Boolean>(INITIAL_CAPACITY, LOAD_FACTOR, true)
+
+    /** The smallest variant covering the given size, other than the excluded one. */
+    fun findLarger(groupKey: String, excludedKey: String, width: Int, height: Int): Variant? =
+        groups[groupKey]?.firstOrNull {
+          it.width >= width && it.height >= height && it.cacheKeyString != excludedKey
+        }
+
+    @Synchronized
+    fun add(groupKey: String, variant: Variant) {
+      val variants = groups[groupKey]?.filter { it.cacheKeyString != variant.cacheKeyString }
+      groups[groupKey] =
+          ((variants ?: emptyList()) + variant)
+              .sortedBy { it.area }
+              .takeLast(maxVariantsPerGroup)
+              .toTypedArray()
+      groupOrder[groupKey] = true
+      if (groupOrder.size > maxGroups) {
+        val eldest = groupOrder.keys.first()
+        groupOrder.remove(eldest)
+        groups.remove(eldest)
+      }
+    }
+
+    @Synchronized
+    fun remove(groupKey: String, cacheKeyString: String) {
+      val variants = groups[groupKey] ?: return
+      val remaining = variants.filter { it.cacheKeyString != cacheKeyString }
+      if (remaining.isEmpty()) {
+        groups.remove(groupKey)
+        groupOrder.remove(groupKey)
+      } else if (remaining.size < variants.size) {
+        groups[groupKey] = remaining.toTypedArray()
+      }
+    }
+
+    val groupCount: Int
+      get() = groups.size
+  }
+
+  private val memoryIndex = VariantIndex()
+
+  private val diskIndex = VariantIndex()
+
+  /**
+   * Creates a listener to set as the [CacheEventListener] of a disk cache, so that its writes, hits
+   * and evictions update the disk index. The [com.facebook.cache.common.CacheKey.getUriString] of
+   * the keys is used as their disk cache key string. All the events are forwarded to [delegate],
+   * e.g. the listener the app had set.
+   */
+  @JvmOverloads
+  fun newDiskCacheEventListener(delegate: CacheEventListener? = null): CacheEventListener =
+      DiskCacheEventListener(delegate)
+
+  override fun findLargerMemoryCacheKey(
+      cacheKeyString: String,
+      groupKey: String?,
+      width: Int,
+      height: Int,
+      callerContext: Any?,
+  ): SimilarImageResult? {
+    if (groupKey == null || width <= 0 || height <= 0) {
+      return null
+    }
+    val variant = memoryIndex.findLarger(groupKey, cacheKeyString, width, height) ?: return null
+    return SimilarImageResult(variant.cacheKeyString, groupKey, variant.width, variant.height)
+  }
+
+  override fun findLargerDiskCacheKey(
+      diskCacheKey: String,
+      callerContext: Any?,
+  ): SimilarImageResult? {
+    val key = DiskKey.parse(diskCacheKey) ?: return null
+    val variant =
+        diskIndex.findLarger(key.groupKey, diskCacheKey, key.width, key.height) ?: return null
+    return SimilarImageResult(variant.cacheKeyString, key.groupKey, variant.width, variant.height)
+  }
+
+  override fun trackMemoryCacheKey(
+      cacheKeyString: String,
+      groupKey: String?,
+      width: Int,
+      height: Int,
+  ) {
+    if (groupKey != null && width > 0 && height > 0) {
+      memoryIndex.add(groupKey, Variant(cacheKeyString, width, height))
+    }
+  }
+
+  override fun trackDiskCacheKey(diskCacheKey: String, isFullImage: Boolean) {
+    if (!isFullImage) {
+      return
+    }
+    val key = DiskKey.parse(diskCacheKey) ?: return
+    diskIndex.add(key.groupKey, Variant(diskCacheKey, key.width, key.height))
+  }
+
+  override fun removeMemoryCacheKey(
+      cacheKeyString: String,
+      groupKey: String?,
+      width: Int,
+      height: Int,
+  ) {
+    if (groupKey != null) {
+      memoryIndex.remove(groupKey, cacheKeyString)
+    }
+  }
+
+  /** Removes a tracked disk key, e.g. because it was evicted. */
+  fun removeDiskCacheKey(diskCacheKey: String) {
+    val key = DiskKey.parse(diskCacheKey) ?: return
+    diskIndex.remove(key.groupKey, diskCacheKey)
+  }
+
+  /** The number of groups with variants in the memory index. */
+  val memoryGroupCount: Int
+    get() = memoryIndex.groupCount
+
+  /** The number of groups with variants in the disk index. */
+  val diskGroupCount: Int
+    get() = diskIndex.groupCount
+
+  private class DiskKey(val groupKey: String, val width: Int, val height: Int) {
+    companion object {
+      fun parse(diskCacheKey: String): DiskKey? {
+        val heightSeparator = diskCacheKey.lastIndexOf('_')
+        if (heightSeparator <= 0) {
+          return null
+        }
+        val widthSeparator = diskCacheKey.lastIndexOf('_', heightSeparator - 1)
+        if (widthSeparator <= 0) {
+          return null
+        }
+        val width = diskCacheKey.substring(widthSeparator + 1, heightSeparator).toIntOrNull()
+        val height = diskCacheKey.substring(heightSeparator + 1).toIntOrNull()
+        if (width == null || height == null || width <= 0 || height <= 0) {
+          return null
+        }
+        return DiskKey(diskCacheKey.substring(0, widthSeparator), width, height)
+      }
+    }
+  }
+
+  /**
+   * Eviction events only carry the resource id, so the key written under each resource id is kept
+   * until it is evicted, for at most as many entries as the disk index can hold. A key forgotten
+   * this way is removed from the index, since its eviction could not be reported. The disk index is
+   * not persisted: after a restart, it is fed again by the hits and writes of the disk cache.
+   */
+  private inner class DiskCacheEventListener(private val delegate: CacheEventListener?) :
+      CacheEventListener {
+    @GuardedBy("this")
+    private val keysByResourceId =
+        object : LinkedHashMap<String, String>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+          override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, String>): Boolean {
+            if (size <= maxGroups * maxVariantsPerGroup) {
+              return false
+            }
+            removeDiskCacheKey(eldest.value)
+            return true
+          }
+        }
+
+    override fun onHit(cacheEvent: CacheEvent) {
+      track(cacheEvent)
+      delegate?.onHit(cacheEvent)
+    }
+
+    override fun onWriteSuccess(cacheEvent: CacheEvent) {
+      track(cacheEvent)
+      delegate?.onWriteSuccess(cacheEvent)
+    }
+
+    override fun onEviction(cacheEvent: CacheEvent) {
+      cacheEvent.resourceId?.let { resourceId ->
+        synchronized(this) { keysByResourceId.remove(resourceId) }?.let { removeDiskCacheKey(it) }
+      }
+      delegate?.onEviction(cacheEvent)
+    }
+
+    override fun onCleared() {
+      // Other disk caches may share the index
+      val diskCacheKeys =
+          synchronized(this) { keysByResourceId.values.toList().also { keysByResourceId.clear() } }
+      diskCacheKeys.forEach { removeDiskCacheKey(it) }
+      delegate?.onCleared()
+    }
+
+    override fun onMiss(cacheEvent: CacheEvent) {
+      delegate?.onMiss(cacheEvent)
+    }
+
+    override fun onWriteAttempt(cacheEvent: CacheEvent) {
+      delegate?.onWriteAttempt(cacheEvent)
+    }
+
+    override fun onReadException(cacheEvent: CacheEvent) {
+      delegate?.onReadException(cacheEvent)
+    }
+
+    override fun onWriteException(cacheEvent: CacheEvent) {
+      delegate?.onWriteException(cacheEvent)
+    }
+
+    private fun track(cacheEvent: CacheEvent) {
+      val diskCacheKey = cacheEvent.cacheKey?.uriString ?: return
+      val resourceId = cacheEvent.resourceId ?: return
+      if (DiskKey.parse(diskCacheKey) == null) {
+        return
+      }
+      synchronized(this) { keysByResourceId[resourceId] = diskCacheKey }
+      trackDiskCacheKey(diskCacheKey, true)
+    }
+  }
+
+  companion object {
+    const val DEFAULT_MAX_GROUPS = 1024
+    const val DEFAULT_MAX_VARIANTS_PER_GROUP = 4
+
+    private const val INITIAL_CAPACITY = 16
+    private const val LOAD_FACTOR = 0.75f
+  }
+}
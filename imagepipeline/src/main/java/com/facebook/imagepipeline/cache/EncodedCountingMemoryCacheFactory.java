@@ -20,6 +20,19 @@ public class EncodedCountingMemoryCacheFactory {
       Supplier<MemoryCacheParams> encodedMemoryCacheParamsSupplier,
       MemoryTrimmableRegistry memoryTrimmableRegistry,
       MemoryCache.CacheTrimStrategy cacheTrimStrategy) {
+    return get(
+        encodedMemoryCacheParamsSupplier, memoryTrimmableRegistry, cacheTrimStrategy, false);
+  }
+
+  /**
+   * @param useTinyLfu whether to use a {@link TinyLfuCountingMemoryCache} instead of a plain LRU
+   *     cache
+   */
+  public static CountingMemoryCache<CacheKey, PooledByteBuffer> get(
+      Supplier<MemoryCacheParams> encodedMemoryCacheParamsSupplier,
+      MemoryTrimmableRegistry memoryTrimmableRegistry,
+      MemoryCache.CacheTrimStrategy cacheTrimStrategy,
+      boolean useTinyLfu) {
 
     ValueDescriptor<PooledByteBuffer> valueDescriptor =
         new ValueDescriptor<PooledByteBuffer>() {
@@ -30,13 +43,16 @@ public class EncodedCountingMemoryCacheFactory {
         };
 
     CountingMemoryCache<CacheKey, PooledByteBuffer> countingCache =
-        new LruCountingMemoryCache<>(
-            valueDescriptor,
-            cacheTrimStrategy,
-            encodedMemoryCacheParamsSupplier,
-            null,
-            false,
-            false);
+        useTinyLfu
+            ? new TinyLfuCountingMemoryCache<>(
+                valueDescriptor, cacheTrimStrategy, encodedMemoryCacheParamsSupplier, null, false)
+            : new LruCountingMemoryCache<>(
+                valueDescriptor,
+                cacheTrimStrategy,
+                encodedMemoryCacheParamsSupplier,
+                null,
+                false,
+                false);
 
     memoryTrimmableRegistry.registerMemoryTrimmable(countingCache);
 
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import android.net.Uri
+import com.facebook.cache.common.CacheKey
+import com.facebook.imagepipeline.common.BytesRange
+import com.facebook.imagepipeline.request.ImageRequest
+
+/**
+ * Identifies the encoded bytes a request asks for: the [CacheKeyFactory.getEncodedSourceCacheKey]
+ * of the request and the range of its bytes, but none of what is done with them afterwards
+ * (resize, rotation, decode options, ...).
+ *
+ * Requests with equal keys can share one download or disk read if the fetched bytes do not depend
+ * on the requested size. It is used to combine in-flight requests, not to store anything in a
+ * cache.
+ */
+data class EncodedSourceCacheKey(val sourceCacheKey: CacheKey, val bytesRange: BytesRange?) :
+    CacheKey {
+
+  override fun containsUri(uri: Uri): Boolean = sourceCacheKey.containsUri(uri)
+
+  override fun getUriString(): String = sourceCacheKey.uriString
+
+  override fun isResourceIdForDebugging(): Boolean = false
+
+  companion object {
+    @JvmStatic
+    fun of(
+        request: ImageRequest,
+        callerContext: Any?,
+        cacheKeyFactory: CacheKeyFactory,
+    ): EncodedSourceCacheKey =
+        EncodedSourceCacheKey(
+            cacheKeyFactory.getEncodedSourceCacheKey(request, callerContext),
+            request.bytesRange,
+        )
+  }
+}
@@ -47,6 +47,12 @@ interface ImageCacheStatsTracker {
   /** Called on a staging area miss hit. */
   fun onStagingAreaMiss(cacheKey: CacheKey)
 
+  /**
+   * Called when an image is not written to disk because the staging area was full, so that it would
+   * have held more bytes than its limit.
+   */
+  fun onStagingAreaDrop(cacheKey: CacheKey) = Unit
+
   /** Called on a disk cache hit. */
   fun onDiskCacheHit(cacheKey: CacheKey)
 
@@ -59,6 +65,16 @@ interface ImageCacheStatsTracker {
   /** called whenever new files are written to disk */
   fun onDiskCachePut(cacheKey: CacheKey)
 
+  /**
+   * Called after a batch of images has been written to disk, when disk cache writes are batched.
+   * [onDiskCachePut] is still called for each image written.
+   *
+   * @param batchSize the number of images in the batch
+   * @param byteCount the number of bytes written
+   * @param durationMs the time taken by the whole batch
+   */
+  fun onDiskCacheBatchWrite(batchSize: Int, byteCount: Long, durationMs: Long) = Unit
+
   /**
    * Registers a bitmap cache with this tracker.
    *
@@ -49,6 +49,9 @@ public class NoOpImageCacheStatsTracker implements ImageCacheStatsTracker {
   @Override
   public void onStagingAreaMiss(CacheKey cacheKey) {}
 
+  @Override
+  public void onStagingAreaDrop(CacheKey cacheKey) {}
+
   @Override
   public void onDiskCacheHit(CacheKey cacheKey) {}
 
@@ -61,6 +64,9 @@ public class NoOpImageCacheStatsTracker implements ImageCacheStatsTracker {
   @Override
   public void onDiskCachePut(CacheKey cacheKey) {}
 
+  @Override
+  public void onDiskCacheBatchWrite(int batchSize, long byteCount, long durationMs) {}
+
   @Override
   public void registerBitmapMemoryCache(MemoryCache<?, ?> bitmapMemoryCache) {}
 
@@ -14,60 +14,95 @@ import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.infer.annotation.Nullsafe;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * This is class encapsulates Map that maps ImageCacheKeys to EncodedImages pointing to
  * PooledByteBuffers. It is used by SimpleImageCache to store values that are being written to disk
  * cache, so that they can be returned by parallel cache get operations.
+ *
+ * <p>Lookups do not take any lock. The staged bytes are accounted for, and {@link #put} does not
+ * stage images that would go over the budget.
  */
 @Nullsafe(Nullsafe.Mode.LOCAL)
+@ThreadSafe
 public class StagingArea {
   private static final Class<?> TAG = StagingArea.class;
 
-  @GuardedBy("this")
-  private Map<CacheKey, EncodedImage> mMap;
+  /** Budget of a staging area that stages every image. */
+  public static final long UNBOUNDED = Long.MAX_VALUE;
+
+  /** A staged image, with its size as it was when staged. */
+  private static final class Entry {
+    final EncodedImage encodedImage;
+    final int size;
+
+    Entry(EncodedImage encodedImage, int size) {
+      this.encodedImage = encodedImage;
+      this.size = size;
+    }
+  }
 
-  private StagingArea() {
-    mMap = new HashMap<>();
+  private final Map<CacheKey, Entry> mMap;
+  private final AtomicLong mStagedBytes = new AtomicLong();
+  private final long mMaxStagedBytes;
+
+  private StagingArea(long maxStagedBytes) {
+    Preconditions.checkArgument(maxStagedBytes > 0);
+    mMap = new ConcurrentHashMap<>();
+    mMaxStagedBytes = maxStagedBytes;
   }
 
   public static StagingArea getInstance() {
-    return new StagingArea();
+    return new StagingArea(UNBOUNDED);
   }
 
   /**
-   * Stores key-value in this StagingArea. This call overrides previous value of stored reference if
+   * @param maxStagedBytes the number of staged bytes above which {@link #put} does not stage
+   */
+  public static StagingArea getInstance(long maxStagedBytes) {
+    return new StagingArea(maxStagedBytes);
+  }
+
+  /**
+   * Stores key-value in this StagingArea, if it fits in the budget. This call overrides previous
+   * value of stored reference if any, whose size does not count against the budget. An image
+   * always fits if nothing else is staged. Never waits.
    *
    * @param key
    * @param encodedImage EncodedImage to be associated with key
+   * @return true if the image was staged, false if it would have gone over the budget
    */
-  public synchronized void put(final CacheKey key, final EncodedImage encodedImage) {
+  public boolean put(final CacheKey key, final EncodedImage encodedImage) {
     Preconditions.checkNotNull(key);
     Preconditions.checkArgument(EncodedImage.isValid(encodedImage));
 
+    final int size = Math.max(0, encodedImage.getSize());
+    final Entry replacedEntry = mMap.get(key);
+    if (!reserve(size, replacedEntry == null ? 0 : replacedEntry.size)) {
+      logStats();
+      return false;
+    }
     // we're making a 'copy' of this reference - so duplicate it
-    final EncodedImage oldEntry = mMap.put(key, EncodedImage.cloneOrNull(encodedImage));
-    EncodedImage.closeSafely(oldEntry);
+    final Entry entry =
+        new Entry(Preconditions.checkNotNull(EncodedImage.cloneOrNull(encodedImage)), size);
+    final Entry oldEntry = mMap.put(key, entry);
+    if (oldEntry != null) {
+      release(oldEntry);
+    }
     logStats();
+    return true;
   }
 
   /** Removes all items from the StagingArea. */
   public void clearAll() {
-    final List<EncodedImage> old;
-    synchronized (this) {
-      old = new ArrayList<>(mMap.values());
-      mMap.clear();
-    }
-    for (int i = 0; i < old.size(); i++) {
-      EncodedImage encodedImage = old.get(i);
-      if (encodedImage != null) {
-        encodedImage.close();
+    for (Map.Entry<CacheKey, Entry> mapEntry : mMap.entrySet()) {
+      if (mMap.remove(mapEntry.getKey(), mapEntry.getValue())) {
+        release(mapEntry.getValue());
       }
     }
   }
@@ -80,18 +115,13 @@ public class StagingArea {
    */
   public boolean remove(final CacheKey key) {
     Preconditions.checkNotNull(key);
-    final EncodedImage encodedImage;
-    synchronized (this) {
-      encodedImage = mMap.remove(key);
-    }
-    if (encodedImage == null) {
+    final Entry entry = mMap.remove(key);
+    if (entry == null) {
       return false;
     }
-    try {
-      return encodedImage.isValid();
-    } finally {
-      encodedImage.close();
-    }
+    final boolean wasValid = entry.encodedImage.isValid();
+    release(entry);
+    return wasValid;
   }
 
   /**
@@ -101,89 +131,127 @@ public class StagingArea {
    * @param encodedImage value corresponding to key
    * @return true if item was removed
    */
-  public synchronized boolean remove(final CacheKey key, final EncodedImage encodedImage) {
+  public boolean remove(final CacheKey key, final EncodedImage encodedImage) {
     Preconditions.checkNotNull(key);
     Preconditions.checkNotNull(encodedImage);
     Preconditions.checkArgument(EncodedImage.isValid(encodedImage));
 
-    final EncodedImage oldValue = mMap.get(key);
-
-    if (oldValue == null) {
+    final Entry entry = mMap.get(key);
+    if (entry == null
+        || !isSameBuffer(entry.encodedImage, encodedImage)
+        || !mMap.remove(key, entry)) {
       return false;
     }
-
-    CloseableReference<PooledByteBuffer> oldRef = oldValue.getByteBufferRef();
-    CloseableReference<PooledByteBuffer> ref = encodedImage.getByteBufferRef();
-    try {
-      if (oldRef == null || ref == null || oldRef.get() != ref.get()) {
-        return false;
-      }
-      mMap.remove(key);
-    } finally {
-      CloseableReference.closeSafely(ref);
-      CloseableReference.closeSafely(oldRef);
-      EncodedImage.closeSafely(oldValue);
-    }
-
+    release(entry);
     logStats();
     return true;
   }
 
+  /**
+   * Determines whether another image than the given one is staged for the key, e.g. because the
+   * key was put again after the given image.
+   */
+  public boolean isReplaced(final CacheKey key, final EncodedImage encodedImage) {
+    Preconditions.checkNotNull(key);
+    final Entry entry = mMap.get(key);
+    return entry != null && !isSameBuffer(entry.encodedImage, encodedImage);
+  }
+
   /**
    * @param key
    * @return value associated with given key or null if no value is associated
    */
-  public synchronized @Nullable EncodedImage get(final CacheKey key) {
+  public @Nullable EncodedImage get(final CacheKey key) {
     Preconditions.checkNotNull(key);
-    EncodedImage storedEncodedImage = mMap.get(key);
-    if (storedEncodedImage != null) {
-      synchronized (storedEncodedImage) {
-        if (!EncodedImage.isValid(storedEncodedImage)) {
-          // Reference is not valid, this means that someone cleared reference while it was still in
-          // use. Log error
-          // TODO: 3697790
-          mMap.remove(key);
-          FLog.w(
-              TAG,
-              "Found closed reference %d for key %s (%d)",
-              System.identityHashCode(storedEncodedImage),
-              key.getUriString(),
-              System.identityHashCode(key));
-          return null;
-        }
-        storedEncodedImage = EncodedImage.cloneOrNull(storedEncodedImage);
+    final Entry entry = mMap.get(key);
+    if (entry == null) {
+      return null;
+    }
+    EncodedImage storedEncodedImage = entry.encodedImage;
+    synchronized (storedEncodedImage) {
+      if (EncodedImage.isValid(storedEncodedImage)) {
+        return EncodedImage.cloneOrNull(storedEncodedImage);
       }
     }
-    return storedEncodedImage;
+    removeInvalid(key, entry);
+    return null;
   }
 
   /** Determine if an valid entry for the key exists in the staging area. */
-  public synchronized boolean containsKey(CacheKey key) {
+  public boolean containsKey(CacheKey key) {
     Preconditions.checkNotNull(key);
-    if (!mMap.containsKey(key)) {
+    final Entry entry = mMap.get(key);
+    if (entry == null) {
       return false;
     }
-    EncodedImage storedEncodedImage = mMap.get(key);
-    synchronized (storedEncodedImage) {
-      if (!EncodedImage.isValid(storedEncodedImage)) {
-        // Reference is not valid, this means that someone cleared reference while it was still in
-        // use. Log error
-        // TODO: 3697790
-        mMap.remove(key);
-        FLog.w(
-            TAG,
-            "Found closed reference %d for key %s (%d)",
-            System.identityHashCode(storedEncodedImage),
-            key.getUriString(),
-            System.identityHashCode(key));
+    synchronized (entry.encodedImage) {
+      if (EncodedImage.isValid(entry.encodedImage)) {
+        return true;
+      }
+    }
+    removeInvalid(key, entry);
+    return false;
+  }
+
+  /** The total size of the staged images. */
+  public long getStagedBytes() {
+    return mStagedBytes.get();
+  }
+
+  /** The number of staged images. */
+  public int getCount() {
+    return mMap.size();
+  }
+
+  /**
+   * Adds the size to the staged bytes if it fits in the budget, once the bytes of the entry it
+   * replaces are released.
+   */
+  private boolean reserve(int size, int replacedSize) {
+    while (true) {
+      long stagedBytes = mStagedBytes.get();
+      if (stagedBytes != replacedSize && mMaxStagedBytes - (stagedBytes - replacedSize) < size) {
         return false;
       }
-      return true;
+      if (mStagedBytes.compareAndSet(stagedBytes, stagedBytes + size)) {
+        return true;
+      }
+    }
+  }
+
+  private void removeInvalid(CacheKey key, Entry entry) {
+    // Reference is not valid, this means that someone cleared reference while it was still in
+    // use. Log error
+    // TODO: 3697790
+    if (mMap.remove(key, entry)) {
+      release(entry);
+    }
+    FLog.w(
+        TAG,
+        "Found closed reference %d for key %s (%d)",
+        System.identityHashCode(entry.encodedImage),
+        key.getUriString(),
+        System.identityHashCode(key));
+  }
+
+  private void release(Entry entry) {
+    entry.encodedImage.close();
+    mStagedBytes.addAndGet(-entry.size);
+  }
+
+  private static boolean isSameBuffer(EncodedImage first, EncodedImage second) {
+    CloseableReference<PooledByteBuffer> firstRef = first.getByteBufferRef();
+    CloseableReference<PooledByteBuffer> secondRef = second.getByteBufferRef();
+    try {
+      return firstRef != null && secondRef != null && firstRef.get() == secondRef.get();
+    } finally {
+      CloseableReference.closeSafely(firstRef);
+      CloseableReference.closeSafely(secondRef);
     }
   }
 
   /** Simple 'debug' logging of stats. */
-  private synchronized void logStats() {
-    FLog.v(TAG, "Count = %d", mMap.size());
+  private void logStats() {
+    FLog.v(TAG, "Count = %d, staged bytes = %d", mMap.size(), mStagedBytes.get());
   }
 }
@@ -58,6 +58,16 @@ constructor(
       request: ImageRequest,
       sourceUri: Uri,
       callerContext: Any?,
+  ): CacheKey = createEncodedCacheKey(request, sourceUri, callerContext, true)
+
+  override fun getEncodedSourceCacheKey(request: ImageRequest, callerContext: Any?): CacheKey =
+      createEncodedCacheKey(request, request.sourceUri, callerContext, false)
+
+  private fun createEncodedCacheKey(
+      request: ImageRequest,
+      sourceUri: Uri,
+      callerContext: Any?,
+      includeDimensions: Boolean,
   ): CacheKey {
     val customCacheKey = request.customCacheKey
     if (customCacheKey != null) {
@@ -66,7 +76,7 @@ constructor(
     }
 
     val dimensions =
-        if (config.includeDimensionsInEncodedKey)
+        if (includeDimensions && config.includeDimensionsInEncodedKey)
             (encodedDimensionExtractor ?: config.dimensionExtractor)?.extractDimensions(
                 request,
                 sourceUri,
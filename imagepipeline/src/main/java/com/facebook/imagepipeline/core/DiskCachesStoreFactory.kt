@@ -13,9 +13,12 @@ import com.facebook.common.internal.ImmutableMap
 import com.facebook.common.internal.Supplier
 import com.facebook.imagepipeline.cache.BufferedDiskCache
 import com.facebook.imagepipeline.cache.ImageCacheStatsTracker
+import com.facebook.imagepipeline.cache.StagingArea
 import com.facebook.imagepipeline.memory.PoolFactory
 
-class DiskCachesStoreFactory(
+class DiskCachesStoreFactory
+@JvmOverloads
+constructor(
     private val fileCacheFactory: FileCacheFactory,
     private val poolFactory: PoolFactory,
     private val executorSupplier: ExecutorSupplier,
@@ -24,6 +27,9 @@ class DiskCachesStoreFactory(
     private val mainDiskCacheConfig: DiskCacheConfig,
     private val smallImageDiskCacheConfig: DiskCacheConfig,
     private val dynamicDiskCacheConfigMap: Map<String, DiskCacheConfig>?,
+    private val stagingAreaMaxBytes: Long = StagingArea.UNBOUNDED,
+    private val batchDiskCacheWrites: Boolean = false,
+    private val diskCacheMappedReadMinBytes: Int = 0,
 ) : Supplier<DiskCachesStore> {
 
   constructor(
@@ -38,6 +44,9 @@ class DiskCachesStoreFactory(
       mainDiskCacheConfig = config.mainDiskCacheConfig,
       smallImageDiskCacheConfig = config.smallImageDiskCacheConfig,
       dynamicDiskCacheConfigMap = config.dynamicDiskCacheConfigMap,
+      stagingAreaMaxBytes = config.experiments.stagingAreaMaxBytes,
+      batchDiskCacheWrites = config.experiments.useBatchedDiskCacheWrites,
+      diskCacheMappedReadMinBytes = config.experiments.diskCacheMappedReadMinBytes,
   )
 
   private val diskCachesStore: DiskCachesStore by
@@ -59,6 +68,9 @@ class DiskCachesStoreFactory(
                     false,
                     false,
                     null,
+                    stagingAreaMaxBytes,
+                    batchDiskCacheWrites,
+                    diskCacheMappedReadMinBytes,
                 )
               }
 
@@ -79,6 +91,9 @@ class DiskCachesStoreFactory(
                     false,
                     false,
                     null,
+                    stagingAreaMaxBytes,
+                    batchDiskCacheWrites,
+                    diskCacheMappedReadMinBytes,
                 )
               }
 
@@ -103,6 +118,9 @@ class DiskCachesStoreFactory(
                           false,
                           false,
                           null,
+                          stagingAreaMaxBytes,
+                          batchDiskCacheWrites,
+                          diskCacheMappedReadMinBytes,
                       )
                     },
                 )
@@ -48,7 +48,11 @@ public class DiskStorageCacheFactory implements FileCacheFactory {
         diskCacheConfig.getCacheErrorLogger(),
         diskCacheConfig.getDiskTrimmableRegistry(),
         executorForBackgroundInit,
-        diskCacheConfig.getIndexPopulateAtStartupEnabled());
+        diskCacheConfig.getIndexPopulateAtStartupEnabled(),
+        diskCacheConfig.getLockStripeCount(),
+        diskCacheConfig.getLruIndexEnabled(),
+        diskCacheConfig.getMappedIndexEnabled(),
+        diskCacheConfig.getResourceIdHasher());
   }
 
   @Override
@@ -10,18 +10,37 @@ package com.facebook.imagepipeline.core;
 import com.facebook.cache.disk.DiskCacheConfig;
 import com.facebook.cache.disk.DiskStorage;
 import com.facebook.cache.disk.DynamicDefaultDiskStorage;
+import com.facebook.common.executors.CallerThreadExecutor;
 import com.facebook.infer.annotation.Nullsafe;
+import java.util.concurrent.Executor;
 
 /** Factory for the default implementation of the DiskStorage. */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class DynamicDefaultDiskStorageFactory implements DiskStorageFactory {
 
+  private final Executor mBackgroundExecutor;
+
+  /** Packed storages created by this factory compact their segments on the calling thread. */
+  public DynamicDefaultDiskStorageFactory() {
+    this(CallerThreadExecutor.getInstance());
+  }
+
+  /**
+   * @param backgroundExecutor executor compacting the segments of packed storages, usually {@link
+   *     ExecutorSupplier#forBackgroundTasks()}
+   */
+  public DynamicDefaultDiskStorageFactory(Executor backgroundExecutor) {
+    mBackgroundExecutor = backgroundExecutor;
+  }
+
   @Override
   public DiskStorage get(DiskCacheConfig diskCacheConfig) {
     return new DynamicDefaultDiskStorage(
         diskCacheConfig.getVersion(),
         diskCacheConfig.getBaseDirectoryPathSupplier(),
         diskCacheConfig.getBaseDirectoryName(),
-        diskCacheConfig.getCacheErrorLogger());
+        diskCacheConfig.getCacheErrorLogger(),
+        diskCacheConfig.getPackedStorageMaxEntrySize(),
+        mBackgroundExecutor);
   }
 }
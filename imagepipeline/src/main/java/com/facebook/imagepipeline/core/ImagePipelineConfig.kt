@@ -45,6 +45,7 @@ import com.facebook.imagepipeline.debug.CloseableReferenceLeakTracker
 import com.facebook.imagepipeline.debug.NoOpCloseableReferenceLeakTracker
 import com.facebook.imagepipeline.decoder.ImageDecoder
 import com.facebook.imagepipeline.decoder.ImageDecoderConfig
+import com.facebook.imagepipeline.decoder.ProgressiveImageConfig
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig
 import com.facebook.imagepipeline.decoder.SimpleProgressiveJpegConfig
 import com.facebook.imagepipeline.image.CloseableImage
@@ -52,6 +53,7 @@ import com.facebook.imagepipeline.listener.RequestListener
 import com.facebook.imagepipeline.listener.RequestListener2
 import com.facebook.imagepipeline.memory.PoolConfig
 import com.facebook.imagepipeline.memory.PoolFactory
+import com.facebook.imagepipeline.producers.AdaptiveConcurrencyLimiter
 import com.facebook.imagepipeline.producers.CustomProducerSequenceFactory
 import com.facebook.imagepipeline.producers.DecodeProducer
 import com.facebook.imagepipeline.producers.HttpUrlConnectionNetworkFetcher
@@ -105,6 +107,8 @@ class ImagePipelineConfig private constructor(builder: Builder) : ImagePipelineC
   override val poolFactory: PoolFactory
   override val defaultIntermediateImageBitmapTransformation: BitmapTransformation?
   override val progressiveJpegConfig: ProgressiveJpegConfig
+  override val progressivePngConfig: ProgressiveImageConfig?
+  override val progressiveWebpConfig: ProgressiveImageConfig?
   override val requestListeners: Set<RequestListener>
   override val requestListener2s: Set<RequestListener2>
   override val customProducerSequenceFactories: Set<CustomProducerSequenceFactory>
@@ -166,13 +170,25 @@ class ImagePipelineConfig private constructor(builder: Builder) : ImagePipelineC
         else builder.httpConnectionTimeout
     networkFetcher =
         traceSection("ImagePipelineConfig->mNetworkFetcher") {
-          builder.networkFetcher ?: HttpUrlConnectionNetworkFetcher(httpNetworkTimeout)
+          builder.networkFetcher
+              ?: if (experiments.useAdaptiveNetworkConcurrency) {
+                HttpUrlConnectionNetworkFetcher(
+                    null,
+                    null,
+                    httpNetworkTimeout,
+                    AdaptiveConcurrencyLimiter(),
+                )
+              } else {
+                HttpUrlConnectionNetworkFetcher(httpNetworkTimeout)
+              }
         }
     platformBitmapFactory = builder.platformBitmapFactory
     poolFactory = builder.poolFactory ?: PoolFactory(PoolConfig.newBuilder().build())
     defaultIntermediateImageBitmapTransformation =
         builder.defaultIntermediateImageBitmapTransformation
     progressiveJpegConfig = builder.progressiveJpegConfig ?: SimpleProgressiveJpegConfig()
+    progressivePngConfig = builder.progressivePngConfig
+    progressiveWebpConfig = builder.progressiveWebpConfig
     requestListeners = builder.requestListeners ?: emptySet()
     requestListener2s = builder.requestListener2s ?: emptySet()
     decodedOriginalImageAnalyzers = builder.decodedOriginalImageAnalyzers ?: emptySet()
@@ -198,7 +214,9 @@ class ImagePipelineConfig private constructor(builder: Builder) : ImagePipelineC
         builder.diskCachesStoreSupplier
             ?: DiskCachesStoreFactory(
                 builder.fileCacheFactory
-                    ?: DiskStorageCacheFactory(DynamicDefaultDiskStorageFactory()),
+                    ?: DiskStorageCacheFactory(
+                        DynamicDefaultDiskStorageFactory(executorSupplier.forBackgroundTasks()),
+                    ),
                 this@ImagePipelineConfig,
             )
     // Here we manage the WebpBitmapFactory implementation if any
@@ -285,6 +303,12 @@ class ImagePipelineConfig private constructor(builder: Builder) : ImagePipelineC
     var progressiveJpegConfig: ProgressiveJpegConfig? = null
       private set
 
+    var progressivePngConfig: ProgressiveImageConfig? = null
+      private set
+
+    var progressiveWebpConfig: ProgressiveImageConfig? = null
+      private set
+
     var requestListeners: Set<RequestListener>? = null
       private set
 
@@ -479,6 +503,22 @@ class ImagePipelineConfig private constructor(builder: Builder) : ImagePipelineC
       this.progressiveJpegConfig = progressiveJpegConfig
     }
 
+    /**
+     * Enables progressive decoding of PNGs from network, for example with
+     * [com.facebook.imagepipeline.decoder.SimpleProgressiveImageConfig.forPng].
+     */
+    fun setProgressivePngConfig(progressivePngConfig: ProgressiveImageConfig?): Builder = apply {
+      this.progressivePngConfig = progressivePngConfig
+    }
+
+    /**
+     * Enables progressive decoding of static WebPs from network, for example with
+     * [com.facebook.imagepipeline.decoder.SimpleProgressiveImageConfig.forWebp].
+     */
+    fun setProgressiveWebpConfig(progressiveWebpConfig: ProgressiveImageConfig?): Builder = apply {
+      this.progressiveWebpConfig = progressiveWebpConfig
+    }
+
     fun setRequestListeners(requestListeners: Set<RequestListener>?): Builder = apply {
       this.requestListeners = requestListeners
     }
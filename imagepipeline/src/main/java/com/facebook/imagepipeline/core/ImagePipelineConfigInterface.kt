@@ -28,6 +28,7 @@ import com.facebook.imagepipeline.cache.SimilarImageLookup
 import com.facebook.imagepipeline.debug.CloseableReferenceLeakTracker
 import com.facebook.imagepipeline.decoder.ImageDecoder
 import com.facebook.imagepipeline.decoder.ImageDecoderConfig
+import com.facebook.imagepipeline.decoder.ProgressiveImageConfig
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig
 import com.facebook.imagepipeline.image.CloseableImage
 import com.facebook.imagepipeline.listener.RequestListener
@@ -101,6 +102,20 @@ interface ImagePipelineConfigInterface {
   val defaultIntermediateImageBitmapTransformation: BitmapTransformation?
     get() = null
 
+  /**
+   * Progressive decoding of interlaced and non-interlaced PNGs from network, see
+   * [com.facebook.imagepipeline.decoder.ProgressivePngParser]. Null disables it.
+   */
+  val progressivePngConfig: ProgressiveImageConfig?
+    get() = null
+
+  /**
+   * Progressive decoding of static WebPs from network, see
+   * [com.facebook.imagepipeline.decoder.ProgressiveWebpParser]. Null disables it.
+   */
+  val progressiveWebpConfig: ProgressiveImageConfig?
+    get() = null
+
   // Memory handling
   @get:MemoryChunkType val memoryChunkType: Int
   val memoryTrimmableRegistry: MemoryTrimmableRegistry
@@ -22,6 +22,7 @@ import com.facebook.common.webp.WebpBitmapFactory.WebpErrorLogger
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory
 import com.facebook.imagepipeline.cache.CacheKeyFactory
 import com.facebook.imagepipeline.cache.MemoryCache
+import com.facebook.imagepipeline.cache.StagingArea
 import com.facebook.imagepipeline.decoder.ImageDecoder
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig
 import com.facebook.imagepipeline.image.CloseableImage
@@ -76,6 +77,7 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
   val animationRenderFpsLimit: Int
   val enableUnusedFrameLoaderCleanupSync: Boolean
   val enableUnusedFrameLoaderCleanupSyncAndClear: Boolean
+  val enableSharedAnimationFrames: Boolean
   val prefetchShortcutEnabled: Boolean
   val platformDecoderOptions: PlatformDecoderOptions
   val isBinaryXmlEnabled: Boolean
@@ -90,6 +92,13 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
   val usePostProcessedCacheKey: Boolean
   val usePostprocessorDuringDecodedPrefetch: Boolean
   val useSeparateNonBitmapImageCache: Boolean
+  val useTinyLfuEncodedMemoryCache: Boolean
+  val useAdaptiveNetworkConcurrency: Boolean
+  val useEncodedSourceMultiplexKey: Boolean
+  val stagingAreaMaxBytes: Long
+  val useBatchedDiskCacheWrites: Boolean
+  val diskCacheMappedReadMinBytes: Int
+  val speculativeDecodePreparationEnabled: Boolean
   val encodedImageRequestTransformer: ((ImageRequest) -> ImageRequest)?
 
   class Builder(private val configBuilder: ImagePipelineConfig.Builder) {
@@ -143,6 +152,7 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
     @JvmField var animationRenderFpsLimit = 30
     @JvmField var enableUnusedFrameLoaderCleanupSync = false
     @JvmField var enableUnusedFrameLoaderCleanupSyncAndClear = false
+    @JvmField var enableSharedAnimationFrames = false
     @JvmField var cancelDecodeOnCacheMiss = false
     @JvmField var prefetchShortcutEnabled = false
 
@@ -169,6 +179,20 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
 
     @JvmField var useSeparateNonBitmapImageCache = false
 
+    @JvmField var useTinyLfuEncodedMemoryCache = false
+
+    @JvmField var useAdaptiveNetworkConcurrency = false
+
+    @JvmField var useEncodedSourceMultiplexKey = false
+
+    @JvmField var stagingAreaMaxBytes = StagingArea.UNBOUNDED
+
+    @JvmField var useBatchedDiskCacheWrites = false
+
+    @JvmField var diskCacheMappedReadMinBytes = 0
+
+    @JvmField var speculativeDecodePreparationEnabled = false
+
     @JvmField var encodedImageRequestTransformer: ((ImageRequest) -> ImageRequest)? = null
 
     private fun asBuilder(block: () -> Unit): Builder {
@@ -393,6 +417,16 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
       this.enableUnusedFrameLoaderCleanupSyncAndClear = enableUnusedFrameLoaderCleanupSyncAndClear
     }
 
+    /**
+     * Lets the drawables that show the same animation at the same size share their rendered
+     * frames, instead of each rendering and buffering its own copy. Each drawable keeps its own
+     * playback position. Only applies to the buffer loader animation strategy. See
+     * `SharedAnimationFrameStore`.
+     */
+    fun setEnableSharedAnimationFrames(enableSharedAnimationFrames: Boolean) = asBuilder {
+      this.enableSharedAnimationFrames = enableSharedAnimationFrames
+    }
+
     fun setCancelDecodeOnCacheMiss(cancelDecodeOnCacheMiss: Boolean) = asBuilder {
       this.cancelDecodeOnCacheMiss = cancelDecodeOnCacheMiss
     }
@@ -461,6 +495,74 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
       this.useSeparateNonBitmapImageCache = useSeparateNonBitmapImageCache
     }
 
+    /**
+     * If true, the encoded memory cache uses W-TinyLFU eviction, which only admits a new image when
+     * it was requested more often recently than the image it would evict. The bitmap memory cache
+     * can use the same policy via `TinyLfuBitmapMemoryCacheFactory`.
+     */
+    fun setUseTinyLfuEncodedMemoryCache(useTinyLfuEncodedMemoryCache: Boolean) = asBuilder {
+      this.useTinyLfuEncodedMemoryCache = useTinyLfuEncodedMemoryCache
+    }
+
+    /**
+     * If enabled, the default network fetcher adapts the number of concurrent downloads to the
+     * observed throughput with an `AdaptiveConcurrencyLimiter`, instead of always running three.
+     * It has no effect if a custom network fetcher is set.
+     */
+    fun setUseAdaptiveNetworkConcurrency(useAdaptiveNetworkConcurrency: Boolean) = asBuilder {
+      this.useAdaptiveNetworkConcurrency = useAdaptiveNetworkConcurrency
+    }
+
+    /**
+     * If enabled, in-flight encoded network requests are combined by their source (the
+     * [CacheKeyFactory.getEncodedSourceCacheKey] and the bytes range) rather than by their encoded
+     * cache key, so requests for the same image at different sizes share one download or disk read
+     * even if the [CacheKeyFactory] puts dimensions in the encoded cache key. The result is cached
+     * under the encoded cache key of every request, and each request is still resized and decoded
+     * on its own.
+     *
+     * Only applies if the [com.facebook.imagepipeline.producers.NetworkFetcher] declares that the
+     * bytes it fetches do not depend on the requested size.
+     */
+    fun setUseEncodedSourceMultiplexKey(useEncodedSourceMultiplexKey: Boolean) = asBuilder {
+      this.useEncodedSourceMultiplexKey = useEncodedSourceMultiplexKey
+    }
+
+    /**
+     * Maximum number of bytes of images waiting to be written to each disk cache. The images that
+     * would go over it are not written to the disk cache, the threads putting them never wait.
+     * Unbounded by default.
+     */
+    fun setStagingAreaMaxBytes(stagingAreaMaxBytes: Long) = asBuilder {
+      this.stagingAreaMaxBytes = stagingAreaMaxBytes
+    }
+
+    /**
+     * If enabled, the images queued for the disk caches are written in batches: the cache size is
+     * checked once per batch and the files are committed one after the other.
+     */
+    fun setUseBatchedDiskCacheWrites(useBatchedDiskCacheWrites: Boolean) = asBuilder {
+      this.useBatchedDiskCacheWrites = useBatchedDiskCacheWrites
+    }
+
+    /**
+     * If positive, the files of at least that many bytes read from the disk caches are memory
+     * mapped instead of copied into pooled memory. Disabled (0) by default; a few hundred KB is a
+     * sensible threshold, below it mapping costs more than the copy.
+     */
+    fun setDiskCacheMappedReadMinBytes(diskCacheMappedReadMinBytes: Int) = asBuilder {
+      this.diskCacheMappedReadMinBytes = diskCacheMappedReadMinBytes
+    }
+
+    /**
+     * If enabled, the header of network images is parsed from the first downloaded bytes, and the
+     * bitmap pool is warmed with a bitmap of the decoded size while the rest is downloaded.
+     */
+    fun setSpeculativeDecodePreparationEnabled(speculativeDecodePreparationEnabled: Boolean) =
+        asBuilder {
+          this.speculativeDecodePreparationEnabled = speculativeDecodePreparationEnabled
+        }
+
     /**
      * Optional transformer applied to every `fetchEncodedImage` request before it is submitted
      * (identity when unset). A generic hook that lets the app rewrite a request (e.g. to redirect
@@ -586,6 +688,7 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
     animationRenderFpsLimit = builder.animationRenderFpsLimit
     enableUnusedFrameLoaderCleanupSync = builder.enableUnusedFrameLoaderCleanupSync
     enableUnusedFrameLoaderCleanupSyncAndClear = builder.enableUnusedFrameLoaderCleanupSyncAndClear
+    enableSharedAnimationFrames = builder.enableSharedAnimationFrames
     allowDelay = builder.allowDelay
     handOffOnUiThreadOnly = builder.handOffOnUiThreadOnly
     isCriticalThread =
@@ -619,6 +722,13 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
     usePostProcessedCacheKey = builder.usePostProcessedCacheKey
     usePostprocessorDuringDecodedPrefetch = builder.usePostprocessorDuringDecodedPrefetch
     useSeparateNonBitmapImageCache = builder.useSeparateNonBitmapImageCache
+    useTinyLfuEncodedMemoryCache = builder.useTinyLfuEncodedMemoryCache
+    useAdaptiveNetworkConcurrency = builder.useAdaptiveNetworkConcurrency
+    useEncodedSourceMultiplexKey = builder.useEncodedSourceMultiplexKey
+    stagingAreaMaxBytes = builder.stagingAreaMaxBytes
+    useBatchedDiskCacheWrites = builder.useBatchedDiskCacheWrites
+    diskCacheMappedReadMinBytes = builder.diskCacheMappedReadMinBytes
+    speculativeDecodePreparationEnabled = builder.speculativeDecodePreparationEnabled
     // Null when unset: fetchEncodedImage submits the request unchanged (identity).
     encodedImageRequestTransformer = builder.encodedImageRequestTransformer
   }
@@ -10,6 +10,7 @@ package com.facebook.imagepipeline.core;
 import android.content.Context;
 import android.os.Build;
 import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.ResourceIdHasher;
 import com.facebook.cache.disk.FileCache;
 import com.facebook.common.internal.AndroidPredicates;
 import com.facebook.common.internal.Objects;
@@ -45,6 +46,8 @@ import com.facebook.imagepipeline.producers.ExperimentalThreadHandoffProducerQue
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueueImpl;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
+import com.facebook.imagepipeline.tiling.TiledImageDecoder;
+import com.facebook.imagepipeline.tiling.TiledImageDrawableFactory;
 import com.facebook.imagepipeline.transcoder.ImageTranscoder;
 import com.facebook.imagepipeline.transcoder.ImageTranscoderFactory;
 import com.facebook.imagepipeline.transcoder.MultiImageTranscoderFactory;
@@ -173,6 +176,7 @@ public class ImagePipelineFactory {
   @Nullable private CountingMemoryCache<CacheKey, PooledByteBuffer> mEncodedCountingMemoryCache;
   @Nullable private InstrumentedMemoryCache<CacheKey, PooledByteBuffer> mEncodedMemoryCache;
   @Nullable private ImageDecoder mImageDecoder;
+  @Nullable private ImageDecoder mTiledImageDecoder;
   @Nullable private ImageTranscoderFactory mImageTranscoderFactory;
   @Nullable private ProducerFactory mProducerFactory;
   @Nullable private ProducerSequenceFactory mProducerSequenceFactory;
@@ -219,7 +223,8 @@ public class ImagePipelineFactory {
               false, // enableBufferFrameLoaderFix
               false, // enableSingleFrameRendering
               mConfig.getExperiments().getEnableUnusedFrameLoaderCleanupSync(),
-              mConfig.getExperiments().getEnableUnusedFrameLoaderCleanupSyncAndClear());
+              mConfig.getExperiments().getEnableUnusedFrameLoaderCleanupSyncAndClear(),
+              mConfig.getExperiments().getEnableSharedAnimationFrames());
     }
     return mAnimatedFactory;
   }
@@ -338,7 +343,8 @@ public class ImagePipelineFactory {
           EncodedCountingMemoryCacheFactory.get(
               mConfig.getEncodedMemoryCacheParamsSupplier(),
               mConfig.getMemoryTrimmableRegistry(),
-              mConfig.getEncodedMemoryCacheTrimStrategy());
+              mConfig.getEncodedMemoryCacheTrimStrategy(),
+              mConfig.getExperiments().getUseTinyLfuEncodedMemoryCache());
     }
     return mEncodedCountingMemoryCache;
   }
@@ -406,6 +412,11 @@ public class ImagePipelineFactory {
     return mDiskCachesStoreSupplier.get().getSmallImageFileCache();
   }
 
+  /** Returns the hasher naming the entries of the main disk cache. */
+  public ResourceIdHasher getMainDiskCacheResourceIdHasher() {
+    return mConfig.getMainDiskCacheConfig().getResourceIdHasher();
+  }
+
   public ImagePipeline getImagePipeline() {
     if (sImagePipeline == null) {
       sImagePipeline = createImagePipeline();
@@ -581,6 +592,26 @@ public class ImagePipelineFactory {
     }
   }
 
+  /**
+   * Returns the decoder of huge images into tiled images, decoding the tiles of their viewport
+   * instead of the whole image. It is to be set as the custom image decoder of the requests of
+   * zoomable images, whose drawables are created by {@link #getTiledImageDrawableFactory()}.
+   */
+  public ImageDecoder getTiledImageDecoder() {
+    if (mTiledImageDecoder == null) {
+      mTiledImageDecoder =
+          new TiledImageDecoder(
+              getEffectiveBitmapMemoryCache(),
+              mConfig.getExecutorSupplier().forDecode(),
+              getImageDecoder());
+    }
+    return mTiledImageDecoder;
+  }
+
+  public DrawableFactory getTiledImageDrawableFactory() {
+    return new TiledImageDrawableFactory();
+  }
+
   /**
    * Adds animated decoders for GIF and WebP formats to the provided map if the native libraries are
    * available.
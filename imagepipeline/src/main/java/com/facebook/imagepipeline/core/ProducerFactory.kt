@@ -59,6 +59,7 @@ import com.facebook.imagepipeline.producers.PostprocessorProducer
 import com.facebook.imagepipeline.producers.Producer
 import com.facebook.imagepipeline.producers.QualifiedResourceFetchProducer
 import com.facebook.imagepipeline.producers.ResizeAndRotateProducer
+import com.facebook.imagepipeline.producers.SpeculativeDecodePreparer
 import com.facebook.imagepipeline.producers.SwallowResultProducer
 import com.facebook.imagepipeline.producers.ThreadHandoffProducer
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue
@@ -216,7 +217,12 @@ open class ProducerFactory(
   fun newBitmapMemoryCacheProducer(
       inputProducer: Producer<CloseableReference<CloseableImage>>,
   ): BitmapMemoryCacheProducer {
-    return BitmapMemoryCacheProducer(mBitmapMemoryCache, mCacheKeyFactory, inputProducer)
+    return BitmapMemoryCacheProducer(
+        mBitmapMemoryCache,
+        mCacheKeyFactory,
+        inputProducer,
+        mConfig.similarImageLookup,
+    )
   }
 
   fun newDataFetchProducer(): DataFetchProducer {
@@ -242,7 +248,12 @@ open class ProducerFactory(
   }
 
   fun newDiskCacheReadProducer(inputProducer: Producer<EncodedImage>): DiskCacheReadProducer {
-    return DiskCacheReadProducer(mDiskCachesStoreSupplier, mCacheKeyFactory, inputProducer)
+    return DiskCacheReadProducer(
+        mDiskCachesStoreSupplier,
+        mCacheKeyFactory,
+        inputProducer,
+        mConfig.similarImageLookup,
+    )
   }
 
   open fun newDiskCacheWriteProducer(
@@ -263,12 +274,24 @@ open class ProducerFactory(
 
   open fun newEncodedCacheKeyMultiplexProducer(
       inputProducer: Producer<EncodedImage>,
+  ): EncodedCacheKeyMultiplexProducer = newEncodedCacheKeyMultiplexProducer(inputProducer, false)
+
+  /**
+   * @param hasSizeInvariantInput whether the bytes of the input producer do not depend on the
+   *   requested size, so that requests can be combined by source if the experiment is enabled
+   */
+  open fun newEncodedCacheKeyMultiplexProducer(
+      inputProducer: Producer<EncodedImage>,
+      hasSizeInvariantInput: Boolean,
   ): EncodedCacheKeyMultiplexProducer {
     return EncodedCacheKeyMultiplexProducer(
         mCacheKeyFactory,
         mKeepCancelledFetchAsLowPriority,
         inputProducer,
         mConfig,
+        hasSizeInvariantInput && mConfig.experiments.useEncodedSourceMultiplexKey,
+        mEncodedMemoryCache,
+        mDiskCachesStoreSupplier,
     )
   }
 
@@ -364,7 +387,23 @@ open class ProducerFactory(
   }
 
   open fun newNetworkFetchProducer(networkFetcher: NetworkFetcher<*>): Producer<EncodedImage> {
-    return NetworkFetchProducer(mPooledByteBufferFactory, mByteArrayPool, networkFetcher)
+    val speculativeDecodePreparer =
+        if (mConfig.experiments.speculativeDecodePreparationEnabled) {
+          SpeculativeDecodePreparer(
+              mConfig.poolFactory.bitmapPool,
+              mDownsampleMode,
+              mResizeAndRotateEnabledForNetwork,
+              mMaxBitmapSize,
+          )
+        } else {
+          null
+        }
+    return NetworkFetchProducer(
+        mPooledByteBufferFactory,
+        mByteArrayPool,
+        networkFetcher,
+        speculativeDecodePreparer,
+    )
   }
 
   fun newPostprocessorBitmapMemoryCacheProducer(
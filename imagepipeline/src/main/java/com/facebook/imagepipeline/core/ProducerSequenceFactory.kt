@@ -348,6 +348,7 @@ class ProducerSequenceFactory(
       traceSection("ProducerSequenceFactory#createCommonNetworkFetchToEncodedMemorySequence") {
         val inputProducer: Producer<EncodedImage> = newEncodedCacheMultiplexToTranscodeSequence(
             producerFactory.newNetworkFetchProducer(networkFetcher),
+            networkFetcher.hasSizeInvariantResults(),
         )
         var networkFetchToEncodedMemorySequence: Producer<EncodedImage> =
             ProducerFactory.newAddImageTransformMetaDataProducer(inputProducer)
@@ -553,10 +554,13 @@ class ProducerSequenceFactory(
    * encoded cache multiplex -> encoded cache -> (disk cache) -> (webp transcode)
    *
    * @param inputProducer producer providing the input to the transcode
+   * @param hasSizeInvariantInput whether the bytes of the input producer do not depend on the
+   *   requested size
    * @return encoded cache multiplex to webp transcode sequence
    */
   private fun newEncodedCacheMultiplexToTranscodeSequence(
       inputProducer: Producer<EncodedImage>,
+      hasSizeInvariantInput: Boolean = false,
   ): Producer<EncodedImage> {
     var ip = inputProducer
     if (diskCacheEnabled) {
@@ -565,9 +569,15 @@ class ProducerSequenceFactory(
     val encodedMemoryCacheProducer = producerFactory.newEncodedMemoryCacheProducer(ip)
     if (isDiskCacheProbingEnabled) {
       val probeProducer = producerFactory.newEncodedProbeProducer(encodedMemoryCacheProducer)
-      return producerFactory.newEncodedCacheKeyMultiplexProducer(probeProducer)
+      return producerFactory.newEncodedCacheKeyMultiplexProducer(
+          probeProducer,
+          hasSizeInvariantInput,
+      )
     }
-    return producerFactory.newEncodedCacheKeyMultiplexProducer(encodedMemoryCacheProducer)
+    return producerFactory.newEncodedCacheKeyMultiplexProducer(
+        encodedMemoryCacheProducer,
+        hasSizeInvariantInput,
+    )
   }
 
   private fun newDiskCacheSequence(inputProducer: Producer<EncodedImage>): Producer<EncodedImage> =
@@ -80,7 +80,7 @@ public class DefaultImageDecoder implements ImageDecoder {
           } else if (imageFormat == ImageFormat.UNKNOWN) {
             throw new DecodeException("unknown image format", encodedImage);
           }
-          return decodeStaticImage(encodedImage, options);
+          return decodeStaticImage(encodedImage, qualityInfo, options);
         }
       };
 
@@ -198,6 +198,19 @@ public class DefaultImageDecoder implements ImageDecoder {
    */
   public CloseableStaticBitmap decodeStaticImage(
       final EncodedImage encodedImage, ImageDecodeOptions options) {
+    return decodeStaticImage(encodedImage, ImmutableQualityInfo.FULL_QUALITY, options);
+  }
+
+  /**
+   * Decodes a static image, which may be partial for the formats decoded progressively like
+   * interlaced PNGs. All the data of the encoded image is decoded.
+   *
+   * @param encodedImage input image (encoded bytes plus meta data)
+   * @param qualityInfo quality info for the image
+   * @return a CloseableStaticBitmap
+   */
+  public CloseableStaticBitmap decodeStaticImage(
+      final EncodedImage encodedImage, QualityInfo qualityInfo, ImageDecodeOptions options) {
     CloseableReference<Bitmap> bitmapReference =
         mPlatformDecoder.decodeFromEncodedImageWithColorSpace(
             encodedImage, options.bitmapConfig, null, options.colorSpace);
@@ -206,11 +219,20 @@ public class DefaultImageDecoder implements ImageDecoder {
           TransformationUtils.maybeApplyTransformation(
               options.bitmapTransformation, bitmapReference);
 
+      if (!qualityInfo.isOfFullQuality()) {
+        BitmapTransformation intermediateTransformation =
+            options.intermediateImageBitmapTransformation != null
+                ? options.intermediateImageBitmapTransformation
+                : mDefaultIntermediateTransformation;
+        TransformationUtils.maybeApplyTransformation(
+            intermediateTransformation, bitmapReference, qualityInfo);
+      }
+
       Preconditions.checkNotNull(bitmapReference);
       CloseableStaticBitmap closeableStaticBitmap =
           CloseableStaticBitmap.of(
               bitmapReference,
-              ImmutableQualityInfo.FULL_QUALITY,
+              qualityInfo,
               encodedImage.getRotationAngle(),
               encodedImage.getExifOrientation());
 
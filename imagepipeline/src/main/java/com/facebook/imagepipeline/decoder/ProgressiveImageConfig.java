@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import com.facebook.imagepipeline.image.QualityInfo;
+import com.facebook.imagepipeline.request.ImageRequest;
+
+/**
+ * Config of the progressive decoding of an image format, telling which scans found by its {@link
+ * ProgressiveImageParser} are decoded.
+ */
+public interface ProgressiveImageConfig {
+
+  /** Shortcut for checking if we should attempt to decode progressively. */
+  boolean decodeProgressively(ImageRequest imageRequest);
+
+  /** Gets the next scan-number that should be decoded after the given scan-number. */
+  int getNextScanNumberToDecode(ImageRequest imageRequest, int scanNumber);
+
+  /** Gets the quality information for the given scan-number. */
+  QualityInfo getQualityInfo(ImageRequest imageRequest, int scanNumber);
+}
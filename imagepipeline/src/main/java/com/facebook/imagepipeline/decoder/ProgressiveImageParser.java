@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import com.facebook.imagepipeline.image.EncodedImage;
+
+/**
+ * Parses the data of an image as it is received and tells when enough of it is available to decode
+ * a partial image. Partial images are identified by increasing scan numbers.
+ *
+ * <p>Users should call parseMoreData each time a new chunk of data is received. The buffer passed
+ * as a parameter should include the entire image data received so far.
+ */
+public interface ProgressiveImageParser {
+
+  /**
+   * Parses the data received since the last call.
+   *
+   * @param encodedImage all the bytes received so far
+   * @return true if a new scan has been found
+   */
+  boolean parseMoreData(EncodedImage encodedImage);
+
+  /**
+   * @return offset at which parsed data should be cut to decode best available partial result
+   */
+  int getBestScanEndOffset();
+
+  /**
+   * @return number of the best scan found so far
+   */
+  int getBestScanNumber();
+
+  /** Returns true if the end of the image has been read. */
+  boolean isEndMarkerRead();
+
+  /**
+   * Releases the resources held by the parser once no more data is parsed, e.g. when the decode
+   * finishes or is cancelled. Any data passed to parseMoreData afterwards is ignored.
+   */
+  default void release() {}
+}
@@ -7,24 +7,14 @@
 
 package com.facebook.imagepipeline.decoder;
 
-import com.facebook.imagepipeline.image.QualityInfo;
 import com.facebook.imagepipeline.request.ImageRequest;
 
 /** Progressive JPEG config. */
-public interface ProgressiveJpegConfig {
+public interface ProgressiveJpegConfig extends ProgressiveImageConfig {
 
   /** Default minimum time between partial results, in milliseconds. */
   long DEFAULT_TIME_BETWEEN_PARTIAL_RESULTS_MS = 100;
 
-  /** Shortcut for checking if we should attempt to decode progressively. */
-  boolean decodeProgressively(ImageRequest imageRequest);
-
-  /** Gets the next scan-number that should be decoded after the given scan-number. */
-  int getNextScanNumberToDecode(ImageRequest imageRequest, int scanNumber);
-
-  /** Gets the quality information for the given scan-number. */
-  QualityInfo getQualityInfo(ImageRequest imageRequest, int scanNumber);
-
   /**
    * Gets the minimum time between two consecutive partial results being propagated upstream, in
    * milliseconds.
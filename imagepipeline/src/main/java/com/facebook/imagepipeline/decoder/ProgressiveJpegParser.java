@@ -29,7 +29,7 @@ import java.io.InputStream;
  * passed as a parameter should include entire image data received so far.
  */
 @Nullsafe(Nullsafe.Mode.LOCAL)
-public class ProgressiveJpegParser {
+public class ProgressiveJpegParser implements ProgressiveImageParser {
 
   /** Initial state of the parser. Next byte read by the parser should be 0xFF. */
   private static final int READ_FIRST_JPEG_BYTE = 0;
@@ -103,6 +103,7 @@ public class ProgressiveJpegParser {
    * @param encodedImage Next set of bytes received by the caller
    * @return true if a new full scan has been found
    */
+  @Override
   public boolean parseMoreData(final EncodedImage encodedImage) {
     if (mParserState == NOT_A_JPEG) {
       return false;
@@ -254,6 +255,7 @@ public class ProgressiveJpegParser {
   /**
    * @return offset at which parsed data should be cut to decode best available partial result
    */
+  @Override
   public int getBestScanEndOffset() {
     return mBestScanEndOffset;
   }
@@ -261,11 +263,13 @@ public class ProgressiveJpegParser {
   /**
    * @return number of the best scan found so far
    */
+  @Override
   public int getBestScanNumber() {
     return mBestScanNumber;
   }
 
   /** Returns true if the end marker has been read. */
+  @Override
   public boolean isEndMarkerRead() {
     return mEndMarkerRead;
   }
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import com.facebook.common.internal.Closeables;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Throwables;
+import com.facebook.common.memory.ByteArrayPool;
+import com.facebook.common.memory.PooledByteArrayBufferedInputStream;
+import com.facebook.common.util.StreamUtil;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.annotation.Nullable;
+
+/**
+ * Progressively scans PNG data and tells when enough of it is available to decode a partial image.
+ *
+ * <p>The image data of a PNG is a zlib stream split in IDAT chunks, which the parser inflates as it
+ * arrives to count the filtered scanlines. For an interlaced image, scan n is complete once the n
+ * first of the 7 Adam7 passes are, each pass filling in more pixels of the whole image. For a
+ * non-interlaced image, scan n is complete once n eighths of the rows are, from the top.
+ *
+ * <p>Users should call parseMoreData method each time new chunk of data is received. The buffer
+ * passed as a parameter should include entire image data received so far.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class ProgressivePngParser implements ProgressiveImageParser {
+
+  /** Number of scans of a non-interlaced image. */
+  public static final int ROW_STEPS = 8;
+
+  /** Number of scans of an interlaced image. */
+  public static final int ADAM7_PASSES = 7;
+
+  // Starting column, starting row, column step and row step of each Adam7 pass
+  private static final int[][] ADAM7 = {
+    {0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4}, {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}
+  };
+
+  private static final byte[] PNG_SIGNATURE = {
+    (byte) 0x89, 'P', 'N', 'G', (byte) 0x0D, (byte) 0x0A, (byte) 0x1A, (byte) 0x0A
+  };
+
+  private static final int CHUNK_IHDR = 0x49484452;
+  private static final int CHUNK_IDAT = 0x49444154;
+  private static final int CHUNK_IEND = 0x49454E44;
+  private static final int IHDR_SIZE = 13;
+  private static final int CHUNK_CRC_SIZE = 4;
+
+  /** Reading the PNG signature. */
+  private static final int READ_SIGNATURE = 0;
+
+  /** Reading the length and the type of the next chunk. */
+  private static final int READ_CHUNK_HEADER = 1;
+
+  /** Reading the data and the CRC of the current chunk. */
+  private static final int READ_CHUNK_DATA = 2;
+
+  /** Parsed data is not a PNG file, or the end of the image has been read. */
+  private static final int DONE = 3;
+
+  /** The buffer size in bytes to use. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private static final int INFLATE_BUFFER_SIZE = 4 * 1024;
+
+  private final ByteArrayPool mByteArrayPool;
+
+  private int mParserState = READ_SIGNATURE;
+
+  /** number of bytes consumed so far */
+  private int mBytesParsed;
+
+  // Bytes of the signature, chunk header or IHDR read so far
+  private final byte[] mHeader = new byte[IHDR_SIZE];
+  private int mHeaderBytesRead;
+  private boolean mIsPng;
+
+  private int mChunkType;
+  private int mChunkBytesRemaining;
+
+  // Sizes in bytes of the inflated image data at which each scan is complete
+  @Nullable private long[] mScanEnds;
+  @Nullable private Inflater mInflater;
+  // The inflated data is only counted, so it is overwritten
+  @Nullable private byte[] mInflateBuffer;
+  private long mInflatedBytes;
+
+  private int mBestScanNumber;
+  private int mBestScanEndOffset;
+  private boolean mEndMarkerRead;
+
+  public ProgressivePngParser(ByteArrayPool byteArrayPool) {
+    mByteArrayPool = Preconditions.checkNotNull(byteArrayPool);
+  }
+
+  /**
+   * Parses the data received since the last call. If the image has been identified as a non-PNG,
+   * data will be ignored and false will be returned immediately on all subsequent calls.
+   *
+   * @param encodedImage Next set of bytes received by the caller
+   * @return true if a new full scan has been found
+   */
+  @Override
+  public boolean parseMoreData(final EncodedImage encodedImage) {
+    if (mParserState == DONE || encodedImage.getSize() <= mBytesParsed) {
+      return false;
+    }
+
+    final byte[] buffer = mByteArrayPool.get(BUFFER_SIZE);
+    final InputStream bufferedDataStream =
+        new PooledByteArrayBufferedInputStream(
+            encodedImage.getInputStreamOrThrow(), mByteArrayPool.get(BUFFER_SIZE), mByteArrayPool);
+    final int oldBestScanNumber = mBestScanNumber;
+    try {
+      StreamUtil.skip(bufferedDataStream, mBytesParsed);
+      doParseMoreData(bufferedDataStream, buffer);
+    } catch (IOException ioe) {
+      // Does not happen - streams returned by PooledByteBuffers do not throw IOExceptions
+      Throwables.propagate(ioe);
+    } catch (DataFormatException dfe) {
+      // The image data is corrupt, no partial result can be decoded from it
+      finish();
+    } finally {
+      mByteArrayPool.release(buffer);
+      Closeables.closeQuietly(bufferedDataStream);
+    }
+    return mBestScanNumber != oldBestScanNumber;
+  }
+
+  private void doParseMoreData(final InputStream inputStream, final byte[] buffer)
+      throws IOException, DataFormatException {
+    while (mParserState != DONE) {
+      switch (mParserState) {
+        case READ_SIGNATURE:
+          if (!readHeader(inputStream, PNG_SIGNATURE.length)) {
+            return;
+          }
+          for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+            if (mHeader[i] != PNG_SIGNATURE[i]) {
+              finish();
+              return;
+            }
+          }
+          mIsPng = true;
+          mParserState = READ_CHUNK_HEADER;
+          break;
+
+        case READ_CHUNK_HEADER:
+          if (!readHeader(inputStream, 8)) {
+            return;
+          }
+          mChunkBytesRemaining = readInt(mHeader, 0) + CHUNK_CRC_SIZE;
+          mChunkType = readInt(mHeader, 4);
+          if (mChunkType == CHUNK_IEND) {
+            mEndMarkerRead = true;
+            if (mScanEnds != null) {
+              newScanFound(mScanEnds.length);
+            }
+            finish();
+            return;
+          }
+          if (mChunkType == CHUNK_IDAT && mScanEnds == null) {
+            // the image data must follow the header
+            finish();
+            return;
+          }
+          mParserState = READ_CHUNK_DATA;
+          break;
+
+        case READ_CHUNK_DATA:
+          if (mChunkType == CHUNK_IHDR && mScanEnds == null) {
+            if (!readHeader(inputStream, IHDR_SIZE)) {
+              return;
+            }
+            mChunkBytesRemaining -= IHDR_SIZE;
+            if (!parseImageHeader()) {
+              finish();
+              return;
+            }
+          }
+          while (mChunkBytesRemaining > 0) {
+            int dataBytes = mChunkBytesRemaining - CHUNK_CRC_SIZE;
+            boolean isImageData = mChunkType == CHUNK_IDAT && dataBytes > 0;
+            int count =
+                isImageData
+                    ? inputStream.read(buffer, 0, Math.min(dataBytes, buffer.length))
+                    : (int) StreamUtil.skip(inputStream, mChunkBytesRemaining);
+            if (count <= 0) {
+              return;
+            }
+            mBytesParsed += count;
+            mChunkBytesRemaining -= count;
+            if (isImageData) {
+              inflate(buffer, count);
+            }
+          }
+          mParserState = READ_CHUNK_HEADER;
+          break;
+
+        default:
+          Preconditions.checkState(false);
+      }
+    }
+  }
+
+  /**
+   * Reads the first count bytes of the signature or of the chunk header into {@link #mHeader}.
+   *
+   * @return false if not all of them have arrived yet
+   */
+  private boolean readHeader(final InputStream inputStream, int count) throws IOException {
+    while (mHeaderBytesRead < count) {
+      int read = inputStream.read(mHeader, mHeaderBytesRead, count - mHeaderBytesRead);
+      if (read <= 0) {
+        return false;
+      }
+      mHeaderBytesRead += read;
+      mBytesParsed += read;
+    }
+    mHeaderBytesRead = 0;
+    return true;
+  }
+
+  /** Computes the end of each scan in the inflated image data from the IHDR chunk. */
+  private boolean parseImageHeader() {
+    int width = readInt(mHeader, 0);
+    int height = readInt(mHeader, 4);
+    int bitDepth = mHeader[8];
+    int channels = getChannelCount(mHeader[9]);
+    boolean interlaced = mHeader[12] == 1;
+    if (width <= 0 || height <= 0 || bitDepth <= 0 || channels == 0) {
+      return false;
+    }
+    long bitsPerPixel = (long) bitDepth * channels;
+    if (interlaced) {
+      long[] scanEnds = new long[ADAM7_PASSES];
+      long end = 0;
+      for (int pass = 0; pass < ADAM7_PASSES; pass++) {
+        long passWidth = getPassSize(width, ADAM7[pass][0], ADAM7[pass][2]);
+        long passHeight = getPassSize(height, ADAM7[pass][1], ADAM7[pass][3]);
+        if (passWidth > 0) {
+          // each row of a pass starts with its filter type
+          end += passHeight * (1 + (passWidth * bitsPerPixel + 7) / 8);
+        }
+        scanEnds[pass] = end;
+      }
+      mScanEnds = scanEnds;
+    } else {
+      long[] scanEnds = new long[ROW_STEPS];
+      long rowBytes = 1 + (width * bitsPerPixel + 7) / 8;
+      for (int step = 0; step < ROW_STEPS; step++) {
+        scanEnds[step] = rowBytes * ((long) height * (step + 1) / ROW_STEPS);
+      }
+      mScanEnds = scanEnds;
+    }
+    return true;
+  }
+
+  private void inflate(final byte[] data, int count) throws DataFormatException {
+    long[] scanEnds = Preconditions.checkNotNull(mScanEnds);
+    if (mInflater == null) {
+      mInflater = new Inflater();
+      mInflateBuffer = new byte[INFLATE_BUFFER_SIZE];
+    }
+    Inflater inflater = mInflater;
+    byte[] output = Preconditions.checkNotNull(mInflateBuffer);
+    inflater.setInput(data, 0, count);
+    int inflated;
+    while ((inflated = inflater.inflate(output)) > 0) {
+      mInflatedBytes += inflated;
+    }
+    int scanNumber = mBestScanNumber;
+    while (scanNumber < scanEnds.length && mInflatedBytes >= scanEnds[scanNumber]) {
+      scanNumber++;
+    }
+    if (scanNumber > mBestScanNumber) {
+      newScanFound(scanNumber);
+    }
+    if (inflater.finished()) {
+      releaseInflater();
+    }
+  }
+
+  private void newScanFound(int scanNumber) {
+    mBestScanNumber = scanNumber;
+    mBestScanEndOffset = mBytesParsed;
+  }
+
+  private void finish() {
+    mParserState = DONE;
+    releaseInflater();
+  }
+
+  /** Ends the inflater of the image data, which holds native memory until ended. */
+  @Override
+  public void release() {
+    finish();
+  }
+
+  private void releaseInflater() {
+    if (mInflater != null) {
+      mInflater.end();
+      mInflater = null;
+      mInflateBuffer = null;
+    }
+  }
+
+  private static int getPassSize(int size, int start, int step) {
+    return size > start ? (size - start + step - 1) / step : 0;
+  }
+
+  private static int getChannelCount(int colorType) {
+    switch (colorType) {
+      case 0: // grayscale
+      case 3: // indexed
+        return 1;
+      case 4: // grayscale and alpha
+        return 2;
+      case 2: // RGB
+        return 3;
+      case 6: // RGBA
+        return 4;
+      default:
+        return 0;
+    }
+  }
+
+  private static int readInt(byte[] data, int offset) {
+    return ((data[offset] & 0xFF) << 24)
+        | ((data[offset + 1] & 0xFF) << 16)
+        | ((data[offset + 2] & 0xFF) << 8)
+        | (data[offset + 3] & 0xFF);
+  }
+
+  public boolean isPng() {
+    return mIsPng;
+  }
+
+  @Override
+  public int getBestScanEndOffset() {
+    return mBestScanEndOffset;
+  }
+
+  @Override
+  public int getBestScanNumber() {
+    return mBestScanNumber;
+  }
+
+  @Override
+  public boolean isEndMarkerRead() {
+    return mEndMarkerRead;
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import com.facebook.common.internal.Closeables;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Throwables;
+import com.facebook.common.memory.ByteArrayPool;
+import com.facebook.common.memory.PooledByteArrayBufferedInputStream;
+import com.facebook.common.util.StreamUtil;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Progressively scans static WebP data and tells when enough of it is available to decode a partial
+ * image.
+ *
+ * <p>Both the lossy (VP8) and the lossless (VP8L) bitstreams code the image from the top row down,
+ * so the parser estimates the number of decodable rows from the part of the image chunk received so
+ * far. Scan n is complete once n eighths of the rows are decodable. Animated images are not
+ * decoded progressively.
+ *
+ * <p>Users should call parseMoreData method each time new chunk of data is received. The buffer
+ * passed as a parameter should include entire image data received so far.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class ProgressiveWebpParser implements ProgressiveImageParser {
+
+  /** Number of scans of an image. */
+  public static final int ROW_STEPS = 8;
+
+  private static final int RIFF_HEADER_SIZE = 12;
+  private static final int CHUNK_HEADER_SIZE = 8;
+
+  private static final int CHUNK_VP8 = fourCC('V', 'P', '8', ' ');
+  private static final int CHUNK_VP8L = fourCC('V', 'P', '8', 'L');
+  private static final int CHUNK_VP8X = fourCC('V', 'P', '8', 'X');
+  private static final int VP8X_ANIMATION_FLAG = 0x02;
+
+  // Bytes after the chunk header needed to read the size of the image
+  private static final int VP8_SIZE_BYTES = 10;
+  private static final int VP8L_SIZE_BYTES = 5;
+
+  /** The buffer size in bytes to use. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final ByteArrayPool mByteArrayPool;
+
+  private boolean mIsWebp;
+  private boolean mNotProgressive;
+
+  // Offset and size of the image bitstream, once its chunk header is parsed
+  private int mImageDataOffset = -1;
+  private int mImageDataSize;
+  private int mHeight;
+
+  private int mDecodableRows;
+  private int mBestScanNumber;
+  private int mBestScanEndOffset;
+  private boolean mEndMarkerRead;
+
+  public ProgressiveWebpParser(ByteArrayPool byteArrayPool) {
+    mByteArrayPool = Preconditions.checkNotNull(byteArrayPool);
+  }
+
+  /**
+   * Parses the data received since the last call. If the image has been identified as a non-WebP
+   * or as an animated WebP, data will be ignored and false will be returned on all subsequent
+   * calls.
+   *
+   * @param encodedImage Next set of bytes received by the caller
+   * @return true if a new full scan has been found
+   */
+  @Override
+  public boolean parseMoreData(final EncodedImage encodedImage) {
+    if (mNotProgressive || mEndMarkerRead) {
+      return false;
+    }
+    final int size = encodedImage.getSize();
+    if (mImageDataOffset < 0 && !parseHeaders(encodedImage)) {
+      return false;
+    }
+    final int oldBestScanNumber = mBestScanNumber;
+    final long receivedImageData = Math.min(size - mImageDataOffset, (long) mImageDataSize);
+    mDecodableRows = (int) (mHeight * receivedImageData / mImageDataSize);
+    final int scanNumber = (int) (receivedImageData * ROW_STEPS / mImageDataSize);
+    if (scanNumber > mBestScanNumber) {
+      mBestScanNumber = scanNumber;
+      mBestScanEndOffset = size;
+    }
+    mEndMarkerRead = receivedImageData == mImageDataSize;
+    return mBestScanNumber != oldBestScanNumber;
+  }
+
+  /**
+   * Finds the image chunk and reads the height of the image. Headers are small, so they are parsed
+   * again from the start until the image chunk has arrived.
+   *
+   * @return true if the image chunk has been found
+   */
+  private boolean parseHeaders(final EncodedImage encodedImage) {
+    final InputStream bufferedDataStream =
+        new PooledByteArrayBufferedInputStream(
+            encodedImage.getInputStreamOrThrow(), mByteArrayPool.get(BUFFER_SIZE), mByteArrayPool);
+    try {
+      byte[] header = new byte[RIFF_HEADER_SIZE];
+      if (!readFully(bufferedDataStream, header, RIFF_HEADER_SIZE)) {
+        return false;
+      }
+      if (readFourCC(header, 0) != fourCC('R', 'I', 'F', 'F')
+          || readFourCC(header, 8) != fourCC('W', 'E', 'B', 'P')) {
+        mNotProgressive = true;
+        return false;
+      }
+      mIsWebp = true;
+      int offset = RIFF_HEADER_SIZE;
+      byte[] chunk = new byte[CHUNK_HEADER_SIZE + VP8_SIZE_BYTES];
+      while (true) {
+        if (!readFully(bufferedDataStream, chunk, CHUNK_HEADER_SIZE)) {
+          return false;
+        }
+        int chunkType = readFourCC(chunk, 0);
+        int chunkSize = readLittleEndian(chunk, 4, 4);
+        if (chunkType == CHUNK_VP8 || chunkType == CHUNK_VP8L) {
+          int sizeBytes = chunkType == CHUNK_VP8 ? VP8_SIZE_BYTES : VP8L_SIZE_BYTES;
+          if (!readFully(bufferedDataStream, chunk, sizeBytes)) {
+            return false;
+          }
+          mHeight =
+              chunkType == CHUNK_VP8
+                  ? readLittleEndian(chunk, 8, 2) & 0x3FFF
+                  : ((readLittleEndian(chunk, 1, 4) >> 14) & 0x3FFF) + 1;
+          if (chunkSize <= 0 || mHeight <= 0) {
+            mNotProgressive = true;
+            return false;
+          }
+          mImageDataOffset = offset + CHUNK_HEADER_SIZE;
+          mImageDataSize = chunkSize;
+          return true;
+        }
+        // skip the chunk, and its padding to an even size
+        int skipSize = chunkSize + (chunkSize & 1);
+        offset += CHUNK_HEADER_SIZE + skipSize;
+        if (chunkType == CHUNK_VP8X) {
+          if (!readFully(bufferedDataStream, chunk, 1)) {
+            return false;
+          }
+          if ((chunk[0] & VP8X_ANIMATION_FLAG) != 0) {
+            mNotProgressive = true;
+            return false;
+          }
+          skipSize -= 1;
+        }
+        if (StreamUtil.skip(bufferedDataStream, skipSize) < skipSize) {
+          return false;
+        }
+      }
+    } catch (IOException ioe) {
+      // Does not happen - streams returned by PooledByteBuffers do not throw IOExceptions
+      Throwables.propagate(ioe);
+      return false;
+    } finally {
+      Closeables.closeQuietly(bufferedDataStream);
+    }
+  }
+
+  private static boolean readFully(InputStream inputStream, byte[] buffer, int count)
+      throws IOException {
+    int offset = 0;
+    while (offset < count) {
+      int read = inputStream.read(buffer, offset, count - offset);
+      if (read <= 0) {
+        return false;
+      }
+      offset += read;
+    }
+    return true;
+  }
+
+  private static int readLittleEndian(byte[] data, int offset, int count) {
+    int value = 0;
+    for (int i = count - 1; i >= 0; i--) {
+      value = (value << 8) | (data[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  private static int readFourCC(byte[] data, int offset) {
+    return ((data[offset] & 0xFF) << 24)
+        | ((data[offset + 1] & 0xFF) << 16)
+        | ((data[offset + 2] & 0xFF) << 8)
+        | (data[offset + 3] & 0xFF);
+  }
+
+  private static int fourCC(char c1, char c2, char c3, char c4) {
+    return ((c1 & 0xFF) << 24) | ((c2 & 0xFF) << 16) | ((c3 & 0xFF) << 8) | (c4 & 0xFF);
+  }
+
+  public boolean isWebp() {
+    return mIsWebp;
+  }
+
+  /** Returns the estimated number of rows that can be decoded from the data received so far. */
+  public int getDecodableRowCount() {
+    return mDecodableRows;
+  }
+
+  @Override
+  public int getBestScanEndOffset() {
+    return mBestScanEndOffset;
+  }
+
+  @Override
+  public int getBestScanNumber() {
+    return mBestScanNumber;
+  }
+
+  @Override
+  public boolean isEndMarkerRead() {
+    return mEndMarkerRead;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import com.facebook.imagepipeline.image.QualityInfo;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Simple {@link ProgressiveImageConfig} with predefined scans to decode and good-enough scan number,
+ * for the formats decoded with {@link ProgressivePngParser} or {@link ProgressiveWebpParser}.
+ *
+ * <p>If no specific scans to decode are provided, every scan is allowed to be decoded.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class SimpleProgressiveImageConfig implements ProgressiveImageConfig {
+
+  private final List<Integer> mScansToDecode;
+  private final int mGoodEnoughScanNumber;
+
+  public SimpleProgressiveImageConfig() {
+    this(Collections.<Integer>emptyList(), 0);
+  }
+
+  /**
+   * @param scansToDecode the scans to decode, in increasing order
+   * @param goodEnoughScanNumber the first scan of good enough quality
+   */
+  public SimpleProgressiveImageConfig(List<Integer> scansToDecode, int goodEnoughScanNumber) {
+    mScansToDecode = Preconditions.checkNotNull(scansToDecode);
+    mGoodEnoughScanNumber = goodEnoughScanNumber;
+  }
+
+  /**
+   * Config decoding the Adam7 passes 2, 4 and 6 of interlaced PNGs, which show the whole image at
+   * 1/8, 1/4 and 1/2 of its resolution in each direction, and every second eighth of the rows of
+   * non-interlaced PNGs.
+   */
+  public static SimpleProgressiveImageConfig forPng() {
+    return new SimpleProgressiveImageConfig(Arrays.asList(2, 4, 6), 6);
+  }
+
+  /** Config decoding every quarter of the rows of WebPs. */
+  public static SimpleProgressiveImageConfig forWebp() {
+    return new SimpleProgressiveImageConfig(Arrays.asList(2, 4, 6), 6);
+  }
+
+  @Override
+  public boolean decodeProgressively(ImageRequest imageRequest) {
+    return true;
+  }
+
+  @Override
+  public int getNextScanNumberToDecode(ImageRequest imageRequest, int scanNumber) {
+    if (mScansToDecode.isEmpty()) {
+      return scanNumber + 1;
+    }
+
+    for (int i = 0; i < mScansToDecode.size(); i++) {
+      if (mScansToDecode.get(i) > scanNumber) {
+        return mScansToDecode.get(i);
+      }
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public QualityInfo getQualityInfo(ImageRequest imageRequest, int scanNumber) {
+    return ImmutableQualityInfo.of(
+        scanNumber,
+        /* isOfGoodEnoughQuality */ scanNumber >= mGoodEnoughScanNumber,
+        /* isOfFullQuality */ false);
+  }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.filter
+
+import android.graphics.Bitmap
+import com.facebook.common.internal.Preconditions
+import com.facebook.common.logging.FLog
+import com.facebook.imageutils.BitmapUtil
+import java.lang.ref.SoftReference
+import java.util.Locale
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Multi-threaded variant of [IterativeBoxBlurFilter], producing the same output.
+ *
+ * Each horizontal pass blurs bands of rows on [executor] and writes its output transposed, so that
+ * the vertical pass is another horizontal pass reading memory sequentially. Rows are blurred in
+ * tiles of [TILE_ROWS], so that the transposed output is written a cache line at a time.
+ *
+ * Pixel buffers are kept in a cache of soft references between calls, and division tables are
+ * computed once per radius, so blurring bitmaps of the same size does not allocate.
+ *
+ * @param executor The executor running the bands of rows, along with the calling thread. It can be
+ *   the decode executor of the pipeline; if it is busy, the calling thread blurs all the bands.
+ * @param parallelism The maximum number of threads blurring an image.
+ */
+class ParallelBoxBlurFilter
+@JvmOverloads
+constructor(
+    private val executor: Executor = defaultExecutor,
+    private val parallelism: Int = DEFAULT_PARALLELISM,
+) {
+
+  init {
+    Preconditions.checkArgument(parallelism > 0)
+  }
+
+  private val bufferCache = IntArrayCache(parallelism + 2)
+
+  /**
+   * An in-place iterative box blur, see [IterativeBoxBlurFilter.boxBlurBitmapInPlace].
+   *
+   * @param bitmap The [Bitmap] containing the image. The bitmap dimension need to be smaller than
+   *   [BitmapUtil.MAX_BITMAP_DIMENSION]
+   * @param iterations The number of iterations of the blurring algorithm > 0.
+   * @param radius The radius of the blur with a supported range 0 < radius <=
+   *   [RenderScriptBlurFilter.BLUR_MAX_RADIUS]
+   */
+  @JvmOverloads
+  fun boxBlurBitmapInPlace(
+      bitmap: Bitmap,
+      iterations: Int,
+      radius: Int,
+      ntscDampeningFactor: Float = 0f,
+  ) {
+    Preconditions.checkArgument(bitmap.isMutable)
+    Preconditions.checkArgument(bitmap.height <= BitmapUtil.MAX_BITMAP_DIMENSION)
+    Preconditions.checkArgument(bitmap.width <= BitmapUtil.MAX_BITMAP_DIMENSION)
+    val w = bitmap.width
+    val h = bitmap.height
+    var pixels: IntArray? = null
+    try {
+      pixels = bufferCache.get(w * h)
+      bitmap.getPixels(pixels, 0, w, 0, 0, w, h)
+      boxBlurPixelsInPlace(pixels, w, h, iterations, radius, ntscDampeningFactor)
+      bitmap.setPixels(pixels, 0, w, 0, 0, w, h)
+    } catch (oom: OutOfMemoryError) {
+      FLog.e(
+          TAG,
+          String.format(
+              null as Locale?,
+              "OOM: %d iterations on %dx%d with %d radius",
+              iterations,
+              w,
+              h,
+              radius,
+          ),
+      )
+      throw oom
+    } finally {
+      pixels?.let { bufferCache.release(it) }
+    }
+  }
+
+  /**
+   * Blurs the first `width * height` ARGB pixels of [pixels] in place.
+   *
+   * @param iterations The number of iterations of the blurring algorithm > 0.
+   * @param radius The radius of the blur with a supported range 0 < radius <=
+   *   [RenderScriptBlurFilter.BLUR_MAX_RADIUS]
+   */
+  @JvmOverloads
+  fun boxBlurPixelsInPlace(
+      pixels: IntArray,
+      width: Int,
+      height: Int,
+      iterations: Int,
+      radius: Int,
+      ntscDampeningFactor: Float = 0f,
+  ) {
+    Preconditions.checkArgument(width > 0 && height > 0 && pixels.size >= width * height)
+    Preconditions.checkArgument(radius > 0 && radius <= RenderScriptBlurFilter.BLUR_MAX_RADIUS)
+    Preconditions.checkArgument(iterations > 0)
+    val div = getDivisionTable(radius)
+    val transposed = bufferCache.get(width * height)
+    try {
+      for (i in 0 until iterations) {
+        // Blur rows, then rows of the transposed image, which are the columns
+        blurRowsTransposed(pixels, transposed, width, height, radius, div)
+        blurRowsTransposed(transposed, pixels, height, width, radius, div)
+      }
+    } finally {
+      bufferCache.release(transposed)
+    }
+
+    // NTSC Dampening Postprocessing for removing higher frequencies
+    if (ntscDampeningFactor > 0f) {
+      runInBands(height, width) { firstRow, lastRow ->
+        for (i in firstRow * width until lastRow * width) {
+          pixels[i] = NTSCDampeningFilterUtil.process(pixels[i], ntscDampeningFactor)
+        }
+      }
+    }
+  }
+
+  /** Blurs the rows of the `w` x `h` image in [src], writing the result transposed to [dst]. */
+  private fun blurRowsTransposed(
+      src: IntArray,
+      dst: IntArray,
+      w: Int,
+      h: Int,
+      radius: Int,
+      div: IntArray,
+  ) {
+    runInBands(h, w) { firstRow, lastRow ->
+      val tile = bufferCache.get(TILE_ROWS * w)
+      try {
+        var tileFirstRow = firstRow
+        while (tileFirstRow < lastRow) {
+          val tileRows = Math.min(TILE_ROWS, lastRow - tileFirstRow)
+          for (t in 0 until tileRows) {
+            blurRow(src, (tileFirstRow + t) * w, w, radius, div, tile, t * w)
+          }
+          // Row y of the tile becomes column y of the rows of dst, which are h pixels wide
+          for (x in 0 until w) {
+            var outPos = x * h + tileFirstRow
+            var inPos = x
+            for (t in 0 until tileRows) {
+              dst[outPos++] = tile[inPos]
+              inPos += w
+            }
+          }
+          tileFirstRow += tileRows
+        }
+      } finally {
+        bufferCache.release(tile)
+      }
+    }
+  }
+
+  /**
+   * Splits the rows of an image in bands, blurred by the calling thread and by tasks on [executor],
+   * and waits for all of them. Images too small to benefit from it are blurred on the calling
+   * thread only.
+   */
+  private inline fun runInBands(
+      rowCount: Int,
+      rowLength: Int,
+      crossinline blurBand: (firstRow: Int, lastRow: Int) -> Unit,
+  ) {
+    val maxBands =
+        if (rowCount.toLong() * rowLength < MIN_PARALLEL_PIXELS) 1
+        else Math.min(parallelism, (rowCount + TILE_ROWS - 1) / TILE_ROWS)
+    if (maxBands <= 1) {
+      blurBand(0, rowCount)
+      return
+    }
+    // Bands are aligned on tiles, so that no two threads write the same cache lines
+    val bandRows = ((rowCount + maxBands - 1) / maxBands + TILE_ROWS - 1) / TILE_ROWS * TILE_ROWS
+    val bandCount = (rowCount + bandRows - 1) / bandRows
+    val nextBand = AtomicInteger()
+    val remainingBands = CountDownLatch(bandCount)
+    val failure = AtomicReference<Throwable?>()
+    val worker = Runnable {
+      var band = nextBand.getAndIncrement()
+      while (band < bandCount) {
+        try {
+          blurBand(band * bandRows, Math.min(rowCount, (band + 1) * bandRows))
+        } catch (t: Throwable) {
+          failure.compareAndSet(null, t)
+        } finally {
+          remainingBands.countDown()
+        }
+        band = nextBand.getAndIncrement()
+      }
+    }
+    for (i in 1 until bandCount) {
+      try {
+        executor.execute(worker)
+      } catch (e: RejectedExecutionException) {
+        break
+      }
+    }
+    // Bands not picked up by the executor yet are blurred by the calling thread
+    worker.run()
+    awaitUninterruptibly(remainingBands)
+    failure.get()?.let { throw it }
+  }
+
+  private fun awaitUninterruptibly(latch: CountDownLatch) {
+    var interrupted = false
+    while (true) {
+      try {
+        latch.await()
+        break
+      } catch (e: InterruptedException) {
+        // The buffers are still being written by the other threads
+        interrupted = true
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt()
+    }
+  }
+
+  /**
+   * Cache of pixel buffers released by earlier blurs. Buffers are softly referenced, so that they
+   * are collected under memory pressure.
+   */
+  private class IntArrayCache(private val maxSize: Int) {
+
+    private val buffers = ArrayList<SoftReference<IntArray>>(maxSize)
+
+    /** Returns the smallest cached buffer of at least [size] ints, or a new one. */
+    fun get(size: Int): IntArray {
+      synchronized(this) {
+        var bestIndex = -1
+        var bestSize = Int.MAX_VALUE
+        var i = buffers.size - 1
+        while (i >= 0) {
+          val buffer = buffers[i].get()
+          if (buffer == null) {
+            buffers.removeAt(i)
+            if (bestIndex > i) {
+              bestIndex--
+            }
+          } else if (buffer.size in size until bestSize) {
+            bestIndex = i
+            bestSize = buffer.size
+          }
+          i--
+        }
+        if (bestIndex >= 0) {
+          buffers.removeAt(bestIndex).get()?.let {
+            return it
+          }
+        }
+      }
+      return IntArray(size)
+    }
+
+    fun release(buffer: IntArray) {
+      synchronized(this) {
+        if (buffers.size == maxSize) {
+          // Keep the largest buffers, which can be used for the most images
+          val smallest = buffers.indices.minByOrNull { buffers[it].get()?.size ?: -1 } ?: return
+          if ((buffers[smallest].get()?.size ?: -1) >= buffer.size) {
+            return
+          }
+          buffers.removeAt(smallest)
+        }
+        buffers.add(SoftReference(buffer))
+      }
+    }
+  }
+
+  companion object {
+    private const val TAG = "ParallelBoxBlurFilter"
+
+    /** Number of rows blurred together before being written transposed. */
+    const val TILE_ROWS = 16
+
+    // Below about 256x256 pixels, handing bands to other threads costs more than it saves
+    private const val MIN_PARALLEL_PIXELS = 64 * 1024
+
+    private val DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors()
+
+    private val defaultExecutor: Executor by lazy { ForkJoinPool(DEFAULT_PARALLELISM) }
+
+    /** Instance blurring on a shared fork-join pool with one thread per core. */
+    @JvmStatic val instance: ParallelBoxBlurFilter by lazy { ParallelBoxBlurFilter() }
+
+    private val divisionTables =
+        AtomicReferenceArray<IntArray>(RenderScriptBlurFilter.BLUR_MAX_RADIUS + 1)
+
+    /**
+     * Returns the table mapping `x` to `x / diameter`, rounded to the nearest number, for the
+     * `255 * diameter` values a sum of `diameter` color components can take.
+     */
+    private fun getDivisionTable(radius: Int): IntArray {
+      divisionTables.get(radius)?.let {
+        return it
+      }
+      val diameter = radius + 1 + radius
+      val div = IntArray(256 * diameter)
+      var ptr = radius + 1
+      for (b in 1..255) {
+        for (d in 0 until diameter) {
+          div[ptr] = b
+          ptr++
+        }
+      }
+      divisionTables.compareAndSet(radius, null, div)
+      return divisionTables.get(radius)
+    }
+
+    /**
+     * Blurs the row of [w] pixels of [pixels] starting at [rowStart] into [out] at [outStart], with
+     * a moving average. The edge pixels are repeated to avoid artifacts, as in
+     * [IterativeBoxBlurFilter].
+     */
+    private fun blurRow(
+        pixels: IntArray,
+        rowStart: Int,
+        w: Int,
+        radius: Int,
+        div: IntArray,
+        out: IntArray,
+        outStart: Int,
+    ) {
+      val last = rowStart + w - 1
+      val diameter = radius + 1 + radius
+      var a = 0
+      var r = 0
+      var g = 0
+      var b = 0
+      var pixel: Int
+      for (i in -radius until w + radius) {
+        pixel = pixels[bound(rowStart + i, rowStart, last)]
+        r += pixel shr 16 and 0xFF
+        g += pixel shr 8 and 0xFF
+        b += pixel and 0xFF
+        a += pixel ushr 24
+        if (i >= radius) {
+          out[outStart + i - radius] = div[a] shl 24 or (div[r] shl 16) or (div[g] shl 8) or div[b]
+          pixel = pixels[bound(rowStart + i - (diameter - 1), rowStart, last)]
+          r -= pixel shr 16 and 0xFF
+          g -= pixel shr 8 and 0xFF
+          b -= pixel and 0xFF
+          a -= pixel ushr 24
+        }
+      }
+    }
+
+    private fun bound(x: Int, l: Int, h: Int): Int = if (x < l) l else if (x > h) h else x
+  }
+}
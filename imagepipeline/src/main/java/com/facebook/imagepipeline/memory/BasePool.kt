@@ -355,6 +355,11 @@ abstract class BasePool<V : Any>(
     return true
   }
 
+  /** Whether the pool has, or may create, a bucket for values of the bucketed size. */
+  @Synchronized
+  protected fun hasBucket(bucketedSize: Int): Boolean =
+      buckets[bucketedSize] != null || allowNewBuckets
+
   /**
    * Initialize the list of buckets. Get the bucket sizes (and bucket lengths) from the bucket sizes
    * provider
@@ -621,7 +626,7 @@ abstract class BasePool<V : Any>(
   }
 
   @get:Synchronized
-  val stats: Map<String, Int>
+  open val stats: Map<String, Int>
     /** Export memory stats regarding buckets used, memory caps, reused values. */
     get() {
       val stats: MutableMap<String, Int> = HashMap()
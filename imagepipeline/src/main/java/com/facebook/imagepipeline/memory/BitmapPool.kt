@@ -10,4 +10,11 @@ package com.facebook.imagepipeline.memory
 import android.graphics.Bitmap
 import com.facebook.common.memory.Pool
 
-interface BitmapPool : Pool<Bitmap>
+interface BitmapPool : Pool<Bitmap> {
+
+  /**
+   * Whether a bitmap of [sizeInBytes] released to the pool would be kept for a later [get], rather
+   * than freed. Pools that do not know return false.
+   */
+  fun canRetain(sizeInBytes: Int): Boolean = false
+}
@@ -14,6 +14,7 @@ annotation class BitmapPoolType {
     const val DUMMY = "dummy"
     const val DUMMY_WITH_TRACKING = "dummy_with_tracking"
     const val EXPERIMENTAL = "experimental"
+    const val SIZE_CLASS = "size_class"
     const val DEFAULT = LEGACY
   }
 }
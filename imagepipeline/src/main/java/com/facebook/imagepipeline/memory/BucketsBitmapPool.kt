@@ -108,6 +108,8 @@ class BucketsBitmapPool(
     return !value.isRecycled && value.isMutable
   }
 
+  override fun canRetain(sizeInBytes: Int): Boolean = hasBucket(getBucketedSize(sizeInBytes))
+
   override fun getValue(bucket: Bucket<Bitmap>): Bitmap? {
     val result = super.getValue(bucket)
     result?.eraseColor(Color.TRANSPARENT)
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory
+
+import com.facebook.common.internal.Preconditions
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * Small caches of byte arrays in front of a pool, similar to the per-CPU magazines of a slab
+ * allocator, so that most gets and releases do not take the lock of the pool.
+ *
+ * There is a set of magazines per stripe, and each thread uses the stripe of its id, so that
+ * threads running at the same time mostly use different magazines. A magazine holds up to
+ * [capacity] arrays of one of the [bucketSizes], in slots that are taken and filled with atomic
+ * operations: neither [take] nor [offer] takes a lock. All the magazines of a bucket size hold at
+ * most the [maxLengths] of that size together.
+ */
+@ThreadSafe
+internal class ByteArrayMagazines(
+    private val bucketSizes: IntArray,
+    private val capacity: Int,
+    private val maxLengths: IntArray,
+    private val stripeCount: Int = DEFAULT_STRIPE_COUNT,
+) {
+
+  init {
+    Preconditions.checkArgument(capacity > 0 && stripeCount > 0)
+    Preconditions.checkArgument(maxLengths.size == bucketSizes.size)
+  }
+
+  private val slots = AtomicReferenceArray<ByteArray?>(stripeCount * bucketSizes.size * capacity)
+
+  /** Number of arrays held in the magazines of each bucket size */
+  private val lengths = AtomicIntegerArray(bucketSizes.size)
+
+  /** Number of arrays of the given bucketed size held in the magazines. */
+  fun getLength(bucketedSize: Int): Int {
+    val bucket = bucketSizes.binarySearch(bucketedSize)
+    return if (bucket < 0) 0 else lengths.get(bucket)
+  }
+
+  /** Takes an array of the given bucketed size from the magazine of the current thread. */
+  fun take(bucketedSize: Int): ByteArray? {
+    val bucket = bucketSizes.binarySearch(bucketedSize)
+    if (bucket < 0) {
+      return null
+    }
+    val start = magazineStart(bucket)
+    for (i in start until start + capacity) {
+      if (slots.get(i) != null) {
+        slots.getAndSet(i, null)?.let {
+          lengths.decrementAndGet(bucket)
+          return it
+        }
+      }
+    }
+    return null
+  }
+
+  /**
+   * Puts the array in the magazine of the current thread.
+   *
+   * @return false if the size of the array is not one of the bucket sizes, or if the magazine or
+   *   the magazines of its size are full
+   */
+  fun offer(value: ByteArray): Boolean {
+    val bucket = bucketSizes.binarySearch(value.size)
+    if (bucket < 0 || !reserve(bucket)) {
+      return false
+    }
+    val start = magazineStart(bucket)
+    for (i in start until start + capacity) {
+      if (slots.get(i) == null && slots.compareAndSet(i, null, value)) {
+        return true
+      }
+    }
+    lengths.decrementAndGet(bucket)
+    return false
+  }
+
+  /** Empties all the magazines, returning their arrays. */
+  fun drain(): List<ByteArray> {
+    val values = ArrayList<ByteArray>()
+    for (i in 0 until slots.length()) {
+      slots.getAndSet(i, null)?.let {
+        lengths.decrementAndGet(i / capacity % bucketSizes.size)
+        values.add(it)
+      }
+    }
+    return values
+  }
+
+  /** Counts one more array in the magazines of the bucket, unless they are full. */
+  private fun reserve(bucket: Int): Boolean {
+    while (true) {
+      val length = lengths.get(bucket)
+      if (length >= maxLengths[bucket]) {
+        return false
+      }
+      if (lengths.compareAndSet(bucket, length, length + 1)) {
+        return true
+      }
+    }
+  }
+
+  private fun magazineStart(bucket: Int): Int {
+    val stripe = (Thread.currentThread().id % stripeCount).toInt()
+    return (stripe * bucketSizes.size + bucket) * capacity
+  }
+
+  companion object {
+    val DEFAULT_STRIPE_COUNT: Int = Runtime.getRuntime().availableProcessors()
+  }
+}
@@ -7,8 +7,12 @@
 
 package com.facebook.imagepipeline.memory
 
+import com.facebook.common.logging.FLog
 import com.facebook.common.memory.ByteArrayPool
+import com.facebook.common.memory.MemoryTrimType
 import com.facebook.common.memory.MemoryTrimmableRegistry
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
 import javax.annotation.concurrent.ThreadSafe
 
 /**
@@ -17,15 +21,27 @@ import javax.annotation.concurrent.ThreadSafe
  * get/release paradigm. On a get request, the pool attempts to find an existing byte array whose
  * size is at least as big as the requested size. On a release request, the pool adds the byte array
  * to the appropriate bucket. This byte array can then be used for a subsequent get request.
+ *
+ * If [magazineCapacity] is positive, up to that many arrays of each bucket size are cached per
+ * stripe of threads in [ByteArrayMagazines] in front of the buckets, so that most gets and releases
+ * do not take the lock of the pool. The magazines of a size hold at most the max length of its
+ * bucket, and only take back the arrays handed out by the pool, which it tracks without locking;
+ * other arrays are released as unrecognized. The arrays in the magazines count as used by the
+ * buckets and counters of the pool, so that the max lengths of the buckets include them, but as
+ * free in [stats].
  */
 @ThreadSafe
-open class GenericByteArrayPool(
+open class GenericByteArrayPool
+@JvmOverloads
+constructor(
     memoryTrimmableRegistry: MemoryTrimmableRegistry,
     poolParams: PoolParams,
-    poolStatsTracker: PoolStatsTracker,
+    private val poolStatsTracker: PoolStatsTracker,
+    magazineCapacity: Int = 0,
 ) : BasePool<ByteArray>(memoryTrimmableRegistry, poolParams, poolStatsTracker), ByteArrayPool {
 
   private val bucketSizes: IntArray
+  private val bucketLengths: IntArray
 
   /**
    * Gets the smallest buffer size supported by the pool
@@ -46,15 +62,82 @@ open class GenericByteArrayPool(
     val bucketSizes = poolParams.bucketSizes
     if (bucketSizes != null) {
       this.bucketSizes = IntArray(bucketSizes.size())
+      this.bucketLengths = IntArray(bucketSizes.size())
       for (i in 0 until bucketSizes.size()) {
         this.bucketSizes[i] = bucketSizes.keyAt(i)
+        this.bucketLengths[i] = bucketSizes.valueAt(i)
       }
     } else {
       this.bucketSizes = IntArray(0)
+      this.bucketLengths = IntArray(0)
     }
     initialize()
   }
 
+  private val magazines: ByteArrayMagazines? =
+      if (magazineCapacity > 0 && bucketSizes.isNotEmpty()) {
+        ByteArrayMagazines(bucketSizes, magazineCapacity, bucketLengths)
+      } else {
+        null
+      }
+
+  /** The arrays handed out by the pool while it has magazines, compared by reference */
+  private val valuesInUse: MutableSet<ByteArray> =
+      Collections.newSetFromMap(ConcurrentHashMap<ByteArray, Boolean>())
+
+  override fun get(size: Int): ByteArray {
+    val magazines = magazines ?: return super.get(size)
+    val value = magazines.take(getBucketedSize(size)) ?: super.get(size)
+    valuesInUse.add(value)
+    return value
+  }
+
+  override fun release(value: ByteArray) {
+    val magazines = magazines ?: return super.release(value)
+    if (!valuesInUse.remove(value)) {
+      // Released twice, or not from this pool: the pool may still hold it in a magazine
+      FLog.e(
+          TAG,
+          "release (free, value unrecognized) (object, size) = (%x, %s)",
+          System.identityHashCode(value),
+          value.size,
+      )
+      free(value)
+      poolStatsTracker.onFree(value.size)
+      return
+    }
+    if (!magazines.offer(value)) {
+      super.release(value)
+    }
+  }
+
+  override fun trim(memoryTrimType: MemoryTrimType) {
+    for (value in magazines?.drain().orEmpty()) {
+      super.release(value)
+    }
+    super.trim(memoryTrimType)
+  }
+
+  override val stats: Map<String, Int>
+    get() {
+      val stats = super.stats
+      val magazines = magazines ?: return stats
+      val adjustedStats = HashMap(stats)
+      for (bucketSize in bucketSizes) {
+        val length = magazines.getLength(bucketSize)
+        val usedKey = PoolStatsTracker.BUCKETS_USED_PREFIX + bucketSize
+        adjustedStats[usedKey] = (adjustedStats[usedKey] ?: 0) - length
+        moveStat(adjustedStats, PoolStatsTracker.USED_COUNT, PoolStatsTracker.FREE_COUNT, length)
+        moveStat(
+            adjustedStats,
+            PoolStatsTracker.USED_BYTES,
+            PoolStatsTracker.FREE_BYTES,
+            length * bucketSize,
+        )
+      }
+      return adjustedStats
+    }
+
   /**
    * Allocate a buffer greater than or equal to the specified size
    *
@@ -118,4 +201,13 @@ open class GenericByteArrayPool(
     checkNotNull(value)
     return value.size
   }
+
+  companion object {
+    private const val TAG = "GenericByteArrayPool"
+
+    private fun moveStat(stats: MutableMap<String, Int>, from: String, to: String, amount: Int) {
+      stats[from] = (stats[from] ?: 0) - amount
+      stats[to] = (stats[to] ?: 0) + amount
+    }
+  }
 }
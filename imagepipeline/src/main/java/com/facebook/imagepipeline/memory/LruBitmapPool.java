@@ -17,18 +17,37 @@ import javax.annotation.Nullable;
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class LruBitmapPool implements BitmapPool {
 
-  protected final PoolBackend<Bitmap> mStrategy = new BitmapPoolBackend();
+  protected final PoolBackend<Bitmap> mStrategy;
   private final int mMaxPoolSize;
   private int mMaxBitmapSize;
   private final PoolStatsTracker mPoolStatsTracker;
   private int mCurrentSize;
 
-  @SuppressWarnings("this-escape")
   public LruBitmapPool(
       int maxPoolSize,
       int maxBitmapSize,
       PoolStatsTracker poolStatsTracker,
       @Nullable MemoryTrimmableRegistry memoryTrimmableRegistry) {
+    this(
+        maxPoolSize,
+        maxBitmapSize,
+        poolStatsTracker,
+        memoryTrimmableRegistry,
+        new BitmapPoolBackend());
+  }
+
+  /**
+   * @param strategy the backend holding the pooled bitmaps, e.g. a {@link
+   *     SizeClassBitmapPoolBackend} to reuse bitmaps for smaller requests
+   */
+  @SuppressWarnings("this-escape")
+  LruBitmapPool(
+      int maxPoolSize,
+      int maxBitmapSize,
+      PoolStatsTracker poolStatsTracker,
+      @Nullable MemoryTrimmableRegistry memoryTrimmableRegistry,
+      PoolBackend<Bitmap> strategy) {
+    mStrategy = strategy;
     mMaxPoolSize = maxPoolSize;
     mMaxBitmapSize = maxBitmapSize;
     mPoolStatsTracker = poolStatsTracker;
@@ -65,6 +84,9 @@ public class LruBitmapPool implements BitmapPool {
       final int reusedSize = mStrategy.getSize(cached);
       mCurrentSize -= reusedSize;
       mPoolStatsTracker.onValueReuse(reusedSize);
+      if (reusedSize > size) {
+        mPoolStatsTracker.onValueReuseWaste(reusedSize - size);
+      }
       return cached;
     }
     return alloc(size);
@@ -76,6 +98,11 @@ public class LruBitmapPool implements BitmapPool {
     return Bitmap.createBitmap(1, size, Bitmap.Config.ALPHA_8);
   }
 
+  @Override
+  public boolean canRetain(int sizeInBytes) {
+    return sizeInBytes <= mMaxBitmapSize;
+  }
+
   @Override
   public void release(final Bitmap value) {
     final int size = mStrategy.getSize(value);
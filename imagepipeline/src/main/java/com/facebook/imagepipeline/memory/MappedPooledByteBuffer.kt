@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory
+
+import com.facebook.common.internal.Preconditions
+import com.facebook.common.memory.PooledByteBuffer
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * An implementation of [PooledByteBuffer] whose bytes are a read-only memory mapping of a file, so
+ * that they are paged in from the file as they are read instead of being copied upfront.
+ *
+ * The file must not be modified while it is mapped. Deleting it is fine: the mapping keeps the
+ * content available. Java cannot unmap a file, so [close] only invalidates this instance and the
+ * mapping is released once the buffer is garbage collected.
+ */
+@ThreadSafe
+class MappedPooledByteBuffer private constructor(buffer: ByteBuffer) : PooledByteBuffer {
+  private val size: Int = buffer.capacity()
+
+  @GuardedBy("this") private var buffer: ByteBuffer? = buffer
+
+  /**
+   * Gets the size of the mapping if it is valid. Otherwise, an exception is raised
+   *
+   * @throws [PooledByteBuffer.ClosedException]
+   */
+  @Synchronized
+  override fun size(): Int {
+    ensureValid()
+    return size
+  }
+
+  @Synchronized
+  override fun read(offset: Int): Byte {
+    val buffer = ensureValid()
+    Preconditions.checkArgument(offset >= 0)
+    Preconditions.checkArgument(offset < size)
+    return buffer.get(offset)
+  }
+
+  @Synchronized
+  override fun read(offset: Int, buffer: ByteArray, bufferOffset: Int, length: Int): Int {
+    val mapping = ensureValid()
+    Preconditions.checkArgument(offset >= 0 && length >= 0)
+    Preconditions.checkArgument(offset + length <= size)
+    mapping.position(offset)
+    mapping.get(buffer, bufferOffset, length)
+    return length
+  }
+
+  override val nativePtr: Long
+    get() = throw UnsupportedOperationException("No native pointer to a mapped file")
+
+  /** A direct view of the mapping, with its own position. Null once closed. */
+  @get:Synchronized
+  override val byteBuffer: ByteBuffer?
+    get() = buffer?.duplicate()
+
+  @get:Synchronized
+  override val isClosed: Boolean
+    get() = buffer == null
+
+  /** Closes this instance. It is not an error to close an already closed instance. */
+  @Synchronized
+  override fun close() {
+    buffer = null
+  }
+
+  @GuardedBy("this")
+  private fun ensureValid(): ByteBuffer = buffer ?: throw PooledByteBuffer.ClosedException()
+
+  companion object {
+    /**
+     * Maps the whole content of the file.
+     *
+     * @throws IOException if the file cannot be opened or mapped, or is larger than 2GB
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun map(file: File): MappedPooledByteBuffer =
+        FileInputStream(file).use { stream ->
+          val channel = stream.channel
+          val size = channel.size()
+          if (size > Int.MAX_VALUE) {
+            throw IOException("File too large to be mapped: $size bytes")
+          }
+          // the mapping stays valid after the channel is closed
+          MappedPooledByteBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size))
+        }
+  }
+}
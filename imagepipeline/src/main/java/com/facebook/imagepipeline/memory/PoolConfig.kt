@@ -25,6 +25,7 @@ class PoolConfig private constructor(builder: Builder) {
   val memoryChunkPoolStatsTracker: PoolStatsTracker
   val smallByteArrayPoolParams: PoolParams
   val smallByteArrayPoolStatsTracker: PoolStatsTracker
+  val smallByteArrayPoolMagazineCapacity: Int
   val bitmapPoolType: String
   val bitmapPoolMaxPoolSize: Int
   val bitmapPoolMaxBitmapSize: Int
@@ -47,6 +48,7 @@ class PoolConfig private constructor(builder: Builder) {
     smallByteArrayPoolParams = builder.smallByteArrayPoolParams ?: DefaultByteArrayPoolParams.get()
     smallByteArrayPoolStatsTracker =
         builder.smallByteArrayPoolStatsTracker ?: NoOpPoolStatsTracker.getInstance()
+    smallByteArrayPoolMagazineCapacity = builder.smallByteArrayPoolMagazineCapacity
 
     bitmapPoolType = builder.bitmapPoolType ?: BitmapPoolType.DEFAULT
     bitmapPoolMaxPoolSize = builder.bitmapPoolMaxPoolSize
@@ -68,6 +70,7 @@ class PoolConfig private constructor(builder: Builder) {
     internal var memoryChunkPoolStatsTracker: PoolStatsTracker? = null
     internal var smallByteArrayPoolParams: PoolParams? = null
     internal var smallByteArrayPoolStatsTracker: PoolStatsTracker? = null
+    internal var smallByteArrayPoolMagazineCapacity: Int = 0
     internal var bitmapPoolType: String? = null
     internal var bitmapPoolMaxPoolSize: Int = 0
     internal var bitmapPoolMaxBitmapSize: Int = 0
@@ -117,6 +120,16 @@ class PoolConfig private constructor(builder: Builder) {
       return this
     }
 
+    /**
+     * Number of arrays of each bucket size the small byte array pool caches per stripe of threads,
+     * to serve most gets and releases without taking its lock, up to the max length of the bucket
+     * across stripes. 0, the default, disables the cache.
+     */
+    fun setSmallByteArrayPoolMagazineCapacity(smallByteArrayPoolMagazineCapacity: Int): Builder {
+      this.smallByteArrayPoolMagazineCapacity = smallByteArrayPoolMagazineCapacity
+      return this
+    }
+
     fun build(): PoolConfig {
       return PoolConfig(this)
     }
@@ -35,6 +35,16 @@ open class PoolFactory(private val config: PoolConfig) {
               else null,
           )
 
+      BitmapPoolType.SIZE_CLASS ->
+          LruBitmapPool(
+              config.bitmapPoolMaxPoolSize,
+              config.bitmapPoolMaxBitmapSize,
+              config.bitmapPoolStatsTracker,
+              if (config.isRegisterLruBitmapPoolAsMemoryTrimmable) config.memoryTrimmableRegistry
+              else null,
+              SizeClassBitmapPoolBackend(),
+          )
+
       BitmapPoolType.LEGACY_DEFAULT_PARAMS ->
           BucketsBitmapPool(
               config.memoryTrimmableRegistry,
@@ -175,6 +185,7 @@ open class PoolFactory(private val config: PoolConfig) {
         config.memoryTrimmableRegistry,
         config.smallByteArrayPoolParams,
         config.smallByteArrayPoolStatsTracker,
+        config.smallByteArrayPoolMagazineCapacity,
     )
   }
 
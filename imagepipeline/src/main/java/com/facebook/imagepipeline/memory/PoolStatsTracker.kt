@@ -14,6 +14,13 @@ interface PoolStatsTracker {
 
   fun onValueReuse(bucketedSize: Int)
 
+  /**
+   * Called after [onValueReuse] when the reused value is larger than requested.
+   *
+   * @param wastedBytes the size of the value minus the requested size
+   */
+  fun onValueReuseWaste(wastedBytes: Int) = Unit
+
   fun onAlloc(size: Int)
 
   fun onFree(sizeInBytes: Int)
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import androidx.annotation.VisibleForTesting
+import com.facebook.common.internal.Preconditions
+import com.facebook.common.logging.FLog
+import com.facebook.imageutils.BitmapUtil
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * [PoolBackend] that buckets the bitmaps by size class instead of by exact size, so that a bitmap
+ * can be reused for any request it is large enough for: the users of the pool reconfigure the
+ * bitmaps they get to the dimensions they need.
+ *
+ * Each doubling of the size is split in [classesPerDoubling] classes. A request is served by a
+ * large enough bitmap of its own class, or else by the most recently released bitmap of the next
+ * non-empty class, at most one doubling above. [pop] removes the bitmaps in the order they were
+ * released.
+ */
+@ThreadSafe
+internal class SizeClassBitmapPoolBackend
+@JvmOverloads
+constructor(private val classesPerDoubling: Int = DEFAULT_CLASSES_PER_DOUBLING) :
+    PoolBackend<Bitmap> {
+
+  init {
+    Preconditions.checkArgument(classesPerDoubling in 1..MAX_CLASSES_PER_DOUBLING)
+  }
+
+  @GuardedBy("this")
+  private val sizeClasses = arrayOfNulls<ArrayDeque<Bitmap>>(Int.SIZE_BITS * classesPerDoubling)
+
+  // Pooled bitmaps from the least to the most recently released
+  @GuardedBy("this") private val releaseOrder = LinkedHashSet<Bitmap>()
+
+  override fun get(size: Int): Bitmap? {
+    val bitmap = take(size)
+    if (bitmap != null && isReusable(bitmap)) {
+      bitmap.eraseColor(Color.TRANSPARENT)
+      return bitmap
+    }
+    return null
+  }
+
+  override fun put(item: Bitmap) {
+    if (!isReusable(item)) {
+      return
+    }
+    synchronized(this) {
+      if (releaseOrder.add(item)) {
+        val sizeClass = sizeClassOf(getSize(item))
+        val bitmaps = sizeClasses[sizeClass] ?: ArrayDeque<Bitmap>()
+        sizeClasses[sizeClass] = bitmaps
+        bitmaps.addLast(item)
+      }
+    }
+  }
+
+  override fun getSize(item: Bitmap): Int = BitmapUtil.getSizeInBytes(item)
+
+  @Synchronized
+  override fun pop(): Bitmap? {
+    val eldest = releaseOrder.firstOrNull() ?: return null
+    releaseOrder.remove(eldest)
+    sizeClasses[sizeClassOf(getSize(eldest))]?.remove(eldest)
+    return eldest
+  }
+
+  @VisibleForTesting @Synchronized fun valueCount(): Int = releaseOrder.size
+
+  @Synchronized
+  private fun take(size: Int): Bitmap? {
+    val sizeClass = sizeClassOf(size)
+    val bitmap = takeFitting(sizeClass, size) ?: takeFromLargerClass(sizeClass) ?: return null
+    releaseOrder.remove(bitmap)
+    return bitmap
+  }
+
+  /** Takes the most recently released bitmap of the size class that has at least size bytes. */
+  @GuardedBy("this")
+  private fun takeFitting(sizeClass: Int, size: Int): Bitmap? {
+    val bitmaps = sizeClasses[sizeClass] ?: return null
+    for (i in bitmaps.indices.reversed()) {
+      if (getSize(bitmaps[i]) >= size) {
+        return bitmaps.removeAt(i)
+      }
+    }
+    return null
+  }
+
+  /** Takes a bitmap of the smallest larger size class, all of which are large enough. */
+  @GuardedBy("this")
+  private fun takeFromLargerClass(sizeClass: Int): Bitmap? {
+    val lastSizeClass = minOf(sizeClass + classesPerDoubling, sizeClasses.size - 1)
+    for (i in sizeClass + 1..lastSizeClass) {
+      sizeClasses[i]?.removeLastOrNull()?.let {
+        return it
+      }
+    }
+    return null
+  }
+
+  private fun sizeClassOf(size: Int): Int {
+    if (size <= 1) {
+      return 0
+    }
+    val doubling = Int.SIZE_BITS - 1 - Integer.numberOfLeadingZeros(size)
+    val doublingStart = 1L shl doubling
+    val step = (size - doublingStart) * classesPerDoubling / doublingStart
+    return doubling * classesPerDoubling + step.toInt()
+  }
+
+  private fun isReusable(bitmap: Bitmap): Boolean {
+    if (bitmap.isRecycled) {
+      FLog.wtf(TAG, "Cannot reuse a recycled bitmap: %s", bitmap)
+      return false
+    }
+    if (!bitmap.isMutable) {
+      FLog.wtf(TAG, "Cannot reuse an immutable bitmap: %s", bitmap)
+      return false
+    }
+    return true
+  }
+
+  companion object {
+    private const val TAG = "SizeClassBitmapPoolBackend"
+
+    /** Power-of-two size classes. */
+    const val DEFAULT_CLASSES_PER_DOUBLING = 1
+
+    const val MAX_CLASSES_PER_DOUBLING = 16
+  }
+}
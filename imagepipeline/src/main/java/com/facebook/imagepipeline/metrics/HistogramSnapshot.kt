@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+/** Counts of the buckets of a [LatencyHistogram] at some point in time, or between two. */
+class HistogramSnapshot(private val bucketCounts: LongArray, val sumMicros: Long) {
+
+  /** Number of durations recorded. */
+  val count: Long = bucketCounts.sum()
+
+  val meanMicros: Long
+    get() = if (count == 0L) 0 else sumMicros / count
+
+  fun getBucketCount(bucket: Int): Long = bucketCounts[bucket]
+
+  /**
+   * Returns the upper bound of the bucket of the given percentile, so at most twice the actual
+   * duration, or 0 if no duration was recorded.
+   *
+   * @param percentile percentile in (0, 100]
+   */
+  fun getPercentileMicros(percentile: Double): Long {
+    if (count == 0L) {
+      return 0
+    }
+    val rank = Math.max(1L, Math.ceil(percentile / 100 * count).toLong())
+    var seen = 0L
+    for (bucket in bucketCounts.indices) {
+      seen += bucketCounts[bucket]
+      if (seen >= rank) {
+        return LatencyHistogram.getBucketUpperBoundMicros(bucket)
+      }
+    }
+    return LatencyHistogram.getBucketUpperBoundMicros(bucketCounts.size - 1)
+  }
+
+  /** Returns the durations recorded since [previous], a snapshot of the same histogram. */
+  fun diff(previous: HistogramSnapshot): HistogramSnapshot =
+      HistogramSnapshot(
+          LongArray(bucketCounts.size) { bucketCounts[it] - previous.bucketCounts[it] },
+          sumMicros - previous.sumMicros,
+      )
+
+  /** Returns the durations recorded in this snapshot and in [other]. */
+  operator fun plus(other: HistogramSnapshot): HistogramSnapshot =
+      HistogramSnapshot(
+          LongArray(bucketCounts.size) { bucketCounts[it] + other.bucketCounts[it] },
+          sumMicros + other.sumMicros,
+      )
+
+  override fun toString(): String =
+      "count=$count, mean=${meanMicros}us, p50=${getPercentileMicros(50.0)}us, " +
+          "p95=${getPercentileMicros(95.0)}us, p99=${getPercentileMicros(99.0)}us"
+
+  companion object {
+    @JvmField val EMPTY = HistogramSnapshot(LongArray(LatencyHistogram.BUCKET_COUNT), 0)
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.common.internal.Preconditions
+import java.util.concurrent.atomic.AtomicLongArray
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * Histogram of durations in fixed buckets of powers of 2 microseconds, from 1 µs to about 67 s.
+ *
+ * Like [StripedCounter], each thread records in the row of counts of its id, and rows are whole
+ * cache lines apart. Recording a duration is two atomic additions, and does not allocate.
+ */
+@ThreadSafe
+class LatencyHistogram
+@JvmOverloads
+constructor(private val stripeCount: Int = StripedCounter.DEFAULT_STRIPE_COUNT) {
+
+  init {
+    Preconditions.checkArgument(stripeCount > 0)
+  }
+
+  // Row of each stripe: the sum of the durations, then the count of each bucket
+  private val cells = AtomicLongArray(stripeCount * ROW_STRIDE)
+
+  fun recordNanos(durationNanos: Long) {
+    recordMicros(durationNanos / 1000)
+  }
+
+  fun recordMicros(durationMicros: Long) {
+    val micros = Math.max(0L, durationMicros)
+    val row = StripedCounter.currentStripe(stripeCount) * ROW_STRIDE
+    cells.getAndAdd(row, micros)
+    cells.getAndIncrement(row + 1 + getBucket(micros))
+  }
+
+  /** Returns the counts of the buckets, which are not an atomic snapshot if durations are added. */
+  fun snapshot(): HistogramSnapshot {
+    val bucketCounts = LongArray(BUCKET_COUNT)
+    var sumMicros = 0L
+    for (stripe in 0 until stripeCount) {
+      val row = stripe * ROW_STRIDE
+      sumMicros += cells.get(row)
+      for (bucket in 0 until BUCKET_COUNT) {
+        bucketCounts[bucket] += cells.get(row + 1 + bucket)
+      }
+    }
+    return HistogramSnapshot(bucketCounts, sumMicros)
+  }
+
+  companion object {
+    /**
+     * Number of buckets. Bucket 0 counts durations up to 1 µs, bucket i durations in (2^(i-1),
+     * 2^i] µs, and the last bucket durations longer than 2^(BUCKET_COUNT - 2) µs.
+     */
+    const val BUCKET_COUNT = 28
+
+    private val ROW_STRIDE =
+        (1 + BUCKET_COUNT + StripedCounter.CELL_STRIDE - 1) /
+            StripedCounter.CELL_STRIDE *
+            StripedCounter.CELL_STRIDE
+
+    @JvmStatic
+    fun getBucket(durationMicros: Long): Int =
+        if (durationMicros <= 1) 0
+        else Math.min(BUCKET_COUNT - 1, 64 - (durationMicros - 1).countLeadingZeroBits())
+
+    /** Returns the longest duration counted by the bucket, [Long.MAX_VALUE] for the last one. */
+    @JvmStatic
+    fun getBucketUpperBoundMicros(bucket: Int): Long =
+        if (bucket >= BUCKET_COUNT - 1) Long.MAX_VALUE else 1L shl bucket
+  }
+}
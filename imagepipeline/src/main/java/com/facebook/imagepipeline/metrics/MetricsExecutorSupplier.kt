@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.imagepipeline.common.Priority
+import com.facebook.imagepipeline.core.ExecutorSupplier
+import com.facebook.imagepipeline.core.PrioritizedRunnable
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+
+/**
+ * [ExecutorSupplier] measuring the executors of [delegate] in [PipelineMetrics]: the number of
+ * tasks waiting to run as gauge "executor.<executor>.queue_depth", and the time tasks wait and run
+ * as histograms "executor.<executor>.wait_time" and "executor.<executor>.run_time".
+ *
+ * The scheduled executor service is not measured.
+ */
+class MetricsExecutorSupplier(
+    private val delegate: ExecutorSupplier,
+    private val metrics: PipelineMetrics,
+) : ExecutorSupplier {
+
+  private val localStorageRead by lazy {
+    MeasuredExecutor(delegate.forLocalStorageRead(), "local_storage_read")
+  }
+  private val localStorageWrite by lazy {
+    MeasuredExecutor(delegate.forLocalStorageWrite(), "local_storage_write")
+  }
+  private val decode by lazy { MeasuredExecutor(delegate.forDecode(), "decode") }
+  private val backgroundTasks by lazy {
+    MeasuredExecutor(delegate.forBackgroundTasks(), "background")
+  }
+  private val lightweightBackgroundTasks by lazy {
+    MeasuredExecutor(delegate.forLightweightBackgroundTasks(), "lightweight_background")
+  }
+  private val thumbnailProducer by lazy {
+    MeasuredExecutor(delegate.forThumbnailProducer(), "thumbnail")
+  }
+
+  override fun forLocalStorageRead(): Executor = localStorageRead
+
+  override fun forLocalStorageWrite(): Executor = localStorageWrite
+
+  override fun forDecode(): Executor = decode
+
+  override fun forBackgroundTasks(): Executor = backgroundTasks
+
+  override fun scheduledExecutorServiceForBackgroundTasks(): ScheduledExecutorService? =
+      delegate.scheduledExecutorServiceForBackgroundTasks()
+
+  override fun forLightweightBackgroundTasks(): Executor = lightweightBackgroundTasks
+
+  override fun forThumbnailProducer(): Executor = thumbnailProducer
+
+  private inner class MeasuredExecutor(private val executor: Executor, name: String) : Executor {
+
+    private val queueDepth = metrics.gauge("executor.$name.queue_depth")
+    private val waitTime = metrics.histogram("executor.$name.wait_time")
+    private val runTime = metrics.histogram("executor.$name.run_time")
+
+    override fun execute(command: Runnable) {
+      val submitNanos = metrics.clock.nowNanos()
+      queueDepth.increment()
+      try {
+        // Keeps the priority of the tasks that a priority executor queues by priority
+        executor.execute(
+            if (command is PrioritizedRunnable) {
+              MeasuredPrioritizedRunnable(command, submitNanos)
+            } else {
+              MeasuredRunnable(command, submitNanos)
+            })
+      } catch (e: RejectedExecutionException) {
+        queueDepth.decrement()
+        throw e
+      }
+    }
+
+    private open inner class MeasuredRunnable(
+        private val command: Runnable,
+        private val submitNanos: Long,
+    ) : Runnable {
+
+      override fun run() {
+        val clock = metrics.clock
+        val startNanos = clock.nowNanos()
+        queueDepth.decrement()
+        waitTime.recordNanos(startNanos - submitNanos)
+        try {
+          command.run()
+        } finally {
+          runTime.recordNanos(clock.nowNanos() - startNanos)
+        }
+      }
+    }
+
+    private inner class MeasuredPrioritizedRunnable(
+        private val command: PrioritizedRunnable,
+        submitNanos: Long,
+    ) : MeasuredRunnable(command, submitNanos), PrioritizedRunnable {
+
+      override val priority: Priority
+        get() = command.priority
+
+      override fun setPriorityChangeListener(listener: Runnable?) {
+        command.setPriorityChangeListener(listener)
+      }
+    }
+  }
+}
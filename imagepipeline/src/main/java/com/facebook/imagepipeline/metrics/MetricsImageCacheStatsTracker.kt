@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.cache.common.CacheKey
+import com.facebook.imagepipeline.cache.ImageCacheStatsTracker
+import com.facebook.imagepipeline.cache.MemoryCache
+
+/**
+ * [ImageCacheStatsTracker] counting the hits, misses and puts of each cache, and the writes dropped
+ * by the staging area, in [PipelineMetrics], as "cache.<cache>.<event>".
+ */
+class MetricsImageCacheStatsTracker(metrics: PipelineMetrics) : ImageCacheStatsTracker {
+
+  private val bitmapCacheHits = metrics.counter(BITMAP_CACHE + HIT)
+  private val bitmapCacheMisses = metrics.counter(BITMAP_CACHE + MISS)
+  private val bitmapCachePuts = metrics.counter(BITMAP_CACHE + PUT)
+  private val memoryCacheHits = metrics.counter(ENCODED_MEMORY_CACHE + HIT)
+  private val memoryCacheMisses = metrics.counter(ENCODED_MEMORY_CACHE + MISS)
+  private val memoryCachePuts = metrics.counter(ENCODED_MEMORY_CACHE + PUT)
+  private val stagingAreaHits = metrics.counter(STAGING_AREA + HIT)
+  private val stagingAreaMisses = metrics.counter(STAGING_AREA + MISS)
+  private val stagingAreaDrops = metrics.counter(STAGING_AREA + DROP)
+  private val diskCacheHits = metrics.counter(DISK_CACHE + HIT)
+  private val diskCacheMisses = metrics.counter(DISK_CACHE + MISS)
+  private val diskCacheGetFailures = metrics.counter(DISK_CACHE + GET_FAIL)
+  private val diskCachePuts = metrics.counter(DISK_CACHE + PUT)
+  private val diskCacheBatchWrites = metrics.counter(DISK_CACHE + BATCH_WRITE)
+  private val diskCacheBatchWriteBytes = metrics.counter(DISK_CACHE + BATCH_WRITE + "_bytes")
+  private val diskCacheBatchWriteTime = metrics.histogram(DISK_CACHE + BATCH_WRITE + "_time")
+
+  override fun onBitmapCachePut(cacheKey: CacheKey) = bitmapCachePuts.increment()
+
+  override fun onBitmapCacheHit(cacheKey: CacheKey) = bitmapCacheHits.increment()
+
+  override fun onBitmapCacheMiss(cacheKey: CacheKey) = bitmapCacheMisses.increment()
+
+  override fun onMemoryCachePut(cacheKey: CacheKey) = memoryCachePuts.increment()
+
+  override fun onMemoryCacheHit(cacheKey: CacheKey) = memoryCacheHits.increment()
+
+  override fun onMemoryCacheMiss(cacheKey: CacheKey) = memoryCacheMisses.increment()
+
+  override fun onStagingAreaHit(cacheKey: CacheKey) = stagingAreaHits.increment()
+
+  override fun onStagingAreaMiss(cacheKey: CacheKey) = stagingAreaMisses.increment()
+
+  override fun onStagingAreaDrop(cacheKey: CacheKey) = stagingAreaDrops.increment()
+
+  override fun onDiskCacheHit(cacheKey: CacheKey) = diskCacheHits.increment()
+
+  override fun onDiskCacheMiss(cacheKey: CacheKey) = diskCacheMisses.increment()
+
+  override fun onDiskCacheGetFail(cacheKey: CacheKey) = diskCacheGetFailures.increment()
+
+  override fun onDiskCachePut(cacheKey: CacheKey) = diskCachePuts.increment()
+
+  override fun onDiskCacheBatchWrite(batchSize: Int, byteCount: Long, durationMs: Long) {
+    diskCacheBatchWrites.increment()
+    diskCacheBatchWriteBytes.add(byteCount)
+    diskCacheBatchWriteTime.recordMicros(durationMs * 1000)
+  }
+
+  override fun registerBitmapMemoryCache(bitmapMemoryCache: MemoryCache<*, *>) = Unit
+
+  override fun registerEncodedMemoryCache(encodedMemoryCache: MemoryCache<*, *>) = Unit
+
+  companion object {
+    const val BITMAP_CACHE = "cache.bitmap."
+    const val ENCODED_MEMORY_CACHE = "cache.encoded_memory."
+    const val STAGING_AREA = "cache.staging_area."
+    const val DISK_CACHE = "cache.disk."
+
+    const val HIT = "hit"
+    const val MISS = "miss"
+    const val PUT = "put"
+    const val GET_FAIL = "get_fail"
+    const val DROP = "drop"
+    const val BATCH_WRITE = "batch_write"
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.imagepipeline.memory.BasePool
+import com.facebook.imagepipeline.memory.PoolStatsTracker
+
+/**
+ * [PoolStatsTracker] counting the reuses, allocations, releases and frees of values of a pool in
+ * [PipelineMetrics], as "pool.<poolName>.<event>" and "pool.<poolName>.<event>_bytes".
+ *
+ * Each pool needs its own tracker, for example "bitmap" for
+ * [com.facebook.imagepipeline.memory.PoolConfig.Builder.setBitmapPoolStatsTracker].
+ */
+class MetricsPoolStatsTracker(metrics: PipelineMetrics, poolName: String) : PoolStatsTracker {
+
+  private val prefix = "pool.$poolName."
+  private val reuses = metrics.counter(prefix + REUSE)
+  private val reuseWasteBytes = metrics.counter(prefix + REUSE + "_waste_bytes")
+  private val allocs = metrics.counter(prefix + ALLOC)
+  private val allocBytes = metrics.counter(prefix + ALLOC + BYTES)
+  private val releases = metrics.counter(prefix + RELEASE)
+  private val releaseBytes = metrics.counter(prefix + RELEASE + BYTES)
+  private val frees = metrics.counter(prefix + FREE)
+  private val freeBytes = metrics.counter(prefix + FREE + BYTES)
+
+  override fun setBasePool(basePool: BasePool<*>) = Unit
+
+  override fun onValueReuse(bucketedSize: Int) = reuses.increment()
+
+  override fun onValueReuseWaste(wastedBytes: Int) = reuseWasteBytes.add(wastedBytes.toLong())
+
+  override fun onAlloc(size: Int) {
+    allocs.increment()
+    allocBytes.add(size.toLong())
+  }
+
+  override fun onFree(sizeInBytes: Int) {
+    frees.increment()
+    freeBytes.add(sizeInBytes.toLong())
+  }
+
+  override fun onValueRelease(sizeInBytes: Int) {
+    releases.increment()
+    releaseBytes.add(sizeInBytes.toLong())
+  }
+
+  companion object {
+    const val REUSE = "reuse"
+    const val ALLOC = "alloc"
+    const val RELEASE = "release"
+    const val FREE = "free"
+    const val BYTES = "_bytes"
+  }
+}
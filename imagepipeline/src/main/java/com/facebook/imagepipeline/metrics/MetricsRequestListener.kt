@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.imagepipeline.listener.BaseRequestListener2
+import com.facebook.imagepipeline.producers.ProducerContext
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * [com.facebook.imagepipeline.listener.RequestListener2] measuring requests and producers in
+ * [PipelineMetrics]:
+ * - the outcomes of requests as counters "request.<success|failure|cancellation>", and their
+ *   latency as histogram "request.latency"
+ * - the outcomes of each producer as counters "producer.<producer>.<success|failure|cancellation>",
+ *   and their latency as histogram "producer.<producer>.latency"
+ */
+class MetricsRequestListener(private val metrics: PipelineMetrics) : BaseRequestListener2() {
+
+  private val requestMetrics = OutcomeMetrics(metrics, "request.")
+  private val producerMetrics = ConcurrentHashMap<String, OutcomeMetrics>()
+
+  // Start times of the requests in flight, by request id
+  private val requests = ConcurrentHashMap<String, RequestStartTimes>()
+
+  override fun onRequestStart(producerContext: ProducerContext) {
+    requests[producerContext.id] = RequestStartTimes(metrics.clock.nowNanos())
+  }
+
+  override fun onRequestSuccess(producerContext: ProducerContext) {
+    onRequestFinish(producerContext, requestMetrics.successes)
+  }
+
+  override fun onRequestFailure(producerContext: ProducerContext, throwable: Throwable?) {
+    onRequestFinish(producerContext, requestMetrics.failures)
+  }
+
+  override fun onRequestCancellation(producerContext: ProducerContext) {
+    onRequestFinish(producerContext, requestMetrics.cancellations)
+  }
+
+  override fun onProducerStart(producerContext: ProducerContext, producerName: String) {
+    // Not for the producers of finished requests, whose ids multiplexed requests may still use
+    val request = requests[producerContext.id] ?: return
+    val startNanos = metrics.clock.nowNanos()
+    synchronized(request) { request.producers[producerName] = startNanos }
+  }
+
+  override fun onProducerFinishWithSuccess(
+      producerContext: ProducerContext,
+      producerName: String,
+      extraMap: Map<String, String>?,
+  ) {
+    val producer = getProducerMetrics(producerName)
+    onProducerFinish(producerContext, producerName, producer, producer.successes)
+  }
+
+  override fun onProducerFinishWithFailure(
+      producerContext: ProducerContext,
+      producerName: String,
+      t: Throwable?,
+      extraMap: Map<String, String>?,
+  ) {
+    val producer = getProducerMetrics(producerName)
+    onProducerFinish(producerContext, producerName, producer, producer.failures)
+  }
+
+  override fun onProducerFinishWithCancellation(
+      producerContext: ProducerContext,
+      producerName: String,
+      extraMap: Map<String, String>?,
+  ) {
+    val producer = getProducerMetrics(producerName)
+    onProducerFinish(producerContext, producerName, producer, producer.cancellations)
+  }
+
+  private fun onRequestFinish(producerContext: ProducerContext, outcome: StripedCounter) {
+    outcome.increment()
+    val request = requests.remove(producerContext.id) ?: return
+    requestMetrics.latency.recordNanos(metrics.clock.nowNanos() - request.startNanos)
+  }
+
+  private fun onProducerFinish(
+      producerContext: ProducerContext,
+      producerName: String,
+      producer: OutcomeMetrics,
+      outcome: StripedCounter,
+  ) {
+    outcome.increment()
+    val request = requests[producerContext.id] ?: return
+    val startNanos = synchronized(request) { request.producers.remove(producerName) } ?: return
+    producer.latency.recordNanos(metrics.clock.nowNanos() - startNanos)
+  }
+
+  private fun getProducerMetrics(producerName: String): OutcomeMetrics =
+      producerMetrics.getOrPut(producerName) {
+        OutcomeMetrics(metrics, "producer.$producerName.")
+      }
+
+  private class RequestStartTimes(val startNanos: Long) {
+    // Start times of the producers running, guarded by this
+    val producers = HashMap<String, Long>()
+  }
+
+  private class OutcomeMetrics(metrics: PipelineMetrics, prefix: String) {
+    val successes = metrics.counter(prefix + SUCCESS)
+    val failures = metrics.counter(prefix + FAILURE)
+    val cancellations = metrics.counter(prefix + CANCELLATION)
+    val latency = metrics.histogram(prefix + LATENCY)
+  }
+
+  companion object {
+    const val SUCCESS = "success"
+    const val FAILURE = "failure"
+    const val CANCELLATION = "cancellation"
+    const val LATENCY = "latency"
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+/**
+ * Values of the metrics of a [PipelineMetrics] over an interval of time: since the creation of the
+ * registry for [PipelineMetrics.snapshot], or between two snapshots for [diff].
+ *
+ * @param startNanos start of the interval, on the clock of the registry
+ * @param endNanos end of the interval, on the clock of the registry
+ */
+class MetricsSnapshot(
+    val startNanos: Long,
+    val endNanos: Long,
+    val counters: Map<String, Long>,
+    val gauges: Map<String, Long>,
+    val histograms: Map<String, HistogramSnapshot>,
+) {
+
+  /**
+   * Returns the metrics between [previous], an earlier snapshot of the same registry, and this one.
+   * Counters and histograms only count what happened in between, gauges keep their current value.
+   */
+  fun diff(previous: MetricsSnapshot): MetricsSnapshot =
+      MetricsSnapshot(
+          previous.endNanos,
+          endNanos,
+          counters.mapValues { (name, value) -> value - (previous.counters[name] ?: 0L) },
+          gauges,
+          histograms.mapValues { (name, histogram) ->
+            histogram.diff(previous.histograms[name] ?: HistogramSnapshot.EMPTY)
+          },
+      )
+
+  override fun toString(): String {
+    val builder = StringBuilder()
+    builder.append("interval=").append((endNanos - startNanos) / 1_000_000).append("ms")
+    for ((name, value) in counters.toSortedMap()) {
+      builder.append('\n').append(name).append('=').append(value)
+    }
+    for ((name, value) in gauges.toSortedMap()) {
+      builder.append('\n').append(name).append('=').append(value)
+    }
+    for ((name, histogram) in histograms.toSortedMap()) {
+      builder.append('\n').append(name).append(": ").append(histogram)
+    }
+    return builder.toString()
+  }
+}
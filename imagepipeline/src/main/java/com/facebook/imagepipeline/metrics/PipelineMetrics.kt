@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.common.time.AwakeTimeSinceBootClock
+import com.facebook.common.time.MonotonicNanoClock
+import java.util.concurrent.ConcurrentHashMap
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * Registry of the counters, gauges and latency histograms of an image pipeline.
+ *
+ * Metrics are created on first use, and are meant to be looked up once and kept by the components
+ * updating them: updates are lock-free and do not allocate. They are fed by
+ * [MetricsImageCacheStatsTracker], [MetricsPoolStatsTracker], [MetricsRequestListener] and
+ * [MetricsExecutorSupplier], passed to the pipeline config, and by any app-defined metric.
+ *
+ * [snapshot] is cheap enough to be polled every minute or so, exporting the [MetricsSnapshot.diff]
+ * with the previous snapshot.
+ */
+@ThreadSafe
+class PipelineMetrics
+@JvmOverloads
+constructor(
+    val clock: MonotonicNanoClock = AwakeTimeSinceBootClock.get(),
+    private val stripeCount: Int = StripedCounter.DEFAULT_STRIPE_COUNT,
+) {
+
+  private val startNanos = clock.nowNanos()
+  private val counters = ConcurrentHashMap<String, StripedCounter>()
+  private val gauges = ConcurrentHashMap<String, StripedCounter>()
+  private val histograms = ConcurrentHashMap<String, LatencyHistogram>()
+
+  /** Returns the counter of the given name, which only goes up. */
+  fun counter(name: String): StripedCounter =
+      counters.getOrPut(name) { StripedCounter(stripeCount) }
+
+  /** Returns the gauge of the given name, a counter that goes up and down. */
+  fun gauge(name: String): StripedCounter = gauges.getOrPut(name) { StripedCounter(stripeCount) }
+
+  fun histogram(name: String): LatencyHistogram =
+      histograms.getOrPut(name) { LatencyHistogram(stripeCount) }
+
+  /** Returns the values of all the metrics since the creation of this registry. */
+  fun snapshot(): MetricsSnapshot =
+      MetricsSnapshot(
+          startNanos,
+          clock.nowNanos(),
+          counters.mapValues { it.value.sum() },
+          gauges.mapValues { it.value.sum() },
+          histograms.mapValues { it.value.snapshot() },
+      )
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import androidx.core.util.Pools
+import com.facebook.fresco.middleware.HasExtraData
+import com.facebook.imagepipeline.listener.BaseRequestListener2
+import com.facebook.imagepipeline.producers.DecodeProducer
+import com.facebook.imagepipeline.producers.DiskCacheReadProducer
+import com.facebook.imagepipeline.producers.NetworkFetchProducer
+import com.facebook.imagepipeline.producers.PartialDiskCacheProducer
+import com.facebook.imagepipeline.producers.PostprocessorProducer
+import com.facebook.imagepipeline.producers.ProducerContext
+import com.facebook.imagepipeline.producers.ThreadHandoffProducer
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * [com.facebook.imagepipeline.listener.RequestListener2] breaking the time of each request down in
+ * [Stage]s, from producer events and their extras, and recording the stages of successful requests
+ * in latency histograms "timeline.<group>.<stage>" of [PipelineMetrics]. Requests are grouped by
+ * [groupSelector], by origin by default, to find the stage of the p95 bottleneck of each group with
+ * [getSlowestStage].
+ *
+ * The timeline of a request is two arrays of longs, taken from a pool, and the events do not
+ * allocate. Events check under the lock of the timeline that it still belongs to their request, as
+ * it can be released and reused by another request after they read it.
+ */
+class RequestTimelineListener
+@JvmOverloads
+constructor(
+    private val metrics: PipelineMetrics,
+    private val groupSelector: GroupSelector = GroupSelector.ORIGIN,
+) : BaseRequestListener2() {
+
+  /** Stages of a request. They do not overlap, except [TOTAL] covering the whole request. */
+  enum class Stage(val metricName: String) {
+    /** Waiting to be handed off to the lightweight background executor. */
+    HANDOFF_QUEUE("handoff_queue"),
+    /** Reading from the disk cache, including waiting for the disk executor. */
+    DISK_READ("disk_read"),
+    /**
+     * Waiting for the response, as reported by the network fetcher as "queue_time": queued on its
+     * executor, and also connecting for HttpUrlConnectionNetworkFetcher.
+     */
+    NETWORK_WAIT("network_wait"),
+    /** Downloading, after the response started. */
+    NETWORK("network"),
+    /** Waiting for the decode executor, and the minimum time between decodes. */
+    DECODE_QUEUE("decode_queue"),
+    DECODE("decode"),
+    /** Waiting for the background executor to resize or rotate the encoded image. */
+    TRANSCODE_QUEUE("transcode_queue"),
+    TRANSCODE("transcode"),
+    POSTPROCESS("postprocess"),
+    /** From the last producer finishing to the image being handed to the subscribers. */
+    UI_HANDOFF("ui_handoff"),
+    TOTAL("total"),
+  }
+
+  /** Selects the group of the request, among a few, whose stages are recorded together. */
+  fun interface GroupSelector {
+    fun getGroup(producerContext: ProducerContext): String
+
+    companion object {
+      /** Groups requests by origin, like "network", "disk" or "memory_bitmap". */
+      @JvmField
+      val ORIGIN = GroupSelector { getOrigin(it) }
+
+      /**
+       * Groups requests by origin and caller context. The caller context should be one of a few
+       * strings, like the name of a surface; for other objects, their class is used.
+       */
+      @JvmField
+      val ORIGIN_AND_CALLER_CONTEXT = GroupSelector {
+        val callerContext = it.callerContext
+        val caller = callerContext as? String ?: callerContext.javaClass.simpleName
+        getOrigin(it) + "." + caller
+      }
+
+      private fun getOrigin(producerContext: ProducerContext): String =
+          producerContext.getExtra<String>(HasExtraData.KEY_ORIGIN) ?: "unknown"
+    }
+  }
+
+  private val timelines = ConcurrentHashMap<String, Timeline>()
+  private val timelinePool = Pools.SynchronizedPool<Timeline>(MAX_POOLED_TIMELINES)
+  private val groupHistograms = ConcurrentHashMap<String, Array<LatencyHistogram>>()
+
+  override fun onRequestStart(producerContext: ProducerContext) {
+    val timeline = timelinePool.acquire() ?: Timeline()
+    synchronized(timeline) {
+      timeline.requestId = producerContext.id
+      timeline.startNanos = metrics.clock.nowNanos()
+    }
+    timelines.put(producerContext.id, timeline)?.let { release(it) }
+  }
+
+  override fun onRequestSuccess(producerContext: ProducerContext) {
+    val timeline = timelines.remove(producerContext.id) ?: return
+    val nowNanos = metrics.clock.nowNanos()
+    val group = groupSelector.getGroup(producerContext)
+    val histograms = groupHistograms.getOrPut(group) { createHistograms(group) }
+    synchronized(timeline) {
+      if (timeline.lastProducerFinishNanos != NOT_SET) {
+        timeline.add(Stage.UI_HANDOFF, nowNanos - timeline.lastProducerFinishNanos)
+      }
+      timeline.add(Stage.TOTAL, nowNanos - timeline.startNanos)
+      for (stage in STAGES) {
+        if (timeline.hasStage(stage)) {
+          histograms[stage.ordinal].recordNanos(timeline.stageNanos[stage.ordinal])
+        }
+      }
+    }
+    release(timeline)
+  }
+
+  override fun onRequestFailure(producerContext: ProducerContext, throwable: Throwable?) {
+    timelines.remove(producerContext.id)?.let { release(it) }
+  }
+
+  override fun onRequestCancellation(producerContext: ProducerContext) {
+    timelines.remove(producerContext.id)?.let { release(it) }
+  }
+
+  override fun onProducerStart(producerContext: ProducerContext, producerName: String) {
+    val stage = getStage(producerName) ?: return
+    val timeline = timelines[producerContext.id] ?: return
+    synchronized(timeline) {
+      if (timeline.requestId == producerContext.id) {
+        timeline.producerStartNanos[stage.ordinal] = metrics.clock.nowNanos()
+      }
+    }
+  }
+
+  override fun onProducerFinishWithSuccess(
+      producerContext: ProducerContext,
+      producerName: String,
+      extraMap: Map<String, String>?,
+  ) {
+    onProducerFinish(producerContext, producerName, extraMap)
+  }
+
+  override fun onProducerFinishWithFailure(
+      producerContext: ProducerContext,
+      producerName: String,
+      t: Throwable?,
+      extraMap: Map<String, String>?,
+  ) {
+    onProducerFinish(producerContext, producerName, extraMap)
+  }
+
+  override fun onProducerFinishWithCancellation(
+      producerContext: ProducerContext,
+      producerName: String,
+      extraMap: Map<String, String>?,
+  ) {
+    onProducerFinish(producerContext, producerName, extraMap)
+  }
+
+  override fun requiresExtraMap(producerContext: ProducerContext, producerName: String): Boolean =
+      producerName == DecodeProducer.PRODUCER_NAME ||
+          producerName == RESIZE_AND_ROTATE_PRODUCER ||
+          producerName == NetworkFetchProducer.PRODUCER_NAME
+
+  private fun onProducerFinish(
+      producerContext: ProducerContext,
+      producerName: String,
+      extraMap: Map<String, String>?,
+  ) {
+    val timeline = timelines[producerContext.id] ?: return
+    val nowNanos = metrics.clock.nowNanos()
+    synchronized(timeline) {
+      if (timeline.requestId != producerContext.id) {
+        return
+      }
+      timeline.lastProducerFinishNanos = nowNanos
+      val stage = getStage(producerName) ?: return
+      val startNanos = timeline.producerStartNanos[stage.ordinal]
+      if (startNanos == NOT_SET) {
+        return
+      }
+      timeline.producerStartNanos[stage.ordinal] = NOT_SET
+      var durationNanos = nowNanos - startNanos
+      val queueStage =
+          when (stage) {
+            Stage.DECODE -> Stage.DECODE_QUEUE
+            Stage.TRANSCODE -> Stage.TRANSCODE_QUEUE
+            Stage.NETWORK -> Stage.NETWORK_WAIT
+            else -> null
+          }
+      val queueTimeKey = if (stage == Stage.NETWORK) NETWORK_QUEUE_TIME else QUEUE_TIME
+      val queueTimeMs = extraMap?.get(queueTimeKey)
+      val queueNanos = (queueTimeMs?.toLongOrNull() ?: -1L) * 1_000_000
+      if (queueStage != null && queueNanos >= 0) {
+        timeline.add(queueStage, queueNanos)
+        if (stage == Stage.NETWORK) {
+          // The network fetcher waits within the producer
+          durationNanos = Math.max(0L, durationNanos - queueNanos)
+        }
+      }
+      timeline.add(stage, durationNanos)
+    }
+  }
+
+  private fun createHistograms(group: String): Array<LatencyHistogram> =
+      Array(STAGES.size) { metrics.histogram(getMetricName(group, STAGES[it])) }
+
+  private fun release(timeline: Timeline) {
+    synchronized(timeline) { timeline.reset() }
+    timelinePool.release(timeline)
+  }
+
+  /** Time spent in each stage by a request. Guarded by itself. */
+  private class Timeline {
+    // Id of the request the timeline belongs to, or null while it is in the pool
+    var requestId: String? = null
+    var startNanos = 0L
+    var lastProducerFinishNanos = NOT_SET
+    var stagesSeen = 0
+    val stageNanos = LongArray(STAGES.size)
+    // Start of the producer of each stage running, or NOT_SET
+    val producerStartNanos = LongArray(STAGES.size) { NOT_SET }
+
+    fun add(stage: Stage, durationNanos: Long) {
+      stageNanos[stage.ordinal] += durationNanos
+      stagesSeen = stagesSeen or (1 shl stage.ordinal)
+    }
+
+    fun hasStage(stage: Stage): Boolean = stagesSeen and (1 shl stage.ordinal) != 0
+
+    fun reset() {
+      requestId = null
+      startNanos = 0
+      lastProducerFinishNanos = NOT_SET
+      stagesSeen = 0
+      stageNanos.fill(0)
+      producerStartNanos.fill(NOT_SET)
+    }
+  }
+
+  companion object {
+    private val STAGES = Stage.values()
+    private const val MAX_POOLED_TIMELINES = 32
+    private const val NOT_SET = -1L
+
+    // Extras of the producers, in milliseconds
+    private const val QUEUE_TIME = "queueTime"
+    private const val NETWORK_QUEUE_TIME = "queue_time"
+
+    private const val RESIZE_AND_ROTATE_PRODUCER = "ResizeAndRotateProducer"
+
+    @JvmStatic
+    fun getMetricName(group: String, stage: Stage): String = "timeline.$group.${stage.metricName}"
+
+    /**
+     * Returns the stage whose given percentile is the longest for the group, which is the
+     * bottleneck of the requests of the group for that percentile, or null if no request of the
+     * group is in the snapshot.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun getSlowestStage(
+        snapshot: MetricsSnapshot,
+        group: String,
+        percentile: Double = 95.0,
+    ): Stage? {
+      var slowestStage: Stage? = null
+      var slowestMicros = -1L
+      for (stage in STAGES) {
+        if (stage == Stage.TOTAL) {
+          continue
+        }
+        val histogram = snapshot.histograms[getMetricName(group, stage)] ?: continue
+        if (histogram.count == 0L) {
+          continue
+        }
+        val micros = histogram.getPercentileMicros(percentile)
+        if (micros > slowestMicros) {
+          slowestStage = stage
+          slowestMicros = micros
+        }
+      }
+      return slowestStage
+    }
+
+    private fun getStage(producerName: String): Stage? =
+        when (producerName) {
+          ThreadHandoffProducer.PRODUCER_NAME -> Stage.HANDOFF_QUEUE
+          DiskCacheReadProducer.PRODUCER_NAME,
+          PartialDiskCacheProducer.PRODUCER_NAME -> Stage.DISK_READ
+          NetworkFetchProducer.PRODUCER_NAME -> Stage.NETWORK
+          DecodeProducer.PRODUCER_NAME -> Stage.DECODE
+          RESIZE_AND_ROTATE_PRODUCER -> Stage.TRANSCODE
+          PostprocessorProducer.NAME -> Stage.POSTPROCESS
+          else -> null
+        }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.common.internal.Preconditions
+import java.util.concurrent.atomic.AtomicLongArray
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * A counter split in cells, like a LongAdder, which is not available before API 24.
+ *
+ * Each thread adds to the cell of its id, so that threads counting at the same time mostly update
+ * different cells. Cells are a cache line apart, so that updating one does not invalidate the cache
+ * line of another on other cores. Reading the value sums all the cells.
+ */
+@ThreadSafe
+class StripedCounter
+@JvmOverloads
+constructor(private val stripeCount: Int = DEFAULT_STRIPE_COUNT) {
+
+  init {
+    Preconditions.checkArgument(stripeCount > 0)
+  }
+
+  private val cells = AtomicLongArray(stripeCount * CELL_STRIDE)
+
+  fun increment() {
+    add(1)
+  }
+
+  fun decrement() {
+    add(-1)
+  }
+
+  fun add(delta: Long) {
+    cells.getAndAdd(currentStripe(stripeCount) * CELL_STRIDE, delta)
+  }
+
+  /** Returns the sum of the cells, which is not an atomic snapshot if the counter is updated. */
+  fun sum(): Long {
+    var sum = 0L
+    for (stripe in 0 until stripeCount) {
+      sum += cells.get(stripe * CELL_STRIDE)
+    }
+    return sum
+  }
+
+  companion object {
+    /** Number of longs in a cache line of 128 bytes. */
+    internal const val CELL_STRIDE = 16
+
+    val DEFAULT_STRIPE_COUNT: Int = Runtime.getRuntime().availableProcessors()
+
+    internal fun currentStripe(stripeCount: Int): Int =
+        (Thread.currentThread().id % stripeCount).toInt()
+  }
+}
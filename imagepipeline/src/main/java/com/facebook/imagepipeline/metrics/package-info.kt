@@ -0,0 +1,12 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+/**
+ * Lock-free counters and latency histograms for the image pipeline, with stats trackers and
+ * listeners feeding them.
+ */
+package com.facebook.imagepipeline.metrics
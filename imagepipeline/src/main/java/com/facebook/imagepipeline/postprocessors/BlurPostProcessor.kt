@@ -13,7 +13,7 @@ import android.renderscript.ScriptIntrinsicBlur
 import com.facebook.cache.common.CacheKey
 import com.facebook.cache.common.SimpleCacheKey
 import com.facebook.common.internal.Preconditions
-import com.facebook.imagepipeline.filter.IterativeBoxBlurFilter
+import com.facebook.imagepipeline.filter.ParallelBoxBlurFilter
 import com.facebook.imagepipeline.filter.RenderScriptBlurFilter
 import com.facebook.imagepipeline.request.BasePostprocessor
 import java.util.Locale
@@ -21,7 +21,8 @@ import java.util.Locale
 /**
  * A java implementation of a blur post processor. This provide two different blurring algorithm,
  * one Gaussian blur using [ScriptIntrinsicBlur] for Android version >= 4.2 and the other one is an
- * in-place iterative box blur algorithm that runs faster than a traditional box blur.
+ * in-place iterative box blur algorithm that runs faster than a traditional box blur, on several
+ * threads with [ParallelBoxBlurFilter].
  */
 class BlurPostProcessor
 /**
@@ -53,7 +54,7 @@ constructor(val blurRadius: Int, val context: Context, val iterations: Int = DEF
   }
 
   override fun process(bitmap: Bitmap) {
-    IterativeBoxBlurFilter.boxBlurBitmapInPlace(bitmap, iterations, blurRadius)
+    ParallelBoxBlurFilter.instance.boxBlurBitmapInPlace(bitmap, iterations, blurRadius)
   }
 
   companion object {
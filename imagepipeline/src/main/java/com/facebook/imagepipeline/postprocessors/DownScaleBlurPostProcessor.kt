@@ -13,7 +13,7 @@ import com.facebook.cache.common.SimpleCacheKey
 import com.facebook.common.internal.Preconditions
 import com.facebook.common.references.CloseableReference
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory
-import com.facebook.imagepipeline.filter.IterativeBoxBlurFilter
+import com.facebook.imagepipeline.filter.ParallelBoxBlurFilter
 import com.facebook.imagepipeline.filter.RenderScriptBlurFilter
 import com.facebook.imagepipeline.request.BasePostprocessor
 import java.util.Locale
@@ -115,7 +115,7 @@ constructor(
 
     try {
       // Apply blur to the downscaled bitmap
-      IterativeBoxBlurFilter.boxBlurBitmapInPlace(
+      ParallelBoxBlurFilter.instance.boxBlurBitmapInPlace(
           downscaled,
           iterations,
           blurRadius,
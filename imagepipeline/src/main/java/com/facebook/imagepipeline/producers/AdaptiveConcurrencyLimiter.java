@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Limits the number of concurrent network fetches, adapting the limit to the observed throughput
+ * and latency (AIMD).
+ *
+ * <p>Fetches started under the current limit are grouped in windows of at least twice {@link
+ * #getLimit()} fetches. The throughput of a window that was limited by the current limit is the
+ * limit times the bytes per millisecond of latency of its fetches. The limit is increased by one
+ * after every such window, unless the previous increase did not make the throughput grow: the link
+ * is then saturated, the extra fetches only share its bandwidth and delay each other, so the limit
+ * is multiplied by {@link #BACKOFF_RATIO}.
+ *
+ * <p>Fetches failing because the link or the server is overloaded, like timeouts, transport errors
+ * and 5xx or 429 responses, also back the limit off. Other failures, like 4xx responses, tell
+ * nothing about the load and only end the fetch.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+@ThreadSafe
+public class AdaptiveConcurrencyLimiter {
+
+  public static final int DEFAULT_INITIAL_LIMIT = 3;
+  public static final int DEFAULT_MIN_LIMIT = 1;
+  public static final int DEFAULT_MAX_LIMIT = 16;
+
+  static final double BACKOFF_RATIO = 0.75;
+  static final int MIN_WINDOW_SIZE = 16;
+
+  private final int mMinLimit;
+  private final int mMaxLimit;
+
+  @GuardedBy("this")
+  private int mLimit;
+
+  @GuardedBy("this")
+  private int mInFlight;
+
+  @GuardedBy("this")
+  private boolean mWindowSaturated;
+
+  @GuardedBy("this")
+  private int mWindowWarmUpCount;
+
+  @GuardedBy("this")
+  private int mWindowCount;
+
+  @GuardedBy("this")
+  private long mWindowBytes;
+
+  @GuardedBy("this")
+  private long mWindowLatencySum;
+
+  @GuardedBy("this")
+  private int mLastLimit;
+
+  @GuardedBy("this")
+  private double mLastThroughput;
+
+  public AdaptiveConcurrencyLimiter() {
+    this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+  }
+
+  public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    Preconditions.checkArgument(minLimit >= 1 && minLimit <= maxLimit);
+    mMinLimit = minLimit;
+    mMaxLimit = maxLimit;
+    mLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  /**
+   * Starts a fetch if the limit allows it.
+   *
+   * @return true if the fetch can start, in which case {@link #onFetchFinished}, {@link
+   *     #onFetchFailed} or {@link #onFetchCancelled} must be called once it is over
+   */
+  public synchronized boolean tryAcquire() {
+    if (mInFlight >= getLimit()) {
+      mWindowSaturated = true;
+      return false;
+    }
+    mInFlight++;
+    if (mInFlight >= getLimit()) {
+      mWindowSaturated = true;
+    }
+    return true;
+  }
+
+  /**
+   * Records a fetch that succeeded.
+   *
+   * @param latencyMs the time from the start of the fetch until its last byte was received
+   * @param byteSize the number of bytes fetched
+   */
+  public synchronized void onFetchFinished(long latencyMs, int byteSize) {
+    if (endFetch()) {
+      return;
+    }
+    mWindowCount++;
+    mWindowBytes += byteSize;
+    mWindowLatencySum += Math.max(1, latencyMs);
+    if (mWindowCount < Math.max(MIN_WINDOW_SIZE, 2 * mLimit)) {
+      return;
+    }
+
+    // only windows that used the whole limit tell how the link copes with it
+    if (mWindowSaturated) {
+      int limit = mLimit;
+      // by Little's law, with limit fetches always running the link delivers this many bytes/ms
+      double throughput = (double) limit * mWindowBytes / mWindowLatencySum;
+      if (limit > mLastLimit && mLastThroughput > 0 && throughput <= mLastThroughput) {
+        backOff();
+      } else {
+        increase();
+      }
+      mLastLimit = limit;
+      mLastThroughput = throughput;
+    }
+    resetWindow();
+  }
+
+  /**
+   * Records a fetch that failed.
+   *
+   * @param overloaded whether the failure shows that the link or the server is overloaded, e.g. a
+   *     timeout, a transport error or a 5xx or 429 response, in which case the limit backs off
+   */
+  public synchronized void onFetchFailed(boolean overloaded) {
+    endFetch();
+    if (overloaded) {
+      backOff();
+      resetWindow();
+    }
+  }
+
+  /** Records a fetch that was cancelled, which tells nothing about the link. */
+  public synchronized void onFetchCancelled() {
+    endFetch();
+  }
+
+  /** The current maximum number of concurrent fetches. */
+  public synchronized int getLimit() {
+    return mLimit;
+  }
+
+  /** The highest limit that can be reached. */
+  public int getMaxLimit() {
+    return mMaxLimit;
+  }
+
+  /** The number of fetches that are currently running. */
+  public synchronized int getInFlight() {
+    return mInFlight;
+  }
+
+  /**
+   * Ends a running fetch. The fetches running when the window started end first, however they end.
+   *
+   * @return true if the fetch started under a previous limit and is not part of the window
+   */
+  @GuardedBy("this")
+  private boolean endFetch() {
+    mInFlight--;
+    if (mWindowWarmUpCount > 0) {
+      mWindowWarmUpCount--;
+      return true;
+    }
+    return false;
+  }
+
+  @GuardedBy("this")
+  private void increase() {
+    mLimit = Math.min(mMaxLimit, mLimit + 1);
+  }
+
+  @GuardedBy("this")
+  private void backOff() {
+    mLimit = Math.max(mMinLimit, (int) (mLimit * BACKOFF_RATIO));
+  }
+
+  @GuardedBy("this")
+  private void resetWindow() {
+    // the fetches that are running started under the previous limit
+    mWindowWarmUpCount = mInFlight;
+    mWindowCount = 0;
+    mWindowBytes = 0;
+    mWindowLatencySum = 0;
+    mWindowSaturated = mInFlight >= getLimit();
+  }
+}
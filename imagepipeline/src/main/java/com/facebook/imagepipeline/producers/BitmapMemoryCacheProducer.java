@@ -9,9 +9,14 @@ package com.facebook.imagepipeline.producers;
 
 import com.facebook.cache.common.CacheKey;
 import com.facebook.common.internal.ImmutableMap;
+import com.facebook.common.internal.Preconditions;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheKey;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.cache.SimilarImageLookup;
+import com.facebook.imagepipeline.cache.SimilarImageResult;
+import com.facebook.imagepipeline.common.ResizeOptions;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.image.HasImageMetadata;
 import com.facebook.imagepipeline.image.QualityInfo;
@@ -20,7 +25,14 @@ import com.facebook.imagepipeline.systrace.FrescoSystrace;
 import com.facebook.infer.annotation.Nullsafe;
 import javax.annotation.Nullable;
 
-/** Memory cache producer for the bitmap memory cache. */
+/**
+ * Memory cache producer for the bitmap memory cache.
+ *
+ * <p>With a {@link SimilarImageLookup}, the cached images of resized requests are tracked with the
+ * resize options of their request, and a request missing the cache that can be fetched is served
+ * the cached image of a larger variant instead, if any. Variants are the requests differing only by
+ * their resize options.
+ */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class BitmapMemoryCacheProducer implements Producer<CloseableReference<CloseableImage>> {
 
@@ -30,17 +42,30 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
 
   private static final String ORIGIN_SUBCATEGORY = "pipe_bg";
 
+  // Larger variants are looked up again when the ones found were evicted, up to this many times
+  private static final int MAX_LARGER_VARIANT_LOOKUPS = 3;
+
   private final MemoryCache<CacheKey, CloseableImage> mMemoryCache;
   private final CacheKeyFactory mCacheKeyFactory;
   private final Producer<CloseableReference<CloseableImage>> mInputProducer;
+  private final @Nullable SimilarImageLookup mSimilarImageLookup;
 
   public BitmapMemoryCacheProducer(
       MemoryCache<CacheKey, CloseableImage> memoryCache,
       CacheKeyFactory cacheKeyFactory,
       Producer<CloseableReference<CloseableImage>> inputProducer) {
+    this(memoryCache, cacheKeyFactory, inputProducer, null);
+  }
+
+  public BitmapMemoryCacheProducer(
+      MemoryCache<CacheKey, CloseableImage> memoryCache,
+      CacheKeyFactory cacheKeyFactory,
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      @Nullable SimilarImageLookup similarImageLookup) {
     mMemoryCache = memoryCache;
     mCacheKeyFactory = cacheKeyFactory;
     mInputProducer = inputProducer;
+    mSimilarImageLookup = similarImageLookup;
   }
 
   @Override
@@ -63,6 +88,13 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
 
       CloseableReference<CloseableImage> cachedReference =
           isBitmapCacheEnabledForRead ? mMemoryCache.get(cacheKey) : null;
+      // Cache-only requests expect the exact image they asked for
+      if (cachedReference == null
+          && isBitmapCacheEnabledForRead
+          && producerContext.getLowestPermittedRequestLevel()
+              == ImageRequest.RequestLevel.FULL_FETCH) {
+        cachedReference = getLargerVariant(cacheKey, callerContext);
+      }
 
       if (cachedReference != null) {
         maybeSetExtrasFromCloseableImage(cachedReference.get(), producerContext);
@@ -106,6 +138,9 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
               producerContext
                   .getImageRequest()
                   .isCacheEnabled(ImageRequest.CachesLocationsMasks.BITMAP_WRITE));
+      if (mSimilarImageLookup != null && getVariantGroupKey(cacheKey) != null) {
+        wrappedConsumer = trackVariant(wrappedConsumer, (BitmapMemoryCacheKey) cacheKey);
+      }
       listener.onProducerFinishWithSuccess(
           producerContext,
           getProducerName(),
@@ -193,6 +228,95 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
     };
   }
 
+  /**
+   * Returns the cached image of the smallest larger variant of the key. The variants found to be
+   * evicted are removed from the lookup.
+   */
+  private @Nullable CloseableReference<CloseableImage> getLargerVariant(
+      CacheKey cacheKey, @Nullable Object callerContext) {
+    final SimilarImageLookup similarImageLookup = mSimilarImageLookup;
+    final String groupKey = getVariantGroupKey(cacheKey);
+    if (similarImageLookup == null || groupKey == null) {
+      return null;
+    }
+    final BitmapMemoryCacheKey key = (BitmapMemoryCacheKey) cacheKey;
+    final ResizeOptions resizeOptions = Preconditions.checkNotNull(key.getResizeOptions());
+    for (int i = 0; i < MAX_LARGER_VARIANT_LOOKUPS; i++) {
+      SimilarImageResult result =
+          similarImageLookup.findLargerMemoryCacheKey(
+              key.toString(),
+              groupKey,
+              resizeOptions.width,
+              resizeOptions.height,
+              callerContext);
+      if (result == null) {
+        return null;
+      }
+      CloseableReference<CloseableImage> cachedReference =
+          mMemoryCache.get(
+              withResizeOptions(key, new ResizeOptions(result.getWidth(), result.getHeight())));
+      if (cachedReference != null) {
+        return cachedReference;
+      }
+      similarImageLookup.removeMemoryCacheKey(
+          result.getCacheKeyString(), groupKey, result.getWidth(), result.getHeight());
+    }
+    return null;
+  }
+
+  /** Tracks the final image cached for the key as a variant of its group. */
+  private Consumer<CloseableReference<CloseableImage>> trackVariant(
+      final Consumer<CloseableReference<CloseableImage>> consumer,
+      final BitmapMemoryCacheKey cacheKey) {
+    return new DelegatingConsumer<
+        CloseableReference<CloseableImage>, CloseableReference<CloseableImage>>(consumer) {
+      @Override
+      public void onNewResultImpl(
+          @Nullable CloseableReference<CloseableImage> newResult, @Status int status) {
+        final boolean isFinal =
+            isLast(status)
+                && newResult != null
+                && newResult.get().getQualityInfo().isOfFullQuality();
+        // the consumer caches the result
+        getConsumer().onNewResult(newResult, status);
+        final SimilarImageLookup similarImageLookup = mSimilarImageLookup;
+        final ResizeOptions resizeOptions = cacheKey.getResizeOptions();
+        final String groupKey = getVariantGroupKey(cacheKey);
+        if (isFinal
+            && similarImageLookup != null
+            && resizeOptions != null
+            && groupKey != null
+            && mMemoryCache.contains(cacheKey)) {
+          similarImageLookup.trackMemoryCacheKey(
+              cacheKey.toString(), groupKey, resizeOptions.width, resizeOptions.height);
+        }
+      }
+    };
+  }
+
+  /**
+   * The key of the variants of the given key, which differ only by their resize options, or null
+   * if the key is not resized.
+   */
+  private static @Nullable String getVariantGroupKey(CacheKey cacheKey) {
+    if (!(cacheKey instanceof BitmapMemoryCacheKey)
+        || ((BitmapMemoryCacheKey) cacheKey).getResizeOptions() == null) {
+      return null;
+    }
+    return withResizeOptions((BitmapMemoryCacheKey) cacheKey, null).toString();
+  }
+
+  private static BitmapMemoryCacheKey withResizeOptions(
+      BitmapMemoryCacheKey key, @Nullable ResizeOptions resizeOptions) {
+    return new BitmapMemoryCacheKey(
+        key.getSourceString(),
+        resizeOptions,
+        key.getRotationOptions(),
+        key.getImageDecodeOptions(),
+        key.getPostprocessorCacheKey(),
+        key.getPostprocessorName());
+  }
+
   protected String getProducerName() {
     return PRODUCER_NAME;
   }
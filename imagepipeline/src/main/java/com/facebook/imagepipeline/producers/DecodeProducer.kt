@@ -17,14 +17,19 @@ import com.facebook.common.util.ExceptionWithNoStacktrace
 import com.facebook.common.util.UriUtil
 import com.facebook.fresco.middleware.HasExtraData
 import com.facebook.imageformat.DefaultImageFormats
+import com.facebook.imageformat.ImageFormat
 import com.facebook.imagepipeline.cache.CacheMissException
 import com.facebook.imagepipeline.common.ImageDecodeOptions
 import com.facebook.imagepipeline.core.CloseableReferenceFactory
 import com.facebook.imagepipeline.core.DownsampleMode
 import com.facebook.imagepipeline.decoder.DecodeException
 import com.facebook.imagepipeline.decoder.ImageDecoder
+import com.facebook.imagepipeline.decoder.ProgressiveImageConfig
+import com.facebook.imagepipeline.decoder.ProgressiveImageParser
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig
 import com.facebook.imagepipeline.decoder.ProgressiveJpegParser
+import com.facebook.imagepipeline.decoder.ProgressivePngParser
+import com.facebook.imagepipeline.decoder.ProgressiveWebpParser
 import com.facebook.imagepipeline.image.CloseableBitmap
 import com.facebook.imagepipeline.image.CloseableImage
 import com.facebook.imagepipeline.image.CloseableStaticBitmap
@@ -45,7 +50,8 @@ import javax.annotation.concurrent.GuardedBy
 /**
  * Decodes images.
  *
- * Progressive JPEGs are decoded progressively as new data arrives.
+ * Progressive JPEGs are decoded progressively as new data arrives, and so are PNGs and static WebPs
+ * if their progressive config is set in the pipeline config.
  */
 class DecodeProducer(
     val byteArrayPool: ByteArrayPool,
@@ -118,16 +124,6 @@ class DecodeProducer(
     private val jobScheduler: JobScheduler
     var lastScheduledScanNumber = 0
 
-    private fun maybeIncreaseSampleSize(encodedImage: EncodedImage) {
-      if (encodedImage.imageFormat !== DefaultImageFormats.JPEG) {
-        return
-      }
-      val pixelSize = BitmapUtil.getPixelSizeForBitmapConfig(imageDecodeOptions.bitmapConfig)
-      val sampleSize =
-          DownsampleUtil.determineSampleSizeJPEG(encodedImage, pixelSize, MAX_BITMAP_SIZE)
-      encodedImage.sampleSize = sampleSize
-    }
-
     override fun onNewResultImpl(newResult: EncodedImage?, @Consumer.Status status: Int): Unit =
         traceSection("DecodeProducer#onNewResultImpl") {
           val isLast = isLast(status)
@@ -164,7 +160,7 @@ class DecodeProducer(
               producerContext.isIntermediateResultExpected &&
                   (!producerContext.imagePipelineConfig.experiments
                       .skipNonJpegIntermediateDecodeScheduling ||
-                      newResult?.imageFormat === DefaultImageFormats.JPEG)
+                      (newResult != null && supportsIntermediateResults(newResult.imageFormat)))
           if (isLast || isPlaceholder || scheduleIntermediateResult) {
             jobScheduler.scheduleJob()
           }
@@ -186,15 +182,19 @@ class DecodeProducer(
     open fun updateDecodeJob(ref: EncodedImage?, @Consumer.Status status: Int): Boolean =
         jobScheduler.updateJob(ref, status)
 
+    /** Whether partial images of the format are decoded. */
+    open fun supportsIntermediateResults(imageFormat: ImageFormat): Boolean =
+        imageFormat === DefaultImageFormats.JPEG
+
     /** Performs the decode synchronously. */
     private fun doDecode(
         encodedImage: EncodedImage,
         @Consumer.Status status: Int,
         lastScheduledScanNumber: Int,
     ) {
-      // do not run for partial results of anything except JPEG
+      // do not run for partial results of formats that are not decoded progressively
       var newStatus = status
-      if (encodedImage.imageFormat !== DefaultImageFormats.JPEG && isNotLast(status)) {
+      if (isNotLast(status) && !supportsIntermediateResults(encodedImage.imageFormat)) {
         return
       }
       if (isFinished || !EncodedImage.isValid(encodedImage)) {
@@ -258,6 +258,26 @@ class DecodeProducer(
             newStatus = status or Consumer.IS_RESIZING_DONE
           }
         } catch (e: Exception) {
+          if (isNotLast(status) && encodedImage.imageFormat !== DefaultImageFormats.JPEG) {
+            // Unlike JPEGs, PNGs and WebPs are not cut at a scan boundary, and the data received so
+            // far may not be decodable yet. This does not fail the request, nor finish the decode.
+            val extraMap = getExtraMap(
+                image,
+                queueTime,
+                quality,
+                isLast,
+                imageFormatStr,
+                encodedImageSize,
+                requestedSizeStr,
+                sampleSize,
+            )
+            producerListener.onProducerFinishWithSuccess(
+                producerContext,
+                PRODUCER_NAME,
+                extraMap?.plus(EXTRA_PARTIAL_DECODE_FAILED to true.toString()),
+            )
+            return
+          }
           val extraMap = getExtraMap(
               image,
               queueTime,
@@ -396,10 +416,14 @@ class DecodeProducer(
         }
         consumer.onProgressUpdate(1.0f)
         isFinished = true
+        releaseDecodeResources()
       }
       jobScheduler.clearJob()
     }
 
+    /** Releases what is kept to decode the next results, once finished. Called synchronized. */
+    open fun releaseDecodeResources() {}
+
     /** Notifies consumer of new result and finishes if the result is final. */
     private fun handleResult(
         decodedImage: CloseableImage?,
@@ -447,29 +471,19 @@ class DecodeProducer(
           producerContext.putExtra(HasExtraData.KEY_IMAGE_FORMAT, encodedImage.imageFormat.name)
           encodedImage.source = request.sourceUri.toString()
 
-          val requestDownsampleMode = request.downsampleOverride ?: downsampleMode
-          val isResizingDone = statusHasFlag(status, Consumer.IS_RESIZING_DONE)
-          val shouldAdjustSampleSize =
-              (requestDownsampleMode == DownsampleMode.ALWAYS ||
-                  (requestDownsampleMode == DownsampleMode.AUTO && !isResizingDone)) &&
-                  (downsampleEnabledForNetwork || !UriUtil.isNetworkUri(request.sourceUri))
-          if (shouldAdjustSampleSize) {
-            encodedImage.sampleSize =
-                DownsampleUtil.determineSampleSize(
-                    request.rotationOptions,
-                    request.resizeOptions,
-                    encodedImage,
-                    maxBitmapDimension,
-                )
-          }
-
-          if (producerContext.imagePipelineConfig.experiments.downsampleIfLargeBitmap) {
-            maybeIncreaseSampleSize(encodedImage)
-          }
+          updateSampleSize(
+              producerContext,
+              encodedImage,
+              statusHasFlag(status, Consumer.IS_RESIZING_DONE),
+              downsampleMode,
+              downsampleEnabledForNetwork,
+              maxBitmapDimension,
+          )
           doDecode(encodedImage, status, lastScheduledScanNumber)
         }
       }
-      jobScheduler = JobScheduler(executor, job, imageDecodeOptions.minDecodeIntervalMs)
+      jobScheduler =
+          JobScheduler(executor, job, imageDecodeOptions.minDecodeIntervalMs, producerContext)
       producerContext.addCallbacks(
           object : BaseProducerContextCallbacks() {
             override fun onIsIntermediateResultExpectedChanged() {
@@ -527,6 +541,49 @@ class DecodeProducer(
       decodeCancellationEnabled: Boolean,
       maxBitmapDimension: Int,
   ) : ProgressiveDecoder(consumer, producerContext, decodeCancellationEnabled, maxBitmapDimension) {
+    // Parser and config of the format of the image, JPEG unless the image is found to be another
+    // format decoded progressively
+    @Volatile private var progressiveParser: ProgressiveImageParser = progressiveJpegParser
+    @Volatile private var progressiveConfig: ProgressiveImageConfig = progressiveJpegConfig
+
+    override fun supportsIntermediateResults(imageFormat: ImageFormat): Boolean =
+        imageFormat === DefaultImageFormats.JPEG || selectProgressiveParser(imageFormat)
+
+    /**
+     * Selects the parser of the image format, creating it the first time.
+     *
+     * @return false if the image format is not decoded progressively
+     */
+    @Synchronized
+    private fun selectProgressiveParser(imageFormat: ImageFormat): Boolean {
+      if (imageFormat === DefaultImageFormats.JPEG) {
+        if (progressiveParser !== progressiveJpegParser) {
+          progressiveParser.release()
+        }
+        progressiveParser = progressiveJpegParser
+        progressiveConfig = progressiveJpegConfig
+        return true
+      }
+      val isPng = imageFormat === DefaultImageFormats.PNG
+      if (!isPng && !DefaultImageFormats.isStaticWebpFormat(imageFormat)) {
+        return false
+      }
+      val pipelineConfig = producerContext.imagePipelineConfig
+      val config =
+          (if (isPng) pipelineConfig.progressivePngConfig else pipelineConfig.progressiveWebpConfig)
+              ?: return false
+      if (!config.decodeProgressively(producerContext.imageRequest)) {
+        return false
+      }
+      if (progressiveConfig !== config) {
+        progressiveParser.release()
+        progressiveParser =
+            if (isPng) ProgressivePngParser(byteArrayPool) else ProgressiveWebpParser(byteArrayPool)
+        progressiveConfig = config
+      }
+      return true
+    }
+
     @Synchronized
     @Suppress("PARAMETER_NAME_CHANGED_ON_OVERRIDE")
     override fun updateDecodeJob(
@@ -541,22 +598,22 @@ class DecodeProducer(
           (isNotLast(status) || statusHasFlag(status, Consumer.IS_PARTIAL_RESULT)) &&
               !statusHasFlag(status, Consumer.IS_PLACEHOLDER) &&
               EncodedImage.isValid(encodedImage) &&
-              encodedImage.imageFormat === DefaultImageFormats.JPEG
+              selectProgressiveParser(encodedImage.imageFormat)
       ) {
-        if (!this.progressiveJpegParser.parseMoreData(encodedImage)) {
+        if (!this.progressiveParser.parseMoreData(encodedImage)) {
           return false
         }
-        val scanNum = this.progressiveJpegParser.bestScanNumber
+        val scanNum = this.progressiveParser.bestScanNumber
         if (scanNum <= lastScheduledScanNumber) {
           // We have already decoded this scan, no need to do so again
           return false
         }
         if (
             scanNum <
-                progressiveJpegConfig.getNextScanNumberToDecode(
+                progressiveConfig.getNextScanNumberToDecode(
                     producerContext.imageRequest,
                     lastScheduledScanNumber,
-                ) && !this.progressiveJpegParser.isEndMarkerRead
+                ) && !this.progressiveParser.isEndMarkerRead
         ) {
           // We have not reached the minimum scan set by the configuration and there
           // are still more scans to be read (the end marker is not reached)
@@ -568,13 +625,17 @@ class DecodeProducer(
     }
 
     override fun getIntermediateImageEndOffset(encodedImage: EncodedImage): Int =
-        this.progressiveJpegParser.bestScanEndOffset
+        this.progressiveParser.bestScanEndOffset
+
+    override fun releaseDecodeResources() {
+      progressiveParser.release()
+    }
 
     override val qualityInfo: QualityInfo
       get() =
-          progressiveJpegConfig.getQualityInfo(
+          progressiveConfig.getQualityInfo(
               producerContext.imageRequest,
-              this.progressiveJpegParser.bestScanNumber,
+              this.progressiveParser.bestScanNumber,
           )
 
     init {
@@ -602,6 +663,52 @@ class DecodeProducer(
     const val SAMPLE_SIZE = ProducerConstants.SAMPLE_SIZE
     const val NON_FATAL_DECODE_ERROR = ProducerConstants.NON_FATAL_DECODE_ERROR
 
+    /** Extra of an intermediate PNG or WebP result that could not be decoded yet. */
+    const val EXTRA_PARTIAL_DECODE_FAILED = "partial_decode_failed"
+
+    /**
+     * Sets the sample size [encodedImage] is decoded with, from the downsample mode and the resize
+     * options of the request. [SpeculativeDecodePreparer] uses it to know the decoded size before
+     * the image is fully downloaded.
+     *
+     * @param isResizingDone whether the encoded image was already resized by the transcoder
+     */
+    @JvmStatic
+    fun updateSampleSize(
+        producerContext: ProducerContext,
+        encodedImage: EncodedImage,
+        isResizingDone: Boolean,
+        downsampleMode: DownsampleMode,
+        downsampleEnabledForNetwork: Boolean,
+        maxBitmapDimension: Int,
+    ) {
+      val request = producerContext.imageRequest
+      val requestDownsampleMode = request.downsampleOverride ?: downsampleMode
+      val shouldAdjustSampleSize =
+          (requestDownsampleMode == DownsampleMode.ALWAYS ||
+              (requestDownsampleMode == DownsampleMode.AUTO && !isResizingDone)) &&
+              (downsampleEnabledForNetwork || !UriUtil.isNetworkUri(request.sourceUri))
+      if (shouldAdjustSampleSize) {
+        encodedImage.sampleSize =
+            DownsampleUtil.determineSampleSize(
+                request.rotationOptions,
+                request.resizeOptions,
+                encodedImage,
+                maxBitmapDimension,
+            )
+      }
+
+      if (
+          producerContext.imagePipelineConfig.experiments.downsampleIfLargeBitmap &&
+              encodedImage.imageFormat === DefaultImageFormats.JPEG
+      ) {
+        val pixelSize =
+            BitmapUtil.getPixelSizeForBitmapConfig(request.imageDecodeOptions.bitmapConfig)
+        encodedImage.sampleSize =
+            DownsampleUtil.determineSampleSizeJPEG(encodedImage, pixelSize, MAX_BITMAP_SIZE)
+      }
+    }
+
     private fun isTooBig(
         encodedImage: EncodedImage,
         imageDecodeOptions: ImageDecodeOptions,
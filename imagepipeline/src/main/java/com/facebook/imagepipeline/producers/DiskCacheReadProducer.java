@@ -11,6 +11,7 @@ import androidx.annotation.VisibleForTesting;
 import bolts.Continuation;
 import bolts.Task;
 import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
 import com.facebook.cache.disk.CacheDecisionReporter;
 import com.facebook.cache.disk.FileCache;
 import com.facebook.common.internal.ImmutableMap;
@@ -18,6 +19,8 @@ import com.facebook.common.internal.Supplier;
 import com.facebook.fresco.middleware.HasExtraData;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.SimilarImageLookup;
+import com.facebook.imagepipeline.cache.SimilarImageResult;
 import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.core.DiskCachesStore;
 import com.facebook.imagepipeline.image.EncodedImage;
@@ -37,6 +40,9 @@ import javax.annotation.Nullable;
  *
  * <p>This implementation delegates disk cache requests to BufferedDiskCache.
  *
+ * <p>With a {@link SimilarImageLookup}, a request missing the disk cache that can be fetched reads
+ * the smallest larger variant of the image found by the lookup instead, if any.
+ *
  * <p>This producer is currently used only if the media variations experiment is turned on, to
  * enable another producer to sit between cache read and write.
  */
@@ -52,14 +58,24 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
   private final Supplier<DiskCachesStore> mDiskCachesStoreSupplier;
   private final CacheKeyFactory mCacheKeyFactory;
   private final Producer<EncodedImage> mInputProducer;
+  private final @Nullable SimilarImageLookup mSimilarImageLookup;
 
   public DiskCacheReadProducer(
       Supplier<DiskCachesStore> diskCachesStoreSupplier,
       CacheKeyFactory cacheKeyFactory,
       Producer<EncodedImage> inputProducer) {
+    this(diskCachesStoreSupplier, cacheKeyFactory, inputProducer, null);
+  }
+
+  public DiskCacheReadProducer(
+      Supplier<DiskCachesStore> diskCachesStoreSupplier,
+      CacheKeyFactory cacheKeyFactory,
+      Producer<EncodedImage> inputProducer,
+      @Nullable SimilarImageLookup similarImageLookup) {
     mDiskCachesStoreSupplier = diskCachesStoreSupplier;
     mCacheKeyFactory = cacheKeyFactory;
     mInputProducer = inputProducer;
+    mSimilarImageLookup = similarImageLookup;
   }
 
   public void produceResults(
@@ -100,7 +116,13 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
     }
     final String diskCacheId = DiskCacheDecision.resolveDiskCacheId(imageRequest);
     final AtomicBoolean isCancelled = new AtomicBoolean(false);
-    final Task<EncodedImage> diskLookupTask = preferredCache.get(cacheKey, isCancelled);
+    Task<EncodedImage> diskLookupTask = preferredCache.get(cacheKey, isCancelled, producerContext);
+    // Cache-only requests expect the exact image they asked for
+    if (producerContext.getLowestPermittedRequestLevel() == ImageRequest.RequestLevel.FULL_FETCH) {
+      diskLookupTask =
+          readLargerVariantOnMiss(
+              diskLookupTask, preferredCache, cacheKey, isCancelled, producerContext);
+    }
     final Continuation<EncodedImage, Void> continuation =
         onFinishDiskReads(consumer, producerContext, cacheKey, diskCachesStore, diskCacheId);
     diskLookupTask.continueWith(continuation);
@@ -116,6 +138,35 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
     return !availableBytesRange.contains(request.getBytesRange());
   }
 
+  private Task<EncodedImage> readLargerVariantOnMiss(
+      final Task<EncodedImage> diskLookupTask,
+      final BufferedDiskCache diskCache,
+      final CacheKey cacheKey,
+      final AtomicBoolean isCancelled,
+      final ProducerContext producerContext) {
+    final SimilarImageLookup similarImageLookup = mSimilarImageLookup;
+    if (similarImageLookup == null) {
+      return diskLookupTask;
+    }
+    return diskLookupTask.continueWithTask(
+        new Continuation<EncodedImage, Task<EncodedImage>>() {
+          @Override
+          public Task<EncodedImage> then(Task<EncodedImage> task) throws Exception {
+            if (task.isCancelled() || task.isFaulted() || task.getResult() != null) {
+              return task;
+            }
+            SimilarImageResult result =
+                similarImageLookup.findLargerDiskCacheKey(
+                    cacheKey.getUriString(), producerContext.getCallerContext());
+            if (result == null) {
+              return task;
+            }
+            return diskCache.get(
+                new SimpleCacheKey(result.getCacheKeyString()), isCancelled, producerContext);
+          }
+        });
+  }
+
   private Continuation<EncodedImage, Void> onFinishDiskReads(
       final Consumer<EncodedImage> consumer,
       final ProducerContext producerContext,
@@ -9,26 +9,72 @@ package com.facebook.imagepipeline.producers;
 
 import android.util.Pair;
 import com.facebook.cache.common.CacheKey;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
 import com.facebook.fresco.middleware.HasExtraData;
+import com.facebook.imageformat.ImageFormat;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.EncodedSourceCacheKey;
+import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.core.DiskCachesStore;
 import com.facebook.imagepipeline.core.ImagePipelineConfigInterface;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.infer.annotation.Nullsafe;
 import javax.annotation.Nullable;
 
-/** Multiplex producer that uses the encoded cache key to combine requests. */
+/**
+ * Multiplex producer that uses the encoded cache key to combine requests.
+ *
+ * <p>If requests are combined by source, the {@link EncodedSourceCacheKey} is used instead, so that
+ * requests for different sizes of the same image are combined even if the encoded cache key depends
+ * on the size. This is only correct if the input bytes do not depend on the requested size. The
+ * combined request goes on with the image request of its first consumer, so its result is only
+ * cached under the encoded cache key of that request: the result is then also put in the encoded
+ * memory and disk caches under the encoded cache keys of the other consumers.
+ */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class EncodedCacheKeyMultiplexProducer
     extends MultiplexProducer<Pair<CacheKey, ImageRequest.RequestLevel>, EncodedImage> {
 
   private final CacheKeyFactory mCacheKeyFactory;
+  private final boolean mCombineBySource;
+  private final @Nullable MemoryCache<CacheKey, PooledByteBuffer> mEncodedMemoryCache;
+  private final @Nullable Supplier<DiskCachesStore> mDiskCachesStoreSupplier;
 
   public EncodedCacheKeyMultiplexProducer(
       CacheKeyFactory cacheKeyFactory,
       boolean keepCancelledFetchAsLowPriority,
       Producer<EncodedImage> inputProducer,
       ImagePipelineConfigInterface config) {
+    this(
+        cacheKeyFactory,
+        keepCancelledFetchAsLowPriority,
+        inputProducer,
+        config,
+        false,
+        null,
+        null);
+  }
+
+  /**
+   * @param combineBySource whether requests are combined by {@link EncodedSourceCacheKey}, which
+   *     requires the bytes of the input producer not to depend on the requested size
+   * @param encodedMemoryCache the cache in which results of requests combined by source are put
+   *     under the encoded cache key of each consumer
+   * @param diskCachesStoreSupplier the disk caches in which results of requests combined by source
+   *     are put under the encoded cache key of each consumer
+   */
+  public EncodedCacheKeyMultiplexProducer(
+      CacheKeyFactory cacheKeyFactory,
+      boolean keepCancelledFetchAsLowPriority,
+      Producer<EncodedImage> inputProducer,
+      ImagePipelineConfigInterface config,
+      boolean combineBySource,
+      @Nullable MemoryCache<CacheKey, PooledByteBuffer> encodedMemoryCache,
+      @Nullable Supplier<DiskCachesStore> diskCachesStoreSupplier) {
     super(
         inputProducer,
         "EncodedCacheKeyMultiplexProducer",
@@ -36,9 +82,36 @@ public class EncodedCacheKeyMultiplexProducer
         keepCancelledFetchAsLowPriority,
         config);
     mCacheKeyFactory = cacheKeyFactory;
+    mCombineBySource = combineBySource;
+    mEncodedMemoryCache = encodedMemoryCache;
+    mDiskCachesStoreSupplier = diskCachesStoreSupplier;
+  }
+
+  @Override
+  public void produceResults(Consumer<EncodedImage> consumer, ProducerContext context) {
+    if (mCombineBySource) {
+      consumer =
+          new EncodedCacheKeyWriteConsumer(
+              consumer,
+              context,
+              mCacheKeyFactory.getEncodedCacheKey(
+                  context.getImageRequest(), context.getCallerContext()),
+              mEncodedMemoryCache,
+              mDiskCachesStoreSupplier);
+    }
+    super.produceResults(consumer, context);
   }
 
   protected Pair<CacheKey, ImageRequest.RequestLevel> getKey(ProducerContext producerContext) {
+    if (mCombineBySource) {
+      return Pair.create(
+          (CacheKey)
+              EncodedSourceCacheKey.of(
+                  producerContext.getImageRequest(),
+                  producerContext.getCallerContext(),
+                  mCacheKeyFactory),
+          producerContext.getLowestPermittedRequestLevel());
+    }
     return Pair.create(
         mCacheKeyFactory.getEncodedCacheKey(
             producerContext.getImageRequest(), producerContext.getCallerContext()),
@@ -48,4 +121,82 @@ public class EncodedCacheKeyMultiplexProducer
   public @Nullable EncodedImage cloneOrNull(@Nullable EncodedImage encodedImage) {
     return EncodedImage.cloneOrNull(encodedImage);
   }
+
+  /**
+   * Consumer of a request combined by source, which puts the last result in the encoded memory and
+   * disk caches under the encoded cache key of the request, unless they already hold it.
+   */
+  private static class EncodedCacheKeyWriteConsumer
+      extends DelegatingConsumer<EncodedImage, EncodedImage> {
+
+    private final ProducerContext mProducerContext;
+    private final CacheKey mEncodedCacheKey;
+    private final @Nullable MemoryCache<CacheKey, PooledByteBuffer> mEncodedMemoryCache;
+    private final @Nullable Supplier<DiskCachesStore> mDiskCachesStoreSupplier;
+
+    EncodedCacheKeyWriteConsumer(
+        Consumer<EncodedImage> consumer,
+        ProducerContext producerContext,
+        CacheKey encodedCacheKey,
+        @Nullable MemoryCache<CacheKey, PooledByteBuffer> encodedMemoryCache,
+        @Nullable Supplier<DiskCachesStore> diskCachesStoreSupplier) {
+      super(consumer);
+      mProducerContext = producerContext;
+      mEncodedCacheKey = encodedCacheKey;
+      mEncodedMemoryCache = encodedMemoryCache;
+      mDiskCachesStoreSupplier = diskCachesStoreSupplier;
+    }
+
+    @Override
+    protected void onNewResultImpl(@Nullable EncodedImage newResult, @Status int status) {
+      // same results as the ones the encoded memory cache and disk cache producers write
+      if (isLast(status)
+          && newResult != null
+          && !statusHasAnyFlag(status, DO_NOT_CACHE_ENCODED | IS_PARTIAL_RESULT)
+          && newResult.getImageFormat() != ImageFormat.UNKNOWN) {
+        maybeWriteToMemoryCache(newResult);
+        maybeWriteToDiskCache(newResult);
+      }
+      getConsumer().onNewResult(newResult, status);
+    }
+
+    private void maybeWriteToMemoryCache(EncodedImage result) {
+      ImageRequest imageRequest = mProducerContext.getImageRequest();
+      if (mEncodedMemoryCache == null
+          || !mProducerContext.getImagePipelineConfig().getExperiments().isEncodedCacheEnabled()
+          || !imageRequest.isCacheEnabled(ImageRequest.CachesLocationsMasks.ENCODED_WRITE)
+          || mEncodedMemoryCache.contains(mEncodedCacheKey)) {
+        return;
+      }
+      CloseableReference<PooledByteBuffer> ref = result.getByteBufferRef();
+      if (ref != null) {
+        try {
+          CloseableReference.closeSafely(mEncodedMemoryCache.cache(mEncodedCacheKey, ref));
+        } finally {
+          CloseableReference.closeSafely(ref);
+        }
+      }
+    }
+
+    private void maybeWriteToDiskCache(EncodedImage result) {
+      ImageRequest imageRequest = mProducerContext.getImageRequest();
+      if (mDiskCachesStoreSupplier == null
+          || mProducerContext.getLowestPermittedRequestLevel().getValue()
+              >= ImageRequest.RequestLevel.DISK_CACHE.getValue()
+          || !imageRequest.isCacheEnabled(ImageRequest.CachesLocationsMasks.DISK_WRITE)) {
+        return;
+      }
+      DiskCachesStore diskCachesStore = mDiskCachesStoreSupplier.get();
+      BufferedDiskCache bufferedDiskCache =
+          DiskCacheDecision.chooseDiskCacheForRequest(
+              imageRequest,
+              diskCachesStore.getSmallImageBufferedDiskCache(),
+              diskCachesStore.getMainBufferedDiskCache(),
+              diskCachesStore.getDynamicBufferedDiskCaches());
+      // The disk cache write of the combined request is staged before its result gets here
+      if (bufferedDiskCache != null && !bufferedDiskCache.containsSync(mEncodedCacheKey)) {
+        bufferedDiskCache.put(mEncodedCacheKey, result);
+      }
+    }
+  }
 }
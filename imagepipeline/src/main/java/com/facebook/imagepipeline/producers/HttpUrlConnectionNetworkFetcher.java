@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -26,12 +27,17 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Network fetcher that uses the simplest Android stack.
  *
  * <p>Apps requiring more sophisticated networking should implement their own {@link
  * NetworkFetcher}.
+ *
+ * <p>By default at most three images are fetched at the same time. If an {@link
+ * AdaptiveConcurrencyLimiter} is given, the number of concurrent fetches follows its limit instead
+ * and the other fetches are queued.
  */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class HttpUrlConnectionNetworkFetcher
@@ -42,6 +48,10 @@ public class HttpUrlConnectionNetworkFetcher
     private long submitTime;
     private long responseTime;
     private long fetchCompleteTime;
+    private int byteSize = -1;
+    private int queueDepth;
+    private boolean overloaded;
+    private volatile boolean cancelled;
 
     public HttpUrlConnectionNetworkFetchState(
         Consumer<EncodedImage> consumer, ProducerContext producerContext) {
@@ -49,16 +59,30 @@ public class HttpUrlConnectionNetworkFetcher
     }
   }
 
+  /** Failure of a fetch whose response has an unexpected code. */
+  private static class HttpResponseCodeException extends IOException {
+
+    private final int mResponseCode;
+
+    HttpResponseCodeException(String message, int responseCode) {
+      super(message);
+      mResponseCode = responseCode;
+    }
+  }
+
   private static final String QUEUE_TIME = "queue_time";
   private static final String FETCH_TIME = "fetch_time";
   private static final String TOTAL_TIME = "total_time";
   private static final String IMAGE_SIZE = "image_size";
+  private static final String CONCURRENCY_LIMIT = "concurrency_limit";
+  private static final String QUEUE_DEPTH = "queue_depth";
 
   private static final int NUM_NETWORK_THREADS = 3;
   private static final int MAX_REDIRECTS = 5;
 
   public static final int HTTP_TEMPORARY_REDIRECT = 307;
   public static final int HTTP_PERMANENT_REDIRECT = 308;
+  public static final int HTTP_TOO_MANY_REQUESTS = 429;
 
   public static final int HTTP_DEFAULT_TIMEOUT = 30000;
 
@@ -68,6 +92,10 @@ public class HttpUrlConnectionNetworkFetcher
 
   private final ExecutorService mExecutorService;
   private final MonotonicClock mMonotonicClock;
+  @Nullable private final AdaptiveConcurrencyLimiter mConcurrencyLimiter;
+
+  @GuardedBy("mPendingFetches")
+  private final ArrayDeque<Runnable> mPendingFetches = new ArrayDeque<>();
 
   public HttpUrlConnectionNetworkFetcher() {
     this(null, null, RealtimeSinceBootClock.get());
@@ -89,15 +117,36 @@ public class HttpUrlConnectionNetworkFetcher
     mHttpConnectionTimeout = httpConnectionTimeout;
   }
 
+  public HttpUrlConnectionNetworkFetcher(
+      @Nullable String userAgent,
+      @Nullable Map<String, String> requestHeaders,
+      int httpConnectionTimeout,
+      AdaptiveConcurrencyLimiter concurrencyLimiter) {
+    this(userAgent, requestHeaders, RealtimeSinceBootClock.get(), concurrencyLimiter);
+    mHttpConnectionTimeout = httpConnectionTimeout;
+  }
+
   @VisibleForTesting
   HttpUrlConnectionNetworkFetcher(
       @Nullable String userAgent,
       @Nullable Map<String, String> requestHeaders,
       MonotonicClock monotonicClock) {
-    mExecutorService = Executors.newFixedThreadPool(NUM_NETWORK_THREADS);
+    this(userAgent, requestHeaders, monotonicClock, null);
+  }
+
+  @VisibleForTesting
+  HttpUrlConnectionNetworkFetcher(
+      @Nullable String userAgent,
+      @Nullable Map<String, String> requestHeaders,
+      MonotonicClock monotonicClock,
+      @Nullable AdaptiveConcurrencyLimiter concurrencyLimiter) {
+    mExecutorService =
+        Executors.newFixedThreadPool(
+            concurrencyLimiter != null ? concurrencyLimiter.getMaxLimit() : NUM_NETWORK_THREADS);
     mMonotonicClock = monotonicClock;
     mRequestHeaders = requestHeaders;
     mUserAgent = userAgent;
+    mConcurrencyLimiter = concurrencyLimiter;
   }
 
   @Override
@@ -109,6 +158,10 @@ public class HttpUrlConnectionNetworkFetcher
   @Override
   public void fetch(final HttpUrlConnectionNetworkFetchState fetchState, final Callback callback) {
     fetchState.submitTime = mMonotonicClock.now();
+    if (mConcurrencyLimiter != null) {
+      fetchWithLimiter(fetchState, callback, mConcurrencyLimiter);
+      return;
+    }
     final Future<?> future =
         mExecutorService.submit(
             new Runnable() {
@@ -130,6 +183,73 @@ public class HttpUrlConnectionNetworkFetcher
             });
   }
 
+  private void fetchWithLimiter(
+      final HttpUrlConnectionNetworkFetchState fetchState,
+      final Callback callback,
+      final AdaptiveConcurrencyLimiter concurrencyLimiter) {
+    final Runnable fetchRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            long startTime = mMonotonicClock.now();
+            try {
+              fetchSync(fetchState, callback);
+            } finally {
+              if (fetchState.cancelled) {
+                concurrencyLimiter.onFetchCancelled();
+              } else if (fetchState.byteSize >= 0) {
+                concurrencyLimiter.onFetchFinished(
+                    mMonotonicClock.now() - startTime, fetchState.byteSize);
+              } else {
+                concurrencyLimiter.onFetchFailed(fetchState.overloaded);
+              }
+              startPendingFetches(concurrencyLimiter);
+            }
+          }
+        };
+    synchronized (mPendingFetches) {
+      fetchState.queueDepth = mPendingFetches.size();
+      mPendingFetches.add(fetchRunnable);
+    }
+    fetchState
+        .getContext()
+        .addCallbacks(
+            new BaseProducerContextCallbacks() {
+              @Override
+              public void onCancellationRequested() {
+                fetchState.cancelled = true;
+                boolean removed;
+                synchronized (mPendingFetches) {
+                  removed = mPendingFetches.remove(fetchRunnable);
+                }
+                if (removed) {
+                  callback.onCancellation();
+                }
+              }
+            });
+    startPendingFetches(concurrencyLimiter);
+  }
+
+  private void startPendingFetches(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+    while (true) {
+      Runnable fetchRunnable;
+      synchronized (mPendingFetches) {
+        if (mPendingFetches.isEmpty() || !concurrencyLimiter.tryAcquire()) {
+          return;
+        }
+        fetchRunnable = mPendingFetches.removeFirst();
+      }
+      mExecutorService.execute(fetchRunnable);
+    }
+  }
+
+  /** The number of fetches waiting for the concurrency limit, if there is one. */
+  public int getQueuedFetchCount() {
+    synchronized (mPendingFetches) {
+      return mPendingFetches.size();
+    }
+  }
+
   @VisibleForTesting
   void fetchSync(HttpUrlConnectionNetworkFetchState fetchState, Callback callback) {
     HttpURLConnection connection = null;
@@ -143,6 +263,10 @@ public class HttpUrlConnectionNetworkFetcher
         callback.onResponse(is, -1);
       }
     } catch (IOException e) {
+      // Timeouts and transport errors have no response code
+      fetchState.overloaded =
+          !(e instanceof HttpResponseCodeException)
+              || isOverloadResponseCode(((HttpResponseCodeException) e).mResponseCode);
       callback.onFailure(e);
     } finally {
       if (is != null) {
@@ -191,13 +315,14 @@ public class HttpUrlConnectionNetworkFetcher
                 ? error("URL %s follows too many redirects", uri.toString())
                 : error(
                     "URL %s returned %d without a valid redirect", uri.toString(), responseCode);
-        throw new IOException(message);
+        throw new HttpResponseCodeException(message, responseCode);
       }
 
     } else {
       connection.disconnect();
-      throw new IOException(
-          String.format("Image URL %s returned HTTP code %d", uri.toString(), responseCode));
+      throw new HttpResponseCodeException(
+          String.format("Image URL %s returned HTTP code %d", uri.toString(), responseCode),
+          responseCode);
     }
   }
 
@@ -210,6 +335,13 @@ public class HttpUrlConnectionNetworkFetcher
   @Override
   public void onFetchCompletion(HttpUrlConnectionNetworkFetchState fetchState, int byteSize) {
     fetchState.fetchCompleteTime = mMonotonicClock.now();
+    fetchState.byteSize = byteSize;
+  }
+
+  /** The source URI is fetched as it is, whatever the requested size. */
+  @Override
+  public boolean hasSizeInvariantResults() {
+    return true;
   }
 
   private static boolean isHttpSuccess(int responseCode) {
@@ -217,6 +349,12 @@ public class HttpUrlConnectionNetworkFetcher
         && responseCode < HttpURLConnection.HTTP_MULT_CHOICE);
   }
 
+  /** Whether the server answered with a response code telling that it is overloaded. */
+  private static boolean isOverloadResponseCode(int responseCode) {
+    return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+        || responseCode == HTTP_TOO_MANY_REQUESTS;
+  }
+
   private static boolean isHttpRedirect(int responseCode) {
     switch (responseCode) {
       case HttpURLConnection.HTTP_MULT_CHOICE:
@@ -238,11 +376,15 @@ public class HttpUrlConnectionNetworkFetcher
   @Override
   public Map<String, String> getExtraMap(
       HttpUrlConnectionNetworkFetchState fetchState, int byteSize) {
-    Map<String, String> extraMap = new HashMap<>(4);
+    Map<String, String> extraMap = new HashMap<>(6);
     extraMap.put(QUEUE_TIME, Long.toString(fetchState.responseTime - fetchState.submitTime));
     extraMap.put(FETCH_TIME, Long.toString(fetchState.fetchCompleteTime - fetchState.responseTime));
     extraMap.put(TOTAL_TIME, Long.toString(fetchState.fetchCompleteTime - fetchState.submitTime));
     extraMap.put(IMAGE_SIZE, Integer.toString(byteSize));
+    if (mConcurrencyLimiter != null) {
+      extraMap.put(CONCURRENCY_LIMIT, Integer.toString(mConcurrencyLimiter.getLimit()));
+      extraMap.put(QUEUE_DEPTH, Integer.toString(fetchState.queueDepth));
+    }
     return extraMap;
   }
 }
@@ -48,6 +48,7 @@ public class JobScheduler {
   }
 
   private final Executor mExecutor;
+  private final @Nullable ProducerContext mProducerContext;
   private final JobRunnable mJobRunnable;
   private final Runnable mDoJobRunnable;
   private final Runnable mSubmitJobRunnable;
@@ -88,7 +89,20 @@ public class JobScheduler {
   long mJobStartTime;
 
   public JobScheduler(Executor executor, JobRunnable jobRunnable, int minimumJobIntervalMs) {
+    this(executor, jobRunnable, minimumJobIntervalMs, null);
+  }
+
+  /**
+   * Creates a job scheduler whose jobs have the priority of the given producer context, for the
+   * executors that queue tasks by priority.
+   */
+  public JobScheduler(
+      Executor executor,
+      JobRunnable jobRunnable,
+      int minimumJobIntervalMs,
+      @Nullable ProducerContext producerContext) {
     mExecutor = executor;
+    mProducerContext = producerContext;
     mJobRunnable = jobRunnable;
     mMinimumJobIntervalMs = minimumJobIntervalMs;
     mDoJobRunnable =
@@ -227,8 +241,13 @@ public class JobScheduler {
   }
 
   private void submitJob() {
-    mExecutor.execute(
-        FrescoInstrumenter.decorateRunnable(mDoJobRunnable, "JobScheduler_submitJob"));
+    Runnable doJobRunnable =
+        FrescoInstrumenter.decorateRunnable(mDoJobRunnable, "JobScheduler_submitJob");
+    if (mProducerContext != null) {
+      PrioritizedProducerRunnable.execute(mExecutor, doJobRunnable, mProducerContext);
+    } else {
+      mExecutor.execute(doJobRunnable);
+    }
   }
 
   private void doJob() {
@@ -71,7 +71,7 @@ public abstract class LocalFetchProducer implements Producer<EncodedImage> {
             cancellableProducerRunnable.cancel();
           }
         });
-    mExecutor.execute(cancellableProducerRunnable);
+    PrioritizedProducerRunnable.execute(mExecutor, cancellableProducerRunnable, producerContext);
   }
 
   /** Creates a memory-backed encoded image from the stream. The stream is closed. */
@@ -9,6 +9,8 @@ package com.facebook.imagepipeline.producers;
 
 import android.os.SystemClock;
 import androidx.annotation.VisibleForTesting;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.logging.FLog;
 import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
@@ -33,6 +35,9 @@ import javax.annotation.Nullable;
  *
  * <p>Clients should provide an instance of {@link NetworkFetcher} to make use of their networking
  * stack. Use {@link HttpUrlConnectionNetworkFetcher} as a model.
+ *
+ * <p>With a {@link SpeculativeDecodePreparer}, the decode is prepared from the header of the image
+ * as soon as the first downloaded bytes contain it.
  */
 // The concrete FETCH_STATE of the injected NetworkFetcher is unknown at this layer, so it is held
 // as a raw type; genericizing the producer would only push the raw-type warnings onto every caller.
@@ -40,6 +45,8 @@ import javax.annotation.Nullable;
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class NetworkFetchProducer implements Producer<EncodedImage> {
 
+  private static final String TAG = "NetworkFetchProducer";
+
   public static final String PRODUCER_NAME = "NetworkFetchProducer";
   public static final String INTERMEDIATE_RESULT_PRODUCER_EVENT = "intermediate_result";
   private static final int READ_SIZE = 16 * 1024;
@@ -54,14 +61,24 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   protected final PooledByteBufferFactory mPooledByteBufferFactory;
   private final ByteArrayPool mByteArrayPool;
   private final NetworkFetcher mNetworkFetcher;
+  private final @Nullable SpeculativeDecodePreparer mSpeculativeDecodePreparer;
 
   public NetworkFetchProducer(
       PooledByteBufferFactory pooledByteBufferFactory,
       ByteArrayPool byteArrayPool,
       NetworkFetcher networkFetcher) {
+    this(pooledByteBufferFactory, byteArrayPool, networkFetcher, null);
+  }
+
+  public NetworkFetchProducer(
+      PooledByteBufferFactory pooledByteBufferFactory,
+      ByteArrayPool byteArrayPool,
+      NetworkFetcher networkFetcher,
+      @Nullable SpeculativeDecodePreparer speculativeDecodePreparer) {
     mPooledByteBufferFactory = pooledByteBufferFactory;
     mByteArrayPool = byteArrayPool;
     mNetworkFetcher = networkFetcher;
+    mSpeculativeDecodePreparer = speculativeDecodePreparer;
   }
 
   @Override
@@ -104,11 +121,15 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
       pooledOutputStream = mPooledByteBufferFactory.newOutputStream();
     }
     final byte[] ioArray = mByteArrayPool.get(READ_SIZE);
+    boolean isDecodePrepared = mSpeculativeDecodePreparer == null;
     try {
       int length;
       while ((length = responseData.read(ioArray)) >= 0) {
         if (length > 0) {
           pooledOutputStream.write(ioArray, 0, length);
+          if (!isDecodePrepared) {
+            isDecodePrepared = maybePrepareDecode(pooledOutputStream, fetchState);
+          }
           maybeHandleIntermediateResult(pooledOutputStream, fetchState);
           float progress = calculateProgress(pooledOutputStream.size(), responseContentLength);
           fetchState.getConsumer().onProgressUpdate(progress);
@@ -141,6 +162,33 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
     }
   }
 
+  /**
+   * Prepares the decode from the header in the bytes downloaded so far.
+   *
+   * @return false if more bytes are needed to prepare the decode
+   */
+  private boolean maybePrepareDecode(
+      PooledByteBufferOutputStream pooledOutputStream, FetchState fetchState) {
+    SpeculativeDecodePreparer preparer = Preconditions.checkNotNull(mSpeculativeDecodePreparer);
+    if (pooledOutputStream.size() > SpeculativeDecodePreparer.MAX_HEADER_BYTES) {
+      return true;
+    }
+    CloseableReference<PooledByteBuffer> header =
+        CloseableReference.of(pooledOutputStream.toByteBuffer());
+    EncodedImage encodedImage = null;
+    try {
+      encodedImage = new EncodedImage(header);
+      return preparer.prepare(fetchState.getContext(), encodedImage);
+    } catch (RuntimeException e) {
+      // Preparing the decode is only an optimization, it must not fail the fetch
+      FLog.w(TAG, e, "Could not prepare the decode of %s", fetchState.getUri());
+      return true;
+    } finally {
+      EncodedImage.closeSafely(encodedImage);
+      CloseableReference.closeSafely(header);
+    }
+  }
+
   protected void maybeHandleIntermediateResult(
       PooledByteBufferOutputStream pooledOutputStream, FetchState fetchState) {
     final long nowMs;
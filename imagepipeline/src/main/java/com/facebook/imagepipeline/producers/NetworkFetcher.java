@@ -122,4 +122,17 @@ public interface NetworkFetcher<FETCH_STATE extends FetchState> {
    */
   @Nullable
   Map<String, String> getExtraMap(FETCH_STATE fetchState, int byteSize);
+
+  /**
+   * Gets whether the fetched bytes only depend on the source of the request, and not on its
+   * requested size, e.g. because the fetcher does not ask the server for a resized image.
+   *
+   * <p>Requests for different sizes of the same image can then share one fetch, see {@link
+   * com.facebook.imagepipeline.core.ImagePipelineExperiments#getUseEncodedSourceMultiplexKey}.
+   *
+   * @return whether the fetched bytes are the same for any requested size
+   */
+  default boolean hasSizeInvariantResults() {
+    return false;
+  }
 }
@@ -136,7 +136,7 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
       return;
     }
     final Task<EncodedImage> diskLookupTask =
-        bufferedDiskCache.get(partialImageCacheKey, isCancelled);
+        bufferedDiskCache.get(partialImageCacheKey, isCancelled, producerContext);
     final Continuation<EncodedImage, Void> continuation =
         onFinishDiskReads(consumer, producerContext, partialImageCacheKey);
 
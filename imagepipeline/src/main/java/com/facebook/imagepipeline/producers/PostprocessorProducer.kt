@@ -138,7 +138,8 @@ class PostprocessorProducer(
     }
 
     fun submitPostprocessing() {
-      mExecutor.execute(
+      PrioritizedProducerRunnable.execute(
+          mExecutor,
           object : Runnable {
             override fun run() {
               val closeableImageRef: CloseableReference<CloseableImage>?
@@ -161,6 +162,7 @@ class PostprocessorProducer(
               clearRunningAndStartIfDirty()
             }
           },
+          mProducerContext,
       )
     }
 
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.core.PrioritizedRunnable;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+
+/** Runnable that has the priority of the request it belongs to. */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class PrioritizedProducerRunnable implements PrioritizedRunnable {
+
+  private final Runnable mRunnable;
+  private final ProducerContext mProducerContext;
+  private final AtomicBoolean mCallbacksAdded = new AtomicBoolean();
+  private volatile @Nullable Runnable mPriorityChangeListener;
+
+  public PrioritizedProducerRunnable(Runnable runnable, ProducerContext producerContext) {
+    mRunnable = Preconditions.checkNotNull(runnable);
+    mProducerContext = Preconditions.checkNotNull(producerContext);
+  }
+
+  @Override
+  public Priority getPriority() {
+    return mProducerContext.getPriority();
+  }
+
+  @Override
+  public void setPriorityChangeListener(@Nullable Runnable listener) {
+    mPriorityChangeListener = listener;
+    // Only the runnables queued by priority listen to the producer context
+    if (listener != null && mCallbacksAdded.compareAndSet(false, true)) {
+      mProducerContext.addCallbacks(
+          new BaseProducerContextCallbacks() {
+            @Override
+            public void onPriorityChanged() {
+              Runnable priorityChangeListener = mPriorityChangeListener;
+              if (priorityChangeListener != null) {
+                priorityChangeListener.run();
+              }
+            }
+          });
+    }
+  }
+
+  @Override
+  public void run() {
+    mRunnable.run();
+  }
+
+  /**
+   * Executes the runnable on the executor, with the priority of the producer context.
+   *
+   * <p>Executors queueing tasks by priority, like {@link
+   * com.facebook.imagepipeline.core.PriorityExecutor}, queue the runnable with the priority of the
+   * producer context, and move it whenever that priority changes while the runnable is queued.
+   * Executors wrapping them have to pass the runnable on as it is for that.
+   */
+  public static void execute(
+      Executor executor, Runnable runnable, ProducerContext producerContext) {
+    executor.execute(new PrioritizedProducerRunnable(runnable, producerContext));
+  }
+}
@@ -123,7 +123,8 @@ public class ResizeAndRotateProducer implements Producer<EncodedImage> {
               }
             }
           };
-      mJobScheduler = new JobScheduler(mExecutor, job, MIN_TRANSFORM_INTERVAL_MS);
+      mJobScheduler =
+          new JobScheduler(mExecutor, job, MIN_TRANSFORM_INTERVAL_MS, mProducerContext);
 
       mProducerContext.addCallbacks(
           new BaseProducerContextCallbacks() {
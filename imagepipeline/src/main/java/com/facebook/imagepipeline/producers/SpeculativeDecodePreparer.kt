@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers
+
+import android.graphics.Bitmap
+import android.os.Build
+import com.facebook.common.logging.FLog
+import com.facebook.fresco.middleware.HasExtraData
+import com.facebook.imageformat.DefaultImageFormats
+import com.facebook.imageformat.ImageFormat
+import com.facebook.imagepipeline.core.DownsampleMode
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.memory.BitmapPool
+import com.facebook.imageutils.BitmapUtil
+
+/**
+ * Prepares the decode of a network image from its header, parsed from the first downloaded bytes,
+ * while the rest of the image is downloaded.
+ *
+ * Once the format and the dimensions are known, the sample size is determined like
+ * [DecodeProducer] does, and the bitmap pool the decoder gets its bitmaps from is warmed with a
+ * bitmap of the decoded size, if the pool keeps such bitmaps when released: a decoder then reuses
+ * it instead of allocating it, usually the decoder of the image when the download completes,
+ * unless another decode takes it first. The dimensions and the format are put in the extras of the
+ * producer context.
+ *
+ * Only the static formats decoded by the platform decoder are prepared. Images resized by the
+ * transcoder are not, as their decoded size is not known from the header.
+ */
+class SpeculativeDecodePreparer
+@JvmOverloads
+constructor(
+    private val bitmapPool: BitmapPool,
+    private val downsampleMode: DownsampleMode,
+    private val downsampleEnabledForNetwork: Boolean,
+    private val maxBitmapDimension: Int,
+    private val maxPreparedBitmapBytes: Int = DEFAULT_MAX_PREPARED_BITMAP_BYTES,
+) {
+
+  /**
+   * Prepares the decode from the header of the image.
+   *
+   * @param header the bytes downloaded so far, whose metadata is parsed when first read
+   * @return false if more bytes are needed to read the header, true otherwise, whether the decode
+   *   was prepared or not
+   */
+  fun prepare(producerContext: ProducerContext, header: EncodedImage): Boolean {
+    val imageFormat = header.imageFormat
+    if (imageFormat == ImageFormat.UNKNOWN) {
+      return false
+    }
+    if (!isPreparable(imageFormat)) {
+      return true
+    }
+    if (header.width <= 0 || header.height <= 0) {
+      return false
+    }
+    val request = producerContext.imageRequest
+    if (downsampleEnabledForNetwork && request.resizeOptions != null) {
+      // ResizeAndRotateProducer may transcode the image to another size first
+      return true
+    }
+
+    DecodeProducer.updateSampleSize(
+        producerContext,
+        header,
+        false,
+        downsampleMode,
+        downsampleEnabledForNetwork,
+        maxBitmapDimension,
+    )
+    val sampleSize = header.sampleSize
+    producerContext.putExtra(HasExtraData.KEY_IMAGE_FORMAT, imageFormat.name)
+    producerContext.putExtra(HasExtraData.KEY_ENCODED_WIDTH, header.width)
+    producerContext.putExtra(HasExtraData.KEY_ENCODED_HEIGHT, header.height)
+
+    val bitmapConfig = request.imageDecodeOptions.bitmapConfig
+    if (!usesBitmapPool(producerContext, bitmapConfig)) {
+      return true
+    }
+    val isJpeg = imageFormat == DefaultImageFormats.JPEG
+    // Same size as the decoders compute with BitmapUtil.getSizeInByteForBitmap
+    val sizeInBytes =
+        getDecodedDimension(header.width, sampleSize, isJpeg).toLong() *
+            getDecodedDimension(header.height, sampleSize, isJpeg) *
+            BitmapUtil.getPixelSizeForBitmapConfig(bitmapConfig)
+    if (sizeInBytes > maxPreparedBitmapBytes || !bitmapPool.canRetain(sizeInBytes.toInt())) {
+      // Warming a pool that frees the released bitmap would only allocate and free it
+      return true
+    }
+    try {
+      bitmapPool.release(bitmapPool.get(sizeInBytes.toInt()))
+    } catch (e: RuntimeException) {
+      // The pool is full: the decoder will allocate the bitmap
+      FLog.w(TAG, e, "Could not prepare a bitmap of %d bytes", sizeInBytes)
+    }
+    return true
+  }
+
+  private fun usesBitmapPool(producerContext: ProducerContext, bitmapConfig: Bitmap.Config) =
+      !producerContext.imagePipelineConfig.experiments.platformDecoderOptions.avoidPoolGet &&
+          (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || bitmapConfig != Bitmap.Config.HARDWARE)
+
+  companion object {
+    private const val TAG = "SpeculativeDecodePreparer"
+
+    /** Bytes of the image after which its header is not looked for anymore. */
+    const val MAX_HEADER_BYTES = 64 * 1_024
+
+    const val DEFAULT_MAX_PREPARED_BITMAP_BYTES = 16 * 1_024 * 1_024
+
+    private fun isPreparable(imageFormat: ImageFormat): Boolean =
+        imageFormat == DefaultImageFormats.JPEG ||
+            imageFormat == DefaultImageFormats.PNG ||
+            DefaultImageFormats.isStaticWebpFormat(imageFormat)
+
+    /**
+     * Returns the dimension of the decoded bitmap, as BitmapFactory computes it: JPEGs are scaled
+     * while decoding and rounded up, other formats are subsampled and rounded down.
+     */
+    @JvmStatic
+    fun getDecodedDimension(dimension: Int, sampleSize: Int, isJpeg: Boolean): Int =
+        if (isJpeg) {
+          (dimension + sampleSize - 1) / sampleSize
+        } else {
+          Math.max(1, dimension / sampleSize)
+        }
+  }
+}
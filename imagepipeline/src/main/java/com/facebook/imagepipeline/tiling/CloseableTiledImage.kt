@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiling
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Rect
+import com.facebook.cache.common.CacheKey
+import com.facebook.common.logging.FLog
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.cache.MemoryCache
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.DefaultCloseableImage
+import java.util.Collections
+import java.util.WeakHashMap
+import java.util.concurrent.Executor
+import javax.annotation.concurrent.GuardedBy
+
+/**
+ * Image too big to be decoded into one bitmap, decoded by [TiledImageDecoder]: it holds a preview
+ * of the whole image, downsampled to [previewSampleSize], and the [BitmapRegionDecoder] of the
+ * encoded image, which decodes the tiles visible in the [TiledImageViewport]s of the image.
+ *
+ * Tiles and viewports are in pixels of the encoded image, before its rotation by [rotationAngle].
+ * The width and the height of the image are rotated, like those of static bitmaps.
+ */
+class CloseableTiledImage
+internal constructor(
+    // Null once closed. Guarded by this for writes.
+    @Volatile private var regionDecoder: BitmapRegionDecoder?,
+    private var preview: CloseableReference<Bitmap>?,
+    val previewSampleSize: Int,
+    val encodedWidth: Int,
+    val encodedHeight: Int,
+    val rotationAngle: Int,
+    internal val sourceString: String,
+    internal val tileSize: Int,
+    internal val bitmapConfig: Bitmap.Config,
+    internal val bitmapMemoryCache: MemoryCache<CacheKey, CloseableImage>,
+    internal val executor: Executor,
+    encodedSizeInBytes: Int,
+) : DefaultCloseableImage() {
+
+  // The region decoder holds the encoded image
+  private val sizeInBytes = (preview?.get()?.byteCount ?: 0) + encodedSizeInBytes
+  // Open viewports, to close with the image. Weak, as viewports are owned by their views.
+  @GuardedBy("this")
+  private val viewports = Collections.newSetFromMap(WeakHashMap<TiledImageViewport, Boolean>())
+  // Serializes the decodes, without holding the lock of the image that draws and close take
+  private val decodeLock = Any()
+  // Whether a region is being decoded, in which case the decode recycles the closed decoder
+  @GuardedBy("this") private var isDecoding = false
+
+  override fun getSizeInBytes(): Int = sizeInBytes
+
+  override fun getWidth(): Int = if (rotationAngle % 180 != 0) encodedHeight else encodedWidth
+
+  override fun getHeight(): Int = if (rotationAngle % 180 != 0) encodedWidth else encodedHeight
+
+  override fun isClosed(): Boolean = regionDecoder == null
+
+  /**
+   * Creates a viewport on the image, for a view showing it. The view closes the viewport when it
+   * stops showing the image, and the viewport is closed when the image is.
+   *
+   * @param listener notified on the executor of the decoder when a tile of the viewport is decoded
+   */
+  fun newViewport(listener: TiledImageViewport.Listener?): TiledImageViewport {
+    val viewport: TiledImageViewport
+    synchronized(this) {
+      viewport = TiledImageViewport(this, CloseableReference.cloneOrNull(preview), listener)
+      if (regionDecoder != null) {
+        viewports.add(viewport)
+        return viewport
+      }
+    }
+    viewport.close()
+    return viewport
+  }
+
+  override fun close() {
+    val viewportsToClose: List<TiledImageViewport>
+    synchronized(this) {
+      val decoder = regionDecoder ?: return
+      regionDecoder = null
+      if (!isDecoding) {
+        decoder.recycle()
+      }
+      CloseableReference.closeSafely(preview)
+      preview = null
+      viewportsToClose = viewports.toList()
+      viewports.clear()
+    }
+    viewportsToClose.forEach { it.close() }
+  }
+
+  internal fun onViewportClosed(viewport: TiledImageViewport) {
+    synchronized(this) { viewports.remove(viewport) }
+  }
+
+  /** Returns the rect of the encoded image covered by the tile. */
+  internal fun getTileRect(key: TileCacheKey, outRect: Rect) {
+    val span = key.tileSize * key.sampleSize
+    outRect.set(
+        key.left,
+        key.top,
+        Math.min(key.left + span, encodedWidth),
+        Math.min(key.top + span, encodedHeight),
+    )
+  }
+
+  /**
+   * Decodes a region of the encoded image, or returns null if the image is closed or the region
+   * cannot be decoded.
+   */
+  internal fun decodeRegion(rect: Rect, sampleSize: Int): Bitmap? {
+    val options = createDecodeOptions(sampleSize, bitmapConfig)
+    // BitmapRegionDecoder serializes its decodes anyway, and must not be recycled while decoding
+    synchronized(decodeLock) {
+      val decoder = synchronized(this) { regionDecoder?.also { isDecoding = true } } ?: return null
+      try {
+        return decoder.decodeRegion(rect, options)
+      } catch (e: RuntimeException) {
+        FLog.w(TAG, e, "Could not decode region %s of %s", rect, sourceString)
+        return null
+      } finally {
+        val isClosedWhileDecoding = synchronized(this) {
+          isDecoding = false
+          regionDecoder == null
+        }
+        if (isClosedWhileDecoding) {
+          decoder.recycle()
+        }
+      }
+    }
+  }
+
+  companion object {
+    private const val TAG = "CloseableTiledImage"
+
+    internal fun createDecodeOptions(
+        sampleSize: Int,
+        bitmapConfig: Bitmap.Config,
+    ): BitmapFactory.Options {
+      val options = BitmapFactory.Options()
+      options.inSampleSize = sampleSize
+      options.inPreferredConfig = bitmapConfig
+      return options
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiling
+
+import android.net.Uri
+import com.facebook.cache.common.CacheKey
+
+/**
+ * Cache key of a tile of a [CloseableTiledImage] in the bitmap memory cache.
+ *
+ * The tile covers `tileSize * sampleSize` pixels of the encoded image from ([left], [top]), and is
+ * decoded to at most `tileSize` pixels. The dimensions of the encoded image tell apart the tiles
+ * of different encoded images with the same source, like the resized variants of a request.
+ */
+@Suppress("KtDataClass")
+data class TileCacheKey(
+    val sourceString: String,
+    val encodedWidth: Int,
+    val encodedHeight: Int,
+    val tileSize: Int,
+    val sampleSize: Int,
+    val left: Int,
+    val top: Int,
+) : CacheKey {
+
+  override fun containsUri(uri: Uri): Boolean = sourceString.contains(uri.toString())
+
+  override fun getUriString(): String = sourceString
+
+  override fun isResourceIdForDebugging(): Boolean = false
+}
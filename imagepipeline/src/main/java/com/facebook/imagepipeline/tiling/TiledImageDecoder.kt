@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiling
+
+import android.graphics.Bitmap
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Rect
+import android.os.Build
+import com.facebook.cache.common.CacheKey
+import com.facebook.common.logging.FLog
+import com.facebook.common.references.CloseableReference
+import com.facebook.imageformat.DefaultImageFormats
+import com.facebook.imageformat.ImageFormat
+import com.facebook.imagepipeline.bitmaps.SimpleBitmapReleaser
+import com.facebook.imagepipeline.cache.MemoryCache
+import com.facebook.imagepipeline.common.ImageDecodeOptions
+import com.facebook.imagepipeline.decoder.ImageDecoder
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.image.QualityInfo
+import java.io.IOException
+import java.util.concurrent.Executor
+
+/**
+ * Decoder of huge images into [CloseableTiledImage]s, to be set as the custom image decoder of the
+ * [ImageDecodeOptions] of requests for zoomable images, with
+ * [com.facebook.imagepipeline.core.ImagePipelineFactory.getTiledImageDecoder].
+ *
+ * Instead of decoding the whole image into one bitmap, downsampled to fit in the maximum bitmap
+ * dimension, it decodes a preview of at most [maxPreviewDimension] pixels, and keeps a
+ * [BitmapRegionDecoder] to decode the tiles of [tileSize] pixels of the viewports of the image, at
+ * the sample size of their zoom level. Memory then scales with the viewport rather than with the
+ * image. Tiles are decoded with the software bitmap config of the request, on [executor], and are
+ * cached in [bitmapMemoryCache].
+ *
+ * The decode is delegated to [fallbackDecoder] for the formats BitmapRegionDecoder does not
+ * support, for intermediate results and for images small enough for the preview. The region
+ * decoder reads the encoded image at full size: the sample size set on it by the pipeline is
+ * ignored.
+ */
+class TiledImageDecoder
+@JvmOverloads
+constructor(
+    private val bitmapMemoryCache: MemoryCache<CacheKey, CloseableImage>,
+    private val executor: Executor,
+    private val fallbackDecoder: ImageDecoder,
+    private val maxPreviewDimension: Int = DEFAULT_MAX_PREVIEW_DIMENSION,
+    private val tileSize: Int = DEFAULT_TILE_SIZE,
+) : ImageDecoder {
+
+  override fun decode(
+      encodedImage: EncodedImage,
+      length: Int,
+      qualityInfo: QualityInfo,
+      options: ImageDecodeOptions,
+  ): CloseableImage? {
+    val width = encodedImage.width
+    val height = encodedImage.height
+    if (
+        !isTileable(encodedImage.imageFormat) ||
+            !qualityInfo.isOfFullQuality ||
+            Math.max(width, height) <= maxPreviewDimension
+    ) {
+      return decodeWithFallback(encodedImage, length, qualityInfo, options)
+    }
+
+    val regionDecoder =
+        try {
+          encodedImage.inputStreamOrThrow.use { BitmapRegionDecoder.newInstance(it, false) }
+        } catch (e: IOException) {
+          FLog.w(TAG, e, "Could not create a region decoder for %s", encodedImage.source)
+          null
+        } ?: return decodeWithFallback(encodedImage, length, qualityInfo, options)
+
+    val bitmapConfig = getTileBitmapConfig(options.bitmapConfig)
+    val previewSampleSize = getPreviewSampleSize(width, height, maxPreviewDimension)
+    val previewBitmap =
+        try {
+          regionDecoder.decodeRegion(
+              Rect(0, 0, width, height),
+              CloseableTiledImage.createDecodeOptions(previewSampleSize, bitmapConfig),
+          )
+        } catch (e: RuntimeException) {
+          FLog.w(TAG, e, "Could not decode the preview of %s", encodedImage.source)
+          null
+        }
+    if (previewBitmap == null) {
+      regionDecoder.recycle()
+      return decodeWithFallback(encodedImage, length, qualityInfo, options)
+    }
+
+    return CloseableTiledImage(
+        regionDecoder,
+        CloseableReference.of(previewBitmap, SimpleBitmapReleaser.getInstance()),
+        previewSampleSize,
+        width,
+        height,
+        encodedImage.rotationAngle,
+        // Tiles of images without a source are not shared
+        encodedImage.source ?: "tiled:${System.identityHashCode(regionDecoder)}",
+        tileSize,
+        bitmapConfig,
+        bitmapMemoryCache,
+        executor,
+        encodedImage.size,
+    )
+  }
+
+  private fun decodeWithFallback(
+      encodedImage: EncodedImage,
+      length: Int,
+      qualityInfo: QualityInfo,
+      options: ImageDecodeOptions,
+  ): CloseableImage? {
+    // The fallback decoder would delegate to this decoder again
+    val fallbackOptions =
+        if (options.customImageDecoder == null) {
+          options
+        } else {
+          ImageDecodeOptions.newBuilder().setFrom(options).setCustomImageDecoder(null).build()
+        }
+    return fallbackDecoder.decode(encodedImage, length, qualityInfo, fallbackOptions)
+  }
+
+  companion object {
+    private const val TAG = "TiledImageDecoder"
+
+    const val DEFAULT_MAX_PREVIEW_DIMENSION = 2_048
+    const val DEFAULT_TILE_SIZE = 512
+
+    private fun isTileable(imageFormat: ImageFormat): Boolean =
+        imageFormat == DefaultImageFormats.JPEG ||
+            imageFormat == DefaultImageFormats.PNG ||
+            DefaultImageFormats.isStaticWebpFormat(imageFormat)
+
+    /** BitmapRegionDecoder does not decode hardware bitmaps. */
+    private fun getTileBitmapConfig(bitmapConfig: Bitmap.Config): Bitmap.Config =
+        if (
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
+                bitmapConfig == Bitmap.Config.HARDWARE
+        ) {
+          Bitmap.Config.ARGB_8888
+        } else {
+          bitmapConfig
+        }
+
+    /** Returns the smallest power of two sample size fitting the image in the max dimension. */
+    @JvmStatic
+    fun getPreviewSampleSize(width: Int, height: Int, maxDimension: Int): Int {
+      val maxImageDimension = Math.max(width, height)
+      var sampleSize = 1
+      while ((maxImageDimension + sampleSize - 1) / sampleSize > maxDimension) {
+        sampleSize *= 2
+      }
+      return sampleSize
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiling
+
+import android.graphics.Canvas
+import android.graphics.ColorFilter
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.PixelFormat
+import android.graphics.Rect
+import android.graphics.RectF
+import android.graphics.drawable.Drawable
+import android.os.Handler
+import android.os.Looper
+import com.facebook.drawable.base.DrawableWithCaches
+
+/**
+ * Drawable of a [CloseableTiledImage], drawing the preview of the image and the tiles of its
+ * visible part. The visible part and the scale are found from the clip of the canvas, so zooming
+ * the drawable with the matrix of the canvas, like zoomable views do, decodes the tiles of the
+ * zoomed part at the sample size of the zoom.
+ *
+ * The viewport of the drawable, holding its tiles, is created when drawn, and closed when the
+ * drawable is hidden, like when its view is detached, or when its caches are dropped, like when
+ * its controller releases it.
+ */
+class TiledImageDrawable(private val image: CloseableTiledImage) :
+    Drawable(), TiledImageViewport.Listener, DrawableWithCaches {
+
+  private var viewport: TiledImageViewport? = null
+  private val paint = Paint(Paint.FILTER_BITMAP_FLAG)
+  private val imageMatrix = Matrix()
+  private val visibleRect = Rect()
+  private val tempRectF = RectF()
+  private val handler = Handler(Looper.getMainLooper())
+  private val invalidateRunnable = Runnable { invalidateSelf() }
+
+  override fun draw(canvas: Canvas) {
+    if (bounds.isEmpty || image.isClosed) {
+      return
+    }
+    val viewport = viewport ?: image.newViewport(this).also { viewport = it }
+    val saveCount = canvas.save()
+    canvas.concat(imageMatrix)
+    // Visible part of the image in pixels of the encoded image
+    if (canvas.getClipBounds(visibleRect)) {
+      val visibleArea = visibleRect.width().toFloat() * visibleRect.height()
+      val scale = Math.sqrt(canvas.width.toDouble() * canvas.height / visibleArea).toFloat()
+      viewport.setViewport(visibleRect, scale)
+    }
+    viewport.draw(canvas, paint)
+    canvas.restoreToCount(saveCount)
+  }
+
+  override fun onBoundsChange(bounds: Rect) {
+    super.onBoundsChange(bounds)
+    // Rotates the encoded image, then scales it to the bounds
+    imageMatrix.setRotate(image.rotationAngle.toFloat())
+    tempRectF.set(0f, 0f, image.encodedWidth.toFloat(), image.encodedHeight.toFloat())
+    imageMatrix.mapRect(tempRectF)
+    imageMatrix.postTranslate(-tempRectF.left, -tempRectF.top)
+    imageMatrix.postScale(bounds.width() / tempRectF.width(), bounds.height() / tempRectF.height())
+    imageMatrix.postTranslate(bounds.left.toFloat(), bounds.top.toFloat())
+  }
+
+  override fun setVisible(visible: Boolean, restart: Boolean): Boolean {
+    if (!visible) {
+      // Releases the tiles and cancels their decodes until drawn again
+      closeViewport()
+    }
+    return super.setVisible(visible, restart)
+  }
+
+  override fun dropCaches() {
+    closeViewport()
+  }
+
+  override fun onTileDecoded(viewport: TiledImageViewport) {
+    handler.post(invalidateRunnable)
+  }
+
+  override fun getIntrinsicWidth(): Int = image.width
+
+  override fun getIntrinsicHeight(): Int = image.height
+
+  override fun setAlpha(alpha: Int) {
+    paint.alpha = alpha
+    invalidateSelf()
+  }
+
+  override fun setColorFilter(colorFilter: ColorFilter?) {
+    paint.colorFilter = colorFilter
+    invalidateSelf()
+  }
+
+  override fun getOpacity(): Int = PixelFormat.TRANSLUCENT
+
+  private fun closeViewport() {
+    viewport?.close()
+    viewport = null
+    handler.removeCallbacks(invalidateRunnable)
+  }
+}
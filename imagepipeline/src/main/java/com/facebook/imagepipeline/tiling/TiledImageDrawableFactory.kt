@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiling
+
+import android.graphics.drawable.Drawable
+import com.facebook.imagepipeline.drawable.DrawableFactory
+import com.facebook.imagepipeline.image.CloseableImage
+
+/** Creates [TiledImageDrawable]s for the [CloseableTiledImage]s of [TiledImageDecoder]. */
+class TiledImageDrawableFactory : DrawableFactory {
+  override fun supportsImageType(image: CloseableImage): Boolean {
+    return image is CloseableTiledImage
+  }
+
+  override fun createDrawable(image: CloseableImage): Drawable? {
+    return (image as? CloseableTiledImage)?.let { TiledImageDrawable(it) }
+  }
+}
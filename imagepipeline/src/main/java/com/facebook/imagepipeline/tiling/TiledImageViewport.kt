@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiling
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Rect
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.bitmaps.SimpleBitmapReleaser
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.CloseableStaticBitmap
+import com.facebook.imagepipeline.image.ImmutableQualityInfo
+import java.io.Closeable
+
+/**
+ * Part of a [CloseableTiledImage] shown by a view, with the tiles it needs at its scale.
+ *
+ * When the viewport changes, the tiles intersecting it are taken from the bitmap memory cache, or
+ * decoded on the executor of the image and then cached under their [TileCacheKey]. The tiles out
+ * of the viewport are released, and their decodes are cancelled if they have not started yet. When
+ * the sample size changes, the visible tiles of the previous one are drawn under the new ones until
+ * those are all decoded, so that zooming does not show the preview in between. When the preview of
+ * the image has enough pixels for the scale, no tile is needed.
+ *
+ * The viewport and the tiles are in pixels of the encoded image.
+ */
+class TiledImageViewport
+internal constructor(
+    private val image: CloseableTiledImage,
+    private var preview: CloseableReference<Bitmap>?,
+    private val listener: Listener?,
+) : Closeable {
+
+  /** Listener of the tiles of the viewport. */
+  fun interface Listener {
+    /** Called on the executor of the decoder when a tile has been decoded for the viewport. */
+    fun onTileDecoded(viewport: TiledImageViewport)
+  }
+
+  // All guarded by this
+  private val tiles = HashMap<TileCacheKey, CloseableReference<CloseableImage>>()
+  private val pendingDecodes = HashSet<TileCacheKey>()
+  // Tiles of previous sample sizes, drawn until the decodes of the tiles replacing them are done
+  private val staleTiles = HashMap<TileCacheKey, CloseableReference<CloseableImage>>()
+  private val tileRect = Rect()
+  private var closed = false
+
+  /** Sample size of the tiles of the viewport, or the one of the preview if no tile is needed. */
+  @get:Synchronized
+  var sampleSize: Int = image.previewSampleSize
+    private set
+
+  /** Keys of the tiles of the viewport that are decoded. */
+  val tileKeys: Set<TileCacheKey>
+    @Synchronized get() = HashSet(tiles.keys)
+
+  /** Keys of the tiles of the viewport that are being decoded. */
+  val pendingTileKeys: Set<TileCacheKey>
+    @Synchronized get() = HashSet(pendingDecodes)
+
+  /** Keys of the tiles of previous sample sizes, drawn until the viewport tiles are decoded. */
+  val staleTileKeys: Set<TileCacheKey>
+    @Synchronized get() = HashSet(staleTiles.keys)
+
+  /**
+   * Sets the visible part of the image.
+   *
+   * @param visibleRect the visible rect, in pixels of the encoded image
+   * @param scale the size on screen of a pixel of the encoded image
+   */
+  fun setViewport(visibleRect: Rect, scale: Float) {
+    var tilesToDecode: MutableList<TileCacheKey>? = null
+    synchronized(this) {
+      if (closed) {
+        return
+      }
+      sampleSize = getSampleSize(scale)
+      val visibleTiles =
+          if (sampleSize < image.previewSampleSize) {
+            getTileKeys(visibleRect, sampleSize)
+          } else {
+            // Tiles would not be sharper than the preview
+            sampleSize = image.previewSampleSize
+            emptySet()
+          }
+
+      val iterator = tiles.entries.iterator()
+      while (iterator.hasNext()) {
+        val tile = iterator.next()
+        if (tile.key !in visibleTiles) {
+          if (visibleTiles.isNotEmpty() && tile.key.sampleSize != sampleSize) {
+            staleTiles.put(tile.key, tile.value)?.close()
+          } else {
+            tile.value.close()
+          }
+          iterator.remove()
+        }
+      }
+      // Queued decodes are skipped once they are not pending anymore
+      pendingDecodes.retainAll(visibleTiles)
+
+      val staleIterator = staleTiles.entries.iterator()
+      while (staleIterator.hasNext()) {
+        val tile = staleIterator.next()
+        image.getTileRect(tile.key, tileRect)
+        if (tile.key in visibleTiles) {
+          // Zoomed back to the sample size of the tile
+          tiles[tile.key] = tile.value
+          staleIterator.remove()
+        } else if (!Rect.intersects(tileRect, visibleRect)) {
+          tile.value.close()
+          staleIterator.remove()
+        }
+      }
+
+      for (key in visibleTiles) {
+        if (key in tiles || key in pendingDecodes) {
+          continue
+        }
+        val cachedTile = image.bitmapMemoryCache[key]
+        if (cachedTile != null) {
+          tiles[key] = cachedTile
+        } else {
+          pendingDecodes.add(key)
+          (tilesToDecode ?: ArrayList<TileCacheKey>().also { tilesToDecode = it }).add(key)
+        }
+      }
+      releaseStaleTilesIfDecoded()
+    }
+    tilesToDecode?.forEach { key -> image.executor.execute { decodeTile(key) } }
+  }
+
+  /**
+   * Draws the preview, scaled to the size of the encoded image, the tiles of previous sample sizes
+   * over it, and the decoded tiles over them. The canvas must map the pixels of the encoded image
+   * to the screen.
+   */
+  @Synchronized
+  fun draw(canvas: Canvas, paint: Paint?) {
+    if (closed) {
+      return
+    }
+    preview?.get()?.let { previewBitmap ->
+      tileRect.set(0, 0, image.encodedWidth, image.encodedHeight)
+      canvas.drawBitmap(previewBitmap, null, tileRect, paint)
+    }
+    drawTiles(canvas, paint, staleTiles)
+    drawTiles(canvas, paint, tiles)
+  }
+
+  override fun close() {
+    synchronized(this) {
+      if (closed) {
+        return
+      }
+      closed = true
+      tiles.values.forEach { it.close() }
+      tiles.clear()
+      staleTiles.values.forEach { it.close() }
+      staleTiles.clear()
+      pendingDecodes.clear()
+      CloseableReference.closeSafely(preview)
+      preview = null
+    }
+    image.onViewportClosed(this)
+  }
+
+  private fun drawTiles(
+      canvas: Canvas,
+      paint: Paint?,
+      tilesToDraw: Map<TileCacheKey, CloseableReference<CloseableImage>>,
+  ) {
+    for ((key, tile) in tilesToDraw) {
+      val bitmap = (tile.get() as? CloseableStaticBitmap)?.underlyingBitmap ?: continue
+      image.getTileRect(key, tileRect)
+      canvas.drawBitmap(bitmap, null, tileRect, paint)
+    }
+  }
+
+  // Called with the lock of the viewport held
+  private fun releaseStaleTilesIfDecoded() {
+    if (pendingDecodes.isEmpty()) {
+      staleTiles.values.forEach { it.close() }
+      staleTiles.clear()
+    }
+  }
+
+  private fun getTileKeys(visibleRect: Rect, sampleSize: Int): Set<TileCacheKey> {
+    val rect = Rect(0, 0, image.encodedWidth, image.encodedHeight)
+    if (!rect.intersect(visibleRect)) {
+      return emptySet()
+    }
+    val span = image.tileSize * sampleSize
+    val left = rect.left / span
+    val top = rect.top / span
+    val right = (rect.right - 1) / span
+    val bottom = (rect.bottom - 1) / span
+    val keys = HashSet<TileCacheKey>()
+    for (row in top..bottom) {
+      for (column in left..right) {
+        keys.add(createTileKey(sampleSize, column * span, row * span))
+      }
+    }
+    return keys
+  }
+
+  private fun createTileKey(sampleSize: Int, left: Int, top: Int): TileCacheKey =
+      TileCacheKey(
+          image.sourceString,
+          image.encodedWidth,
+          image.encodedHeight,
+          image.tileSize,
+          sampleSize,
+          left,
+          top,
+      )
+
+  private fun decodeTile(key: TileCacheKey) {
+    synchronized(this) {
+      if (key !in pendingDecodes) {
+        return
+      }
+    }
+    // Another viewport may have decoded the tile in the meantime
+    var tile = image.bitmapMemoryCache[key]
+    if (tile == null) {
+      val rect = Rect()
+      image.getTileRect(key, rect)
+      val bitmap = image.decodeRegion(rect, key.sampleSize)
+      if (bitmap == null) {
+        synchronized(this) {
+          pendingDecodes.remove(key)
+          releaseStaleTilesIfDecoded()
+        }
+        return
+      }
+      val decodedTile =
+          CloseableReference.of<CloseableImage>(
+              CloseableStaticBitmap.of(
+                  bitmap, SimpleBitmapReleaser.getInstance(), ImmutableQualityInfo.FULL_QUALITY, 0))
+      tile = image.bitmapMemoryCache.cache(key, decodedTile)?.also { decodedTile.close() }
+      if (tile == null) {
+        tile = decodedTile
+      }
+    }
+    synchronized(this) {
+      if (!pendingDecodes.remove(key)) {
+        // Cancelled while decoding
+        tile.close()
+        return
+      }
+      tiles[key] = tile
+      releaseStaleTilesIfDecoded()
+    }
+    listener?.onTileDecoded(this)
+  }
+
+  companion object {
+    private const val MAX_SAMPLE_SIZE = 1 shl 16
+
+    /**
+     * Returns the sample size of the tiles for a scale: the largest power of two not bigger than
+     * 1 / scale, so that tiles have at least as many pixels as the screen.
+     */
+    @JvmStatic
+    fun getSampleSize(scale: Float): Int {
+      if (!(scale > 0f)) {
+        return MAX_SAMPLE_SIZE
+      }
+      var sampleSize = 1
+      while (sampleSize < MAX_SAMPLE_SIZE && sampleSize * 2 * scale <= 1f) {
+        sampleSize *= 2
+      }
+      return sampleSize
+    }
+  }
+}
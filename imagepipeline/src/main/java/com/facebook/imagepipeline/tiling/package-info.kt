@@ -0,0 +1,12 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+/**
+ * Tiled decoding of huge images: a preview of the whole image, and the tiles of the viewport
+ * decoded at the sample size of the zoom level, whose memory scales with the viewport.
+ */
+package com.facebook.imagepipeline.tiling
@@ -56,6 +56,21 @@ class PooledByteStreamsTest {
     Mockito.verify(byteArrayPool).release(pooledArray)
   }
 
+  @Test
+  @Throws(IOException::class)
+  fun testSharesTempBuffer() {
+    val otherOutputStream = ByteArrayOutputStream()
+    val buffer = pooledByteStreams.tempBuffer
+    pooledByteStreams.copy(inputStream, outputStream, buffer)
+    pooledByteStreams.copy(ByteArrayInputStream(data), otherOutputStream, buffer)
+    pooledByteStreams.releaseTempBuffer(buffer)
+
+    Assertions.assertThat(outputStream.toByteArray()).isEqualTo(data)
+    Assertions.assertThat(otherOutputStream.toByteArray()).isEqualTo(data)
+    Mockito.verify(byteArrayPool).get(POOLED_ARRAY_SIZE)
+    Mockito.verify(byteArrayPool).release(pooledArray)
+  }
+
   @Test
   @Throws(IOException::class)
   fun testReleasesOnException() {
@@ -9,6 +9,7 @@ package com.facebook.imagepipeline.cache
 
 import bolts.Task
 import com.facebook.binaryresource.BinaryResource
+import com.facebook.binaryresource.FileBinaryResource
 import com.facebook.cache.common.CacheKey
 import com.facebook.cache.common.MultiCacheKey
 import com.facebook.cache.common.SimpleCacheKey
@@ -18,9 +19,14 @@ import com.facebook.common.memory.PooledByteBuffer
 import com.facebook.common.memory.PooledByteBufferFactory
 import com.facebook.common.memory.PooledByteStreams
 import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.common.Priority
+import com.facebook.imagepipeline.core.PriorityExecutor
 import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.memory.MappedPooledByteBuffer
+import com.facebook.imagepipeline.producers.ProducerContext
 import com.facebook.imagepipeline.testing.FakeClock
 import com.facebook.imagepipeline.testing.TestExecutorService
+import java.io.File
 import java.io.InputStream
 import java.io.OutputStream
 import java.util.ArrayList
@@ -34,8 +40,10 @@ import org.junit.runner.RunWith
 import org.mockito.Mock
 import org.mockito.MockedStatic
 import org.mockito.MockitoAnnotations
+import org.mockito.kotlin.any
 import org.mockito.kotlin.argumentCaptor
 import org.mockito.kotlin.eq
+import org.mockito.kotlin.inOrder
 import org.mockito.kotlin.mock
 import org.mockito.kotlin.never
 import org.mockito.kotlin.reset
@@ -89,6 +97,7 @@ class BufferedDiskCacheTest {
         .thenReturn(pooledByteBuffer)
 
     whenever(StagingArea.getInstance()).thenAnswer { stagingArea }
+    whenever(stagingArea.put(any(), any())).thenReturn(true)
 
     bufferedDiskCache =
         BufferedDiskCache(
@@ -144,6 +153,35 @@ class BufferedDiskCacheTest {
     assertThat(result.byteBufferRef.get()).isSameAs(pooledByteBuffer)
   }
 
+  @Test
+  fun testQueriesDiskCacheWithPriorityOfRequest() {
+    val prioritizingDiskCache =
+        BufferedDiskCache(
+            fileCache,
+            byteBufferFactory,
+            pooledByteStreams,
+            PriorityExecutor(readPriorityExecutor),
+            writePriorityExecutor,
+            imageCacheStatsTracker,
+            false,
+            false,
+            null,
+        )
+    val prefetchKey = SimpleCacheKey("http://prefetch.uri")
+    val prefetchContext = mock<ProducerContext>()
+    whenever(prefetchContext.priority).thenReturn(Priority.LOW)
+    val requestContext = mock<ProducerContext>()
+    whenever(requestContext.priority).thenReturn(Priority.HIGH)
+
+    prioritizingDiskCache.get(prefetchKey, isCancelled, prefetchContext)
+    prioritizingDiskCache.get(cacheKey, isCancelled, requestContext)
+    readPriorityExecutor.runUntilIdle()
+
+    val inOrder = inOrder(fileCache)
+    inOrder.verify(fileCache).getResource(eq(cacheKey))
+    inOrder.verify(fileCache).getResource(eq(prefetchKey))
+  }
+
   @Test
   fun testCacheGetCancellation() {
     whenever(fileCache.getResource(cacheKey)).thenReturn(binaryResource)
@@ -185,6 +223,150 @@ class BufferedDiskCacheTest {
     assertThat(closeableReference.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(2)
   }
 
+  @Test
+  fun testSkipsSupersededWrite() {
+    bufferedDiskCache.put(cacheKey, encodedImage)
+    assertThat(bufferedDiskCache.pendingWriteCount).isEqualTo(1)
+    whenever(stagingArea.isReplaced(eq(cacheKey), any())).thenReturn(true)
+
+    writePriorityExecutor.runUntilIdle()
+
+    verify(fileCache, never()).insert(eq(cacheKey), any())
+    assertThat(bufferedDiskCache.pendingWriteCount).isEqualTo(0)
+    assertThat(closeableReference.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(2)
+  }
+
+  @Test
+  fun testDropsWriteWhenStagingAreaIsFull() {
+    whenever(stagingArea.put(cacheKey, encodedImage)).thenReturn(false)
+
+    bufferedDiskCache.put(cacheKey, encodedImage)
+    assertThat(bufferedDiskCache.pendingWriteCount).isEqualTo(0)
+    writePriorityExecutor.runUntilIdle()
+
+    verify(fileCache, never()).insert(eq(cacheKey), any())
+    verify(imageCacheStatsTracker).onStagingAreaDrop(cacheKey)
+    verify(imageCacheStatsTracker, never()).onDiskCachePut(cacheKey)
+    assertThat(closeableReference.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(2)
+  }
+
+  @Test
+  fun testBatchesWrites() {
+    val batchingDiskCache =
+        BufferedDiskCache(
+            fileCache,
+            byteBufferFactory,
+            pooledByteStreams,
+            readPriorityExecutor,
+            writePriorityExecutor,
+            imageCacheStatsTracker,
+            false,
+            false,
+            null,
+            StagingArea.UNBOUNDED,
+            true,
+        )
+    whenever(fileCache.insertBatch(any(), any())).thenAnswer { invocation ->
+      invocation.getArgument<List<CacheKey>>(0).map { binaryResource }
+    }
+    val otherKey = SimpleCacheKey("http://other.uri")
+
+    batchingDiskCache.put(cacheKey, encodedImage)
+    batchingDiskCache.put(otherKey, encodedImage)
+    assertThat(batchingDiskCache.pendingWriteCount).isEqualTo(2)
+    writePriorityExecutor.runUntilIdle()
+
+    verify(fileCache).insertBatch(eq(listOf(cacheKey, otherKey)), any())
+    verify(imageCacheStatsTracker).onDiskCachePut(cacheKey)
+    verify(imageCacheStatsTracker).onDiskCachePut(otherKey)
+    verify(imageCacheStatsTracker).onDiskCacheBatchWrite(eq(2), eq(246L), any())
+    assertThat(batchingDiskCache.pendingWriteCount).isEqualTo(0)
+    assertThat(closeableReference.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(2)
+  }
+
+  @Test
+  fun testDrainsOneBatchAtATime() {
+    val batchingDiskCache =
+        BufferedDiskCache(
+            fileCache,
+            byteBufferFactory,
+            pooledByteStreams,
+            readPriorityExecutor,
+            writePriorityExecutor,
+            imageCacheStatsTracker,
+            false,
+            false,
+            null,
+            StagingArea.UNBOUNDED,
+            true,
+        )
+    val otherKey = SimpleCacheKey("http://other.uri")
+    var pendingDrainsDuringDrain = -1
+    whenever(fileCache.insertBatch(any(), any())).thenAnswer { invocation ->
+      val keys = invocation.getArgument<List<CacheKey>>(0)
+      if (keys == listOf(cacheKey)) {
+        batchingDiskCache.put(otherKey, encodedImage)
+        pendingDrainsDuringDrain = writePriorityExecutor.pendingCount
+      }
+      keys.map { binaryResource }
+    }
+
+    batchingDiskCache.put(cacheKey, encodedImage)
+    writePriorityExecutor.runNextPendingCommand()
+
+    // The image queued during the drain is left to a drain scheduled once it is done
+    assertThat(pendingDrainsDuringDrain).isEqualTo(0)
+    assertThat(writePriorityExecutor.pendingCount).isEqualTo(1)
+    writePriorityExecutor.runUntilIdle()
+    verify(fileCache).insertBatch(eq(listOf(otherKey)), any())
+    assertThat(batchingDiskCache.pendingWriteCount).isEqualTo(0)
+  }
+
+  @Test
+  fun testMapsLargeFiles() {
+    val mappingDiskCache =
+        BufferedDiskCache(
+            fileCache,
+            byteBufferFactory,
+            pooledByteStreams,
+            readPriorityExecutor,
+            writePriorityExecutor,
+            imageCacheStatsTracker,
+            false,
+            false,
+            null,
+            StagingArea.UNBOUNDED,
+            false,
+            4,
+        )
+    val largeFile = File.createTempFile("large", ".cnt")
+    val smallFile = File.createTempFile("small", ".cnt")
+    try {
+      largeFile.writeBytes(byteArrayOf(1, 2, 3, 4, 5))
+      smallFile.writeBytes(byteArrayOf(1, 2, 3))
+      val smallResource = FileBinaryResource.create(smallFile)
+      val smallBuffer = mock<PooledByteBuffer>()
+      whenever(byteBufferFactory.newByteBuffer(any<InputStream>(), eq(3))).thenReturn(smallBuffer)
+      whenever(fileCache.getResource(eq(cacheKey)))
+          .thenReturn(FileBinaryResource.create(largeFile))
+      whenever(fileCache.getResource(eq(SimpleCacheKey("http://small.uri"))))
+          .thenReturn(smallResource)
+
+      val largeTask = mappingDiskCache.get(cacheKey, isCancelled)
+      val smallTask = mappingDiskCache.get(SimpleCacheKey("http://small.uri"), isCancelled)
+      readPriorityExecutor.runUntilIdle()
+
+      val largeBuffer = largeTask.result.byteBufferRef!!.get()
+      assertThat(largeBuffer).isInstanceOf(MappedPooledByteBuffer::class.java)
+      assertThat(largeBuffer.size()).isEqualTo(5)
+      assertThat(largeBuffer.read(4)).isEqualTo(5.toByte())
+      assertThat(smallTask.result.byteBufferRef!!.get()).isSameAs(smallBuffer)
+    } finally {
+      largeFile.delete()
+      smallFile.delete()
+    }
+  }
+
   @Test
   fun testCacheMiss() {
     val readTask = bufferedDiskCache.get(cacheKey, isCancelled)
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import com.facebook.cache.common.CacheEvent
+import com.facebook.cache.common.CacheEventListener
+import com.facebook.cache.common.SimpleCacheKey
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+
+class DefaultSimilarImageLookupTest {
+
+  private val lookup = DefaultSimilarImageLookup(maxGroups = 2, maxVariantsPerGroup = 3)
+
+  @Test
+  fun testFindsSmallestLargerMemoryVariant() {
+    lookup.trackMemoryCacheKey("a_1080", "a", 1080, 1080)
+    lookup.trackMemoryCacheKey("a_640", "a", 640, 640)
+    lookup.trackMemoryCacheKey("a_320", "a", 320, 320)
+
+    assertThat(lookup.findLargerMemoryCacheKey("a_480", "a", 480, 480, null))
+        .isEqualTo(SimilarImageResult("a_640", "a", 640, 640))
+    assertThat(lookup.findLargerMemoryCacheKey("a_2000", "a", 2000, 2000, null)).isNull()
+    assertThat(lookup.findLargerMemoryCacheKey("b_320", "b", 320, 320, null)).isNull()
+    assertThat(lookup.findLargerMemoryCacheKey("a_480", null, 480, 480, null)).isNull()
+  }
+
+  @Test
+  fun testRequiresBothDimensions() {
+    lookup.trackMemoryCacheKey("a_wide", "a", 1000, 200)
+    lookup.trackMemoryCacheKey("a_big", "a", 800, 800)
+
+    assertThat(lookup.findLargerMemoryCacheKey("a", "a", 900, 100, null)?.cacheKeyString)
+        .isEqualTo("a_wide")
+    assertThat(lookup.findLargerMemoryCacheKey("a", "a", 500, 300, null)?.cacheKeyString)
+        .isEqualTo("a_big")
+  }
+
+  @Test
+  fun testDoesNotReturnRequestedKey() {
+    lookup.trackMemoryCacheKey("a_640", "a", 640, 640)
+
+    assertThat(lookup.findLargerMemoryCacheKey("a_640", "a", 640, 640, null)).isNull()
+  }
+
+  @Test
+  fun testRemovesMemoryVariants() {
+    lookup.trackMemoryCacheKey("a_640", "a", 640, 640)
+    lookup.removeMemoryCacheKey("a_640", "a", 640, 640)
+
+    assertThat(lookup.findLargerMemoryCacheKey("a_320", "a", 320, 320, null)).isNull()
+    assertThat(lookup.memoryGroupCount).isEqualTo(0)
+  }
+
+  @Test
+  fun testBoundsVariantsPerGroup() {
+    lookup.trackMemoryCacheKey("a_100", "a", 100, 100)
+    lookup.trackMemoryCacheKey("a_200", "a", 200, 200)
+    lookup.trackMemoryCacheKey("a_300", "a", 300, 300)
+    lookup.trackMemoryCacheKey("a_400", "a", 400, 400)
+
+    // the smallest variant is dropped
+    assertThat(lookup.findLargerMemoryCacheKey("a_50", "a", 50, 50, null)?.cacheKeyString)
+        .isEqualTo("a_200")
+  }
+
+  @Test
+  fun testBoundsGroups() {
+    lookup.trackMemoryCacheKey("a_640", "a", 640, 640)
+    lookup.trackMemoryCacheKey("b_640", "b", 640, 640)
+    lookup.trackMemoryCacheKey("a_1080", "a", 1080, 1080)
+    lookup.trackMemoryCacheKey("c_640", "c", 640, 640)
+
+    // b is the least recently tracked group
+    assertThat(lookup.memoryGroupCount).isEqualTo(2)
+    assertThat(lookup.findLargerMemoryCacheKey("b_320", "b", 320, 320, null)).isNull()
+    assertThat(lookup.findLargerMemoryCacheKey("a_320", "a", 320, 320, null)).isNotNull()
+    assertThat(lookup.findLargerMemoryCacheKey("c_320", "c", 320, 320, null)).isNotNull()
+  }
+
+  @Test
+  fun testFindsLargerDiskVariant() {
+    lookup.trackDiskCacheKey("http://a.jpg_1080_720")
+    lookup.trackDiskCacheKey("http://a.jpg_640_480", isFullImage = false)
+    lookup.trackDiskCacheKey("not a sized key")
+
+    assertThat(lookup.findLargerDiskCacheKey("http://a.jpg_640_480", null))
+        .isEqualTo(SimilarImageResult("http://a.jpg_1080_720", "http://a.jpg", 1080, 720))
+    assertThat(lookup.findLargerDiskCacheKey("not a sized key", null)).isNull()
+    assertThat(lookup.diskGroupCount).isEqualTo(1)
+  }
+
+  @Test
+  fun testDiskCacheEventListener() {
+    val delegate = mock<CacheEventListener>()
+    val listener = lookup.newDiskCacheEventListener(delegate)
+    val writeEvent = cacheEvent(SimpleCacheKey("a_1080_1080"), "resource1")
+    listener.onWriteSuccess(writeEvent)
+    // The index is fed by hits too, e.g. after a restart
+    listener.onHit(cacheEvent(SimpleCacheKey("a_640_640"), "resource2"))
+
+    assertThat(lookup.findLargerDiskCacheKey("a_320_320", null)?.cacheKeyString)
+        .isEqualTo("a_640_640")
+
+    val evictionEvent = cacheEvent(null, "resource2")
+    listener.onEviction(evictionEvent)
+    assertThat(lookup.findLargerDiskCacheKey("a_320_320", null)?.cacheKeyString)
+        .isEqualTo("a_1080_1080")
+
+    listener.onCleared()
+    assertThat(lookup.findLargerDiskCacheKey("a_320_320", null)).isNull()
+    verify(delegate).onWriteSuccess(writeEvent)
+    verify(delegate).onEviction(evictionEvent)
+    verify(delegate).onCleared()
+  }
+
+  @Test
+  fun testDiskCacheEventListenerClearsOnlyItsKeys() {
+    val listener = lookup.newDiskCacheEventListener()
+    listener.onWriteSuccess(cacheEvent(SimpleCacheKey("a_1080_1080"), "resource1"))
+    lookup.newDiskCacheEventListener()
+        .onWriteSuccess(cacheEvent(SimpleCacheKey("b_1080_1080"), "resource2"))
+
+    listener.onCleared()
+
+    assertThat(lookup.findLargerDiskCacheKey("a_320_320", null)).isNull()
+    assertThat(lookup.findLargerDiskCacheKey("b_320_320", null)).isNotNull()
+  }
+
+  @Test
+  fun testDiskCacheEventListenerForgetsKeysBeyondIndexCapacity() {
+    val listener = lookup.newDiskCacheEventListener()
+    // Two groups of three variants fill the index
+    for (i in 1..6) {
+      val groupKey = if (i % 2 == 0) "a" else "b"
+      listener.onWriteSuccess(cacheEvent(SimpleCacheKey("${groupKey}_${i}00_${i}00"), "r$i"))
+    }
+    assertThat(lookup.findLargerDiskCacheKey("b_50_50", null)?.cacheKeyString)
+        .isEqualTo("b_100_100")
+
+    // The oldest key is forgotten, and removed from the index since its eviction can't be tracked
+    listener.onWriteSuccess(cacheEvent(SimpleCacheKey("a_50_50"), "r7"))
+
+    assertThat(lookup.findLargerDiskCacheKey("b_50_50", null)?.cacheKeyString)
+        .isEqualTo("b_300_300")
+  }
+
+  private fun cacheEvent(cacheKey: SimpleCacheKey?, resourceId: String): CacheEvent {
+    val event = mock<CacheEvent>()
+    whenever(event.cacheKey).thenReturn(cacheKey)
+    whenever(event.resourceId).thenReturn(resourceId)
+    return event
+  }
+}
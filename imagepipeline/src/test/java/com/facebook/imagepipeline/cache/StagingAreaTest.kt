@@ -17,6 +17,7 @@ import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.annotation.Config
 
@@ -110,6 +111,55 @@ class StagingAreaTest {
     assertThat(stagingArea.remove(cacheKey)).isFalse()
   }
 
+  @Test
+  fun testStagedBytes() {
+    val firstImage = createEncodedImage(100)
+    val secondImage = createEncodedImage(300)
+    val boundedStagingArea = StagingArea.getInstance(1000)
+
+    boundedStagingArea.put(cacheKey, firstImage)
+    boundedStagingArea.put(SimpleCacheKey("second"), secondImage)
+    assertThat(boundedStagingArea.stagedBytes).isEqualTo(400)
+    assertThat(boundedStagingArea.count).isEqualTo(2)
+
+    boundedStagingArea.put(cacheKey, secondImage)
+    assertThat(boundedStagingArea.stagedBytes).isEqualTo(600)
+    assertThat(boundedStagingArea.remove(cacheKey, firstImage)).isFalse()
+    assertThat(boundedStagingArea.remove(cacheKey, secondImage)).isTrue()
+    assertThat(boundedStagingArea.stagedBytes).isEqualTo(300)
+
+    boundedStagingArea.clearAll()
+    assertThat(boundedStagingArea.stagedBytes).isEqualTo(0)
+    assertThat(boundedStagingArea.count).isEqualTo(0)
+  }
+
+  @Test
+  fun testDropsImagesOverBudget() {
+    val boundedStagingArea = StagingArea.getInstance(1000)
+    val largeImage = createEncodedImage(2000)
+    assertThat(boundedStagingArea.put(cacheKey, largeImage)).isTrue()
+    assertThat(boundedStagingArea.put(SimpleCacheKey("second"), createEncodedImage(1))).isFalse()
+    boundedStagingArea.remove(cacheKey)
+
+    assertThat(boundedStagingArea.put(cacheKey, createEncodedImage(800))).isTrue()
+    assertThat(boundedStagingArea.put(SimpleCacheKey("second"), createEncodedImage(201))).isFalse()
+    assertThat(boundedStagingArea.get(SimpleCacheKey("second"))).isNull()
+    assertThat(boundedStagingArea.put(SimpleCacheKey("second"), createEncodedImage(200))).isTrue()
+    assertThat(boundedStagingArea.stagedBytes).isEqualTo(1000)
+    // Replacing an image frees its bytes
+    assertThat(boundedStagingArea.put(cacheKey, createEncodedImage(800))).isTrue()
+    assertThat(boundedStagingArea.stagedBytes).isEqualTo(1000)
+    assertThat(boundedStagingArea.count).isEqualTo(2)
+  }
+
+  @Test
+  fun testIsReplaced() {
+    assertThat(stagingArea.isReplaced(cacheKey, encodedImage)).isFalse()
+    assertThat(stagingArea.isReplaced(SimpleCacheKey("other"), encodedImage)).isFalse()
+    stagingArea.put(cacheKey, secondEncodedImage)
+    assertThat(stagingArea.isReplaced(cacheKey, encodedImage)).isTrue()
+  }
+
   @Test
   fun testClearAll() {
     stagingArea.put(SimpleCacheKey("second"), secondEncodedImage)
@@ -118,4 +168,10 @@ class StagingAreaTest {
     assertThat(closeableReference2.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(2)
     assertThat(stagingArea.remove(cacheKey)).isFalse()
   }
+
+  private fun createEncodedImage(size: Int): EncodedImage {
+    val buffer = mock<PooledByteBuffer>()
+    whenever(buffer.size()).thenReturn(size)
+    return EncodedImage(CloseableReference.of(buffer))
+  }
 }
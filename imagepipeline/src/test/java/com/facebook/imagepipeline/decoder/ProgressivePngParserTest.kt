@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder
+
+import com.facebook.common.memory.ByteArrayPool
+import com.facebook.common.memory.PooledByteBuffer
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.util.Random
+import java.util.zip.CRC32
+import java.util.zip.DeflaterOutputStream
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class ProgressivePngParserTest {
+
+  private lateinit var progressivePngParser: ProgressivePngParser
+
+  @Before
+  fun setUp() {
+    val byteArrayPool = mock<ByteArrayPool>()
+    whenever(byteArrayPool.get(any<Int>())).thenAnswer { ByteArray(it.getArgument<Int>(0)) }
+    progressivePngParser = ProgressivePngParser(byteArrayPool)
+  }
+
+  @Test
+  fun testOnInterlacedPng() {
+    val pngBytes = buildPng(WIDTH, HEIGHT, interlaced = true)
+
+    val scans = parseInSteps(pngBytes)
+
+    assertThat(progressivePngParser.isPng).isTrue()
+    assertThat(scans).containsExactly(1, 2, 3, 4, 5, 6, 7)
+    assertThat(progressivePngParser.bestScanNumber).isEqualTo(ProgressivePngParser.ADAM7_PASSES)
+    assertThat(progressivePngParser.isEndMarkerRead).isTrue()
+  }
+
+  @Test
+  fun testOnNonInterlacedPng() {
+    val pngBytes = buildPng(WIDTH, HEIGHT, interlaced = false)
+
+    val scans = parseInSteps(pngBytes)
+
+    assertThat(progressivePngParser.isPng).isTrue()
+    assertThat(scans).containsExactly(1, 2, 3, 4, 5, 6, 7, 8)
+    assertThat(progressivePngParser.bestScanNumber).isEqualTo(ProgressivePngParser.ROW_STEPS)
+    assertThat(progressivePngParser.isEndMarkerRead).isTrue()
+  }
+
+  @Test
+  fun testOnPartialPng() {
+    val pngBytes = buildPng(WIDTH, HEIGHT, interlaced = true)
+
+    assertThat(parse(pngBytes.copyOf(pngBytes.size / 2))).isTrue()
+
+    assertThat(progressivePngParser.bestScanNumber).isBetween(1, 6)
+    assertThat(progressivePngParser.bestScanEndOffset).isLessThanOrEqualTo(pngBytes.size / 2)
+    assertThat(progressivePngParser.isEndMarkerRead).isFalse()
+  }
+
+  @Test
+  fun testOnNonPng() {
+    assertThat(parse("RIFF1234WEBPVP8 ".toByteArray())).isFalse()
+
+    assertThat(progressivePngParser.isPng).isFalse()
+    assertThat(parse(buildPng(WIDTH, HEIGHT, interlaced = false))).isFalse()
+  }
+
+  @Test
+  fun testOnCorruptImageData() {
+    val pngBytes = buildPng(WIDTH, HEIGHT, interlaced = false)
+    // the zlib header of the first IDAT chunk
+    pngBytes[IDAT_DATA_OFFSET] = 0
+    pngBytes[IDAT_DATA_OFFSET + 1] = 0
+
+    assertThat(parse(pngBytes)).isFalse()
+    assertThat(progressivePngParser.bestScanNumber).isEqualTo(0)
+    assertThat(progressivePngParser.isEndMarkerRead).isFalse()
+  }
+
+  @Test
+  fun testIgnoresDataAfterRelease() {
+    val pngBytes = buildPng(WIDTH, HEIGHT, interlaced = true)
+    assertThat(parse(pngBytes.copyOf(pngBytes.size / 2))).isTrue()
+    val bestScanNumber = progressivePngParser.bestScanNumber
+
+    progressivePngParser.release()
+
+    assertThat(parse(pngBytes)).isFalse()
+    assertThat(progressivePngParser.bestScanNumber).isEqualTo(bestScanNumber)
+    assertThat(progressivePngParser.isEndMarkerRead).isFalse()
+  }
+
+  /** Feeds growing prefixes of the image to the parser, returning the new scans it found. */
+  private fun parseInSteps(pngBytes: ByteArray): List<Int> {
+    val scans = mutableListOf<Int>()
+    var size = STEP_SIZE
+    while (true) {
+      val n = minOf(size, pngBytes.size)
+      if (parse(pngBytes.copyOf(n))) {
+        assertThat(progressivePngParser.bestScanEndOffset).isLessThanOrEqualTo(n)
+        scans.add(progressivePngParser.bestScanNumber)
+      }
+      if (n == pngBytes.size) {
+        return scans
+      }
+      size += STEP_SIZE
+    }
+  }
+
+  private fun parse(bytes: ByteArray): Boolean =
+      progressivePngParser.parseMoreData(
+          EncodedImage(CloseableReference.of<PooledByteBuffer>(TrivialPooledByteBuffer(bytes))))
+
+  companion object {
+    private const val WIDTH = 64
+    private const val HEIGHT = 48
+    private const val STEP_SIZE = 97
+    private const val IDAT_SIZE = 1000
+    // signature, IHDR chunk, then the length and type of the first IDAT chunk
+    private const val IDAT_DATA_OFFSET = 8 + 25 + 8
+
+    private val ADAM7 =
+        arrayOf(
+            intArrayOf(0, 0, 8, 8),
+            intArrayOf(4, 0, 8, 8),
+            intArrayOf(0, 4, 4, 8),
+            intArrayOf(2, 0, 4, 4),
+            intArrayOf(0, 2, 2, 4),
+            intArrayOf(1, 0, 2, 2),
+            intArrayOf(0, 1, 1, 2),
+        )
+
+    /** Builds an 8-bit RGB PNG of random pixels, its image data split in several IDAT chunks. */
+    private fun buildPng(width: Int, height: Int, interlaced: Boolean): ByteArray {
+      val random = Random(42)
+      val scanlines = ByteArrayOutputStream()
+      fun writeRows(rowWidth: Int, rowCount: Int) {
+        repeat(rowCount) {
+          scanlines.write(0)
+          repeat(rowWidth * 3) { scanlines.write(random.nextInt(256)) }
+        }
+      }
+      if (interlaced) {
+        for ((startX, startY, stepX, stepY) in ADAM7) {
+          val passWidth = if (width > startX) (width - startX + stepX - 1) / stepX else 0
+          val passHeight = if (height > startY) (height - startY + stepY - 1) / stepY else 0
+          if (passWidth > 0) {
+            writeRows(passWidth, passHeight)
+          }
+        }
+      } else {
+        writeRows(width, height)
+      }
+      val imageData = ByteArrayOutputStream()
+      DeflaterOutputStream(imageData).use { it.write(scanlines.toByteArray()) }
+      val compressed = imageData.toByteArray()
+
+      val png = ByteArrayOutputStream()
+      png.write(byteArrayOf(0x89.toByte(), 'P'.code.toByte(), 'N'.code.toByte(), 'G'.code.toByte()))
+      png.write(byteArrayOf(0x0D, 0x0A, 0x1A, 0x0A))
+      val header = ByteArrayOutputStream()
+      DataOutputStream(header).apply {
+        writeInt(width)
+        writeInt(height)
+        writeByte(8) // bit depth
+        writeByte(2) // RGB
+        writeByte(0) // compression
+        writeByte(0) // filter
+        writeByte(if (interlaced) 1 else 0)
+      }
+      writeChunk(png, "IHDR", header.toByteArray())
+      for (offset in compressed.indices step IDAT_SIZE) {
+        writeChunk(
+            png,
+            "IDAT",
+            compressed.copyOfRange(offset, minOf(offset + IDAT_SIZE, compressed.size)),
+        )
+      }
+      writeChunk(png, "tEXt", "Comment\u0000test".toByteArray())
+      writeChunk(png, "IEND", ByteArray(0))
+      return png.toByteArray()
+    }
+
+    private fun writeChunk(png: ByteArrayOutputStream, type: String, data: ByteArray) {
+      val crc = CRC32()
+      crc.update(type.toByteArray())
+      crc.update(data)
+      DataOutputStream(png).apply {
+        writeInt(data.size)
+        writeBytes(type)
+        write(data)
+        writeInt(crc.value.toInt())
+      }
+    }
+  }
+}
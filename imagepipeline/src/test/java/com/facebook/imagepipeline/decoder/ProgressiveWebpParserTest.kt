@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder
+
+import com.facebook.common.internal.ByteStreams
+import com.facebook.common.memory.ByteArrayPool
+import com.facebook.common.memory.PooledByteBuffer
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class ProgressiveWebpParserTest {
+
+  private lateinit var progressiveWebpParser: ProgressiveWebpParser
+  private lateinit var webpBytes: ByteArray
+
+  @Before
+  fun setUp() {
+    val byteArrayPool = mock<ByteArrayPool>()
+    whenever(byteArrayPool.get(any<Int>())).thenAnswer { ByteArray(it.getArgument<Int>(0)) }
+    progressiveWebpParser = ProgressiveWebpParser(byteArrayPool)
+
+    webpBytes =
+        ByteStreams.toByteArray(
+            requireNotNull(
+                ProgressiveWebpParserTest::class.java.getResourceAsStream("images/image.webp"),
+            ) {
+              "Could not find test resource: images/image.webp"
+            },
+        )
+  }
+
+  @Test
+  fun testOnHeadersOnly() {
+    assertThat(parse(webpBytes.copyOf(IMAGE_DATA_OFFSET))).isFalse()
+
+    assertThat(progressiveWebpParser.isWebp).isTrue()
+    assertThat(progressiveWebpParser.bestScanNumber).isEqualTo(0)
+    assertThat(progressiveWebpParser.decodableRowCount).isEqualTo(0)
+  }
+
+  @Test
+  fun testOnPartialWebp() {
+    val size = IMAGE_DATA_OFFSET + IMAGE_DATA_SIZE / 2
+
+    assertThat(parse(webpBytes.copyOf(size))).isTrue()
+
+    assertThat(progressiveWebpParser.bestScanNumber).isEqualTo(4)
+    assertThat(progressiveWebpParser.bestScanEndOffset).isEqualTo(size)
+    assertThat(progressiveWebpParser.decodableRowCount).isEqualTo(HEIGHT / 2)
+    assertThat(progressiveWebpParser.isEndMarkerRead).isFalse()
+  }
+
+  @Test
+  fun testOnWebpInSteps() {
+    var lastScanNumber = 0
+    for (size in STEP_SIZE until webpBytes.size step STEP_SIZE) {
+      if (parse(webpBytes.copyOf(size))) {
+        assertThat(progressiveWebpParser.bestScanNumber).isGreaterThan(lastScanNumber)
+        lastScanNumber = progressiveWebpParser.bestScanNumber
+      }
+    }
+    assertThat(lastScanNumber).isEqualTo(ProgressiveWebpParser.ROW_STEPS - 1)
+
+    assertThat(parse(webpBytes)).isTrue()
+    assertThat(progressiveWebpParser.bestScanNumber).isEqualTo(ProgressiveWebpParser.ROW_STEPS)
+    assertThat(progressiveWebpParser.decodableRowCount).isEqualTo(HEIGHT)
+    assertThat(progressiveWebpParser.isEndMarkerRead).isTrue()
+    assertThat(parse(webpBytes)).isFalse()
+  }
+
+  @Test
+  fun testOnAnimatedWebp() {
+    val animatedBytes = webpBytes.copyOf()
+    // the flags of the VP8X chunk
+    animatedBytes[20] = (animatedBytes[20].toInt() or 0x02).toByte()
+
+    assertThat(parse(animatedBytes)).isFalse()
+    assertThat(progressiveWebpParser.bestScanNumber).isEqualTo(0)
+  }
+
+  @Test
+  fun testOnNonWebp() {
+    val jpegHeader = byteArrayOf(0xFF.toByte(), 0xD8.toByte(), 0xFF.toByte(), 0xE0.toByte())
+
+    assertThat(parse(jpegHeader + ByteArray(8))).isFalse()
+
+    assertThat(progressiveWebpParser.isWebp).isFalse()
+    assertThat(parse(webpBytes)).isFalse()
+  }
+
+  private fun parse(bytes: ByteArray): Boolean =
+      progressiveWebpParser.parseMoreData(
+          EncodedImage(CloseableReference.of<PooledByteBuffer>(TrivialPooledByteBuffer(bytes))))
+
+  companion object {
+    // images/image.webp is a 300x168 lossy image with an alpha channel, its VP8 chunk last
+    private const val IMAGE_DATA_OFFSET = 12750
+    private const val IMAGE_DATA_SIZE = 13548
+    private const val HEIGHT = 168
+    private const val STEP_SIZE = 512
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.filter
+
+import android.graphics.Bitmap
+import com.facebook.common.logging.FLog
+import java.util.Random
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Assume
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class ParallelBoxBlurFilterTest {
+
+  private val executor: ExecutorService = Executors.newFixedThreadPool(PARALLELISM)
+  private val random = Random(42)
+
+  @After
+  fun tearDown() {
+    executor.shutdownNow()
+  }
+
+  @Test
+  fun testBlursLikeIterativeBoxBlurFilter() {
+    val filters =
+        listOf(ParallelBoxBlurFilter(executor, 1), ParallelBoxBlurFilter(executor, PARALLELISM))
+    val blurs = listOf(1 to 1, 3 to 10, 2 to RenderScriptBlurFilter.BLUR_MAX_RADIUS)
+    for ((width, height) in listOf(1 to 1, 7 to 300, 97 to 61, 300 to 300, 513 to 257)) {
+      for ((iterations, radius) in blurs) {
+        val pixels = IntArray(width * height) { random.nextInt() }
+        val expected = createBitmap(pixels, width, height)
+        IterativeBoxBlurFilter.boxBlurBitmapInPlace(expected, iterations, radius)
+
+        for (filter in filters) {
+          val bitmap = createBitmap(pixels, width, height)
+          filter.boxBlurBitmapInPlace(bitmap, iterations, radius)
+          assertThat(getPixels(bitmap))
+              .describedAs("%dx%d, %d iterations of radius %d", width, height, iterations, radius)
+              .isEqualTo(getPixels(expected))
+        }
+      }
+    }
+  }
+
+  @Test
+  fun testReusesBuffers() {
+    val filter = ParallelBoxBlurFilter(executor, PARALLELISM)
+    val pixels = IntArray(WIDTH * HEIGHT) { random.nextInt() }
+    val expected = pixels.copyOf()
+    ParallelBoxBlurFilter(executor, 1).boxBlurPixelsInPlace(expected, WIDTH, HEIGHT, 2, 5)
+
+    // buffers cached by the first blur must not affect the second one
+    filter.boxBlurPixelsInPlace(IntArray(WIDTH * HEIGHT), WIDTH, HEIGHT, 2, 5)
+    filter.boxBlurPixelsInPlace(pixels, WIDTH, HEIGHT, 2, 5)
+
+    assertThat(pixels).isEqualTo(expected)
+  }
+
+  @Test
+  fun testBlursOnCallingThreadWhenExecutorIsShutDown() {
+    val filter = ParallelBoxBlurFilter(executor, PARALLELISM)
+    val pixels = IntArray(WIDTH * HEIGHT) { random.nextInt() }
+    val expected = pixels.copyOf()
+    filter.boxBlurPixelsInPlace(expected, WIDTH, HEIGHT, 1, 3)
+
+    executor.shutdown()
+    filter.boxBlurPixelsInPlace(pixels, WIDTH, HEIGHT, 1, 3)
+
+    assertThat(pixels).isEqualTo(expected)
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun invalidZeroRadiusBlurInPlace() {
+    ParallelBoxBlurFilter(executor).boxBlurPixelsInPlace(IntArray(4), 2, 2, 1, 0)
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun invalidBigRadiusBlurInPlace() {
+    ParallelBoxBlurFilter(executor)
+        .boxBlurPixelsInPlace(IntArray(4), 2, 2, 1, RenderScriptBlurFilter.BLUR_MAX_RADIUS + 1)
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun invalidPixelBufferBlurInPlace() {
+    ParallelBoxBlurFilter(executor).boxBlurPixelsInPlace(IntArray(3), 2, 2, 1, 1)
+  }
+
+  /**
+   * Compares the blur time of 1080p and 4K pixel buffers with an increasing number of threads, and
+   * with [IterativeBoxBlurFilter]. Only runs with FRESCO_BENCHMARKS set.
+   */
+  @Test
+  fun benchmarkBlurThroughput() {
+    Assume.assumeTrue(System.getenv("FRESCO_BENCHMARKS") != null)
+    val threadCounts =
+        listOf(1, 2, 4, Runtime.getRuntime().availableProcessors()).distinct().sorted()
+    for ((width, height) in listOf(1920 to 1080, 3840 to 2160)) {
+      val pixels = IntArray(width * height) { random.nextInt() }
+      var singleThreadMs = 0.0
+      for (threadCount in threadCounts) {
+        val threads = Executors.newFixedThreadPool(threadCount)
+        val filter = ParallelBoxBlurFilter(threads, threadCount)
+        val ms = measureMs { filter.boxBlurPixelsInPlace(pixels, width, height, 3, 10) }
+        threads.shutdown()
+        if (threadCount == 1) {
+          singleThreadMs = ms
+        }
+        FLog.i(
+            TAG,
+            "ParallelBoxBlurFilter %dx%d, %d threads: %f ms, speedup %f",
+            width,
+            height,
+            threadCount,
+            ms,
+            singleThreadMs / ms,
+        )
+        assertThat(ms).isPositive()
+      }
+
+      val bitmap = createBitmap(pixels, width, height)
+      val iterativeMs = measureMs { IterativeBoxBlurFilter.boxBlurBitmapInPlace(bitmap, 3, 10) }
+      FLog.i(TAG, "IterativeBoxBlurFilter %dx%d: %f ms", width, height, iterativeMs)
+    }
+  }
+
+  private fun measureMs(blur: () -> Unit): Double {
+    repeat(BENCHMARK_WARMUP_LOOPS) { blur() }
+    val startNs = System.nanoTime()
+    repeat(BENCHMARK_LOOPS) { blur() }
+    return (System.nanoTime() - startNs) / 1_000_000.0 / BENCHMARK_LOOPS
+  }
+
+  private fun createBitmap(pixels: IntArray, width: Int, height: Int): Bitmap {
+    val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    bitmap.setPixels(pixels, 0, width, 0, 0, width, height)
+    return bitmap
+  }
+
+  private fun getPixels(bitmap: Bitmap): IntArray {
+    val pixels = IntArray(bitmap.width * bitmap.height)
+    bitmap.getPixels(pixels, 0, bitmap.width, 0, 0, bitmap.width, bitmap.height)
+    return pixels
+  }
+
+  companion object {
+    private const val TAG = "ParallelBoxBlurFilterTest"
+    private const val PARALLELISM = 4
+    private const val WIDTH = 640
+    private const val HEIGHT = 480
+    private const val BENCHMARK_WARMUP_LOOPS = 2
+    private const val BENCHMARK_LOOPS = 5
+  }
+}
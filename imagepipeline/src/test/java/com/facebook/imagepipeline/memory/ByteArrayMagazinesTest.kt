@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory
+
+import android.util.SparseIntArray
+import com.facebook.common.memory.MemoryTrimType
+import com.facebook.common.memory.MemoryTrimmableRegistry
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.mock
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class ByteArrayMagazinesTest {
+
+  @Test
+  fun testTakesOfferedArrays() {
+    val magazines =
+        ByteArrayMagazines(intArrayOf(32, 64), capacity = 2, intArrayOf(4, 4), stripeCount = 1)
+    val first = ByteArray(32)
+    val second = ByteArray(32)
+
+    assertThat(magazines.offer(first)).isTrue()
+    assertThat(magazines.offer(second)).isTrue()
+    assertThat(magazines.offer(ByteArray(32))).isFalse()
+    assertThat(magazines.offer(ByteArray(48))).isFalse()
+
+    assertThat(magazines.take(64)).isNull()
+    assertThat(setOf(magazines.take(32), magazines.take(32))).containsOnly(first, second)
+    assertThat(magazines.take(32)).isNull()
+    assertThat(magazines.take(48)).isNull()
+  }
+
+  @Test
+  fun testDrain() {
+    val magazines =
+        ByteArrayMagazines(intArrayOf(32, 64), capacity = 2, intArrayOf(4, 4), stripeCount = 2)
+    val small = ByteArray(32)
+    val large = ByteArray(64)
+    magazines.offer(small)
+    magazines.offer(large)
+
+    assertThat(magazines.drain()).containsExactlyInAnyOrder(small, large)
+    assertThat(magazines.take(32)).isNull()
+    assertThat(magazines.getLength(32)).isEqualTo(0)
+    assertThat(magazines.getLength(64)).isEqualTo(0)
+    assertThat(magazines.drain()).isEmpty()
+  }
+
+  @Test
+  fun testHoldsAtMostMaxLengthOfEachSize() {
+    val magazines =
+        ByteArrayMagazines(intArrayOf(32, 64), capacity = 4, intArrayOf(2, 1), stripeCount = 1)
+
+    assertThat(magazines.offer(ByteArray(32))).isTrue()
+    assertThat(magazines.offer(ByteArray(32))).isTrue()
+    assertThat(magazines.offer(ByteArray(32))).isFalse()
+    assertThat(magazines.offer(ByteArray(64))).isTrue()
+    assertThat(magazines.offer(ByteArray(64))).isFalse()
+    assertThat(magazines.getLength(32)).isEqualTo(2)
+
+    assertThat(magazines.take(32)).isNotNull()
+    assertThat(magazines.getLength(32)).isEqualTo(1)
+    assertThat(magazines.offer(ByteArray(32))).isTrue()
+  }
+
+  @Test
+  fun testPoolServesReleasedArraysFromMagazine() {
+    val tracker = CountingPoolStatsTracker()
+    val pool = newPool(tracker, magazineCapacity = 2)
+
+    val array = pool.get(20)
+    assertThat(array.size).isEqualTo(32)
+    pool.release(array)
+    assertThat(pool.get(10)).isSameAs(array)
+
+    // the first get allocates, and the release and second get skip the pool
+    assertThat(tracker.lockedOps.get()).isEqualTo(1)
+  }
+
+  @Test
+  fun testPoolDoesNotReuseUnrecognizedArrays() {
+    val pool = newPool(CountingPoolStatsTracker(), magazineCapacity = 2)
+    val array = pool.get(32)
+    pool.release(array)
+    // released twice, and not from the pool
+    pool.release(array)
+    pool.release(ByteArray(32))
+
+    val first = pool.get(32)
+    val second = pool.get(32)
+    assertThat(first).isSameAs(array)
+    assertThat(second).isNotSameAs(array)
+    assertThat(pool.used.count).isEqualTo(2)
+    assertThat(pool.inUseValues).hasSize(2)
+  }
+
+  @Test
+  fun testStatsCountMagazinesAsFree() {
+    val pool = newPool(CountingPoolStatsTracker(), magazineCapacity = 2)
+    val first = pool.get(32)
+    val second = pool.get(32)
+    pool.release(first)
+
+    assertThat(pool.stats)
+        .containsEntry(PoolStatsTracker.USED_COUNT, 1)
+        .containsEntry(PoolStatsTracker.USED_BYTES, 32)
+        .containsEntry(PoolStatsTracker.FREE_COUNT, 1)
+        .containsEntry(PoolStatsTracker.FREE_BYTES, 32)
+        .containsEntry(PoolStatsTracker.BUCKETS_USED_PREFIX + 32, 1)
+  }
+
+  @Test
+  fun testTrimEmptiesMagazines() {
+    val pool = newPool(CountingPoolStatsTracker(), magazineCapacity = 2)
+    val array = pool.get(32)
+    pool.release(array)
+    assertThat(pool.used.count).isEqualTo(1)
+
+    pool.trim(MemoryTrimType.OnAppBackgrounded)
+
+    assertThat(pool.used.count).isEqualTo(0)
+    assertThat(pool.free.count).isEqualTo(0)
+    assertThat(pool.get(32)).isNotSameAs(array)
+  }
+
+  /**
+   * Compares a pool with magazines to one without, with threads getting and releasing small
+   * buffers as the IO threads do. Every pool operation that is not served by a magazine takes the
+   * lock of the pool, which the stats tracker counts.
+   */
+  @Test
+  fun testConcurrentGetRelease() {
+    val plainTracker = CountingPoolStatsTracker()
+    val plainOpsPerSecond = runConcurrently(newPool(plainTracker, magazineCapacity = 0))
+    val magazineTracker = CountingPoolStatsTracker()
+    val magazineOpsPerSecond = runConcurrently(newPool(magazineTracker, magazineCapacity = 4))
+
+    assertThat(plainOpsPerSecond).isPositive()
+    assertThat(magazineOpsPerSecond).isPositive()
+    val opCount = 2L * THREAD_COUNT * ITERATION_COUNT
+    assertThat(plainTracker.lockedOps.get()).isEqualTo(opCount)
+    // only the first gets of each stripe, and the releases of magazines that are full, lock
+    assertThat(magazineTracker.lockedOps.get()).isLessThan(opCount / 100)
+  }
+
+  /** @return the number of gets and releases per second */
+  private fun runConcurrently(pool: GenericByteArrayPool): Long {
+    val inUse = Collections.newSetFromMap(IdentityHashMap<ByteArray, Boolean>())
+    val failures = AtomicInteger()
+    val start = CountDownLatch(1)
+    val threads =
+        List(THREAD_COUNT) {
+          Thread {
+            start.await()
+            repeat(ITERATION_COUNT) {
+              val array = pool.get(16)
+              if (!synchronized(inUse) { inUse.add(array) }) {
+                failures.incrementAndGet()
+              }
+              synchronized(inUse) { inUse.remove(array) }
+              pool.release(array)
+            }
+          }
+        }
+    threads.forEach { it.start() }
+    val startTimeNs = System.nanoTime()
+    start.countDown()
+    threads.forEach { it.join() }
+    val durationNs = maxOf(1L, System.nanoTime() - startTimeNs)
+
+    assertThat(failures.get()).describedAs("arrays handed out twice").isEqualTo(0)
+    return 2L * THREAD_COUNT * ITERATION_COUNT * 1_000_000_000L / durationNs
+  }
+
+  private fun newPool(tracker: PoolStatsTracker, magazineCapacity: Int): GenericByteArrayPool {
+    val bucketSizes = SparseIntArray()
+    bucketSizes.put(32, THREAD_COUNT)
+    bucketSizes.put(64, THREAD_COUNT)
+    return GenericByteArrayPool(
+        mock<MemoryTrimmableRegistry>(),
+        PoolParams(bucketSizes),
+        tracker,
+        magazineCapacity,
+    )
+  }
+
+  private class CountingPoolStatsTracker : PoolStatsTracker {
+    val lockedOps = AtomicLong()
+
+    override fun setBasePool(basePool: BasePool<*>) = Unit
+
+    override fun onValueReuse(bucketedSize: Int) {
+      lockedOps.incrementAndGet()
+    }
+
+    override fun onAlloc(size: Int) {
+      lockedOps.incrementAndGet()
+    }
+
+    override fun onFree(sizeInBytes: Int) {
+      lockedOps.incrementAndGet()
+    }
+
+    override fun onValueRelease(sizeInBytes: Int) {
+      lockedOps.incrementAndGet()
+    }
+  }
+
+  companion object {
+    private const val THREAD_COUNT = 4
+    private const val ITERATION_COUNT = 20_000
+  }
+}
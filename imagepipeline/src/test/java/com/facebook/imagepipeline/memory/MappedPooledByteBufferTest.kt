@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory
+
+import com.facebook.common.memory.PooledByteBuffer
+import com.facebook.common.references.CloseableReference
+import java.io.File
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class MappedPooledByteBufferTest {
+  private val bytes = byteArrayOf(10, 11, 12, 13, 14, 15)
+
+  private lateinit var file: File
+
+  @Before
+  fun setUp() {
+    file = File.createTempFile("mapped", ".cnt")
+    file.writeBytes(bytes)
+  }
+
+  @After
+  fun tearDown() {
+    file.delete()
+  }
+
+  @Test
+  fun testReads() {
+    val buffer = MappedPooledByteBuffer.map(file)
+    assertThat(buffer.size()).isEqualTo(bytes.size)
+    assertThat(buffer.read(2)).isEqualTo(12.toByte())
+
+    val read = ByteArray(5)
+    assertThat(buffer.read(1, read, 1, 4)).isEqualTo(4)
+    assertThat(read).isEqualTo(byteArrayOf(0, 11, 12, 13, 14))
+  }
+
+  @Test
+  fun testByteBufferIsIndependentView() {
+    val buffer = MappedPooledByteBuffer.map(file)
+    val view = buffer.byteBuffer!!
+    assertThat(view.isDirect).isTrue()
+    assertThat(view.remaining()).isEqualTo(bytes.size)
+
+    view.position(4)
+    assertThat(buffer.read(0)).isEqualTo(10.toByte())
+    assertThat(buffer.byteBuffer!!.position()).isEqualTo(0)
+  }
+
+  @Test
+  fun testSurvivesFileDeletion() {
+    val buffer = MappedPooledByteBuffer.map(file)
+    file.delete()
+    assertThat(buffer.read(5)).isEqualTo(15.toByte())
+  }
+
+  @Test
+  fun testClosedWithReference() {
+    val buffer = MappedPooledByteBuffer.map(file)
+    val ref = CloseableReference.of<PooledByteBuffer>(buffer)
+    val clone = ref.clone()
+    ref.close()
+    assertThat(buffer.isClosed).isFalse()
+
+    clone.close()
+    assertThat(buffer.isClosed).isTrue()
+    assertThat(buffer.byteBuffer).isNull()
+  }
+
+  @Test(expected = PooledByteBuffer.ClosedException::class)
+  fun testReadAfterClose() {
+    val buffer = MappedPooledByteBuffer.map(file)
+    buffer.close()
+    buffer.read(0)
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory
+
+import android.graphics.Bitmap
+import java.util.ArrayDeque
+import java.util.Random
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class SizeClassBitmapPoolBackendTest {
+
+  private val backend = SizeClassBitmapPoolBackend()
+
+  @Test
+  fun testReusesLargerBitmapOfSameClass() {
+    val bitmap = alphaBitmap(1000)
+    backend.put(bitmap)
+
+    assertThat(backend.get(1001)).isNull()
+    assertThat(backend.get(600)).isSameAs(bitmap)
+    assertThat(backend.valueCount()).isEqualTo(0)
+  }
+
+  @Test
+  fun testReusesBitmapOfNextClass() {
+    val bitmap = alphaBitmap(1500)
+    backend.put(bitmap)
+
+    // 1500 is in the class above the one of 1000, but not two classes above the one of 300
+    assertThat(backend.get(300)).isNull()
+    assertThat(backend.get(1000)).isSameAs(bitmap)
+  }
+
+  @Test
+  fun testPrefersOwnClass() {
+    val large = alphaBitmap(1800)
+    val small = alphaBitmap(700)
+    backend.put(small)
+    backend.put(large)
+
+    assertThat(backend.get(600)).isSameAs(small)
+    assertThat(backend.get(600)).isSameAs(large)
+  }
+
+  @Test
+  fun testFinerClasses() {
+    val finerBackend = SizeClassBitmapPoolBackend(classesPerDoubling = 4)
+    val bitmap = alphaBitmap(2600)
+    finerBackend.put(bitmap)
+
+    // with 4 classes per doubling, the class of 2600 is more than 4 classes above the one of 1030
+    assertThat(finerBackend.get(1030)).isNull()
+    assertThat(finerBackend.get(1600)).isSameAs(bitmap)
+  }
+
+  @Test
+  fun testPopsInReleaseOrder() {
+    val first = alphaBitmap(100)
+    val second = alphaBitmap(5000)
+    backend.put(first)
+    backend.put(second)
+    backend.put(first)
+
+    assertThat(backend.valueCount()).isEqualTo(2)
+    assertThat(backend.pop()).isSameAs(first)
+    assertThat(backend.pop()).isSameAs(second)
+    assertThat(backend.pop()).isNull()
+    assertThat(backend.get(100)).isNull()
+  }
+
+  @Test
+  fun testIgnoresImmutableBitmaps() {
+    backend.put(alphaBitmap(100).copy(Bitmap.Config.ALPHA_8, false))
+
+    assertThat(backend.valueCount()).isEqualTo(0)
+  }
+
+  @Test
+  fun testReportsWaste() {
+    val tracker = CountingPoolStatsTracker()
+    val pool =
+        LruBitmapPool(1024 * 1024, 1024 * 1024, tracker, null, SizeClassBitmapPoolBackend())
+    pool.release(alphaBitmap(1000))
+    pool.get(800)
+
+    assertThat(tracker.reuseCount).isEqualTo(1)
+    assertThat(tracker.wastedBytes).isEqualTo(200L)
+  }
+
+  /**
+   * Replays the same thumbnail sizes on a pool bucketing by exact size and on one bucketing by
+   * size class: a list shows a few rows at a time, and the bitmaps of the rows scrolling out are
+   * released while those of the rows scrolling in are requested.
+   */
+  @Test
+  fun testReplayedSizeDistributionHitRate() {
+    val exactSizeTracker = replay(BitmapPoolBackend())
+    val sizeClassTracker = replay(SizeClassBitmapPoolBackend(classesPerDoubling = 2))
+
+    val exactSizeHitRate = exactSizeTracker.hitRate
+    val sizeClassHitRate = sizeClassTracker.hitRate
+    assertThat(exactSizeHitRate).isLessThan(0.2)
+    assertThat(sizeClassHitRate).isGreaterThan(0.8)
+    // the larger bitmaps handed out for smaller requests waste less than half of their bytes
+    assertThat(sizeClassTracker.wastedBytes).isLessThan(sizeClassTracker.reusedBytes / 2)
+  }
+
+  private fun replay(backend: PoolBackend<Bitmap>): CountingPoolStatsTracker {
+    val tracker = CountingPoolStatsTracker()
+    val pool = LruBitmapPool(POOL_SIZE, POOL_SIZE, tracker, null, backend)
+    val random = Random(SEED)
+    val visible = ArrayDeque<Bitmap>()
+    repeat(REQUEST_COUNT) {
+      // square-ish thumbnails of 48 to 128 px with 4 bytes per pixel
+      val width = 48 + random.nextInt(81)
+      val height = width * (75 + random.nextInt(51)) / 100
+      visible.addLast(pool.get(width * height * 4))
+      if (visible.size > VISIBLE_COUNT) {
+        pool.release(visible.removeFirst())
+      }
+    }
+    return tracker
+  }
+
+  private fun alphaBitmap(size: Int): Bitmap = Bitmap.createBitmap(1, size, Bitmap.Config.ALPHA_8)
+
+  private class CountingPoolStatsTracker : PoolStatsTracker {
+    var reuseCount = 0
+    var allocCount = 0
+    var reusedBytes = 0L
+    var wastedBytes = 0L
+
+    val hitRate: Double
+      get() = reuseCount.toDouble() / (reuseCount + allocCount)
+
+    override fun setBasePool(basePool: BasePool<*>) = Unit
+
+    override fun onValueReuse(bucketedSize: Int) {
+      reuseCount++
+      reusedBytes += bucketedSize
+    }
+
+    override fun onValueReuseWaste(wastedBytes: Int) {
+      this.wastedBytes += wastedBytes
+    }
+
+    override fun onAlloc(size: Int) {
+      allocCount++
+    }
+
+    override fun onFree(sizeInBytes: Int) = Unit
+
+    override fun onValueRelease(sizeInBytes: Int) = Unit
+  }
+
+  companion object {
+    private const val SEED = 42L
+    private const val REQUEST_COUNT = 500
+    private const val VISIBLE_COUNT = 12
+    private const val POOL_SIZE = 4 * 1024 * 1024
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.cache.common.SimpleCacheKey
+import com.facebook.common.time.MonotonicNanoClock
+import com.facebook.imagepipeline.common.Priority
+import com.facebook.imagepipeline.core.ExecutorSupplier
+import com.facebook.imagepipeline.core.PrioritizedRunnable
+import com.facebook.imagepipeline.producers.ProducerContext
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+
+class PipelineMetricsTest {
+
+  private var nowNanos = 0L
+  private lateinit var metrics: PipelineMetrics
+
+  @Before
+  fun setUp() {
+    metrics =
+        PipelineMetrics(
+            object : MonotonicNanoClock {
+              override fun nowNanos(): Long = nowNanos
+            })
+  }
+
+  @Test
+  fun testReturnsSameMetricForName() {
+    assertThat(metrics.counter("a")).isSameAs(metrics.counter("a"))
+    assertThat(metrics.gauge("a")).isSameAs(metrics.gauge("a"))
+    assertThat(metrics.gauge("a")).isNotSameAs(metrics.counter("a"))
+    assertThat(metrics.histogram("a")).isSameAs(metrics.histogram("a"))
+  }
+
+  @Test
+  fun testSnapshotDiff() {
+    metrics.counter("counter").add(3)
+    metrics.gauge("gauge").add(5)
+    metrics.histogram("histogram").recordMicros(10)
+    nowNanos = 60_000_000_000L
+    val first = metrics.snapshot()
+
+    metrics.counter("counter").increment()
+    metrics.counter("new_counter").increment()
+    metrics.gauge("gauge").decrement()
+    metrics.histogram("histogram").recordMicros(1000)
+    nowNanos = 120_000_000_000L
+    val diff = metrics.snapshot().diff(first)
+
+    assertThat(first.counters).containsEntry("counter", 3L)
+    assertThat(diff.startNanos).isEqualTo(60_000_000_000L)
+    assertThat(diff.endNanos).isEqualTo(120_000_000_000L)
+    assertThat(diff.counters).containsEntry("counter", 1L).containsEntry("new_counter", 1L)
+    assertThat(diff.gauges).containsEntry("gauge", 4L)
+    val histogram = diff.histograms.getValue("histogram")
+    assertThat(histogram.count).isEqualTo(1)
+    assertThat(histogram.sumMicros).isEqualTo(1000)
+  }
+
+  @Test
+  fun testImageCacheStatsTracker() {
+    val tracker = MetricsImageCacheStatsTracker(metrics)
+    val cacheKey = SimpleCacheKey("key")
+
+    tracker.onBitmapCacheHit(cacheKey)
+    tracker.onBitmapCacheHit(cacheKey)
+    tracker.onBitmapCacheMiss(cacheKey)
+    tracker.onDiskCachePut(cacheKey)
+    tracker.onDiskCacheBatchWrite(4, 1024, 12)
+    tracker.onStagingAreaDrop(cacheKey)
+
+    val counters = metrics.snapshot().counters
+    assertThat(counters)
+        .containsEntry("cache.bitmap.hit", 2L)
+        .containsEntry("cache.bitmap.miss", 1L)
+        .containsEntry("cache.bitmap.put", 0L)
+        .containsEntry("cache.disk.put", 1L)
+        .containsEntry("cache.disk.batch_write_bytes", 1024L)
+        .containsEntry("cache.staging_area.drop", 1L)
+  }
+
+  @Test
+  fun testPoolStatsTracker() {
+    val tracker = MetricsPoolStatsTracker(metrics, "bitmap")
+
+    tracker.onAlloc(100)
+    tracker.onValueRelease(100)
+    tracker.onValueReuse(100)
+    tracker.onValueReuseWaste(20)
+    tracker.onFree(100)
+
+    assertThat(metrics.snapshot().counters)
+        .containsEntry("pool.bitmap.alloc", 1L)
+        .containsEntry("pool.bitmap.alloc_bytes", 100L)
+        .containsEntry("pool.bitmap.release", 1L)
+        .containsEntry("pool.bitmap.reuse", 1L)
+        .containsEntry("pool.bitmap.reuse_waste_bytes", 20L)
+        .containsEntry("pool.bitmap.free_bytes", 100L)
+  }
+
+  @Test
+  fun testRequestListener() {
+    val listener = MetricsRequestListener(metrics)
+    val producerContext = mock<ProducerContext>()
+    whenever(producerContext.id).thenReturn("1")
+
+    listener.onRequestStart(producerContext)
+    nowNanos = 1_000_000
+    listener.onProducerStart(producerContext, "NetworkFetchProducer")
+    nowNanos = 41_000_000
+    listener.onProducerFinishWithSuccess(producerContext, "NetworkFetchProducer", null)
+    listener.onProducerStart(producerContext, "DecodeProducer")
+    nowNanos = 45_000_000
+    listener.onProducerFinishWithFailure(producerContext, "DecodeProducer", null, null)
+    nowNanos = 50_000_000
+    listener.onRequestFailure(producerContext, null)
+
+    val snapshot = metrics.snapshot()
+    assertThat(snapshot.counters)
+        .containsEntry("producer.NetworkFetchProducer.success", 1L)
+        .containsEntry("producer.DecodeProducer.failure", 1L)
+        .containsEntry("request.failure", 1L)
+        .containsEntry("request.success", 0L)
+    assertThat(snapshot.histograms.getValue("producer.NetworkFetchProducer.latency").sumMicros)
+        .isEqualTo(40_000)
+    assertThat(snapshot.histograms.getValue("producer.DecodeProducer.latency").sumMicros)
+        .isEqualTo(4_000)
+    assertThat(snapshot.histograms.getValue("request.latency").sumMicros).isEqualTo(50_000)
+  }
+
+  @Test
+  fun testRequestListenerIgnoresProducersOfFinishedRequests() {
+    val listener = MetricsRequestListener(metrics)
+    val producerContext = mock<ProducerContext>()
+    whenever(producerContext.id).thenReturn("1")
+    listener.onRequestStart(producerContext)
+    listener.onRequestSuccess(producerContext)
+
+    // A multiplexed request reusing the id after the request finished
+    listener.onProducerStart(producerContext, "DecodeProducer")
+    nowNanos = 5_000_000
+    listener.onProducerFinishWithSuccess(producerContext, "DecodeProducer", null)
+
+    val snapshot = metrics.snapshot()
+    assertThat(snapshot.counters).containsEntry("producer.DecodeProducer.success", 1L)
+    assertThat(snapshot.histograms.getValue("producer.DecodeProducer.latency").count)
+        .isEqualTo(0)
+  }
+
+  @Test
+  fun testExecutorSupplier() {
+    val tasks = ArrayList<Runnable>()
+    val executorSupplier = mock<ExecutorSupplier>()
+    whenever(executorSupplier.forDecode()).thenReturn(Executor { tasks.add(it) })
+    val decodeExecutor = MetricsExecutorSupplier(executorSupplier, metrics).forDecode()
+    var ran = false
+
+    decodeExecutor.execute { nowNanos += 3_000_000 }
+    decodeExecutor.execute { ran = true }
+    assertThat(metrics.snapshot().gauges).containsEntry("executor.decode.queue_depth", 2L)
+    nowNanos = 2_000_000
+    tasks.forEach { it.run() }
+
+    val snapshot = metrics.snapshot()
+    assertThat(ran).isTrue()
+    assertThat(snapshot.gauges).containsEntry("executor.decode.queue_depth", 0L)
+    val waitTime = snapshot.histograms.getValue("executor.decode.wait_time")
+    assertThat(waitTime.count).isEqualTo(2)
+    assertThat(waitTime.sumMicros).isEqualTo(2_000 + 5_000)
+    assertThat(snapshot.histograms.getValue("executor.decode.run_time").sumMicros)
+        .isEqualTo(3_000)
+  }
+
+  @Test
+  fun testExecutorSupplierKeepsPriorityOfTasks() {
+    val tasks = ArrayList<Runnable>()
+    val executorSupplier = mock<ExecutorSupplier>()
+    whenever(executorSupplier.forDecode()).thenReturn(Executor { tasks.add(it) })
+    val decodeExecutor = MetricsExecutorSupplier(executorSupplier, metrics).forDecode()
+    var priorityChangeListener: Runnable? = null
+    val command =
+        object : PrioritizedRunnable {
+          override val priority = Priority.HIGH
+
+          override fun setPriorityChangeListener(listener: Runnable?) {
+            priorityChangeListener = listener
+          }
+
+          override fun run() = Unit
+        }
+    val listener = Runnable {}
+
+    decodeExecutor.execute(command)
+    decodeExecutor.execute {}
+
+    assertThat(tasks[0]).isInstanceOf(PrioritizedRunnable::class.java)
+    assertThat(tasks[1]).isNotInstanceOf(PrioritizedRunnable::class.java)
+    val task = tasks[0] as PrioritizedRunnable
+    assertThat(task.priority).isEqualTo(Priority.HIGH)
+    task.setPriorityChangeListener(listener)
+    assertThat(priorityChangeListener).isSameAs(listener)
+  }
+
+  @Test
+  fun testExecutorSupplierRejectedTask() {
+    val executorSupplier = mock<ExecutorSupplier>()
+    val executor = mock<Executor>()
+    whenever(executor.execute(any())).thenThrow(RejectedExecutionException())
+    whenever(executorSupplier.forBackgroundTasks()).thenReturn(executor)
+    val backgroundExecutor = MetricsExecutorSupplier(executorSupplier, metrics).forBackgroundTasks()
+
+    try {
+      backgroundExecutor.execute {}
+    } catch (e: RejectedExecutionException) {
+      // expected
+    }
+
+    assertThat(metrics.snapshot().gauges).containsEntry("executor.background.queue_depth", 0L)
+  }
+}
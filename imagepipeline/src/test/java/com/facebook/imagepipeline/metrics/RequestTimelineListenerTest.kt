@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.common.time.MonotonicNanoClock
+import com.facebook.fresco.middleware.HasExtraData
+import com.facebook.imagepipeline.metrics.RequestTimelineListener.Stage
+import com.facebook.imagepipeline.producers.DecodeProducer
+import com.facebook.imagepipeline.producers.DiskCacheReadProducer
+import com.facebook.imagepipeline.producers.NetworkFetchProducer
+import com.facebook.imagepipeline.producers.PostprocessorProducer
+import com.facebook.imagepipeline.producers.ProducerContext
+import com.facebook.imagepipeline.producers.ThreadHandoffProducer
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+
+class RequestTimelineListenerTest {
+
+  private var nowNanos = 0L
+  private var onClockRead: (() -> Unit)? = null
+  private lateinit var metrics: PipelineMetrics
+  private lateinit var listener: RequestTimelineListener
+
+  @Before
+  fun setUp() {
+    metrics =
+        PipelineMetrics(
+            object : MonotonicNanoClock {
+              override fun nowNanos(): Long {
+                onClockRead?.invoke()
+                return nowNanos
+              }
+            })
+    listener = RequestTimelineListener(metrics)
+  }
+
+  @Test
+  fun testRecordsStagesOfNetworkRequest() {
+    val producerContext = createProducerContext("1", "network")
+
+    listener.onRequestStart(producerContext)
+    runProducer(producerContext, ThreadHandoffProducer.PRODUCER_NAME, 0, 2)
+    runProducer(producerContext, DiskCacheReadProducer.PRODUCER_NAME, 2, 5)
+    runProducer(
+        producerContext, NetworkFetchProducer.PRODUCER_NAME, 5, 45, mapOf("queue_time" to "10"))
+    runProducer(producerContext, DecodeProducer.PRODUCER_NAME, 50, 70, mapOf("queueTime" to "4"))
+    runProducer(producerContext, PostprocessorProducer.NAME, 70, 75)
+    nowNanos = 78_000_000
+    listener.onRequestSuccess(producerContext)
+
+    val histograms = metrics.snapshot().histograms
+    val expectedMs =
+        mapOf(
+            Stage.HANDOFF_QUEUE to 2L,
+            Stage.DISK_READ to 3L,
+            Stage.NETWORK_WAIT to 10L,
+            Stage.NETWORK to 30L,
+            Stage.DECODE_QUEUE to 4L,
+            Stage.DECODE to 20L,
+            Stage.POSTPROCESS to 5L,
+            Stage.UI_HANDOFF to 3L,
+            Stage.TOTAL to 78L)
+    for ((stage, ms) in expectedMs) {
+      val histogram = histograms.getValue(RequestTimelineListener.getMetricName("network", stage))
+      assertThat(histogram.count).describedAs(stage.name).isEqualTo(1)
+      assertThat(histogram.sumMicros).describedAs(stage.name).isEqualTo(ms * 1000)
+    }
+    val transcode = histograms[RequestTimelineListener.getMetricName("network", Stage.TRANSCODE)]
+    assertThat(transcode?.count ?: 0L).isEqualTo(0)
+  }
+
+  @Test
+  fun testAddsUpProducerRunningSeveralTimes() {
+    val producerContext = createProducerContext("1", "network")
+
+    listener.onRequestStart(producerContext)
+    runProducer(producerContext, DecodeProducer.PRODUCER_NAME, 0, 3, mapOf("queueTime" to "1"))
+    runProducer(producerContext, DecodeProducer.PRODUCER_NAME, 10, 15, mapOf("queueTime" to "2"))
+    listener.onRequestSuccess(producerContext)
+
+    val histograms = metrics.snapshot().histograms
+    assertThat(histograms.getValue("timeline.network.decode").sumMicros).isEqualTo(8000)
+    assertThat(histograms.getValue("timeline.network.decode_queue").sumMicros).isEqualTo(3000)
+  }
+
+  @Test
+  fun testDoesNotRecordFailedOrCancelledRequests() {
+    val failed = createProducerContext("1", "network")
+    val cancelled = createProducerContext("2", "network")
+
+    listener.onRequestStart(failed)
+    listener.onRequestStart(cancelled)
+    runProducer(failed, DecodeProducer.PRODUCER_NAME, 0, 3)
+    runProducer(cancelled, DecodeProducer.PRODUCER_NAME, 0, 3)
+    listener.onRequestFailure(failed, RuntimeException())
+    listener.onRequestCancellation(cancelled)
+    // Events of finished requests are ignored
+    listener.onRequestSuccess(failed)
+    runProducer(cancelled, DecodeProducer.PRODUCER_NAME, 5, 6)
+
+    assertThat(metrics.snapshot().histograms).isEmpty()
+  }
+
+  @Test
+  fun testReusesTimelines() {
+    val first = createProducerContext("1", "network")
+    listener.onRequestStart(first)
+    runProducer(first, DecodeProducer.PRODUCER_NAME, 0, 20)
+    listener.onRequestSuccess(first)
+
+    val second = createProducerContext("2", "network")
+    nowNanos = 100_000_000
+    listener.onRequestStart(second)
+    nowNanos = 101_000_000
+    listener.onRequestSuccess(second)
+
+    val histograms = metrics.snapshot().histograms
+    assertThat(histograms.getValue("timeline.network.decode").count).isEqualTo(1)
+    assertThat(histograms.getValue("timeline.network.total").sumMicros).isEqualTo(21_000)
+  }
+
+  @Test
+  fun testIgnoresLateEventsOfReusedTimelines() {
+    val first = createProducerContext("1", "network")
+    val second = createProducerContext("2", "network")
+    listener.onRequestStart(first)
+    listener.onProducerStart(first, DecodeProducer.PRODUCER_NAME)
+    // The first request fails while its decode is finishing, and its timeline is reused
+    onClockRead = {
+      onClockRead = null
+      listener.onRequestFailure(first, RuntimeException())
+      listener.onRequestStart(second)
+    }
+
+    nowNanos = 5_000_000
+    listener.onProducerFinishWithSuccess(first, DecodeProducer.PRODUCER_NAME, null)
+    nowNanos = 6_000_000
+    listener.onRequestSuccess(second)
+
+    val histograms = metrics.snapshot().histograms
+    assertThat(histograms.getValue("timeline.network.total").count).isEqualTo(1)
+    assertThat(histograms.getValue("timeline.network.decode").count).isEqualTo(0)
+    assertThat(histograms.getValue("timeline.network.ui_handoff").count).isEqualTo(0)
+  }
+
+  @Test
+  fun testGroupsByOriginAndCallerContext() {
+    listener =
+        RequestTimelineListener(
+            metrics, RequestTimelineListener.GroupSelector.ORIGIN_AND_CALLER_CONTEXT)
+    val feed = createProducerContext("1", "disk", "feed")
+    val profile = createProducerContext("2", "disk", Any())
+
+    listener.onRequestStart(feed)
+    listener.onRequestSuccess(feed)
+    listener.onRequestStart(profile)
+    listener.onRequestSuccess(profile)
+
+    assertThat(metrics.snapshot().histograms)
+        .containsKey("timeline.disk.feed.total")
+        .containsKey("timeline.disk.Object.total")
+  }
+
+  @Test
+  fun testFindsSlowestStage() {
+    for (i in 0 until 20) {
+      val producerContext = createProducerContext("$i", "network")
+      val base = i * 100L
+      listener.onRequestStart(producerContext)
+      // One request out of 10 waits long for the network, the others decode slowly
+      val networkMs = if (i % 10 == 0) 60L else 1L
+      runProducer(producerContext, NetworkFetchProducer.PRODUCER_NAME, base, base + networkMs)
+      runProducer(producerContext, DecodeProducer.PRODUCER_NAME, base + 60, base + 70)
+      listener.onRequestSuccess(producerContext)
+    }
+    val snapshot = metrics.snapshot()
+
+    assertThat(RequestTimelineListener.getSlowestStage(snapshot, "network", 50.0))
+        .isEqualTo(Stage.DECODE)
+    assertThat(RequestTimelineListener.getSlowestStage(snapshot, "network", 95.0))
+        .isEqualTo(Stage.NETWORK)
+    assertThat(RequestTimelineListener.getSlowestStage(snapshot, "disk")).isNull()
+  }
+
+  private fun runProducer(
+      producerContext: ProducerContext,
+      producerName: String,
+      startMs: Long,
+      finishMs: Long,
+      extraMap: Map<String, String>? = null,
+  ) {
+    nowNanos = startMs * 1_000_000
+    listener.onProducerStart(producerContext, producerName)
+    nowNanos = finishMs * 1_000_000
+    listener.onProducerFinishWithSuccess(producerContext, producerName, extraMap)
+  }
+
+  private fun createProducerContext(
+      id: String,
+      origin: String,
+      callerContext: Any = "caller",
+  ): ProducerContext {
+    val producerContext = mock<ProducerContext>()
+    whenever(producerContext.id).thenReturn(id)
+    whenever(producerContext.callerContext).thenReturn(callerContext)
+    whenever(producerContext.getExtra<String>(HasExtraData.KEY_ORIGIN)).thenReturn(origin)
+    return producerContext
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.metrics
+
+import com.facebook.common.logging.FLog
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Assume
+import org.junit.Test
+
+class StripedCounterTest {
+
+  @Test
+  fun testCountsFromConcurrentThreads() {
+    val counter = StripedCounter(stripeCount = 4)
+    val histogram = LatencyHistogram(stripeCount = 4)
+
+    runOnThreads(THREAD_COUNT) {
+      repeat(INCREMENTS_PER_THREAD) {
+        counter.increment()
+        histogram.recordMicros(3)
+      }
+    }
+
+    val expected = THREAD_COUNT.toLong() * INCREMENTS_PER_THREAD
+    assertThat(counter.sum()).isEqualTo(expected)
+    val snapshot = histogram.snapshot()
+    assertThat(snapshot.count).isEqualTo(expected)
+    assertThat(snapshot.sumMicros).isEqualTo(3 * expected)
+    assertThat(snapshot.getBucketCount(LatencyHistogram.getBucket(3))).isEqualTo(expected)
+  }
+
+  @Test
+  fun testGoesUpAndDown() {
+    val counter = StripedCounter()
+
+    counter.add(5)
+    counter.decrement()
+    counter.add(-2)
+
+    assertThat(counter.sum()).isEqualTo(2)
+  }
+
+  @Test
+  fun testHistogramBuckets() {
+    assertThat(LatencyHistogram.getBucket(-1)).isEqualTo(0)
+    assertThat(LatencyHistogram.getBucket(1)).isEqualTo(0)
+    assertThat(LatencyHistogram.getBucket(2)).isEqualTo(1)
+    assertThat(LatencyHistogram.getBucket(3)).isEqualTo(2)
+    assertThat(LatencyHistogram.getBucket(4)).isEqualTo(2)
+    assertThat(LatencyHistogram.getBucket(1000)).isEqualTo(10)
+    assertThat(LatencyHistogram.getBucket(1L shl 26)).isEqualTo(26)
+    assertThat(LatencyHistogram.getBucket(Long.MAX_VALUE))
+        .isEqualTo(LatencyHistogram.BUCKET_COUNT - 1)
+    assertThat(LatencyHistogram.getBucketUpperBoundMicros(10)).isEqualTo(1024)
+    assertThat(LatencyHistogram.getBucketUpperBoundMicros(LatencyHistogram.BUCKET_COUNT - 1))
+        .isEqualTo(Long.MAX_VALUE)
+  }
+
+  @Test
+  fun testHistogramPercentiles() {
+    val histogram = LatencyHistogram()
+    for (micros in 1L..100L) {
+      histogram.recordNanos(micros * 1000)
+    }
+
+    val snapshot = histogram.snapshot()
+
+    assertThat(snapshot.count).isEqualTo(100)
+    assertThat(snapshot.meanMicros).isEqualTo(50)
+    assertThat(snapshot.getPercentileMicros(1.0)).isEqualTo(1)
+    assertThat(snapshot.getPercentileMicros(50.0)).isEqualTo(64)
+    assertThat(snapshot.getPercentileMicros(95.0)).isEqualTo(128)
+    assertThat(HistogramSnapshot.EMPTY.getPercentileMicros(95.0)).isEqualTo(0)
+  }
+
+  /**
+   * Measures the hot path: the ns/op of incrementing a counter and of recording a duration, on one
+   * thread and on several contending threads, next to a single shared AtomicLong. Only runs with
+   * FRESCO_BENCHMARKS set.
+   */
+  @Test
+  fun benchmarkUpdateOverhead() {
+    Assume.assumeTrue(System.getenv("FRESCO_BENCHMARKS") != null)
+    val counter = StripedCounter()
+    val histogram = LatencyHistogram()
+    val atomicLong = AtomicLong()
+
+    for (threadCount in listOf(1, THREAD_COUNT)) {
+      // warm up
+      measureNsPerOp(threadCount) { counter.increment() }
+      measureNsPerOp(threadCount) { histogram.recordNanos(it) }
+      measureNsPerOp(threadCount) { atomicLong.incrementAndGet() }
+
+      val counterNs = measureNsPerOp(threadCount) { counter.increment() }
+      val histogramNs = measureNsPerOp(threadCount) { histogram.recordNanos(it) }
+      val atomicLongNs = measureNsPerOp(threadCount) { atomicLong.incrementAndGet() }
+      FLog.i(
+          TAG,
+          "%d threads: StripedCounter %f ns/op, LatencyHistogram %f ns/op, AtomicLong %f ns/op",
+          threadCount,
+          counterNs,
+          histogramNs,
+          atomicLongNs,
+      )
+      // generous bounds, only to catch an accidental lock or allocation on the hot path
+      assertThat(counterNs).isLessThan(MAX_NS_PER_OP)
+      assertThat(histogramNs).isLessThan(MAX_NS_PER_OP)
+    }
+  }
+
+  private fun measureNsPerOp(threadCount: Int, operation: (Long) -> Unit): Double {
+    val startNs = System.nanoTime()
+    runOnThreads(threadCount) {
+      for (i in 0 until BENCHMARK_OPS_PER_THREAD) {
+        operation(i.toLong())
+      }
+    }
+    return (System.nanoTime() - startNs).toDouble() / BENCHMARK_OPS_PER_THREAD
+  }
+
+  private fun runOnThreads(threadCount: Int, work: () -> Unit) {
+    val start = CountDownLatch(1)
+    val threads = List(threadCount) {
+      Thread {
+        start.await()
+        work()
+      }
+    }
+    threads.forEach { it.start() }
+    start.countDown()
+    threads.forEach { it.join() }
+  }
+
+  companion object {
+    private const val THREAD_COUNT = 8
+    private const val INCREMENTS_PER_THREAD = 100_000
+    private const val BENCHMARK_OPS_PER_THREAD = 2_000_000
+    private const val MAX_NS_PER_OP = 1_000.0
+    private const val TAG = "StripedCounterTest"
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+
+class AdaptiveConcurrencyLimiterTest {
+
+  companion object {
+    private const val BYTE_SIZE = 1000
+  }
+
+  @Test
+  fun testTryAcquire() {
+    val limiter = AdaptiveConcurrencyLimiter(2, 1, 16)
+    assertThat(limiter.tryAcquire()).isTrue()
+    assertThat(limiter.tryAcquire()).isTrue()
+    assertThat(limiter.tryAcquire()).isFalse()
+    assertThat(limiter.inFlight).isEqualTo(2)
+
+    limiter.onFetchCancelled()
+    assertThat(limiter.inFlight).isEqualTo(1)
+    assertThat(limiter.tryAcquire()).isTrue()
+    assertThat(limiter.limit).isEqualTo(2)
+  }
+
+  @Test
+  fun testLimitGrowsWhileThroughputGrows() {
+    val limiter = AdaptiveConcurrencyLimiter(3, 1, 16)
+    // the latency does not depend on the number of concurrent fetches: the link has spare bandwidth
+    repeat(40) { runAllFetches(limiter, latencyMs = 100) }
+    assertThat(limiter.limit).isEqualTo(16)
+  }
+
+  @Test
+  fun testLimitBacksOffOnSaturatedLink() {
+    val limiter = AdaptiveConcurrencyLimiter(8, 1, 16)
+    // the concurrent fetches share the bandwidth, so the throughput is the same for any limit
+    repeat(60) { runAllFetches(limiter, latencyMs = 10L * limiter.limit) }
+    assertThat(limiter.limit).isBetween(3, 4)
+  }
+
+  @Test
+  fun testLimitFollowsBandwidth() {
+    val limiter = AdaptiveConcurrencyLimiter(3, 1, 16)
+    // a fast link with spare bandwidth up to 8 concurrent fetches
+    repeat(40) { runAllFetches(limiter, latencyMs = 10L * maxOf(limiter.limit, 8)) }
+    val fastLinkLimit = limiter.limit
+    assertThat(fastLinkLimit).isBetween(6, 9)
+
+    // the link slows down to the bandwidth of 2 concurrent fetches
+    repeat(60) { runAllFetches(limiter, latencyMs = 40L * maxOf(limiter.limit, 2)) }
+    assertThat(limiter.limit).isLessThan(fastLinkLimit).isBetween(3, 4)
+  }
+
+  @Test
+  fun testOverloadFailuresBackOff() {
+    val limiter = AdaptiveConcurrencyLimiter(8, 2, 16)
+    assertThat(limiter.tryAcquire()).isTrue()
+    limiter.onFetchFailed(true)
+    assertThat(limiter.limit).isEqualTo(6)
+
+    repeat(3) {
+      assertThat(limiter.tryAcquire()).isTrue()
+      limiter.onFetchFailed(true)
+    }
+    assertThat(limiter.limit).isEqualTo(2)
+    assertThat(limiter.inFlight).isEqualTo(0)
+  }
+
+  @Test
+  fun testOtherFailuresDoNotBackOff() {
+    val limiter = AdaptiveConcurrencyLimiter(8, 2, 16)
+    repeat(10) {
+      assertThat(limiter.tryAcquire()).isTrue()
+      limiter.onFetchFailed(false)
+    }
+    assertThat(limiter.limit).isEqualTo(8)
+    assertThat(limiter.inFlight).isEqualTo(0)
+  }
+
+  @Test
+  fun testFetchesEndingWithoutResultEndTheWarmUp() {
+    val limiter = AdaptiveConcurrencyLimiter(8, 2, 16)
+    repeat(3) { assertThat(limiter.tryAcquire()).isTrue() }
+    limiter.onFetchFailed(true)
+    assertThat(limiter.limit).isEqualTo(6)
+
+    // the fetches started under the previous limit end without being part of the new window
+    limiter.onFetchFailed(false)
+    limiter.onFetchCancelled()
+
+    // so a full window of fetches saturating the limit is enough to increase it
+    startAndFinishFetches(limiter, 6)
+    startAndFinishFetches(limiter, 6)
+    startAndFinishFetches(limiter, 4)
+    assertThat(limiter.limit).isEqualTo(7)
+  }
+
+  /** Starts the fetches at once, and finishes all of them with the same latency. */
+  private fun startAndFinishFetches(limiter: AdaptiveConcurrencyLimiter, count: Int) {
+    repeat(count) { assertThat(limiter.tryAcquire()).isTrue() }
+    repeat(count) { limiter.onFetchFinished(100, BYTE_SIZE) }
+  }
+
+  /** Starts as many fetches as the limit allows, and finishes all of them with the same latency. */
+  private fun runAllFetches(limiter: AdaptiveConcurrencyLimiter, latencyMs: Long) {
+    var started = 0
+    while (limiter.tryAcquire()) {
+      started++
+    }
+    repeat(started) { limiter.onFetchFinished(latencyMs, BYTE_SIZE) }
+  }
+}
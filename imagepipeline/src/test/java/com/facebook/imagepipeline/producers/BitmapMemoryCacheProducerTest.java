@@ -16,7 +16,11 @@ import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.cache.BitmapMemoryCacheKey;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.DefaultSimilarImageLookup;
 import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.common.RotationOptions;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.image.ImmutableQualityInfo;
 import com.facebook.imagepipeline.request.ImageRequest;
@@ -345,6 +349,74 @@ public class BitmapMemoryCacheProducerTest {
         .onUltimateProducerReached(eq(mProducerContext), anyString(), anyBoolean());
   }
 
+  @Test
+  public void testServesLargerVariantWithSimilarImageLookup() {
+    DefaultSimilarImageLookup similarImageLookup = new DefaultSimilarImageLookup();
+    BitmapMemoryCacheProducer producer =
+        new BitmapMemoryCacheProducer(
+            mMemoryCache, mCacheKeyFactory, mInputProducer, similarImageLookup);
+    BitmapMemoryCacheKey largeKey = createKey(new ResizeOptions(400, 400));
+    BitmapMemoryCacheKey smallKey = createKey(new ResizeOptions(200, 200));
+    when(mCacheKeyFactory.getBitmapCacheKey(mImageRequest, PRODUCER_NAME)).thenReturn(largeKey);
+    when(mMemoryCache.cache(largeKey, mFinalImageReference)).thenReturn(mFinalImageReferenceClone);
+    when(mMemoryCache.contains(largeKey)).thenReturn(true);
+    doAnswer(
+            new ProduceResultsNewResultAnswer(
+                Consumer.NO_FLAGS, Arrays.asList(mFinalImageReference)))
+        .when(mInputProducer)
+        .produceResults(any(Consumer.class), eq(mProducerContext));
+    producer.produceResults(mConsumer, mProducerContext);
+
+    when(mCacheKeyFactory.getBitmapCacheKey(mImageRequest, PRODUCER_NAME)).thenReturn(smallKey);
+    CloseableReference<CloseableImage> largeImage = CloseableReference.of(mCloseableImage1);
+    when(mMemoryCache.get(largeKey)).thenReturn(largeImage);
+    Consumer smallConsumer = mock(Consumer.class);
+    producer.produceResults(smallConsumer, mProducerContext);
+
+    verify(smallConsumer).onNewResult(largeImage, Consumer.IS_LAST);
+    verify(mInputProducer, times(1)).produceResults(any(Consumer.class), eq(mProducerContext));
+
+    // Cache-only requests are not served a larger variant
+    when(mProducerContext.getLowestPermittedRequestLevel())
+        .thenReturn(ImageRequest.RequestLevel.BITMAP_MEMORY_CACHE);
+    Consumer cacheOnlyConsumer = mock(Consumer.class);
+    producer.produceResults(cacheOnlyConsumer, mProducerContext);
+    verify(cacheOnlyConsumer).onNewResult(null, Consumer.IS_LAST);
+  }
+
+  @Test
+  public void testForgetsEvictedVariants() {
+    DefaultSimilarImageLookup similarImageLookup = new DefaultSimilarImageLookup();
+    BitmapMemoryCacheProducer producer =
+        new BitmapMemoryCacheProducer(
+            mMemoryCache, mCacheKeyFactory, mInputProducer, similarImageLookup);
+    BitmapMemoryCacheKey largeKey = createKey(new ResizeOptions(400, 400));
+    BitmapMemoryCacheKey smallKey = createKey(new ResizeOptions(200, 200));
+    // The variants of a key are grouped by the key without resize options
+    String groupKey = createKey(null).toString();
+    similarImageLookup.trackMemoryCacheKey(largeKey.toString(), groupKey, 400, 400);
+    when(mCacheKeyFactory.getBitmapCacheKey(mImageRequest, PRODUCER_NAME)).thenReturn(smallKey);
+    setupInputProducerNotFound();
+
+    producer.produceResults(mConsumer, mProducerContext);
+
+    verify(mMemoryCache).get(largeKey);
+    verify(mInputProducer).produceResults(any(Consumer.class), eq(mProducerContext));
+    Assert.assertNull(
+        similarImageLookup.findLargerMemoryCacheKey(
+            smallKey.toString(), groupKey, 200, 200, PRODUCER_NAME));
+  }
+
+  private static BitmapMemoryCacheKey createKey(@Nullable ResizeOptions resizeOptions) {
+    return new BitmapMemoryCacheKey(
+        "http://image.jpg",
+        resizeOptions,
+        RotationOptions.autoRotate(),
+        ImageDecodeOptions.defaults(),
+        null,
+        null);
+  }
+
   private void setupBitmapMemoryCacheGetSuccess() {
     when(mMemoryCache.get(eq(mBitmapMemoryCacheKey))).thenReturn(mFinalImageReference);
   }
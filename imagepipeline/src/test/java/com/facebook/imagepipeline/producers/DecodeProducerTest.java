@@ -42,6 +42,8 @@ import com.facebook.imagepipeline.debug.NoOpCloseableReferenceLeakTracker;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegParser;
+import com.facebook.imagepipeline.decoder.ProgressivePngParser;
+import com.facebook.imagepipeline.decoder.SimpleProgressiveImageConfig;
 import com.facebook.imagepipeline.decoder.SimpleProgressiveJpegConfig;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.image.ImmutableQualityInfo;
@@ -553,6 +555,62 @@ public class DecodeProducerTest {
         .onUltimateProducerReached(eq(mProducerContext), anyString(), anyBoolean());
   }
 
+  @Test
+  public void testDecode_Intermediate_PNG_Failure() throws Exception {
+    when(mConfig.getProgressivePngConfig()).thenReturn(SimpleProgressiveImageConfig.forPng());
+    when(mProducerListener.requiresExtraMap(mProducerContext, DecodeProducer.PRODUCER_NAME))
+        .thenReturn(true);
+    mEncodedImage.setImageFormat(DefaultImageFormats.PNG);
+    setupNetworkUri();
+    produceResults();
+    JobScheduler.JobRunnable jobRunnable = getJobRunnable();
+
+    when(mImageDecoder.decode(eq(mEncodedImage), anyInt(), any(), eq(IMAGE_DECODE_OPTIONS)))
+        .thenThrow(new RuntimeException());
+    jobRunnable.run(mEncodedImage, Consumer.NO_FLAGS);
+
+    // The decode that was started finishes without a result, and the request does not fail: the
+    // next data may be decodable
+    ArgumentCaptor<Map> extraMapCaptor = ArgumentCaptor.forClass(Map.class);
+    InOrder inOrder = inOrder(mProducerListener);
+    inOrder
+        .verify(mProducerListener)
+        .onProducerStart(mProducerContext, DecodeProducer.PRODUCER_NAME);
+    inOrder
+        .verify(mProducerListener)
+        .onProducerFinishWithSuccess(
+            eq(mProducerContext), eq(DecodeProducer.PRODUCER_NAME), extraMapCaptor.capture());
+    assertThat(extraMapCaptor.getValue())
+        .containsEntry(DecodeProducer.EXTRA_PARTIAL_DECODE_FAILED, "true");
+    verify(mProducerListener, never())
+        .onProducerFinishWithFailure(
+            eq(mProducerContext),
+            eq(DecodeProducer.PRODUCER_NAME),
+            any(Throwable.class),
+            nullable(Map.class));
+    verify(mConsumer, never()).onFailure(any(Throwable.class));
+    verify(mConsumer, never()).onNewResult(any(), anyInt());
+  }
+
+  @Test
+  public void testDecode_PNG_ReleasesParserWhenFinished() throws Exception {
+    when(mConfig.getProgressivePngConfig()).thenReturn(SimpleProgressiveImageConfig.forPng());
+    mEncodedImage.setImageFormat(DefaultImageFormats.PNG);
+    setupNetworkUri();
+    try (MockedConstruction<ProgressivePngParser> mockedConstructionProgressivePngParser =
+        mockConstruction(ProgressivePngParser.class)) {
+      Consumer<EncodedImage> consumer = produceResults();
+      consumer.onNewResult(mEncodedImage, Consumer.NO_FLAGS);
+      ProgressivePngParser progressivePngParser =
+          mockedConstructionProgressivePngParser.constructed().get(0);
+      verify(progressivePngParser).parseMoreData(mEncodedImage);
+      verify(progressivePngParser, never()).release();
+
+      consumer.onFailure(new RuntimeException());
+      verify(progressivePngParser).release();
+    }
+  }
+
   @Test
   public void testDecode_WhenSmartResizingEnabledAndLocalUri_ThenPerformDownsampling()
       throws Exception {
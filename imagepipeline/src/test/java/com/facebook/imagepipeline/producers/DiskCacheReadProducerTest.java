@@ -22,6 +22,8 @@ import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.SimilarImageLookup;
+import com.facebook.imagepipeline.cache.SimilarImageResult;
 import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.DiskCachesStore;
@@ -494,20 +496,58 @@ public class DiskCacheReadProducerTest {
         .onUltimateProducerReached(eq(mProducerContext), anyString(), anyBoolean());
   }
 
+  @Test
+  public void testReadsLargerVariantOnMiss() {
+    SimilarImageLookup similarImageLookup = mock(SimilarImageLookup.class);
+    SimpleCacheKey largerKey = new SimpleCacheKey("http://dummy.uri_1080_1080");
+    when(similarImageLookup.findLargerDiskCacheKey("http://dummy.uri", mCallerContext))
+        .thenReturn(
+            new SimilarImageResult(largerKey.getUriString(), "http://dummy.uri", 1080, 1080));
+    DiskCacheReadProducer producer =
+        new DiskCacheReadProducer(
+            mDiskCachesStoreSupplier, mCacheKeyFactory, mInputProducer, similarImageLookup);
+    setUpDiskCacheProducerEnabled(true);
+    setupDiskCacheGetNotFound(mDefaultBufferedDiskCache);
+    when(mDefaultBufferedDiskCache.get(
+            eq(largerKey), any(AtomicBoolean.class), eq(mProducerContext)))
+        .thenReturn(Task.forResult(mFinalEncodedImage));
+
+    producer.produceResults(mConsumer, mProducerContext);
+
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mInputProducer, never()).produceResults(any(Consumer.class), any(ProducerContext.class));
+  }
+
+  @Test
+  public void testDoesNotReadLargerVariantForCacheOnlyRequests() {
+    SimilarImageLookup similarImageLookup = mock(SimilarImageLookup.class);
+    DiskCacheReadProducer producer =
+        new DiskCacheReadProducer(
+            mDiskCachesStoreSupplier, mCacheKeyFactory, mInputProducer, similarImageLookup);
+    setUpDiskCacheProducerEnabled(true);
+    when(mDefaultBufferedDiskCache.get(
+            eq(mCacheKey), any(AtomicBoolean.class), eq(mLowestLevelProducerContext)))
+        .thenReturn(Task.<EncodedImage>forResult(null));
+
+    producer.produceResults(mConsumer, mLowestLevelProducerContext);
+
+    verifyNoInteractions(similarImageLookup);
+  }
+
   private void setupDiskCacheGetWait(BufferedDiskCache bufferedDiskCache) {
     mTaskCompletionSource = Task.create();
-    when(bufferedDiskCache.get(eq(mCacheKey), mIsCancelled.capture()))
+    when(bufferedDiskCache.get(eq(mCacheKey), mIsCancelled.capture(), eq(mProducerContext)))
         .thenReturn(mTaskCompletionSource.getTask());
   }
 
   private void setupDiskCacheGetSuccess(BufferedDiskCache bufferedDiskCache) {
     setUpDiskCacheProducerEnabled(true);
-    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class)))
+    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class), eq(mProducerContext)))
         .thenReturn(Task.forResult(mFinalEncodedImage));
   }
 
   private void setupDiskCacheGetNotFound(BufferedDiskCache bufferedDiskCache) {
-    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class)))
+    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class), eq(mProducerContext)))
         .thenReturn(Task.<EncodedImage>forResult(null));
   }
 
@@ -522,7 +562,7 @@ public class DiskCacheReadProducerTest {
   }
 
   private void setupDiskCacheGetFailure(BufferedDiskCache bufferedDiskCache) {
-    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class)))
+    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class), eq(mProducerContext)))
         .thenReturn(Task.<EncodedImage>forError(mException));
   }
 
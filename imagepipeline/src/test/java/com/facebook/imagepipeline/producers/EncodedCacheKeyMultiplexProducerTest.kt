@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers
+
+import android.net.Uri
+import com.facebook.cache.common.CacheKey
+import com.facebook.cache.common.SimpleCacheKey
+import com.facebook.common.memory.PooledByteBuffer
+import com.facebook.common.references.CloseableReference
+import com.facebook.imageformat.DefaultImageFormats
+import com.facebook.imagepipeline.cache.BufferedDiskCache
+import com.facebook.imagepipeline.cache.CacheKeyFactory
+import com.facebook.imagepipeline.cache.MemoryCache
+import com.facebook.imagepipeline.common.BytesRange
+import com.facebook.imagepipeline.common.Priority
+import com.facebook.imagepipeline.common.ResizeOptions
+import com.facebook.imagepipeline.core.DiskCachesStore
+import com.facebook.imagepipeline.core.ImagePipelineConfig
+import com.facebook.imagepipeline.core.ImagePipelineExperiments
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.request.ImageRequest
+import com.facebook.imagepipeline.request.ImageRequestBuilder
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class EncodedCacheKeyMultiplexProducerTest {
+
+  private val uri = Uri.parse("http://example.com/image.jpg")
+
+  private lateinit var cacheKeyFactory: CacheKeyFactory
+  private lateinit var inputProducer: Producer<EncodedImage>
+  private lateinit var encodedMemoryCache: MemoryCache<CacheKey, PooledByteBuffer>
+  private lateinit var bufferedDiskCache: BufferedDiskCache
+  private lateinit var diskCachesStore: DiskCachesStore
+  private lateinit var config: ImagePipelineConfig
+
+  @Before
+  fun setUp() {
+    // the encoded cache key depends on the requested size, and both keys ignore the query
+    cacheKeyFactory = mock()
+    whenever(cacheKeyFactory.getEncodedCacheKey(any(), any())).thenAnswer {
+      val request = it.getArgument<ImageRequest>(0)
+      SimpleCacheKey("${normalize(request.sourceUri)}#${request.resizeOptions?.width}")
+    }
+    whenever(cacheKeyFactory.getEncodedSourceCacheKey(any(), any())).thenAnswer {
+      SimpleCacheKey(normalize(it.getArgument<ImageRequest>(0).sourceUri))
+    }
+    inputProducer = mock()
+    encodedMemoryCache = mock()
+    bufferedDiskCache = mock()
+    diskCachesStore = mock()
+    whenever(diskCachesStore.mainBufferedDiskCache).thenReturn(bufferedDiskCache)
+    val experiments = mock<ImagePipelineExperiments>()
+    whenever(experiments.isEncodedCacheEnabled).thenReturn(true)
+    config = mock()
+    whenever(config.experiments).thenReturn(experiments)
+  }
+
+  @Test
+  fun testResizeVariantsNotCombinedByDefault() {
+    val multiplexProducer =
+        EncodedCacheKeyMultiplexProducer(cacheKeyFactory, false, inputProducer, config)
+
+    produceResults(multiplexProducer, createRequest(ResizeOptions(200, 200)))
+    produceResults(multiplexProducer, createRequest(ResizeOptions(400, 400)))
+
+    verify(inputProducer, times(2)).produceResults(any(), any())
+  }
+
+  @Test
+  fun testResizeVariantsCombinedBySource() {
+    val multiplexProducer = createMultiplexProducerCombiningBySource()
+
+    produceResults(multiplexProducer, createRequest(ResizeOptions(200, 200)))
+    produceResults(multiplexProducer, createRequest(ResizeOptions(400, 400)))
+    produceResults(multiplexProducer, createRequest(null))
+    // normalized like the encoded cache key
+    produceResults(
+        multiplexProducer,
+        createRequest(ResizeOptions(400, 400), uri = Uri.parse("$uri?token=1")),
+    )
+
+    verify(inputProducer, times(1)).produceResults(any(), any())
+  }
+
+  @Test
+  fun testBytesRangesNotCombinedBySource() {
+    val multiplexProducer = createMultiplexProducerCombiningBySource()
+
+    produceResults(
+        multiplexProducer,
+        createRequest(ResizeOptions(200, 200), BytesRange.toMax(1023)),
+    )
+    produceResults(multiplexProducer, createRequest(ResizeOptions(400, 400)))
+    produceResults(
+        multiplexProducer,
+        createRequest(ResizeOptions(400, 400), BytesRange.toMax(1023)),
+    )
+
+    verify(inputProducer, times(2)).produceResults(any(), any())
+  }
+
+  @Test
+  fun testResultCachedUnderEncodedCacheKeyOfEveryRequest() {
+    val multiplexProducer = createMultiplexProducerCombiningBySource()
+    val firstRequest = createRequest(ResizeOptions(200, 200))
+    val secondRequest = createRequest(ResizeOptions(400, 400))
+    val firstKey = cacheKeyFactory.getEncodedCacheKey(firstRequest, null)
+    val secondKey = cacheKeyFactory.getEncodedCacheKey(secondRequest, null)
+    produceResults(multiplexProducer, firstRequest)
+    produceResults(multiplexProducer, secondRequest)
+    val consumerCaptor = argumentCaptor<Consumer<EncodedImage>>()
+    verify(inputProducer).produceResults(consumerCaptor.capture(), any())
+    // the combined request, which has the first request, cached its result
+    whenever(encodedMemoryCache.contains(firstKey)).thenReturn(true)
+    whenever(bufferedDiskCache.containsSync(firstKey)).thenReturn(true)
+
+    val result = EncodedImage(CloseableReference.of(TrivialPooledByteBuffer(ByteArray(16))))
+    result.imageFormat = DefaultImageFormats.JPEG
+    consumerCaptor.firstValue.onNewResult(result, Consumer.IS_LAST)
+
+    verify(encodedMemoryCache).cache(eq(secondKey), any())
+    verify(encodedMemoryCache, never()).cache(eq(firstKey), any())
+    verify(bufferedDiskCache).put(secondKey, result)
+    verify(bufferedDiskCache, never()).put(eq(firstKey), any())
+  }
+
+  private fun createMultiplexProducerCombiningBySource(): EncodedCacheKeyMultiplexProducer =
+      EncodedCacheKeyMultiplexProducer(
+          cacheKeyFactory,
+          false,
+          inputProducer,
+          config,
+          true,
+          encodedMemoryCache,
+          { diskCachesStore },
+      )
+
+  private fun createRequest(
+      resizeOptions: ResizeOptions?,
+      bytesRange: BytesRange? = null,
+      uri: Uri = this.uri,
+  ): ImageRequest =
+      ImageRequestBuilder.newBuilderWithSource(uri)
+          .setResizeOptions(resizeOptions)
+          .setBytesRange(bytesRange)
+          .build()
+
+  private fun produceResults(
+      multiplexProducer: EncodedCacheKeyMultiplexProducer,
+      request: ImageRequest,
+  ) {
+    multiplexProducer.produceResults(
+        mock(),
+        SettableProducerContext(
+            request,
+            "id",
+            mock<ProducerListener2>(),
+            Any(),
+            ImageRequest.RequestLevel.FULL_FETCH,
+            false,
+            true,
+            Priority.MEDIUM,
+            config,
+        ),
+    )
+  }
+
+  private fun normalize(uri: Uri): String = uri.buildUpon().clearQuery().build().toString()
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers
+
+import android.net.Uri
+import com.facebook.common.time.RealtimeSinceBootClock
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.producers.HttpUrlConnectionNetworkFetcher.HttpUrlConnectionNetworkFetchState
+import com.facebook.imagepipeline.request.ImageRequest
+import com.sun.net.httpserver.HttpServer
+import java.io.InputStream
+import java.net.InetSocketAddress
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+
+/** Fetches from a local server whose bandwidth is shared by all the connections and can change. */
+@RunWith(RobolectricTestRunner::class)
+class HttpUrlConnectionNetworkFetcherConcurrencyTest {
+
+  companion object {
+    private const val IMAGE_SIZE = 8 * 1024
+    private const val CHUNK_SIZE = 1024
+    private const val NUM_FETCHES = 48
+    private const val INITIAL_LIMIT = 3
+    private const val MAX_LIMIT = 8
+    // the time the server takes to respond, which more concurrent fetches hide on a fast link
+    private const val RESPONSE_DELAY_MS = 20L
+  }
+
+  /** Paces the bytes written by all the connections to the bandwidth of the link. */
+  private class Link(@Volatile var bytesPerSecond: Long) {
+    private var nextFreeTimeNanos = System.nanoTime()
+
+    fun send(byteCount: Int) {
+      val waitNanos: Long
+      synchronized(this) {
+        val now = System.nanoTime()
+        nextFreeTimeNanos =
+            maxOf(now, nextFreeTimeNanos) + byteCount * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond
+        waitNanos = nextFreeTimeNanos - now
+      }
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos)
+      }
+    }
+  }
+
+  private val link = Link(8 * 1024 * 1024)
+  private val openConnections = AtomicInteger()
+  private val maxOpenConnections = AtomicInteger()
+
+  private lateinit var server: HttpServer
+  private lateinit var limiter: AdaptiveConcurrencyLimiter
+  private lateinit var fetcher: HttpUrlConnectionNetworkFetcher
+
+  @Before
+  fun setUp() {
+    server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+    server.executor = Executors.newCachedThreadPool()
+    server.createContext("/") { exchange ->
+      val open = openConnections.incrementAndGet()
+      maxOpenConnections.accumulateAndGet(open) { a, b -> maxOf(a, b) }
+      try {
+        Thread.sleep(RESPONSE_DELAY_MS)
+        exchange.sendResponseHeaders(200, IMAGE_SIZE.toLong())
+        exchange.responseBody.use { body ->
+          val chunk = ByteArray(CHUNK_SIZE)
+          repeat(IMAGE_SIZE / CHUNK_SIZE) {
+            link.send(CHUNK_SIZE)
+            body.write(chunk)
+          }
+        }
+      } finally {
+        openConnections.decrementAndGet()
+      }
+    }
+    server.createContext("/missing") { exchange ->
+      exchange.sendResponseHeaders(404, -1)
+      exchange.close()
+    }
+    server.createContext("/busy") { exchange ->
+      exchange.sendResponseHeaders(503, -1)
+      exchange.close()
+    }
+    server.start()
+
+    limiter = AdaptiveConcurrencyLimiter(INITIAL_LIMIT, 1, MAX_LIMIT)
+    fetcher =
+        HttpUrlConnectionNetworkFetcher(null, null, RealtimeSinceBootClock.get(), limiter)
+  }
+
+  @After
+  fun tearDown() {
+    server.stop(0)
+  }
+
+  @Test
+  fun testFetchesOverChangingBandwidth() {
+    // the fast link has spare bandwidth for more fetches than the initial limit
+    val fastFetchStates = fetchAll("fast", 2 * NUM_FETCHES)
+    val fastLinkLimit = getConcurrencyLimit(fastFetchStates.last())
+    assertThat(fastLinkLimit).isGreaterThan(INITIAL_LIMIT).isLessThanOrEqualTo(MAX_LIMIT)
+    assertThat(fetcher.getExtraMap(fastFetchStates.first(), IMAGE_SIZE))
+        .containsEntry("queue_depth", "0")
+    assertThat(fetcher.getExtraMap(fastFetchStates.last(), IMAGE_SIZE)["queue_depth"]!!.toInt())
+        .isGreaterThan(0)
+
+    // the link slows down until the server is overloaded
+    link.bytesPerSecond = 256 * 1024
+    repeat(3) { fetchAndWait("busy.jpg") }
+    val slowFetchStates = fetchAll("slow", NUM_FETCHES / 6)
+    assertThat(getConcurrencyLimit(slowFetchStates.last())).isLessThan(fastLinkLimit)
+    assertThat(maxOpenConnections.get()).isLessThanOrEqualTo(MAX_LIMIT)
+  }
+
+  @Test
+  fun testOnlyOverloadFailuresBackOff() {
+    repeat(NUM_FETCHES / 4) { fetchAndWait("missing$it.jpg") }
+    assertThat(limiter.limit).isEqualTo(INITIAL_LIMIT)
+
+    fetchAndWait("busy.jpg")
+    assertThat(limiter.limit).isEqualTo(2)
+  }
+
+  /** Fetches the images at once and waits until all of them were received. */
+  private fun fetchAll(name: String, count: Int): List<HttpUrlConnectionNetworkFetchState> {
+    val fetchStates = ArrayList<HttpUrlConnectionNetworkFetchState>()
+    val fetchedBytes = AtomicInteger()
+    val failures = AtomicInteger()
+    val done = CountDownLatch(count)
+
+    for (i in 0 until count) {
+      val fetchState = createFetchState("http://127.0.0.1:${server.address.port}/$name$i.jpg")
+      fetchStates.add(fetchState)
+      fetcher.fetch(
+          fetchState,
+          object : NetworkFetcher.Callback {
+            override fun onResponse(response: InputStream, responseLength: Int) {
+              val byteSize = response.readBytes().size
+              fetchedBytes.addAndGet(byteSize)
+              fetcher.onFetchCompletion(fetchState, byteSize)
+              done.countDown()
+            }
+
+            override fun onFailure(throwable: Throwable) {
+              failures.incrementAndGet()
+              done.countDown()
+            }
+
+            override fun onCancellation() {
+              done.countDown()
+            }
+          },
+      )
+    }
+
+    assertThat(done.await(30, TimeUnit.SECONDS)).isTrue()
+    assertThat(failures.get()).isEqualTo(0)
+    assertThat(fetchedBytes.get()).isEqualTo(count * IMAGE_SIZE)
+    assertThat(fetcher.queuedFetchCount).isEqualTo(0)
+    return fetchStates
+  }
+
+  /** Fetches the image and waits until the limiter has recorded the end of the fetch. */
+  private fun fetchAndWait(path: String) {
+    fetcher.fetch(
+        createFetchState("http://127.0.0.1:${server.address.port}/$path"),
+        object : NetworkFetcher.Callback {
+          override fun onResponse(response: InputStream, responseLength: Int) = Unit
+
+          override fun onFailure(throwable: Throwable) = Unit
+
+          override fun onCancellation() = Unit
+        },
+    )
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+    while (limiter.inFlight > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(1)
+    }
+    assertThat(limiter.inFlight).isEqualTo(0)
+  }
+
+  private fun getConcurrencyLimit(fetchState: HttpUrlConnectionNetworkFetchState): Int =
+      fetcher.getExtraMap(fetchState, IMAGE_SIZE)["concurrency_limit"]!!.toInt()
+
+  private fun createFetchState(url: String): HttpUrlConnectionNetworkFetchState {
+    val imageRequest = mock<ImageRequest>()
+    whenever(imageRequest.sourceUri).thenReturn(Uri.parse(url))
+    val producerContext = mock<ProducerContext>()
+    whenever(producerContext.imageRequest).thenReturn(imageRequest)
+    return HttpUrlConnectionNetworkFetchState(mock<Consumer<EncodedImage?>>(), producerContext)
+  }
+}
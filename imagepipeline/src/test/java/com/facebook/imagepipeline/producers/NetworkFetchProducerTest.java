@@ -20,6 +20,7 @@ import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
+import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.infer.annotation.Nullsafe;
 import java.io.IOException;
@@ -246,6 +247,46 @@ public class NetworkFetchProducerTest {
     }
   }
 
+  @Test
+  public void testPreparesDecodeUntilHeaderIsRead() throws IOException {
+    SpeculativeDecodePreparer preparer = mock(SpeculativeDecodePreparer.class);
+    when(preparer.prepare(eq(mProducerContext), any(EncodedImage.class))).thenReturn(false, true);
+    mNetworkFetchProducer =
+        new TestNetworkFetchProducer(
+            mPooledByteBufferFactory, mByteArrayPool, mNetworkFetcher, preparer);
+    NetworkFetcher.Callback callback = performFetch();
+    when(mNetworkFetcher.shouldPropagate(any(FetchState.class))).thenReturn(false);
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenReturn(10, 10, 10, -1);
+
+    callback.onResponse(inputStream, 30);
+
+    verify(preparer, times(2)).prepare(eq(mProducerContext), any(EncodedImage.class));
+    verify(mConsumer).onNewResult(any(), eq(Consumer.IS_LAST));
+    // Two headers and the final result
+    verifyPooledByteBufferUsed(3);
+  }
+
+  @Test
+  public void testFetchesWhenDecodePreparationFails() throws IOException {
+    SpeculativeDecodePreparer preparer = mock(SpeculativeDecodePreparer.class);
+    when(preparer.prepare(eq(mProducerContext), any(EncodedImage.class)))
+        .thenThrow(new IllegalStateException());
+    mNetworkFetchProducer =
+        new TestNetworkFetchProducer(
+            mPooledByteBufferFactory, mByteArrayPool, mNetworkFetcher, preparer);
+    NetworkFetcher.Callback callback = performFetch();
+    when(mNetworkFetcher.shouldPropagate(any(FetchState.class))).thenReturn(false);
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenReturn(10, 10, -1);
+
+    callback.onResponse(inputStream, 20);
+
+    verify(preparer, times(1)).prepare(eq(mProducerContext), any(EncodedImage.class));
+    verify(mConsumer).onNewResult(any(), eq(Consumer.IS_LAST));
+    verifyPooledByteBufferUsed(2);
+  }
+
   private void verifyPooledByteBufferUsed(int times) {
     verify(mPooledByteBufferOutputStream, times(times)).toByteBuffer();
     verify(mPooledByteBuffer, times(times)).close();
@@ -344,6 +385,14 @@ public class NetworkFetchProducerTest {
       super(pooledByteBufferFactory, byteArrayPool, networkFetcher);
     }
 
+    public TestNetworkFetchProducer(
+        PooledByteBufferFactory pooledByteBufferFactory,
+        ByteArrayPool byteArrayPool,
+        NetworkFetcher networkFetcher,
+        SpeculativeDecodePreparer speculativeDecodePreparer) {
+      super(pooledByteBufferFactory, byteArrayPool, networkFetcher, speculativeDecodePreparer);
+    }
+
     public void setSystemUptime(long systemUptime) {
       mSystemUptime = systemUptime;
     }
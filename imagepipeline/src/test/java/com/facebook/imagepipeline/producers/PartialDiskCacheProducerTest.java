@@ -143,7 +143,8 @@ public class PartialDiskCacheProducerTest {
   @Test
   public void testReadPartialThenFetchRest() {
     when(mImageRequest.getCacheChoice()).thenReturn(ImageRequest.CacheChoice.DEFAULT);
-    when(mDefaultBufferedDiskCache.get(any(CacheKey.class), any(AtomicBoolean.class)))
+    when(mDefaultBufferedDiskCache.get(
+            any(CacheKey.class), any(AtomicBoolean.class), any(ProducerContext.class)))
         .thenReturn(Task.forResult(mPartialEncodedImage));
     when(mPartialEncodedImage.getSize()).thenReturn(1000);
     when(mImageRequest.getBytesRange()).thenReturn(BytesRange.toMax(2000));
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers
+
+import android.graphics.Bitmap
+import android.net.Uri
+import com.facebook.common.references.CloseableReference
+import com.facebook.imageformat.DefaultImageFormats
+import com.facebook.imageformat.ImageFormat
+import com.facebook.imagepipeline.common.ImageDecodeOptions
+import com.facebook.imagepipeline.common.ResizeOptions
+import com.facebook.imagepipeline.common.RotationOptions
+import com.facebook.imagepipeline.core.DownsampleMode
+import com.facebook.imagepipeline.core.ImagePipelineConfigInterface
+import com.facebook.imagepipeline.core.ImagePipelineExperiments
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.memory.BitmapPool
+import com.facebook.imagepipeline.memory.BucketsBitmapPool
+import com.facebook.imagepipeline.memory.DefaultBitmapPoolParams
+import com.facebook.imagepipeline.memory.LruBitmapPool
+import com.facebook.imagepipeline.memory.PoolStatsTracker
+import com.facebook.imagepipeline.platform.PlatformDecoderOptions
+import com.facebook.imagepipeline.request.ImageRequest
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.verifyNoInteractions
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class SpeculativeDecodePreparerTest {
+
+  private val bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)
+  private val bitmapPool = mock<BitmapPool>()
+  private val imageRequest = mock<ImageRequest>()
+  private val experiments = mock<ImagePipelineExperiments>()
+  private val producerContext = mock<ProducerContext>()
+
+  @Before
+  fun setUp() {
+    whenever(bitmapPool.get(any())).thenReturn(bitmap)
+    whenever(bitmapPool.canRetain(any())).thenReturn(true)
+    whenever(imageRequest.sourceUri).thenReturn(Uri.parse("https://fresco/image.jpg"))
+    whenever(imageRequest.rotationOptions).thenReturn(RotationOptions.autoRotate())
+    whenever(imageRequest.imageDecodeOptions).thenReturn(ImageDecodeOptions.defaults())
+    whenever(experiments.platformDecoderOptions).thenReturn(PlatformDecoderOptions())
+    val config = mock<ImagePipelineConfigInterface>()
+    whenever(config.experiments).thenReturn(experiments)
+    whenever(producerContext.imageRequest).thenReturn(imageRequest)
+    whenever(producerContext.imagePipelineConfig).thenReturn(config)
+  }
+
+  @Test
+  fun testWarmsBitmapPoolWithDownsampledSize() {
+    val preparer = createPreparer(downsampleEnabledForNetwork = true)
+    val header = createHeader(DefaultImageFormats.JPEG, 4000, 3001)
+
+    assertThat(preparer.prepare(producerContext, header)).isTrue()
+
+    // 4000x3001 is downsampled by 2 to fit in 2048 pixels, and JPEG dimensions are rounded up
+    verify(bitmapPool).get(2000 * 1501 * 4)
+    verify(bitmapPool).release(bitmap)
+    verify(producerContext).putExtra("encoded_width", 4000)
+  }
+
+  @Test
+  fun testDoesNotDownsampleNetworkImagesWhenDisabled() {
+    val preparer = createPreparer(downsampleEnabledForNetwork = false)
+
+    assertThat(preparer.prepare(producerContext, createHeader(DefaultImageFormats.PNG, 1001, 99)))
+        .isTrue()
+
+    verify(bitmapPool).get(1001 * 99 * 4)
+  }
+
+  @Test
+  fun testWarmsLruBitmapPool() {
+    val poolStatsTracker = mock<PoolStatsTracker>()
+    val pool = LruBitmapPool(1_024 * 1_024, 64 * 1_024, poolStatsTracker, null)
+    val preparer = SpeculativeDecodePreparer(pool, DownsampleMode.AUTO, true, MAX_BITMAP_DIMENSION)
+
+    assertThat(preparer.prepare(producerContext, createHeader(DefaultImageFormats.PNG, 100, 10)))
+        .isTrue()
+    pool.get(100 * 10 * 4)
+
+    // The decoder reuses the bitmap allocated by the preparer
+    verify(poolStatsTracker, times(1)).onAlloc(any())
+    verify(poolStatsTracker).onValueReuse(100 * 10 * 4)
+  }
+
+  @Test
+  fun testDoesNotWarmBitmapPoolWithoutBuckets() {
+    val poolStatsTracker = mock<PoolStatsTracker>()
+    // The bitmap pool of the default configuration
+    val pool = BucketsBitmapPool(mock(), DefaultBitmapPoolParams.get(), poolStatsTracker)
+    val preparer = SpeculativeDecodePreparer(pool, DownsampleMode.AUTO, true, MAX_BITMAP_DIMENSION)
+
+    assertThat(preparer.prepare(producerContext, createHeader(DefaultImageFormats.PNG, 100, 10)))
+        .isTrue()
+
+    verify(poolStatsTracker, never()).onAlloc(any())
+  }
+
+  @Test
+  fun testNeedsMoreBytesUntilDimensionsAreKnown() {
+    val preparer = createPreparer()
+
+    assertThat(preparer.prepare(producerContext, createHeader(ImageFormat.UNKNOWN, -1, -1)))
+        .isFalse()
+    assertThat(preparer.prepare(producerContext, createHeader(DefaultImageFormats.JPEG, -1, -1)))
+        .isFalse()
+    verifyNoInteractions(bitmapPool)
+  }
+
+  @Test
+  fun testDoesNotPrepareAnimatedImages() {
+    val preparer = createPreparer()
+
+    assertThat(preparer.prepare(producerContext, createHeader(DefaultImageFormats.GIF, 10, 10)))
+        .isTrue()
+    verifyNoInteractions(bitmapPool)
+  }
+
+  @Test
+  fun testDoesNotPrepareImagesResizedByTranscoder() {
+    whenever(imageRequest.resizeOptions).thenReturn(ResizeOptions(100, 100))
+    val preparer = createPreparer(downsampleEnabledForNetwork = true)
+
+    assertThat(preparer.prepare(producerContext, createHeader(DefaultImageFormats.JPEG, 800, 600)))
+        .isTrue()
+    verifyNoInteractions(bitmapPool)
+  }
+
+  @Test
+  fun testDoesNotPrepareTooBigBitmaps() {
+    val preparer = createPreparer(downsampleEnabledForNetwork = false)
+
+    assertThat(
+            preparer.prepare(producerContext, createHeader(DefaultImageFormats.JPEG, 30000, 30000)))
+        .isTrue()
+    verify(bitmapPool, never()).get(any())
+  }
+
+  @Test
+  fun testDoesNotPrepareWhenPoolIsAvoided() {
+    whenever(experiments.platformDecoderOptions)
+        .thenReturn(PlatformDecoderOptions(avoidPoolGet = true))
+    val preparer = createPreparer()
+
+    assertThat(preparer.prepare(producerContext, createHeader(DefaultImageFormats.PNG, 10, 10)))
+        .isTrue()
+    verifyNoInteractions(bitmapPool)
+  }
+
+  @Test
+  fun testGetDecodedDimension() {
+    assertThat(SpeculativeDecodePreparer.getDecodedDimension(1001, 2, true)).isEqualTo(501)
+    assertThat(SpeculativeDecodePreparer.getDecodedDimension(1001, 2, false)).isEqualTo(500)
+    assertThat(SpeculativeDecodePreparer.getDecodedDimension(3, 4, false)).isEqualTo(1)
+    assertThat(SpeculativeDecodePreparer.getDecodedDimension(3, 4, true)).isEqualTo(1)
+  }
+
+  private fun createPreparer(downsampleEnabledForNetwork: Boolean = true) =
+      SpeculativeDecodePreparer(
+          bitmapPool, DownsampleMode.AUTO, downsampleEnabledForNetwork, MAX_BITMAP_DIMENSION)
+
+  private fun createHeader(imageFormat: ImageFormat, width: Int, height: Int): EncodedImage {
+    val encodedImage = EncodedImage(CloseableReference.of(TrivialPooledByteBuffer(ByteArray(16))))
+    encodedImage.imageFormat = imageFormat
+    encodedImage.width = width
+    encodedImage.height = height
+    encodedImage.rotationAngle = 0
+    return encodedImage
+  }
+
+  companion object {
+    private const val MAX_BITMAP_DIMENSION = 2048
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiling
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Rect
+import com.facebook.cache.common.CacheKey
+import com.facebook.common.references.CloseableReference
+import com.facebook.imageformat.DefaultImageFormats
+import com.facebook.imageformat.ImageFormat
+import com.facebook.imagepipeline.cache.MemoryCache
+import com.facebook.imagepipeline.common.ImageDecodeOptions
+import com.facebook.imagepipeline.decoder.ImageDecoder
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.image.ImmutableQualityInfo
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer
+import java.io.InputStream
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argThat
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.verifyNoInteractions
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class TiledImageDecoderTest {
+
+  private val bitmapMemoryCache = mock<MemoryCache<CacheKey, CloseableImage>>()
+  private val fallbackDecoder = mock<ImageDecoder>()
+  private val fallbackImage = mock<CloseableImage>()
+  private val decoder = TiledImageDecoder(bitmapMemoryCache, {}, fallbackDecoder)
+  private val options = ImageDecodeOptions.newBuilder().setCustomImageDecoder(decoder).build()
+
+  @Test
+  fun testDecodesHugeImageIntoPreviewAndRegionDecoder() {
+    Mockito.mockStatic(BitmapRegionDecoder::class.java).use {
+      val regionDecoder = mock<BitmapRegionDecoder>()
+      whenever(regionDecoder.decodeRegion(any<Rect>(), any<BitmapFactory.Options>()))
+          .thenReturn(Bitmap.createBitmap(1_250, 1_000, Bitmap.Config.ARGB_8888))
+      whenever(BitmapRegionDecoder.newInstance(any<InputStream>(), any<Boolean>()))
+          .thenReturn(regionDecoder)
+      val encodedImage = createEncodedImage(DefaultImageFormats.JPEG, 10_000, 8_000)
+
+      val image =
+          decoder.decode(
+              encodedImage, encodedImage.size, ImmutableQualityInfo.FULL_QUALITY, options)
+
+      assertThat(image).isInstanceOf(CloseableTiledImage::class.java)
+      val tiledImage = image as CloseableTiledImage
+      assertThat(tiledImage.previewSampleSize).isEqualTo(8)
+      assertThat(tiledImage.width).isEqualTo(10_000)
+      assertThat(tiledImage.height).isEqualTo(8_000)
+      verify(regionDecoder)
+          .decodeRegion(
+              argThat { equals(Rect(0, 0, 10_000, 8_000)) }, argThat { inSampleSize == 8 })
+      verifyNoInteractions(fallbackDecoder)
+
+      tiledImage.close()
+      verify(regionDecoder).recycle()
+    }
+  }
+
+  @Test
+  fun testFallsBackForSmallImages() {
+    val encodedImage = createEncodedImage(DefaultImageFormats.JPEG, 2_048, 1_000)
+    whenever(fallbackDecoder.decode(any(), any(), any(), any())).thenReturn(fallbackImage)
+
+    assertThat(decoder.decode(encodedImage, 16, ImmutableQualityInfo.FULL_QUALITY, options))
+        .isSameAs(fallbackImage)
+    // Without this decoder, which the fallback decoder would call back
+    verify(fallbackDecoder)
+        .decode(
+            eq(encodedImage),
+            eq(16),
+            eq(ImmutableQualityInfo.FULL_QUALITY),
+            argThat { customImageDecoder == null },
+        )
+  }
+
+  @Test
+  fun testFallsBackForUnsupportedFormatsAndIntermediateResults() {
+    val gif = createEncodedImage(DefaultImageFormats.GIF, 10_000, 10_000)
+    val jpeg = createEncodedImage(DefaultImageFormats.JPEG, 10_000, 10_000)
+    val intermediateQuality = ImmutableQualityInfo.of(1, false, false)
+
+    decoder.decode(gif, 16, ImmutableQualityInfo.FULL_QUALITY, options)
+    decoder.decode(jpeg, 16, intermediateQuality, options)
+
+    verify(fallbackDecoder).decode(eq(gif), eq(16), eq(ImmutableQualityInfo.FULL_QUALITY), any())
+    verify(fallbackDecoder).decode(eq(jpeg), eq(16), eq(intermediateQuality), any())
+  }
+
+  @Test
+  fun testGetPreviewSampleSize() {
+    assertThat(TiledImageDecoder.getPreviewSampleSize(2_048, 100, 2_048)).isEqualTo(1)
+    assertThat(TiledImageDecoder.getPreviewSampleSize(100, 4_096, 2_048)).isEqualTo(2)
+    assertThat(TiledImageDecoder.getPreviewSampleSize(4_097, 100, 2_048)).isEqualTo(4)
+    assertThat(TiledImageDecoder.getPreviewSampleSize(10_000, 8_000, 2_048)).isEqualTo(8)
+  }
+
+  private fun createEncodedImage(imageFormat: ImageFormat, width: Int, height: Int): EncodedImage {
+    val encodedImage = EncodedImage(CloseableReference.of(TrivialPooledByteBuffer(ByteArray(16))))
+    encodedImage.imageFormat = imageFormat
+    encodedImage.width = width
+    encodedImage.height = height
+    encodedImage.rotationAngle = 0
+    encodedImage.source = "https://fresco/huge.jpg"
+    return encodedImage
+  }
+}
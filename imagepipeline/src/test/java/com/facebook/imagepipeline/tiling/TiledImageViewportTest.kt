@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiling
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Canvas
+import android.graphics.Rect
+import com.facebook.cache.common.CacheKey
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.bitmaps.SimpleBitmapReleaser
+import com.facebook.imagepipeline.cache.MemoryCache
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.CloseableStaticBitmap
+import com.facebook.imagepipeline.image.ImmutableQualityInfo
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argThat
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class TiledImageViewportTest {
+
+  private val regionDecoder = mock<BitmapRegionDecoder>()
+  private val bitmapMemoryCache = mock<MemoryCache<CacheKey, CloseableImage>>()
+  private val listener = mock<TiledImageViewport.Listener>()
+  private val pendingTasks = ArrayList<Runnable>()
+  private val cachedTiles = ArrayList<CloseableReference<CloseableImage>>()
+  private var onDecode: (() -> Unit)? = null
+  private lateinit var preview: CloseableReference<Bitmap>
+  private lateinit var image: CloseableTiledImage
+
+  @Before
+  fun setUp() {
+    whenever(regionDecoder.decodeRegion(any<Rect>(), any<BitmapFactory.Options>())).thenAnswer {
+      val rect = it.getArgument<Rect>(0)
+      val sampleSize = it.getArgument<BitmapFactory.Options>(1).inSampleSize
+      onDecode?.invoke()
+      Bitmap.createBitmap(
+          rect.width() / sampleSize, rect.height() / sampleSize, Bitmap.Config.ARGB_8888)
+    }
+    whenever(bitmapMemoryCache.cache(any(), any())).thenAnswer {
+      val cachedTile = it.getArgument<CloseableReference<CloseableImage>>(1).clone()
+      cachedTiles.add(cachedTile)
+      cachedTile.clone()
+    }
+    preview =
+        CloseableReference.of(
+            Bitmap.createBitmap(WIDTH / 8, HEIGHT / 8, Bitmap.Config.ARGB_8888),
+            SimpleBitmapReleaser.getInstance())
+    image =
+        CloseableTiledImage(
+            regionDecoder,
+            preview.clone(),
+            8,
+            WIDTH,
+            HEIGHT,
+            90,
+            SOURCE,
+            TILE_SIZE,
+            Bitmap.Config.ARGB_8888,
+            bitmapMemoryCache,
+            { pendingTasks.add(it) },
+            1_000,
+        )
+  }
+
+  @Test
+  fun testDecodesVisibleTilesAtSampleSizeOfScale() {
+    val viewport = image.newViewport(listener)
+
+    viewport.setViewport(Rect(1000, 0, 2000, 1000), 0.5f)
+
+    val expectedKeys =
+        setOf(
+            tileKey(2, 0, 0),
+            tileKey(2, 1024, 0),
+        )
+    assertThat(viewport.sampleSize).isEqualTo(2)
+    assertThat(viewport.pendingTileKeys).isEqualTo(expectedKeys)
+    assertThat(viewport.tileKeys).isEmpty()
+
+    runPendingTasks()
+
+    assertThat(viewport.tileKeys).isEqualTo(expectedKeys)
+    assertThat(viewport.pendingTileKeys).isEmpty()
+    verify(regionDecoder)
+        .decodeRegion(argThat { equals(Rect(1024, 0, 2048, 1024)) }, argThat { inSampleSize == 2 })
+    verify(bitmapMemoryCache).cache(eq(tileKey(2, 0, 0)), any())
+    verify(listener, times(2)).onTileDecoded(viewport)
+  }
+
+  @Test
+  fun testClipsTilesToImage() {
+    val viewport = image.newViewport(listener)
+
+    viewport.setViewport(Rect(WIDTH - 10, HEIGHT - 10, WIDTH + 500, HEIGHT + 500), 1f)
+    runPendingTasks()
+
+    val key = tileKey(1, 7680, 5632)
+    assertThat(viewport.tileKeys).containsExactly(key)
+    verify(regionDecoder)
+        .decodeRegion(argThat { equals(Rect(key.left, key.top, WIDTH, HEIGHT)) }, any())
+  }
+
+  @Test
+  fun testTakesTilesFromCache() {
+    val key = tileKey(1, 0, 0)
+    val cachedTile = createTile()
+    whenever(bitmapMemoryCache[key]).thenReturn(cachedTile)
+    val viewport = image.newViewport(listener)
+
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+
+    assertThat(viewport.tileKeys).containsExactly(key)
+    assertThat(pendingTasks).isEmpty()
+    verify(regionDecoder, never()).decodeRegion(any(), any())
+  }
+
+  @Test
+  fun testCancelsDecodesOfTilesOutOfViewport() {
+    val viewport = image.newViewport(listener)
+
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+    viewport.setViewport(Rect(3600, 0, 3700, 100), 1f)
+    runPendingTasks()
+
+    assertThat(viewport.tileKeys).containsExactly(tileKey(1, 3584, 0))
+    verify(regionDecoder).decodeRegion(any(), any())
+    verify(listener).onTileDecoded(viewport)
+  }
+
+  @Test
+  fun testReleasesTilesDecodedOutOfViewport() {
+    val viewport = image.newViewport(listener)
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+    // The viewport changes while the tile is decoded
+    onDecode = {
+      onDecode = null
+      viewport.setViewport(Rect(3600, 0, 3700, 100), 1f)
+    }
+    pendingTasks.removeAt(0).run()
+
+    assertThat(viewport.tileKeys).isEmpty()
+    assertThat(cachedTiles.single().underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(1)
+  }
+
+  @Test
+  fun testKeepsTilesOfPreviousSampleSizeUntilNewTilesAreDecoded() {
+    val viewport = image.newViewport(listener)
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+    runPendingTasks()
+
+    viewport.setViewport(Rect(0, 0, 100, 100), 0.5f)
+
+    assertThat(viewport.pendingTileKeys).containsExactly(tileKey(2, 0, 0))
+    assertThat(viewport.staleTileKeys).containsExactly(tileKey(1, 0, 0))
+    assertThat(cachedTiles.single().underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(2)
+
+    runPendingTasks()
+
+    assertThat(viewport.tileKeys).containsExactly(tileKey(2, 0, 0))
+    assertThat(viewport.staleTileKeys).isEmpty()
+    assertThat(cachedTiles[0].underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(1)
+  }
+
+  @Test
+  fun testReusesTilesOfPreviousSampleSizeWhenZoomingBack() {
+    val viewport = image.newViewport(listener)
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+    runPendingTasks()
+
+    viewport.setViewport(Rect(0, 0, 100, 100), 0.5f)
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+    runPendingTasks()
+
+    assertThat(viewport.tileKeys).containsExactly(tileKey(1, 0, 0))
+    assertThat(viewport.staleTileKeys).isEmpty()
+    verify(regionDecoder).decodeRegion(any(), any())
+  }
+
+  @Test
+  fun testReleasesTilesOfPreviousSampleSizeOutOfViewport() {
+    val viewport = image.newViewport(listener)
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+    runPendingTasks()
+
+    viewport.setViewport(Rect(3600, 0, 3700, 100), 0.5f)
+
+    assertThat(viewport.staleTileKeys).isEmpty()
+    assertThat(cachedTiles.single().underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(1)
+  }
+
+  @Test
+  fun testTileKeysOfDifferentEncodedImagesDiffer() {
+    val key = tileKey(1, 0, 0)
+
+    assertThat(key.copy(encodedWidth = WIDTH / 2, encodedHeight = HEIGHT / 2)).isNotEqualTo(key)
+    assertThat(key.copy()).isEqualTo(key)
+  }
+
+  @Test
+  fun testReleasesTilesWhenPreviewIsSharpEnough() {
+    val viewport = image.newViewport(listener)
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+    runPendingTasks()
+
+    viewport.setViewport(Rect(0, 0, WIDTH, HEIGHT), 0.1f)
+
+    assertThat(viewport.sampleSize).isEqualTo(8)
+    assertThat(viewport.tileKeys).isEmpty()
+    assertThat(viewport.pendingTileKeys).isEmpty()
+    assertThat(cachedTiles.single().underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(1)
+  }
+
+  @Test
+  fun testClosesViewportsWithImage() {
+    val viewport = image.newViewport(listener)
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+
+    image.close()
+    runPendingTasks()
+
+    assertThat(image.isClosed).isTrue()
+    assertThat(viewport.tileKeys).isEmpty()
+    verify(regionDecoder).recycle()
+    verify(regionDecoder, never()).decodeRegion(any(), any())
+    image.newViewport(listener).setViewport(Rect(0, 0, 100, 100), 1f)
+    assertThat(pendingTasks).isEmpty()
+  }
+
+  @Test
+  fun testRecyclesDecoderClosedWhileDecoding() {
+    val viewport = image.newViewport(listener)
+    viewport.setViewport(Rect(0, 0, 100, 100), 1f)
+    val otherThread = Executors.newSingleThreadExecutor()
+    onDecode = {
+      // Closing the image, and drawing it, do not wait for the decode
+      otherThread.submit(Callable { image.close() }).get(1, TimeUnit.SECONDS)
+      assertThat(otherThread.submit(Callable { image.isClosed }).get(1, TimeUnit.SECONDS)).isTrue()
+      verify(regionDecoder, never()).recycle()
+    }
+
+    runPendingTasks()
+    otherThread.shutdown()
+
+    assertThat(viewport.tileKeys).isEmpty()
+    verify(regionDecoder).recycle()
+  }
+
+  @Test
+  fun testDrawableClosesViewportWhenHiddenOrReleased() {
+    val drawable = TiledImageDrawable(image)
+    drawable.setBounds(0, 0, HEIGHT / 10, WIDTH / 10)
+    val canvas = Canvas(Bitmap.createBitmap(HEIGHT / 10, WIDTH / 10, Bitmap.Config.ARGB_8888))
+
+    drawable.draw(canvas)
+    // The viewport of the drawable holds the preview
+    assertThat(preview.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(3)
+    drawable.setVisible(false, false)
+    assertThat(preview.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(2)
+
+    drawable.setVisible(true, false)
+    drawable.draw(canvas)
+    assertThat(preview.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(3)
+    drawable.dropCaches()
+    assertThat(preview.underlyingReferenceTestOnly.refCountTestOnly).isEqualTo(2)
+  }
+
+  @Test
+  fun testRotatesDimensions() {
+    assertThat(image.width).isEqualTo(HEIGHT)
+    assertThat(image.height).isEqualTo(WIDTH)
+    assertThat(image.sizeInBytes).isEqualTo(WIDTH / 8 * HEIGHT / 8 * 4 + 1_000)
+  }
+
+  @Test
+  fun testGetSampleSize() {
+    assertThat(TiledImageViewport.getSampleSize(2f)).isEqualTo(1)
+    assertThat(TiledImageViewport.getSampleSize(1f)).isEqualTo(1)
+    assertThat(TiledImageViewport.getSampleSize(0.6f)).isEqualTo(1)
+    assertThat(TiledImageViewport.getSampleSize(0.5f)).isEqualTo(2)
+    assertThat(TiledImageViewport.getSampleSize(0.3f)).isEqualTo(2)
+    assertThat(TiledImageViewport.getSampleSize(0.25f)).isEqualTo(4)
+    assertThat(TiledImageViewport.getSampleSize(0f)).isGreaterThan(1_024)
+  }
+
+  private fun runPendingTasks() {
+    while (pendingTasks.isNotEmpty()) {
+      pendingTasks.removeAt(0).run()
+    }
+  }
+
+  private fun tileKey(sampleSize: Int, left: Int, top: Int): TileCacheKey =
+      TileCacheKey(SOURCE, WIDTH, HEIGHT, TILE_SIZE, sampleSize, left, top)
+
+  private fun createTile(): CloseableReference<CloseableImage> =
+      CloseableReference.of(
+          CloseableStaticBitmap.of(
+              Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888),
+              SimpleBitmapReleaser.getInstance(),
+              ImmutableQualityInfo.FULL_QUALITY,
+              0))
+
+  companion object {
+    private const val SOURCE = "https://fresco/huge.jpg"
+    private const val WIDTH = 8000
+    private const val HEIGHT = 6000
+    private const val TILE_SIZE = 512
+  }
+}
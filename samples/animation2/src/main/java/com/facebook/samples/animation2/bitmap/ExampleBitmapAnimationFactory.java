@@ -160,5 +160,10 @@ public class ExampleBitmapAnimationFactory {
       // we always use the full bitmap
       return AnimationBackend.INTRINSIC_DIMENSION_UNSET;
     }
+
+    @Override
+    public void clear() {
+      // nothing is kept between frames
+    }
   }
 }
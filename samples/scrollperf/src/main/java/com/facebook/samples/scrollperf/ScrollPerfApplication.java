@@ -37,10 +37,14 @@ public class ScrollPerfApplication extends Application {
           new DefaultExecutorSupplier(
               Const.NUMBER_OF_PROCESSORS,
               DefaultExecutorSupplier.DEFAULT_NUM_IO_BOUND_THREADS,
-              DefaultExecutorSupplier.DEFAULT_NUM_LIGHTWEIGHT_BACKGROUND_THREADS));
+              DefaultExecutorSupplier.DEFAULT_NUM_LIGHTWEIGHT_BACKGROUND_THREADS,
+              config.priorityExecutors));
     } else {
       imagePipelineConfigBuilder.setExecutorSupplier(
-          new ScrollPerfExecutorSupplier(Const.NUMBER_OF_PROCESSORS, config.decodingThreadCount));
+          new ScrollPerfExecutorSupplier(
+              Const.NUMBER_OF_PROCESSORS,
+              config.decodingThreadCount,
+              config.priorityExecutors));
     }
     imagePipelineConfigBuilder.experiment().setDecodeCancellationEnabled(config.decodeCancellation);
     if (BuildConfig.FLAVOR == "noNativeCode") {
@@ -50,6 +50,7 @@ public class Config {
   public final int fadeDurationMs;
 
   public final boolean decodeCancellation;
+  public final boolean priorityExecutors;
   public final boolean webpSupportEnabled;
 
   public final int decodingThreadCount;
@@ -111,6 +112,7 @@ public class Config {
                 Preconditions.checkNotNull(
                     sharedPreferences.getString(Const.GRID_SPAN_COUNT_KEY, "3"))))
         .setDecodeCancellation(sharedPreferences.getBoolean(Const.DECODE_CANCELLATION_KEY, false))
+        .setPriorityExecutors(sharedPreferences.getBoolean(Const.PRIORITY_EXECUTORS_KEY, false))
         .setVitoOverlayEnabled(sharedPreferences.getBoolean(Const.VITO_OVERLAY_KEY, false))
         .setInstrumentationEnabled(
             sharedPreferences.getBoolean(Const.INSTRUMENTATION_ENABLED_KEY, false))
@@ -144,6 +146,7 @@ public class Config {
     this.fadeDurationMs = builder.mFadeDurationMs;
     this.drawBorder = builder.mDrawBorder;
     this.decodeCancellation = builder.mDecodeCancellation;
+    this.priorityExecutors = builder.mPriorityExecutors;
     this.webpSupportEnabled = builder.mWebpSupportEnabled;
     this.vitoOverlayEnabled = builder.mVitoOverlayEnabled;
     this.instrumentationEnabled = builder.mInstrumentationEnabled;
@@ -175,6 +178,7 @@ public class Config {
     private int mOverriddenHeight;
     private int mFadeDurationMs;
     private boolean mDecodeCancellation;
+    private boolean mPriorityExecutors;
     private boolean mWebpSupportEnabled;
     private boolean mDrawBorder;
     private boolean mVitoOverlayEnabled;
@@ -283,6 +287,11 @@ public class Config {
       return this;
     }
 
+    public Builder setPriorityExecutors(boolean priorityExecutors) {
+      this.mPriorityExecutors = priorityExecutors;
+      return this;
+    }
+
     public Builder setWebpSupportEnabled(boolean webpSupportEnabled) {
       this.mWebpSupportEnabled = webpSupportEnabled;
       return this;
@@ -58,6 +58,8 @@ public final class Const {
 
   public static final String DECODE_CANCELLATION_KEY = "decode_cancellation_key";
 
+  public static final String PRIORITY_EXECUTORS_KEY = "priority_executors_key";
+
   public static final String VITO_OVERLAY_KEY = "vito_overlay_key";
   public static final String INSTRUMENTATION_ENABLED_KEY = "instrumentation_key";
 }
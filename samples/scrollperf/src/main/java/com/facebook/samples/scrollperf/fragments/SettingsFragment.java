@@ -95,6 +95,7 @@ public class SettingsFragment extends PreferenceFragmentCompat
     updateDrawBorderSummary(findPreference(Const.DRAW_BORDER_KEY));
     // NULLSAFE_FIXME[Parameter Not Nullable]
     updateDecodeCancellationSummary(findPreference(Const.DECODE_CANCELLATION_KEY));
+    updatePriorityExecutorsSummary(findPreference(Const.PRIORITY_EXECUTORS_KEY));
     Preference webpSupportPreference = findPreference(Const.WEBP_SUPPORT_KEY);
     if (webpSupportPreference != null) {
       webpSupportPreference.setVisible(false);
@@ -184,6 +185,11 @@ public class SettingsFragment extends PreferenceFragmentCompat
         updateDecodeCancellationSummary(preference);
         getShowRestartMessageDialog().show(getChildFragmentManager(), null);
         break;
+      case Const.PRIORITY_EXECUTORS_KEY:
+        // NULLSAFE_FIXME[Parameter Not Nullable]
+        updatePriorityExecutorsSummary(preference);
+        getShowRestartMessageDialog().show(getChildFragmentManager(), null);
+        break;
       case Const.VITO_OVERLAY_KEY:
         // NULLSAFE_FIXME[Parameter Not Nullable]
         updateVitoOverlaySummary(preference);
@@ -306,6 +312,14 @@ public class SettingsFragment extends PreferenceFragmentCompat
         R.string.unchecked_decode_cancellation_summary);
   }
 
+  private void updatePriorityExecutorsSummary(final Preference preference) {
+    updateCheckBoxPreference(
+        getResources(),
+        (CheckBoxPreference) preference,
+        R.string.checked_priority_executors_summary,
+        R.string.unchecked_priority_executors_summary);
+  }
+
   private void updateWebpSupportSummary(final Preference preference) {
     updateCheckBoxPreference(
         getResources(),
@@ -10,6 +10,7 @@ package com.facebook.samples.scrollperf.internal;
 import android.os.Process;
 import androidx.annotation.Nullable;
 import com.facebook.imagepipeline.core.ExecutorSupplier;
+import com.facebook.imagepipeline.core.PriorityExecutor;
 import com.facebook.imagepipeline.core.PriorityThreadFactory;
 import com.facebook.infer.annotation.Nullsafe;
 import java.util.concurrent.Executor;
@@ -31,14 +32,30 @@ public class ScrollPerfExecutorSupplier implements ExecutorSupplier {
   private final Executor mLightWeightBackgroundExecutor;
 
   public ScrollPerfExecutorSupplier(int numCpuBoundThreads, int numDecodingThread) {
+    this(numCpuBoundThreads, numDecodingThread, false);
+  }
+
+  /**
+   * @param usePriorityExecutors whether the IO-bound, decode and background executors run the
+   *     queued tasks in the order of their priority, as in {@link
+   *     com.facebook.imagepipeline.core.DefaultExecutorSupplier}
+   */
+  public ScrollPerfExecutorSupplier(
+      int numCpuBoundThreads, int numDecodingThread, boolean usePriorityExecutors) {
     ThreadFactory backgroundPriorityThreadFactory =
         new PriorityThreadFactory(Process.THREAD_PRIORITY_BACKGROUND);
 
-    mIoBoundExecutor = Executors.newFixedThreadPool(NUM_IO_BOUND_THREADS);
+    mIoBoundExecutor =
+        maybePrioritize(
+            Executors.newFixedThreadPool(NUM_IO_BOUND_THREADS), usePriorityExecutors);
     mDecodeExecutor =
-        Executors.newFixedThreadPool(numDecodingThread, backgroundPriorityThreadFactory);
+        maybePrioritize(
+            Executors.newFixedThreadPool(numDecodingThread, backgroundPriorityThreadFactory),
+            usePriorityExecutors);
     mBackgroundExecutor =
-        Executors.newFixedThreadPool(numCpuBoundThreads, backgroundPriorityThreadFactory);
+        maybePrioritize(
+            Executors.newFixedThreadPool(numCpuBoundThreads, backgroundPriorityThreadFactory),
+            usePriorityExecutors);
     mLightWeightBackgroundExecutor =
         Executors.newFixedThreadPool(
             NUM_LIGHTWEIGHT_BACKGROUND_THREADS, backgroundPriorityThreadFactory);
@@ -79,4 +96,8 @@ public class ScrollPerfExecutorSupplier implements ExecutorSupplier {
   public Executor forThumbnailProducer() {
     return mIoBoundExecutor;
   }
+
+  private static Executor maybePrioritize(Executor executor, boolean usePriorityExecutors) {
+    return usePriorityExecutors ? new PriorityExecutor(executor) : executor;
+  }
 }
@@ -107,7 +107,8 @@ public class FrescoFlipperPlugin extends BufferingFlipperPlugin
     mFlipperImageTracker =
         imageTracker instanceof FlipperImageTracker
             ? (FlipperImageTracker) imageTracker
-            : new FlipperImageTracker();
+            : new FlipperImageTracker(
+                Fresco.getImagePipelineFactory().getMainDiskCacheResourceIdHasher());
     mPlatformBitmapFactory = bitmapFactory;
     mSonarObjectHelper = flipperObjectHelper;
     mMemoryManager = memoryManager;
@@ -121,7 +122,8 @@ public class FrescoFlipperPlugin extends BufferingFlipperPlugin
 
   public FrescoFlipperPlugin() {
     this(
-        new FlipperImageTracker(),
+        new FlipperImageTracker(
+            Fresco.getImagePipelineFactory().getMainDiskCacheResourceIdHasher()),
         Fresco.getImagePipelineFactory().getPlatformBitmapFactory(),
         null,
         new NoOpDebugMemoryManager(),
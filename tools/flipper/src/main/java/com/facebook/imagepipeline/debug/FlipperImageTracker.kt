@@ -9,6 +9,8 @@ package com.facebook.imagepipeline.debug
 
 import com.facebook.cache.common.CacheKey
 import com.facebook.cache.common.CacheKeyUtil
+import com.facebook.cache.common.ResourceIdHasher
+import com.facebook.cache.common.Sha1ResourceIdHasher
 import com.facebook.fresco.ui.common.ImageLoadStatus
 import com.facebook.fresco.ui.common.ImagePerfData
 import com.facebook.fresco.ui.common.ImagePerfDataListener
@@ -17,8 +19,17 @@ import com.facebook.imagepipeline.request.ImageRequest
 
 private const val MAX_IMAGES_TO_TRACK = 1_000
 
-/** Fresco image tracker for Sonar */
-class FlipperImageTracker : DebugImageTracker, ImagePerfDataListener {
+/**
+ * Fresco image tracker for Sonar
+ *
+ * @param resourceIdHasher hasher of the disk cache, so that the tracked resource ids are the names
+ *   of its entries
+ */
+class FlipperImageTracker
+@JvmOverloads
+constructor(
+    private val resourceIdHasher: ResourceIdHasher = Sha1ResourceIdHasher.getInstance(),
+) : DebugImageTracker, ImagePerfDataListener {
 
   private val imageRequestDebugDataMap: MutableMap<ImageRequest?, ImageDebugData> =
       LruMap(MAX_IMAGES_TO_TRACK)
@@ -33,7 +44,7 @@ class FlipperImageTracker : DebugImageTracker, ImagePerfDataListener {
       imageRequestDebugDataMap[imageRequest] = imageDebugData
     }
     imageDebugData.addCacheKey(cacheKey)
-    imageDebugData.addResourceId(CacheKeyUtil.getFirstResourceId(cacheKey))
+    imageDebugData.addResourceId(CacheKeyUtil.getFirstResourceId(cacheKey, resourceIdHasher))
   }
 
   @Synchronized